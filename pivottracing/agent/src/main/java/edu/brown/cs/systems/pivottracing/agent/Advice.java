@@ -3,5 +3,14 @@ package edu.brown.cs.systems.pivottracing.agent;
 public interface Advice {
  
     public void advise(Object... values);
+    
+    /** Fixed-arity versions of advise, which do not require the caller to allocate an array */
+    public void advise(Object a);
+    
+    public void advise(Object a, Object b);
+    
+    public void advise(Object a, Object b, Object c);
+    
+    public void advise(Object a, Object b, Object c, Object d);
 
 }
@@ -17,6 +17,7 @@ public class AdviceInstanceManager {
             current = active.get();
             next = current.add(advice, adviceId);
         } while (!active.compareAndSet(current, next));
+        PrivilegedProxy.SetActive(adviceId, true);
         return adviceId;
     }
     
@@ -27,6 +28,7 @@ public class AdviceInstanceManager {
     
     /** Delete advice by ID */
     public void remove(int lookupId) {
+        PrivilegedProxy.SetActive(lookupId, false);
         ActiveInstances current, next;
         do {
             current = active.get();
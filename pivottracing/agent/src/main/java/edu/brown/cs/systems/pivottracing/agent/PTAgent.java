@@ -11,6 +11,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.protobuf.ByteString;
 
+import edu.brown.cs.systems.dynamicinstrumentation.Agent;
 import edu.brown.cs.systems.dynamicinstrumentation.DynamicManager;
 import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
 import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentStatus;
@@ -68,6 +69,38 @@ public class PTAgent implements PrivilegedAgent {
         }
     }
 
+    @Override
+    public void Advise1(int adviceId, Object a) {
+        Advice advice = adviceManager.lookup(adviceId);
+        if (advice != null) {
+            advice.advise(a);
+        }
+    }
+
+    @Override
+    public void Advise2(int adviceId, Object a, Object b) {
+        Advice advice = adviceManager.lookup(adviceId);
+        if (advice != null) {
+            advice.advise(a, b);
+        }
+    }
+
+    @Override
+    public void Advise3(int adviceId, Object a, Object b, Object c) {
+        Advice advice = adviceManager.lookup(adviceId);
+        if (advice != null) {
+            advice.advise(a, b, c);
+        }
+    }
+
+    @Override
+    public void Advise4(int adviceId, Object a, Object b, Object c, Object d) {
+        Advice advice = adviceManager.lookup(adviceId);
+        if (advice != null) {
+            advice.advise(a, b, c, d);
+        }
+    }
+
     @SuppressWarnings("serial")
     public static class PTAgentException extends Exception {
         public PTAgentException(String formatString, Object... args) {
@@ -113,6 +146,11 @@ public class PTAgent implements PrivilegedAgent {
         AgentStatus.Builder status = AgentStatus.newBuilder();
         status.setAgent(getAgentInfo());
         status.setDynamicInstrumentationEnabled(dynamic != null);
+        if (dynamic != null && dynamic.lastInstall != null) {
+            Agent.InstallTimings timings = dynamic.lastInstall;
+            status.getLastInstallBuilder().setTimestamp(timings.timestamp).setClasses(timings.classes)
+                    .setModifyNanos(timings.modifyNanos).setReloadNanos(timings.reloadNanos);
+        }
         status.addAllWoven(weaveManager.woven());
         for (HardcodedTracepoint t : hardcodedTracepoints.values()) {
             status.addHardcodedTracepointsBuilder().setId(t.id).addAllExport(t.exportedVariables);
@@ -38,12 +38,16 @@ public class PivotTracing {
         boolean useBaggage = config.getBoolean("pivot-tracing.agent.use_baggage");
         boolean useDynamic = config.getBoolean("pivot-tracing.agent.use_dynamic");
         boolean emitIfNoResults = config.getBoolean("pivot-tracing.agent.emit_if_no_results");
-        String resultsTopic = config.getString("pivot-tracing.pubsub.results_topic");
+        String resultsTopic = config.getString("pivot-tracing.agent.results_topic");
         int reportInterval = config.getInt("pivot-tracing.agent.report_interval_ms");
+        int tupleChunkBytes = config.getBytes("pivot-tracing.agent.emit_tuples.chunk_bytes").intValue();
+        long tupleBufferBytes = config.getBytes("pivot-tracing.agent.emit_tuples.max_buffered_bytes");
+        int tupleSampleSize = config.getInt("pivot-tracing.agent.emit_tuples.sample_size");
             
         // Create APIs
         BaggageAPI baggageApi = useBaggage ? new BaggageAPIImpl() : new BaggageAPIDisabled();
-        EmitAPI emitApi = new EmitAPIImpl(reportInterval, resultsTopic, emitIfNoResults);
+        EmitAPI emitApi = new EmitAPIImpl(reportInterval, resultsTopic, emitIfNoResults, tupleChunkBytes,
+                tupleBufferBytes, tupleSampleSize);
         DynamicManager dynamic = useDynamic ? DynamicInstrumentation.get() : null;
         
         // Create the agent and register it with the privileged proxy
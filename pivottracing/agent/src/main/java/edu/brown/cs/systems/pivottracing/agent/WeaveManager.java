@@ -1,6 +1,7 @@
 package edu.brown.cs.systems.pivottracing.agent;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,7 +43,24 @@ public class WeaveManager {
     }
     
     /** Modify and reinstall any classes that have changed since the last call to installChanges */
-    public synchronized void install() {        
+    public synchronized void install() {
+        // Weaves that are removed and then re-added unchanged are kept, rather than recompiling the classes they modify
+        for (Iterator<Weave> it = removed.iterator(); it.hasNext();) {
+            Weave w = it.next();
+            ByteString id = w.spec.getId();
+            if (!woven.containsKey(id) && w.spec.equals(pending.get(id))) {
+                woven.put(id, w);
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<ByteString, WeaveSpec>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<ByteString, WeaveSpec> next = it.next();
+            Weave current = woven.get(next.getKey());
+            if (current != null && current.spec.equals(next.getValue())) {
+                it.remove();
+            }
+        }
+        
         // Process the removed weaves
         for (Weave w : removed) {
             w.destroy();
@@ -1,11 +1,9 @@
 package edu.brown.cs.systems.pivottracing.agent.advice;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +25,10 @@ import edu.brown.cs.systems.pivottracing.agent.Advice;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Pack;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Unpack;
+import edu.brown.cs.systems.pivottracing.agent.advice.expression.Expression;
+import edu.brown.cs.systems.pivottracing.agent.advice.expression.ExpressionCompiler;
+import edu.brown.cs.systems.pivottracing.agent.advice.expression.ExpressionCompiler.ParseException;
+import edu.brown.cs.systems.pivottracing.agent.advice.expression.ScriptExpression;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPI;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPI.Emit;
 
@@ -47,11 +49,22 @@ public class AdviceImpl implements Advice {
     private final List<LetImpl> lets = Lists.newArrayList(); // Responsible for constructing tuples from expressions (LET)
     private final List<WhereImpl> wheres = Lists.newArrayList(); // Responsible for evaluating predicates (WHERE)
     private final Outputter outputter; // Responsible for sending output tuples to the appropriate destionation (EMIT / PACK)
+    private final Sampler sampler; // Decides which invocations to execute, or null if all invocations are executed
+    
+    // Workspaces do not reference the advice, so that threads that ran the advice do not keep it reachable once it is
+    // uninstalled; their entries for this thread local then become stale and are cleared
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return newWorkspace();
+        }
+    };
     
     public AdviceImpl(AdviceSpec spec, BaggageAPI baggageAPI, EmitAPI emitAPI) throws InvalidAdviceException {
         this.spec = spec;
         this.baggageAPI = baggageAPI;
         this.emitAPI = emitAPI;
+        this.sampler = spec.hasSampling() ? Sampler.create(spec.getSampling(), baggageAPI) : null;
         
         tupleNames.addAll(spec.getObserve().getVarList()); // OBSERVE
         
@@ -81,9 +94,9 @@ public class AdviceImpl implements Advice {
         } else if (spec.hasEmit()) {
             EmitSpec emit = spec.getEmit();
             if (emit.hasTupleSpec()) {
-                outputter = new Emitter(emitAPI.create(emit), emit.getTupleSpec()); // EMIT tuples
+                outputter = new Emitter(emitAPI.create(emit, sampler), emit.getTupleSpec()); // EMIT tuples
             } else if (emit.hasGroupBySpec()) {
-                outputter = new Emitter(emitAPI.create(emit), emit.getGroupBySpec()); // EMIT grouped tuples
+                outputter = new Emitter(emitAPI.create(emit, sampler), emit.getGroupBySpec()); // EMIT grouped tuples
             } else {
                 throw new InvalidAdviceException(emit, "EMIT lacks specification");
             }
@@ -95,27 +108,77 @@ public class AdviceImpl implements Advice {
     /** Clean up anything that needs to be cleaned up when this advice is uninstalled */
     public void destroy() {
         outputter.destroy(); // For now just the outputter needs to be destroyed for EMIT
+        workspaces.remove(); // Other threads' workspaces are cleared once the advice is unreachable
     }
 
     public void advise(Object... values) {
+        advise(values.length, values, null, null, null, null);
+    }
+
+    public void advise(Object a) {
+        advise(1, null, a, null, null, null);
+    }
+
+    public void advise(Object a, Object b) {
+        advise(2, null, a, b, null, null);
+    }
+
+    public void advise(Object a, Object b, Object c) {
+        advise(3, null, a, b, c, null);
+    }
+
+    public void advise(Object a, Object b, Object c, Object d) {
+        advise(4, null, a, b, c, d);
+    }
+
+    /** Observed values are either provided in an array, or individually if there are no more than four */
+    private void advise(int count, Object[] values, Object a, Object b, Object c, Object d) {
+        // Decide whether to execute this invocation before doing any work
+        if (sampler != null && !sampler.sample()) {
+            return;
+        }
+        boolean measured = sampler != null && sampler.isMeasured();
+        long start = measured ? System.nanoTime() : 0;
+        
+        Workspace workspace = acquireWorkspace();
         try {
-            // OBSERVE: create the tuple and copy observed values
-            Object[] tuple = new Object[tupleNames.size()];
-            System.arraycopy(values, 0, tuple, 0, values.length);
+            // OBSERVE: copy observed values into the tuple
+            Object[] tuple = workspace.tuple;
+            if (values != null) {
+                System.arraycopy(values, 0, tuple, 0, count);
+            } else {
+                switch (count) {
+                case 4: tuple[3] = d;
+                case 3: tuple[2] = c;
+                case 2: tuple[1] = b;
+                case 1: tuple[0] = a;
+                }
+            }
+            
+            // Without UNPACK there is exactly one input tuple, which is output directly from the workspace
+            if (unpackers.isEmpty()) {
+                if (evaluate(tuple)) {
+                    outputter.output(tuple, workspace.output);
+                }
+                return;
+            }
             
             // UNPACK: unpack everything from the baggage
             int inputcount = 1;
-            Object[][][] unpacked = new Object[unpackers.size()][][];
+            Object[][][] unpacked = workspace.unpacked;
             for (int i = 0; i < unpacked.length; i++) {
                 unpacked[i] = unpackers.get(i).unpack();
                 inputcount *= unpacked[i].length;
             }
+            if (inputcount == 0) {
+                return;
+            }
             
             // Save up output tuples; no more than the number of input tuples
             List<Object[]> outputs = Lists.newArrayListWithExpectedSize(inputcount);
             
             // Now iterate over every combination of joined input tuples
-            tupleloop: for (int i = 0; i < inputcount; i++) {
+            for (int i = 0; i < inputcount; i++) {
                 // (Join): construct the tuple by copying specific unpacked tuples
                 for (int j = 0, l = i; j < unpacked.length; j++) {
                     Object[] uTuple = unpacked[j][l % unpacked[j].length];
@@ -123,26 +186,78 @@ public class AdviceImpl implements Advice {
                     l /= unpacked[j].length;
                 }
                 
-                // LET: construct let variables
-                for (LetImpl c : lets) {
-                    c.calculate(tuple);
-                }
-                
-                // WHERE: apply predicates
-                for (WhereImpl f : wheres) {
-                    if (!f.satisfies(tuple)) {
-                        continue tupleloop;
-                    }
-                }
-                
                 // Save output tuple
-                outputs.add(outputter.makeOutputTuple(tuple));
+                if (evaluate(tuple)) {
+                    outputs.add(outputter.makeOutputTuple(tuple));
+                }
             }
 
             // EMIT / PACK: send outputs
-            outputter.output(outputs);
+            if (!outputs.isEmpty()) {
+                outputter.output(outputs);
+            }
         } catch (Throwable t) {
             log.warn("Advice failed", t);
+        } finally {
+            workspace.release();
+            if (measured) {
+                sampler.charge(System.nanoTime() - start);
+            }
+        }
+    }
+    
+    /** Calculates LET variables then applies WHERE predicates to the tuple
+     * @return true if the tuple satisfies all predicates */
+    private boolean evaluate(Object[] tuple) throws Exception {
+        // LET: construct let variables
+        for (int i = 0; i < lets.size(); i++) {
+            lets.get(i).calculate(tuple);
+        }
+        
+        // WHERE: apply predicates
+        for (int i = 0; i < wheres.size(); i++) {
+            if (!wheres.get(i).satisfies(tuple)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** Returns this thread's workspace, or a fresh one if this thread's workspace is already in use because the
+     * advice was invoked reentrantly */
+    private Workspace acquireWorkspace() {
+        Workspace workspace = workspaces.get();
+        if (workspace.inUse) {
+            workspace = newWorkspace();
+        }
+        workspace.inUse = true;
+        return workspace;
+    }
+    
+    private Workspace newWorkspace() {
+        return new Workspace(tupleNames.size(), unpackers.size(), outputter.outputTupleIndices.length);
+    }
+    
+    /** Per-thread buffers for advice execution, reused across invocations so that advice without UNPACK does not
+     * allocate */
+    private static class Workspace {
+        private final Object[] tuple;
+        private final Object[][][] unpacked;
+        private final Object[] output;
+        private boolean inUse = false;
+        
+        private Workspace(int tupleSize, int unpackCount, int outputSize) {
+            this.tuple = new Object[tupleSize];
+            this.unpacked = new Object[unpackCount][][];
+            this.output = new Object[outputSize];
+        }
+        
+        /** Clear references to tuple values so that the workspace doesn't keep them reachable */
+        private void release() {
+            Arrays.fill(tuple, null);
+            Arrays.fill(unpacked, null);
+            Arrays.fill(output, null);
+            inUse = false;
         }
     }
     
@@ -172,32 +287,37 @@ public class AdviceImpl implements Advice {
         }
     }
     
-    // Yup, we're going there... this is seriously how we're going to do this... 
-    private static ScriptEngine engine = new ScriptEngineManager().getEngineByName("JavaScript");
+    /** Compiles a LET or WHERE expression once, when the advice is constructed. Falls back to evaluating the
+     * expression as JavaScript if it uses syntax that the compiler does not support */
+    private static Expression compile(String expression, int[] replacementVariableIndices) {
+        try {
+            return ExpressionCompiler.compile(expression, replacementVariableIndices);
+        } catch (ParseException e) {
+            log.warn("Unable to compile expression, falling back to JavaScript evaluation: {}", e.getMessage());
+            return new ScriptExpression(expression, replacementVariableIndices);
+        }
+    }
     
     /** Constructs LET variables */
     public class LetImpl {
         
         public final LetSpec let;
         private final int inputIndex;
-        private final int[] replacementVariableIndices;
+        private final Expression expression;
         
         public LetImpl(LetSpec let) throws InvalidAdviceException {
             this.let = let;
             inputIndex = tupleNames.size();
             tupleNames.add(let.getVar());
-            replacementVariableIndices = new int[let.getReplacementVariablesCount()];
+            int[] replacementVariableIndices = new int[let.getReplacementVariablesCount()];
             for (int i = 0; i < replacementVariableIndices.length; i++) {
                 replacementVariableIndices[i] = indexOf(let.getReplacementVariables(i), let);
             }
+            expression = compile(let.getExpression(), replacementVariableIndices);
         }
         
-        public void calculate(Object[] tuple) throws ScriptException {
-            String toEval = let.getExpression();
-            for (int i : replacementVariableIndices) {
-                toEval = toEval.replaceFirst("\\{\\}", tuple[i].toString().replace("\"", "\\\\\""));
-            }
-            tuple[inputIndex] = engine.eval(toEval);
+        public void calculate(Object[] tuple) throws Exception {
+            tuple[inputIndex] = expression.evaluate(tuple);
         }
         
     }
@@ -206,24 +326,19 @@ public class AdviceImpl implements Advice {
     public class WhereImpl {
         
         public final WhereSpec where;
-        private final String expression;
-        private final int[] replacementVariableIndices;
+        private final Expression expression;
         
         public WhereImpl(WhereSpec where) throws InvalidAdviceException {
             this.where = where;
-            expression = where.getPredicate();
-            replacementVariableIndices = new int[where.getReplacementVariablesCount()];
+            int[] replacementVariableIndices = new int[where.getReplacementVariablesCount()];
             for (int i = 0; i < replacementVariableIndices.length; i++) {
                 replacementVariableIndices[i] = indexOf(where.getReplacementVariables(i), where);
             }
+            expression = compile(where.getPredicate(), replacementVariableIndices);
         }
         
-        public boolean satisfies(Object[] tuple) throws ScriptException {
-            String toEval = expression;
-            for (int i : replacementVariableIndices) {
-                toEval = toEval.replaceFirst("\\{\\}", tuple[i].toString().replace("\"", "\\\\\""));
-            }
-            return engine.eval(toEval) == (Boolean) true;
+        public boolean satisfies(Object[] tuple) throws Exception {
+            return Boolean.TRUE.equals(expression.evaluate(tuple));
         }
         
         
@@ -260,6 +375,10 @@ public class AdviceImpl implements Advice {
         }
         protected Object[] makeOutputTuple(Object[] tuple) {
             Object[] output = new Object[outputTupleIndices.length];
+            project(tuple, output);
+            return output;
+        }
+        protected void project(Object[] tuple, Object[] output) {
             for (int i = 0; i < outputTupleIndices.length; i++) {
                 int j = outputTupleIndices[i];
                 if (j == -1) {
@@ -268,7 +387,10 @@ public class AdviceImpl implements Advice {
                     output[i] = tuple[j];
                 }
             }
-            return output;
+        }
+        /** Output a single tuple; buffer is a reusable array of the output tuple size */
+        protected void output(Object[] tuple, Object[] buffer) {
+            output(Collections.singletonList(makeOutputTuple(tuple)));
         }
         protected abstract void output(List<Object[]> tuples);
         protected abstract void destroy();
@@ -310,6 +432,10 @@ public class AdviceImpl implements Advice {
         public void output(List<Object[]> tuples) {
             emit.emit(tuples);
         }
+        protected void output(Object[] tuple, Object[] buffer) {
+            project(tuple, buffer);
+            emit.emit(buffer);
+        }
         protected void destroy() {
             emitAPI.destroy(emit);
         }
@@ -0,0 +1,140 @@
+package edu.brown.cs.systems.pivottracing.agent.advice;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.SamplingSpec;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI;
+
+/** Decides which invocations of advice are executed, according to a {@link SamplingSpec}.
+ * Invocations are first sampled probabilistically, per invocation and per request. Invocations that are sampled are
+ * then subject to the rate and CPU budgets, which are enforced per process. Each budget is a token bucket that allows
+ * bursts of up to one second's worth of invocations or CPU time; for the CPU budget, executed invocations are charged
+ * the time taken to execute them, measured by the caller.
+ *
+ * Since only some invocations are executed, aggregations of their output underestimate the true totals.
+ * {@link #scale()} gives the factor by which COUNT and SUM aggregations should be multiplied to estimate the true
+ * totals. The factor only accounts for sampling of the advice that produced the output; tuples unpacked from the
+ * baggage of requests that were not sampled by earlier advice are not accounted for */
+public class Sampler {
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final BaggageAPI baggageAPI;
+    private final double probability; // Probability of executing each invocation
+    private final double requestProbability; // Probability of executing the invocations of each request
+    private final long requestThreshold; // Requests with keys below the threshold are sampled
+    private final long nanosPerInvocation; // Rate budget; 0 if not limited
+    private final double cpuFraction; // CPU budget; 1 if not limited
+
+    // Token buckets, represented as the time at which the bucket will next be full
+    private final AtomicLong rateBucket = new AtomicLong(System.nanoTime());
+    private final AtomicLong cpuBucket = new AtomicLong(System.nanoTime());
+
+    // Invocations subject to the budgets, and the invocations of those that were executed, since the last scale
+    private final AtomicLong attempted = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+
+    private Sampler(SamplingSpec spec, BaggageAPI baggageAPI) throws InvalidAdviceException {
+        this.baggageAPI = baggageAPI;
+        this.probability = probability(spec, spec.hasProbability(), spec.getProbability());
+        this.requestProbability = probability(spec, spec.hasRequestProbability(), spec.getRequestProbability());
+        // Request keys are uniformly distributed longs; offset the probability from the middle of the range of keys
+        // so that the threshold does not overflow
+        this.requestThreshold = (long) ((requestProbability - 0.5) * 0x1p64);
+        if (spec.hasMaxPerSecond() && spec.getMaxPerSecond() <= 0) {
+            throw new InvalidAdviceException(spec, "maxPerSecond must be positive");
+        }
+        this.nanosPerInvocation = spec.hasMaxPerSecond() ? (long) Math.max(1, 1e9 / spec.getMaxPerSecond()) : 0;
+        this.cpuFraction = probability(spec, spec.hasMaxCpuFraction(), spec.getMaxCpuFraction());
+    }
+
+    private static double probability(SamplingSpec spec, boolean has, double value) throws InvalidAdviceException {
+        if (!has) {
+            return 1;
+        } else if (value <= 0 || value > 1) {
+            throw new InvalidAdviceException(spec, "Sampling probabilities and fractions must be in (0, 1]");
+        }
+        return value;
+    }
+
+    /** Create a sampler for the provided spec, or return null if the spec does not limit execution */
+    public static Sampler create(SamplingSpec spec, BaggageAPI baggageAPI) throws InvalidAdviceException {
+        Sampler sampler = new Sampler(spec, baggageAPI);
+        if (sampler.probability == 1 && sampler.requestProbability == 1 && !sampler.isBudgeted()) {
+            return null;
+        }
+        return sampler;
+    }
+
+    private boolean isBudgeted() {
+        return nanosPerInvocation > 0 || cpuFraction < 1;
+    }
+
+    /** Whether the CPU time of executed invocations should be measured and passed to {@link #charge(long)} */
+    public boolean isMeasured() {
+        return cpuFraction < 1;
+    }
+
+    /** Decide whether to execute an invocation of the advice */
+    public boolean sample() {
+        if (probability < 1 && ThreadLocalRandom.current().nextDouble() >= probability) {
+            return false;
+        }
+        if (requestProbability < 1 && baggageAPI.requestKey() >= requestThreshold) {
+            return false;
+        }
+        if (!isBudgeted()) {
+            return true;
+        }
+        attempted.incrementAndGet();
+        long now = System.nanoTime();
+        if (cpuFraction < 1 && !hasCapacity(cpuBucket, now)) {
+            return false;
+        }
+        if (nanosPerInvocation > 0 && !take(rateBucket, now, nanosPerInvocation)) {
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /** Charge the time taken to execute an invocation against the CPU budget */
+    public void charge(long nanos) {
+        if (cpuFraction < 1) {
+            take(cpuBucket, System.nanoTime(), (long) (nanos / cpuFraction));
+        }
+    }
+
+    private static boolean hasCapacity(AtomicLong bucket, long now) {
+        return bucket.get() - now <= BURST_NANOS;
+    }
+
+    /** Take from a token bucket, unless the bucket is already empty */
+    private static boolean take(AtomicLong bucket, long now, long cost) {
+        while (true) {
+            long full = bucket.get();
+            long from = full - now < 0 ? now : full; // An idle bucket does not accumulate more than a burst
+            if (from - now > BURST_NANOS) {
+                return false;
+            }
+            if (bucket.compareAndSet(full, from + cost)) {
+                return true;
+            }
+        }
+    }
+
+    /** Returns the factor by which COUNT and SUM aggregations of output produced since the previous call should be
+     * multiplied, to estimate the totals had every invocation been executed */
+    public double scale() {
+        double scale = 1 / (probability * requestProbability);
+        long attempts = attempted.getAndSet(0);
+        long admits = admitted.getAndSet(0);
+        if (admits > 0) {
+            scale *= (double) attempts / admits;
+        }
+        return scale;
+    }
+
+}
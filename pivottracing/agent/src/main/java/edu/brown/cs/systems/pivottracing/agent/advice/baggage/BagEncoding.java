@@ -0,0 +1,263 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Group;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.SimpleTuple;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.TypedTuples;
+
+/** Encodes and decodes the contents of bags.
+ * Bags are encoded as {@link TypedTuples}, which keeps the types of values rather than converting them to strings.
+ * Each value is encoded as a single signed varint whose low two bits give its type:
+ * <ul>
+ * <li>0: an integer, stored in the remaining bits</li>
+ * <li>1: a string, stored as an index into the dictionary of strings in the bag</li>
+ * <li>2: a double, or an integer too large to store inline, stored as an index into the wide values of the bag; the
+ * lowest remaining bit is set for doubles</li>
+ * <li>3: null (0), false (1) or true (2)</li>
+ * </ul>
+ * Integers decode as Long, floating point numbers as Double, and any other object as its String value.
+ * Bags encoded as strings by earlier versions are still decoded.
+ *
+ * Each thread caches the bags it most recently decoded or encoded, keyed on the identity of the serialized bag, so that
+ * repeatedly packing a bag in the same baggage does not re-parse it */
+class BagEncoding {
+
+    enum Kind {
+        TUPLES, GROUPS, FILTER
+    }
+
+    private static final int INLINE = 0, STRING = 1, WIDE = 2, CONSTANT = 3;
+    private static final long NULL = 0, FALSE = 1, TRUE = 2;
+    private static final long MIN_INLINE = Long.MIN_VALUE >> 2, MAX_INLINE = Long.MAX_VALUE >> 2;
+    private static final int CACHE_SIZE = 8;
+
+    private BagEncoding() {
+    }
+
+    /** The decoded contents of a bag.  Contents are immutable once constructed, since they are cached */
+    static class Contents {
+        final Kind kind;
+        final long versionId;
+        final int width; // Values in each tuple, excluding aggregations
+        final int aggregationWidth; // Number of aggregations following the values of each tuple, for groups
+        final List<Object[]> tuples;
+
+        Contents(Kind kind, long versionId, int width, int aggregationWidth, List<Object[]> tuples) {
+            this.kind = kind;
+            this.versionId = versionId;
+            this.width = width;
+            this.aggregationWidth = aggregationWidth;
+            this.tuples = Collections.unmodifiableList(tuples);
+        }
+    }
+
+    /** Convert a value to the type it will have once decoded */
+    static Object normalize(Object value) {
+        if (value == null || value instanceof Long || value instanceof String || value instanceof Double
+                || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float) {
+            return ((Number) value).doubleValue();
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    /* ---------------- Cache of decoded bags ---------------- */
+
+    private static class Cache {
+        final ByteString[] serialized = new ByteString[CACHE_SIZE];
+        final Contents[] contents = new Contents[CACHE_SIZE];
+        int next = 0;
+
+        Contents get(ByteString bag) {
+            for (int i = 0; i < CACHE_SIZE; i++) {
+                if (serialized[i] == bag) {
+                    return contents[i];
+                }
+            }
+            return null;
+        }
+
+        void put(ByteString bag, Contents decoded) {
+            serialized[next] = bag;
+            contents[next] = decoded;
+            next = (next + 1) % CACHE_SIZE;
+        }
+    }
+
+    private static final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    /* ---------------- Decoding ---------------- */
+
+    /** Decode a serialized bag
+     * @return the bag contents, or null if the bag could not be decoded or contains no tuples */
+    static Contents decode(ByteString serialized) {
+        Cache c = cache.get();
+        Contents contents = c.get(serialized);
+        if (contents == null) {
+            try {
+                contents = decode(Bag.parseFrom(serialized));
+            } catch (InvalidProtocolBufferException e) {
+                return null;
+            }
+            if (contents != null) {
+                c.put(serialized, contents);
+            }
+        }
+        return contents;
+    }
+
+    private static Contents decode(Bag bag) {
+        if (bag.hasTupleBag()) {
+            if (bag.getTupleBag().hasTyped()) {
+                return decode(Kind.TUPLES, bag.getVersionId(), bag.getTupleBag().getTyped());
+            }
+            return decodeLegacy(Kind.TUPLES, bag.getVersionId(), bag.getTupleBag().getTupleList());
+        } else if (bag.hasGroupBag()) {
+            if (bag.getGroupBag().hasTyped()) {
+                return decode(Kind.GROUPS, bag.getVersionId(), bag.getGroupBag().getTyped());
+            }
+            return decodeLegacyGroups(bag.getVersionId(), bag.getGroupBag().getGroupList());
+        } else if (bag.hasFilterBag()) {
+            if (bag.getFilterBag().hasTyped()) {
+                return decode(Kind.FILTER, bag.getVersionId(), bag.getFilterBag().getTyped());
+            }
+            return decodeLegacy(Kind.FILTER, bag.getVersionId(), bag.getFilterBag().getTupleList());
+        }
+        return null;
+    }
+
+    private static Contents decode(Kind kind, long versionId, TypedTuples typed) {
+        int count = typed.getCount(), width = typed.getWidth(), aggregationWidth = typed.getAggregationWidth();
+        if (typed.getValueCount() != count * width || typed.getAggregationCount() != count * aggregationWidth) {
+            return null;
+        }
+        List<String> strings = typed.getStringList();
+        List<Object[]> tuples = Lists.newArrayListWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+            Object[] tuple = new Object[width + aggregationWidth];
+            for (int j = 0; j < width; j++) {
+                tuple[j] = decodeValue(typed.getValue(i * width + j), strings, typed);
+            }
+            for (int j = 0; j < aggregationWidth; j++) {
+                tuple[width + j] = typed.getAggregation(i * aggregationWidth + j);
+            }
+            tuples.add(tuple);
+        }
+        return new Contents(kind, versionId, width, aggregationWidth, tuples);
+    }
+
+    private static Object decodeValue(long encoded, List<String> strings, TypedTuples typed) {
+        long payload = encoded >> 2;
+        switch ((int) (encoded & 3)) {
+        case INLINE:
+            return payload;
+        case STRING:
+            return strings.get((int) payload);
+        case WIDE:
+            long wide = typed.getWide((int) (payload >> 1));
+            return (payload & 1) == 0 ? (Object) wide : (Object) Double.longBitsToDouble(wide);
+        default:
+            return payload == NULL ? null : payload == TRUE;
+        }
+    }
+
+    private static Contents decodeLegacy(Kind kind, long versionId, List<SimpleTuple> legacy) {
+        // Legacy tuple bags do not record a width; tuples of the wrong width are skipped when unpacked
+        int width = legacy.isEmpty() ? 0 : legacy.get(0).getValueCount();
+        List<Object[]> tuples = Lists.newArrayListWithExpectedSize(legacy.size());
+        for (SimpleTuple tuple : legacy) {
+            if (tuple.getValueCount() == width) {
+                tuples.add(tuple.getValueList().toArray());
+            }
+        }
+        return new Contents(kind, versionId, width, 0, tuples);
+    }
+
+    private static Contents decodeLegacyGroups(long versionId, List<Group> legacy) {
+        int width = legacy.isEmpty() ? 0 : legacy.get(0).getGroupByCount();
+        int aggregationWidth = legacy.isEmpty() ? 0 : legacy.get(0).getAggregationCount();
+        List<Object[]> tuples = Lists.newArrayListWithExpectedSize(legacy.size());
+        for (Group group : legacy) {
+            if (group.getGroupByCount() == width && group.getAggregationCount() == aggregationWidth) {
+                Object[] tuple = new Object[width + aggregationWidth];
+                System.arraycopy(group.getGroupByList().toArray(), 0, tuple, 0, width);
+                System.arraycopy(group.getAggregationList().toArray(), 0, tuple, width, aggregationWidth);
+                tuples.add(tuple);
+            }
+        }
+        return new Contents(Kind.GROUPS, versionId, width, aggregationWidth, tuples);
+    }
+
+    /* ---------------- Encoding ---------------- */
+
+    /** Encode bag contents, caching the contents for the serialized bag */
+    static ByteString encode(Contents contents) {
+        TypedTuples.Builder typed = TypedTuples.newBuilder();
+        typed.setCount(contents.tuples.size()).setWidth(contents.width).setAggregationWidth(contents.aggregationWidth);
+        Map<String, Integer> strings = Maps.newHashMap();
+        for (Object[] tuple : contents.tuples) {
+            for (int i = 0; i < contents.width; i++) {
+                typed.addValue(encodeValue(tuple[i], strings, typed));
+            }
+            for (int i = 0; i < contents.aggregationWidth; i++) {
+                typed.addAggregation((Long) tuple[contents.width + i]);
+            }
+        }
+
+        Bag.Builder bag = Bag.newBuilder().setVersionId(contents.versionId);
+        switch (contents.kind) {
+        case TUPLES: bag.getTupleBagBuilder().setTyped(typed); break;
+        case GROUPS: bag.getGroupBagBuilder().setTyped(typed); break;
+        case FILTER: bag.getFilterBagBuilder().setTyped(typed); break;
+        }
+        ByteString serialized = bag.build().toByteString();
+        cache.get().put(serialized, contents);
+        return serialized;
+    }
+
+    private static long encodeValue(Object value, Map<String, Integer> strings, TypedTuples.Builder typed) {
+        value = normalize(value);
+        if (value instanceof Long) {
+            long v = (Long) value;
+            if (v >= MIN_INLINE && v <= MAX_INLINE) {
+                return (v << 2) | INLINE;
+            }
+            typed.addWide(v);
+            return ((long) (typed.getWideCount() - 1) << 3) | WIDE;
+        } else if (value instanceof Double) {
+            typed.addWide(Double.doubleToRawLongBits((Double) value));
+            return ((long) (typed.getWideCount() - 1) << 3) | (1 << 2) | WIDE;
+        } else if (value instanceof String) {
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.put((String) value, index);
+                typed.addString((String) value);
+            }
+            return ((long) index << 2) | STRING;
+        } else if (value == null) {
+            return (NULL << 2) | CONSTANT;
+        } else {
+            return (((Boolean) value ? TRUE : FALSE) << 2) | CONSTANT;
+        }
+    }
+
+}
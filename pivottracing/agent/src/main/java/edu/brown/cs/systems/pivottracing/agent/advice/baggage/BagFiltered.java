@@ -5,16 +5,14 @@ import java.util.List;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.brown.cs.systems.baggage.Namespace;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Filter;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.FilterSpec;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Contents;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Kind;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Pack;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Unpack;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.FilterBag;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.SimpleTuple;
 
 public class BagFiltered implements Pack, Unpack {
 
@@ -47,21 +45,23 @@ public class BagFiltered implements Pack, Unpack {
         }
         
         // If we make it here, we should pack a new bag and replace any previous bag
-        Bag.Builder newBag = Bag.newBuilder().setVersionId(BaggageAPIImpl.random());
-        FilterBag.Builder filterBag = newBag.getFilterBagBuilder();
+        List<Object[]> filtered = Lists.newArrayListWithExpectedSize(tuples.size());
         for (Object[] tuple : tuples) {
-            SimpleTuple.Builder tupleProto = filterBag.addTupleBuilder();
-            for (Object value : tuple) {
-                tupleProto.addValue(String.valueOf(value));
+            if (tuple.length != tupleSize) continue;
+            Object[] normalized = new Object[tupleSize];
+            for (int i = 0; i < tupleSize; i++) {
+                normalized[i] = BagEncoding.normalize(tuple[i]);
             }
+            filtered.add(normalized);
         }
         
         // If it turns out there are no tuples in the bag, remove it from the baggage
-        if (filterBag.getTupleCount() == 0) {
+        if (filtered.size() == 0) {
             ACTIVE.remove(bagId);
             return;
         }
-        ACTIVE.replace(bagId, newBag.build().toByteString());
+        Contents contents = new Contents(Kind.FILTER, BaggageAPIImpl.random(), tupleSize, 0, filtered);
+        ACTIVE.replace(bagId, BagEncoding.encode(contents));
     }
 
     @Override
@@ -69,14 +69,9 @@ public class BagFiltered implements Pack, Unpack {
         // Most of the filter logic is done in PACK.  We could do some checking here, but for now we won't bother
         List<Object[]> tuples = Lists.newArrayList();
         for (ByteString serialized : Iterables.concat(ACTIVE.get(bagId), ARCHIVE.get(bagId))) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasFilterBag()) {
-                    for (SimpleTuple tuple : bag.getFilterBag().getTupleList()) {
-                        tuples.add(tuple.getValueList().toArray());
-                    }
-                }
-            } catch (InvalidProtocolBufferException e) {
+            Contents contents = BagEncoding.decode(serialized);
+            if (contents != null && contents.kind == Kind.FILTER) {
+                tuples.addAll(contents.tuples);
             }
         }        
         return tuples.toArray(new Object[tuples.size()][]);
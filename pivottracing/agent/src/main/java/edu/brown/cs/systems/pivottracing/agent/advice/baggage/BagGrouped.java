@@ -1,5 +1,6 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -10,17 +11,15 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.brown.cs.systems.baggage.Namespace;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Contents;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Kind;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Pack;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Unpack;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Group;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.GroupBag;
 
 public class BagGrouped implements Pack, Unpack {
 
@@ -60,7 +59,7 @@ public class BagGrouped implements Pack, Unpack {
     
     class GroupedTuples {
         long versionId = BaggageAPIImpl.random(); // Generate random version ID, but this might be overwritten
-        final Map<List<String>, List<Long>> groups = Maps.newHashMap();
+        final Map<List<Object>, long[]> groups = Maps.newHashMap();
         
         int size() {
             return groups.size();
@@ -79,54 +78,53 @@ public class BagGrouped implements Pack, Unpack {
             }
             
             // Pull out tuple keys
-            List<String> keys = Lists.newArrayListWithExpectedSize(groupKeyCount);
+            Object[] keys = new Object[groupKeyCount];
             for (int i = 0; i < groupKeyCount; i++) {
-                keys.add(String.valueOf(tuple[i]));
+                keys[i] = BagEncoding.normalize(tuple[i]);
             }
             
             // Pull out tuple values
-            List<Long> values = Lists.newArrayListWithExpectedSize(aggregationCount);
+            long[] values = new long[aggregationCount];
             for (int i = 0; i < aggregationCount; i++) {
                 if (aggs[i] == Agg.COUNT) {
-                    values.add(1L);
+                    values[i] = 1L;
                 } else {
                     Long agg = interpretLong(tuple[groupKeyCount+i]);
                     if (agg == null) {
                         return;
                     }
-                    values.add(agg);
+                    values[i] = agg;
                 }
             }
             
             // Add the tuple
-            add(keys, values);
+            add(Arrays.asList(keys), values);
         }
         
-        void addAllGroups(List<Group> groups) {
-            for (Group group : groups) {
-                add(group);
+        void addAll(Contents contents) {
+            // Ignore if wrong kind or size
+            if (contents.kind != Kind.GROUPS || contents.width != groupKeyCount || contents.aggregationWidth != aggregationCount) {
+                return;
+            }
+            for (Object[] group : contents.tuples) {
+                long[] aggregates = new long[aggregationCount];
+                for (int i = 0; i < aggregationCount; i++) {
+                    aggregates[i] = (Long) group[groupKeyCount + i];
+                }
+                add(Arrays.asList(Arrays.copyOf(group, groupKeyCount)), aggregates);
             }
         }
         
-        void add(Group group) {
-            add(group.getGroupByList(), Lists.newArrayList(group.getAggregationList()));
-        }
-        
-        void add(List<String> groupBy, List<Long> aggregates) {
-            // Ignore if wrong size
-            if (groupBy.size() != groupKeyCount || aggregates.size() != aggregationCount) {
-                return;
-            }
-            
+        void add(List<Object> groupBy, long[] aggregates) {
             // Merge with existing
-            List<Long> existing = groups.get(groupBy);
+            long[] existing = groups.get(groupBy);
             if (existing != null) {
                 for (int i = 0; i < aggs.length; i++) {
                     switch (aggs[i]) {
                     case COUNT:
-                    case SUM: existing.set(i, existing.get(i) + aggregates.get(i)); break;
-                    case MAX: existing.set(i, Math.max(existing.get(i), aggregates.get(i))); break;
-                    case MIN: existing.set(i, Math.min(existing.get(i), aggregates.get(i))); break;
+                    case SUM: existing[i] += aggregates[i]; break;
+                    case MAX: existing[i] = Math.max(existing[i], aggregates[i]); break;
+                    case MIN: existing[i] = Math.min(existing[i], aggregates[i]); break;
                     }
                 }
                 return;
@@ -136,44 +134,23 @@ public class BagGrouped implements Pack, Unpack {
             groups.put(groupBy, aggregates);
         }
         
-        Object[][] getTuples() {
-            Object[][] tuples = new Object[groups.size()][];
-            int i = 0;
-            for (Entry<List<String>, List<Long>> entry : groups.entrySet()) {
+        List<Object[]> getTuples() {
+            List<Object[]> tuples = Lists.newArrayListWithExpectedSize(groups.size());
+            for (Entry<List<Object>, long[]> entry : groups.entrySet()) {
                 Object[] tuple = new Object[tupleSize];
                 System.arraycopy(entry.getKey().toArray(), 0, tuple, 0, groupKeyCount);
-                System.arraycopy(entry.getValue().toArray(), 0, tuple, groupKeyCount, aggregationCount);
-                tuples[i++] = tuple;
+                for (int i = 0; i < aggregationCount; i++) {
+                    tuple[groupKeyCount + i] = entry.getValue()[i];
+                }
+                tuples.add(tuple);
             }
             return tuples;
         }
         
-        GroupBag.Builder getGroupBag() {
-            GroupBag.Builder b = GroupBag.newBuilder();
-            for (Entry<List<String>, List<Long>> entry : groups.entrySet()) {
-                b.addGroupBuilder().addAllGroupBy(entry.getKey()).addAllAggregation(entry.getValue());
-            }
-            return b;
+        Contents getContents() {
+            return new Contents(Kind.GROUPS, versionId, groupKeyCount, aggregationCount, getTuples());
         }
         
-        Bag.Builder getBag() {
-            return Bag.newBuilder().setVersionId(versionId).setGroupBag(getGroupBag());
-        }
-        
-    }
-
-    GroupedTuples deserialize(Iterable<ByteString> serializedBags) {
-        GroupedTuples groups = new GroupedTuples();
-        for (ByteString serialized : serializedBags) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasGroupBag()) {
-                    groups.versionId = bag.getVersionId();
-                    groups.addAllGroups(bag.getGroupBag().getGroupList());
-                }
-            } catch (InvalidProtocolBufferException e) {}
-        }
-        return groups;
     }
 
     @Override
@@ -181,13 +158,11 @@ public class BagGrouped implements Pack, Unpack {
         // Pull out the current active bag(s)
         GroupedTuples groups = new GroupedTuples();
         for (ByteString serialized : ACTIVE.get(bagId)) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasGroupBag()) {
-                    groups.versionId = bag.getVersionId();
-                    groups.addAllGroups(bag.getGroupBag().getGroupList());
-                }
-            } catch (InvalidProtocolBufferException e) {}
+            Contents contents = BagEncoding.decode(serialized);
+            if (contents != null && contents.kind == Kind.GROUPS) {
+                groups.versionId = contents.versionId;
+                groups.addAll(contents);
+            }
         }
         groups.addAllTuples(tuples);
 
@@ -197,7 +172,7 @@ public class BagGrouped implements Pack, Unpack {
             return;
         }
         
-        ACTIVE.replace(bagId, groups.getBag().build().toByteString());
+        ACTIVE.replace(bagId, BagEncoding.encode(groups.getContents()));
     }
 
     @Override
@@ -215,16 +190,16 @@ public class BagGrouped implements Pack, Unpack {
             return new Object[0][];
         }
 
-        // Deserialize the tuples
+        // Decode and merge the groups. Even a single bag can contain duplicate groups, since joining branches
+        // concatenates the groups of their active bags
         GroupedTuples groups = new GroupedTuples();
         for (ByteString serialized : Iterables.concat(activeBags, archiveBags)) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasGroupBag()) {
-                    groups.addAllGroups(bag.getGroupBag().getGroupList());
-                }
-            } catch (InvalidProtocolBufferException e) {}
+            Contents contents = BagEncoding.decode(serialized);
+            if (contents != null) {
+                groups.addAll(contents);
+            }
         }
-        return groups.getTuples();
+        List<Object[]> tuples = groups.getTuples();
+        return tuples.toArray(new Object[tuples.size()][]);
     }
-}
+}
\ No newline at end of file
@@ -6,16 +6,14 @@ import java.util.Set;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.brown.cs.systems.baggage.Namespace;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.TupleSpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Contents;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Kind;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Pack;
 import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPI.Unpack;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.SimpleTuple;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.TupleBag;
 
 public class BagTuples implements Pack, Unpack {
 
@@ -35,40 +33,37 @@ public class BagTuples implements Pack, Unpack {
     @Override
     public void pack(List<Object[]> tuples) {          
         // Pull out the current active bag(s)
-        Set<ByteString> serializedActive = ACTIVE.get(bagId);
-        Bag.Builder active = Bag.newBuilder();
-        TupleBag.Builder tupleBag = active.getTupleBagBuilder();
-        for (ByteString serialized : serializedActive) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasTupleBag()) {
-                    tupleBag.mergeFrom(bag.getTupleBag());
-                    active.setVersionId(bag.getVersionId());
-                }
-            } catch (InvalidProtocolBufferException e) {
+        List<Object[]> active = Lists.newArrayList();
+        Long versionId = null;
+        for (ByteString serialized : ACTIVE.get(bagId)) {
+            Contents contents = BagEncoding.decode(serialized);
+            if (contents != null && contents.kind == Kind.TUPLES && contents.width == tupleSize) {
+                active.addAll(contents.tuples);
+                versionId = contents.versionId;
             }
         }
 
-        // Serialize tuples and add to the bag
+        // Add tuples to the bag
         for (Object[] tuple : tuples) {
             if (tuple.length != tupleSize) continue;
-            SimpleTuple.Builder tupleProto = tupleBag.addTupleBuilder();
-            for (Object value : tuple) {
-                tupleProto.addValue(String.valueOf(value));
+            Object[] normalized = new Object[tupleSize];
+            for (int i = 0; i < tupleSize; i++) {
+                normalized[i] = BagEncoding.normalize(tuple[i]);
             }
+            active.add(normalized);
         }
         
         // If it turns out there are no tuples in the bag, remove it from the baggage
-        if (tupleBag.getTupleCount() == 0) {
+        if (active.size() == 0) {
             ACTIVE.remove(bagId);
             return;
         }
         
         // We try to pick up a version ID of a previous active bag, but if there is non, generate one
-        if (!active.hasVersionId()) {
-            active.setVersionId(BaggageAPIImpl.random());
+        if (versionId == null) {
+            versionId = BaggageAPIImpl.random();
         }
-        ACTIVE.replace(bagId, active.build().toByteString());
+        ACTIVE.replace(bagId, BagEncoding.encode(new Contents(Kind.TUPLES, versionId, tupleSize, 0, active)));
     }
 
     @Override
@@ -86,19 +81,12 @@ public class BagTuples implements Pack, Unpack {
             return new Object[0][];
         }
         
-        // Deserialize the tuples
+        // Decode the tuples
         List<Object[]> tuples = Lists.newArrayList();
         for (ByteString serialized : Iterables.concat(activeBags, archiveBags)) {
-            try {
-                Bag bag = Bag.parseFrom(serialized);
-                if (bag.hasTupleBag()) {
-                    for (SimpleTuple tuple : bag.getTupleBag().getTupleList()) {
-                        if (tuple.getValueCount() == tupleSize) {
-                            tuples.add(tuple.getValueList().toArray());
-                        }
-                    }
-                }
-            } catch (InvalidProtocolBufferException e) {
+            Contents contents = BagEncoding.decode(serialized);
+            if (contents != null && contents.kind == Kind.TUPLES && contents.width == tupleSize) {
+                tuples.addAll(contents.tuples);
             }
         }        
         return tuples.toArray(new Object[tuples.size()][]);
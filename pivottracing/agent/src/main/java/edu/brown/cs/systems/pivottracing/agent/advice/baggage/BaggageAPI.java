@@ -19,4 +19,8 @@ public interface BaggageAPI {
     public Pack create(PackSpec spec) throws InvalidAdviceException;
     public Unpack create(UnpackSpec spec) throws InvalidAdviceException;
     
+    /** Returns a random value chosen for the current request, which is the same for all of the tracepoints and
+     * processes of the request.  Used to consistently sample requests */
+    public long requestKey();
+    
 }
@@ -1,6 +1,7 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
 
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.PackSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.UnpackSpec;
@@ -27,4 +28,9 @@ public class BaggageAPIDisabled implements BaggageAPI {
         return disabledUnpack;
     }
 
+    /** Without baggage, requests cannot be identified, so each invocation is treated as a new request */
+    public long requestKey() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
 }
@@ -1,12 +1,11 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
 
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
 
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.brown.cs.systems.baggage.BaggageContents;
 import edu.brown.cs.systems.baggage.BaggageImpl;
@@ -16,8 +15,9 @@ import edu.brown.cs.systems.baggage.Handlers.BaggageHandler;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.PackSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.UnpackSpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
-import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
-import edu.brown.cs.systems.tracing.Utils;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Contents;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Kind;
+import edu.brown.cs.systems.tracing.RandomIds;
 
 /** Baggage API implementation.
  * Uses two baggage namespaces -- a namespace for active bags that may be modified, and a namespace for archived bags
@@ -33,15 +33,17 @@ public class BaggageAPIImpl implements BaggageAPI {
     }
     
     // Generates random bag IDs
-    public static final Random r = new Random((Utils.getHost() + Utils.getProcessID() + Utils.getProcessName()).hashCode());
     public static long random() {
-        return r.nextLong();
+        return RandomIds.next();
     }
 
     /* For now, PT bags are statically assigned the namespace for the byte '3' and '4' **/
     public static final ByteString PT_ACTIVE_NAMESPACE = ByteString.copyFrom(new byte[] { 0x03 });
     public static final ByteString PT_ARCHIVE_NAMESPACE = ByteString.copyFrom(new byte[] { 0x04 });
     
+    /* The request key is stored in the archive namespace, which is never modified when executions split or join */
+    public static final ByteString REQUEST_KEY = ByteString.EMPTY;
+    
     public final Namespace<ByteString, ByteString> ACTIVE, ARCHIVE;
 
     /** API for test */
@@ -79,6 +81,24 @@ public class BaggageAPIImpl implements BaggageAPI {
             throw new InvalidAdviceException(spec, "Bag type not specified");
         }     
     }
+    
+    @Override
+    public long requestKey() {
+        // If concurrent branches of the request each chose a key before joining, the smallest is used
+        Set<ByteString> keys = ARCHIVE.get(REQUEST_KEY);
+        if (keys == null || keys.isEmpty()) {
+            long key = random();
+            ARCHIVE.add(REQUEST_KEY, ByteString.copyFrom(Longs.toByteArray(key)));
+            return key;
+        }
+        long key = Long.MAX_VALUE;
+        for (ByteString serialized : keys) {
+            if (serialized.size() == Longs.BYTES) {
+                key = Math.min(key, Longs.fromByteArray(serialized.toByteArray()));
+            }
+        }
+        return key;
+    }
 
     
     /** Archives baggage when execution splits */
@@ -110,38 +130,46 @@ public class BaggageAPIImpl implements BaggageAPI {
             }
         }
         
-        /** Blindly merges bags by merging the protobufs.  Ensures that bags don't have more than one type inside them */
+        /** Merges bags by concatenating their tuples.  Ensures that bags don't have more than one type inside them */
         public static ByteString merge(Set<ByteString> serializedBags) {
-            List<Bag> bags = Lists.newArrayList();
+            List<Contents> bags = Lists.newArrayList();
             for (ByteString serializedBag : serializedBags) {
-                try {
-                    bags.add(Bag.parseFrom(serializedBag));
-                } catch (InvalidProtocolBufferException e) {
+                Contents contents = BagEncoding.decode(serializedBag);
+                if (contents != null) {
+                    bags.add(contents);
                 }
             }
             if (bags.size() == 0) {
                 return null;
             } else if (bags.size() == 1) {
-                return bags.get(0).toByteString();
-            } else {
-                Bag.Builder builder = Bag.newBuilder();
-                for (Bag bag : bags) {
-                    builder.mergeFrom(bag);
+                return BagEncoding.encode(bags.get(0));
+            }
+            
+            // Tuple bags take precedence over group bags, which take precedence over filter bags
+            Kind kind = Kind.FILTER;
+            for (Contents bag : bags) {
+                if (bag.kind.ordinal() < kind.ordinal()) {
+                    kind = bag.kind;
+                }
+            }
+            
+            // Concatenate the tuples of bags of that kind; duplicate groups are merged when the bag is next used
+            Contents first = null;
+            long versionId = 0;
+            List<Object[]> tuples = Lists.newArrayList();
+            for (Contents bag : bags) {
+                if (bag.kind != kind) {
+                    continue;
+                }
+                if (first == null) {
+                    first = bag;
                 }
-                if (builder.hasTupleBag()) {
-                    builder.clearGroupBag();
-                    builder.clearFilterBag();
-                } else if (builder.hasGroupBag()) {
-                    builder.clearTupleBag();
-                    builder.clearFilterBag();
-                } else if (builder.hasFilterBag()) {
-                    builder.clearTupleBag();
-                    builder.clearGroupBag();
-                } else {
-                    return null;
+                if (bag.width == first.width && bag.aggregationWidth == first.aggregationWidth) {
+                    tuples.addAll(bag.tuples);
+                    versionId = bag.versionId;
                 }
-                return builder.build().toByteString();
             }
+            return BagEncoding.encode(new Contents(kind, versionId, first.width, first.aggregationWidth, tuples));
         }
 
         public void preSerialize(BaggageImpl baggage) {
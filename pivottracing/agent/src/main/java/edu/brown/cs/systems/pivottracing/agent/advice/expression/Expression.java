@@ -0,0 +1,13 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.expression;
+
+/** A LET or WHERE expression, evaluated over the variables of an advice tuple. Implementations are thread safe */
+public interface Expression {
+
+    /** Evaluate this expression using the values of the provided tuple
+     *
+     * @param tuple the current advice tuple
+     * @return the value of the expression
+     * @throws Exception if the expression could not be evaluated for this tuple */
+    public Object evaluate(Object[] tuple) throws Exception;
+
+}
@@ -0,0 +1,398 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.expression;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/** Compiles LET and WHERE expressions into trees of {@link Expression} closures, once, when advice is installed.
+ *
+ * Expressions are written in a subset of JavaScript, with <code>{}</code> placeholders that are replaced, in order, by
+ * the values of the expression's replacement variables. A placeholder inside a string literal inserts the variable's
+ * value into the string; a bare placeholder is the variable's value itself. The supported subset is:
+ * <ul>
+ * <li>number, string, <code>true</code>, <code>false</code> and <code>null</code> literals</li>
+ * <li>arithmetic: <code>+ - * / %</code>, where <code>+</code> concatenates if either side is a string</li>
+ * <li>comparisons: <code>== != === !== &lt; &lt;= &gt; &gt;=</code></li>
+ * <li>boolean logic: <code>&amp;&amp; || !</code> and <code>? :</code></li>
+ * <li>string methods: <code>equals, contains, includes, startsWith, endsWith, indexOf, lastIndexOf, substring,
+ * charAt, toLowerCase, toUpperCase, trim, length</code></li>
+ * <li>math functions: <code>Math.abs, min, max, floor, ceil, round, sqrt, pow, log, exp</code></li>
+ * </ul>
+ * Values follow JavaScript semantics: arithmetic is performed on doubles, and comparisons between strings and numbers
+ * compare numerically. Subexpressions that do not depend on any variables are evaluated at compile time. */
+public class ExpressionCompiler {
+
+    /** Thrown if an expression is not in the supported subset of JavaScript */
+    public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String expression, int position, String message) {
+            super(String.format("%s at position %d of expression %s", message, position, expression));
+        }
+    }
+
+    /** Compile an expression
+     *
+     * @param expression the expression text, with <code>{}</code> placeholders for variables
+     * @param replacementVariableIndices the index in the tuple of the variable for each placeholder
+     * @return the compiled expression
+     * @throws ParseException if the expression cannot be compiled */
+    public static Expression compile(String expression, int[] replacementVariableIndices) throws ParseException {
+        ExpressionCompiler compiler = new ExpressionCompiler(expression, replacementVariableIndices);
+        Expression compiled = compiler.parseExpression();
+        compiler.skipWhitespace();
+        if (compiler.pos != expression.length()) {
+            throw compiler.error("Unexpected character '" + expression.charAt(compiler.pos) + "'");
+        }
+        return compiled;
+    }
+
+    private final String text;
+    private final int[] variables;
+    private int pos = 0; // Current position in the text
+    private int nextVariable = 0; // Index of the next placeholder
+
+    private ExpressionCompiler(String text, int[] variables) {
+        this.text = text;
+        this.variables = variables;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(text, pos, message);
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /** Consumes the token if it is next */
+    private boolean accept(String token) {
+        skipWhitespace();
+        if (text.startsWith(token, pos)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    /** Consumes an operator if it is next, provided it is not the prefix of a longer operator */
+    private boolean acceptOperator(String op, String... longer) {
+        skipWhitespace();
+        for (String l : longer) {
+            if (text.startsWith(l, pos)) {
+                return false;
+            }
+        }
+        return accept(op);
+    }
+
+    private void expect(String token) throws ParseException {
+        if (!accept(token)) {
+            throw error("Expected '" + token + "'");
+        }
+    }
+
+    private int variable() throws ParseException {
+        if (nextVariable >= variables.length) {
+            throw error("More placeholders than replacement variables");
+        }
+        return variables[nextVariable++];
+    }
+
+    private Expression parseExpression() throws ParseException {
+        Expression condition = parseOr();
+        if (accept("?")) {
+            Expression ifTrue = parseExpression();
+            expect(":");
+            Expression ifFalse = parseExpression();
+            return fold(Ops.conditional(condition, ifTrue, ifFalse), condition, ifTrue, ifFalse);
+        }
+        return condition;
+    }
+
+    private Expression parseOr() throws ParseException {
+        Expression left = parseAnd();
+        while (accept("||")) {
+            Expression right = parseAnd();
+            left = fold(Ops.or(left, right), left, right);
+        }
+        return left;
+    }
+
+    private Expression parseAnd() throws ParseException {
+        Expression left = parseEquality();
+        while (accept("&&")) {
+            Expression right = parseEquality();
+            left = fold(Ops.and(left, right), left, right);
+        }
+        return left;
+    }
+
+    private Expression parseEquality() throws ParseException {
+        Expression left = parseRelational();
+        while (true) {
+            Expression right;
+            if (accept("===")) {
+                right = parseRelational();
+                left = fold(Ops.strictEquals(left, right, false), left, right);
+            } else if (accept("!==")) {
+                right = parseRelational();
+                left = fold(Ops.strictEquals(left, right, true), left, right);
+            } else if (accept("==")) {
+                right = parseRelational();
+                left = fold(Ops.looseEquals(left, right, false), left, right);
+            } else if (accept("!=")) {
+                right = parseRelational();
+                left = fold(Ops.looseEquals(left, right, true), left, right);
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Expression parseRelational() throws ParseException {
+        Expression left = parseAdditive();
+        while (true) {
+            Expression right;
+            if (accept("<=")) {
+                right = parseAdditive();
+                left = fold(Ops.compare(left, right, Ops.LE), left, right);
+            } else if (accept(">=")) {
+                right = parseAdditive();
+                left = fold(Ops.compare(left, right, Ops.GE), left, right);
+            } else if (accept("<")) {
+                right = parseAdditive();
+                left = fold(Ops.compare(left, right, Ops.LT), left, right);
+            } else if (accept(">")) {
+                right = parseAdditive();
+                left = fold(Ops.compare(left, right, Ops.GT), left, right);
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Expression parseAdditive() throws ParseException {
+        Expression left = parseMultiplicative();
+        while (true) {
+            Expression right;
+            if (acceptOperator("+", "++", "+=")) {
+                right = parseMultiplicative();
+                left = fold(Ops.add(left, right), left, right);
+            } else if (acceptOperator("-", "--", "-=")) {
+                right = parseMultiplicative();
+                left = fold(Ops.arithmetic(left, right, '-'), left, right);
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private Expression parseMultiplicative() throws ParseException {
+        Expression left = parseUnary();
+        while (true) {
+            char op;
+            if (acceptOperator("*", "*=")) {
+                op = '*';
+            } else if (acceptOperator("/", "/=")) {
+                op = '/';
+            } else if (acceptOperator("%", "%=")) {
+                op = '%';
+            } else {
+                return left;
+            }
+            Expression right = parseUnary();
+            left = fold(Ops.arithmetic(left, right, op), left, right);
+        }
+    }
+
+    private Expression parseUnary() throws ParseException {
+        if (acceptOperator("!", "!=")) {
+            Expression operand = parseUnary();
+            return fold(Ops.not(operand), operand);
+        } else if (acceptOperator("-", "--")) {
+            Expression operand = parseUnary();
+            return fold(Ops.negate(operand), operand);
+        } else if (acceptOperator("+", "++")) {
+            Expression operand = parseUnary();
+            return fold(Ops.toNumber(operand), operand);
+        }
+        return parsePostfix();
+    }
+
+    private Expression parsePostfix() throws ParseException {
+        Expression target = parsePrimary();
+        while (accept(".")) {
+            String name = parseIdentifier();
+            if (accept("(")) {
+                List<Expression> args = parseArguments();
+                Expression[] all = new Expression[args.size() + 1];
+                all[0] = target;
+                for (int i = 0; i < args.size(); i++) {
+                    all[i + 1] = args.get(i);
+                }
+                Expression call = Ops.method(name, target, args.toArray(new Expression[args.size()]));
+                if (call == null) {
+                    throw error("Unsupported method " + name + " with " + args.size() + " arguments");
+                }
+                target = fold(call, all);
+            } else if ("length".equals(name)) {
+                target = fold(Ops.method(name, target), target);
+            } else {
+                throw error("Unsupported property " + name);
+            }
+        }
+        return target;
+    }
+
+    private List<Expression> parseArguments() throws ParseException {
+        List<Expression> args = Lists.newArrayList();
+        if (accept(")")) {
+            return args;
+        }
+        do {
+            args.add(parseExpression());
+        } while (accept(","));
+        expect(")");
+        return args;
+    }
+
+    private String parseIdentifier() throws ParseException {
+        skipWhitespace();
+        int start = pos;
+        while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos || !Character.isJavaIdentifierStart(text.charAt(start))) {
+            pos = start;
+            throw error("Expected identifier");
+        }
+        return text.substring(start, pos);
+    }
+
+    private Expression parsePrimary() throws ParseException {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end of expression");
+        }
+        char c = text.charAt(pos);
+        if (accept("{}")) {
+            return Ops.variable(variable());
+        } else if (c == '"' || c == '\'') {
+            return parseString(c);
+        } else if (Character.isDigit(c) || (c == '.' && pos + 1 < text.length() && Character.isDigit(text.charAt(pos + 1)))) {
+            return parseNumber();
+        } else if (accept("(")) {
+            Expression inner = parseExpression();
+            expect(")");
+            return inner;
+        } else if (Character.isJavaIdentifierStart(c)) {
+            String name = parseIdentifier();
+            if ("true".equals(name)) {
+                return Ops.constant(Boolean.TRUE);
+            } else if ("false".equals(name)) {
+                return Ops.constant(Boolean.FALSE);
+            } else if ("null".equals(name)) {
+                return Ops.constant(null);
+            } else if ("Math".equals(name)) {
+                expect(".");
+                String function = parseIdentifier();
+                expect("(");
+                List<Expression> args = parseArguments();
+                Expression[] argArray = args.toArray(new Expression[args.size()]);
+                Expression call = Ops.math(function, argArray);
+                if (call == null) {
+                    throw error("Unsupported function Math." + function + " with " + args.size() + " arguments");
+                }
+                return fold(call, argArray);
+            }
+            throw error("Unsupported identifier " + name);
+        }
+        throw error("Unexpected character '" + c + "'");
+    }
+
+    private Expression parseNumber() throws ParseException {
+        int start = pos;
+        while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+            pos++;
+        }
+        if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+            pos++;
+            if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                pos++;
+            }
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                pos++;
+            }
+        }
+        try {
+            return Ops.constant(Ops.parseNumber(text.substring(start, pos)));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Invalid number");
+        }
+    }
+
+    /** Parses a string literal, which may contain placeholders */
+    private Expression parseString(char quote) throws ParseException {
+        pos++; // Opening quote
+        List<Object> parts = Lists.newArrayList(); // Strings and variable indices
+        StringBuilder current = new StringBuilder();
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("Unterminated string");
+            }
+            char c = text.charAt(pos);
+            if (c == quote) {
+                pos++;
+                break;
+            } else if (text.startsWith("{}", pos)) {
+                pos += 2;
+                parts.add(current.toString());
+                parts.add(variable());
+                current = new StringBuilder();
+            } else if (c == '\\') {
+                if (pos + 1 >= text.length()) {
+                    throw error("Unterminated string");
+                }
+                char escaped = text.charAt(pos + 1);
+                switch (escaped) {
+                case 'n': current.append('\n'); break;
+                case 't': current.append('\t'); break;
+                case 'r': current.append('\r'); break;
+                case 'b': current.append('\b'); break;
+                case 'f': current.append('\f'); break;
+                case '0': current.append('\0'); break;
+                default: current.append(escaped);
+                }
+                pos += 2;
+            } else {
+                current.append(c);
+                pos++;
+            }
+        }
+        parts.add(current.toString());
+        if (parts.size() == 1) {
+            return Ops.constant(parts.get(0));
+        }
+        return Ops.interpolate(parts);
+    }
+
+    /** If all of the operands of an expression are constant, evaluates the expression now */
+    private Expression fold(Expression expression, Expression... operands) {
+        for (Expression operand : operands) {
+            if (!(operand instanceof Ops.Constant)) {
+                return expression;
+            }
+        }
+        try {
+            return Ops.constant(expression.evaluate(null));
+        } catch (Exception e) {
+            // Leave it to fail when it is evaluated
+            return expression;
+        }
+    }
+
+}
@@ -0,0 +1,474 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.expression;
+
+import java.util.List;
+
+/** The operations that compiled expressions are built from, and the JavaScript value semantics they follow */
+class Ops {
+
+    static final int LT = 0, LE = 1, GT = 2, GE = 3;
+
+    private Ops() {
+    }
+
+    /* ---------------- Value semantics ---------------- */
+
+    static boolean isNumber(Object o) {
+        return o instanceof Number;
+    }
+
+    static double toNumber(Object o) {
+        if (o instanceof Number) {
+            return ((Number) o).doubleValue();
+        } else if (o instanceof Boolean) {
+            return ((Boolean) o) ? 1 : 0;
+        } else if (o == null) {
+            return 0;
+        }
+        String s = o.toString().trim();
+        if (s.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** True if the script engine would type the value as an int: an int or boolean, or an integral value that fits in
+     * an int, which becomes an int literal when substituted into the expression */
+    static boolean isInt(Object o) {
+        if (o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof Boolean) {
+            return true;
+        } else if (o instanceof Long) {
+            long l = (Long) o;
+            return l == (int) l;
+        }
+        return false;
+    }
+
+    /** The result of arithmetic on ints. Like the script engine, this is an Integer if the result is integral and fits
+     * in an int, so that it prints without a decimal point, and otherwise a Double */
+    static Object intResult(double d) {
+        int i = (int) d;
+        if (i == d && (i != 0 || 1 / d > 0)) { // -0 is a Double
+            return i;
+        }
+        return d;
+    }
+
+    /** Parse a number literal; integer literals are ints if they fit */
+    static Object parseNumber(String s) {
+        double d = Double.parseDouble(s);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isDigit(c) && !(i == 0 && (c == '-' || c == '+'))) {
+                return d;
+            }
+        }
+        return intResult(d);
+    }
+
+    static String toStr(Object o) {
+        if (o instanceof Double || o instanceof Float) {
+            double d = ((Number) o).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e21) {
+                return Long.toString((long) d);
+            }
+        }
+        return String.valueOf(o);
+    }
+
+    static boolean truthy(Object o) {
+        if (o instanceof Boolean) {
+            return (Boolean) o;
+        } else if (o instanceof Number) {
+            double d = ((Number) o).doubleValue();
+            return d != 0 && !Double.isNaN(d);
+        } else if (o instanceof String) {
+            return !((String) o).isEmpty();
+        }
+        return o != null;
+    }
+
+    /** The value of a bare placeholder, as if the variable's string value had been substituted into the expression */
+    static Object literal(Object o) {
+        if (o == null || o instanceof Number || o instanceof Boolean) {
+            return o;
+        }
+        String s = o.toString().trim();
+        if ("true".equals(s)) {
+            return Boolean.TRUE;
+        } else if ("false".equals(s)) {
+            return Boolean.FALSE;
+        } else if ("null".equals(s)) {
+            return null;
+        }
+        try {
+            return parseNumber(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Value " + s + " is not a literal");
+        }
+    }
+
+    static boolean looseEquals(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        } else if (a instanceof String && b instanceof String) {
+            return a.equals(b);
+        } else if (isNumber(a) || isNumber(b) || a instanceof Boolean || b instanceof Boolean) {
+            return toNumber(a) == toNumber(b);
+        }
+        return a.equals(b);
+    }
+
+    static boolean strictEquals(Object a, Object b) {
+        if (isNumber(a) && isNumber(b)) {
+            return toNumber(a) == toNumber(b);
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static boolean compare(Object a, Object b, int op) {
+        int c;
+        if (a instanceof String && b instanceof String) {
+            c = ((String) a).compareTo((String) b);
+        } else {
+            double x = toNumber(a), y = toNumber(b);
+            if (Double.isNaN(x) || Double.isNaN(y)) {
+                return false;
+            }
+            c = Double.compare(x, y);
+            if (x == y) {
+                c = 0; // -0.0 == 0.0
+            }
+        }
+        switch (op) {
+        case LT: return c < 0;
+        case LE: return c <= 0;
+        case GT: return c > 0;
+        default: return c >= 0;
+        }
+    }
+
+    /* ---------------- Expressions ---------------- */
+
+    static class Constant implements Expression {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        public Object evaluate(Object[] tuple) {
+            return value;
+        }
+    }
+
+    static Expression constant(Object value) {
+        return new Constant(value);
+    }
+
+    static Expression variable(final int index) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) {
+                return literal(tuple[index]);
+            }
+        };
+    }
+
+    /** A string literal with placeholders; parts alternate between strings and variable indices */
+    static Expression interpolate(List<Object> parts) {
+        final String[] strings = new String[parts.size() / 2 + 1];
+        final int[] indices = new int[parts.size() / 2];
+        for (int i = 0; i < parts.size(); i++) {
+            if (i % 2 == 0) {
+                strings[i / 2] = (String) parts.get(i);
+            } else {
+                indices[i / 2] = (Integer) parts.get(i);
+            }
+        }
+        return new Expression() {
+            public Object evaluate(Object[] tuple) {
+                StringBuilder b = new StringBuilder(strings[0]);
+                for (int i = 0; i < indices.length; i++) {
+                    b.append(tuple[indices[i]]).append(strings[i + 1]);
+                }
+                return b.toString();
+            }
+        };
+    }
+
+    static Expression conditional(final Expression condition, final Expression ifTrue, final Expression ifFalse) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                return truthy(condition.evaluate(tuple)) ? ifTrue.evaluate(tuple) : ifFalse.evaluate(tuple);
+            }
+        };
+    }
+
+    static Expression or(final Expression left, final Expression right) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object l = left.evaluate(tuple);
+                return truthy(l) ? l : right.evaluate(tuple);
+            }
+        };
+    }
+
+    static Expression and(final Expression left, final Expression right) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object l = left.evaluate(tuple);
+                return truthy(l) ? right.evaluate(tuple) : l;
+            }
+        };
+    }
+
+    static Expression not(final Expression operand) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                return !truthy(operand.evaluate(tuple));
+            }
+        };
+    }
+
+    static Expression negate(final Expression operand) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object o = operand.evaluate(tuple);
+                return isInt(o) ? intResult(-toNumber(o)) : -toNumber(o);
+            }
+        };
+    }
+
+    static Expression toNumber(final Expression operand) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object o = operand.evaluate(tuple);
+                return isInt(o) ? intResult(toNumber(o)) : toNumber(o);
+            }
+        };
+    }
+
+    static Expression looseEquals(final Expression left, final Expression right, final boolean negated) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                return looseEquals(left.evaluate(tuple), right.evaluate(tuple)) != negated;
+            }
+        };
+    }
+
+    static Expression strictEquals(final Expression left, final Expression right, final boolean negated) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                return strictEquals(left.evaluate(tuple), right.evaluate(tuple)) != negated;
+            }
+        };
+    }
+
+    static Expression compare(final Expression left, final Expression right, final int op) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                return compare(left.evaluate(tuple), right.evaluate(tuple), op);
+            }
+        };
+    }
+
+    static Expression add(final Expression left, final Expression right) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object l = left.evaluate(tuple), r = right.evaluate(tuple);
+                if (l instanceof String || r instanceof String) {
+                    return toStr(l).concat(toStr(r));
+                }
+                double sum = toNumber(l) + toNumber(r);
+                return isInt(l) && isInt(r) ? intResult(sum) : sum;
+            }
+        };
+    }
+
+    static Expression arithmetic(final Expression left, final Expression right, final char op) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                Object a = left.evaluate(tuple), b = right.evaluate(tuple);
+                double l = toNumber(a), r = toNumber(b), result;
+                switch (op) {
+                case '-': result = l - r; break;
+                case '*': result = l * r; break;
+                case '/': result = l / r; break;
+                default: result = l % r; break;
+                }
+                return isInt(a) && isInt(b) ? intResult(result) : result;
+            }
+        };
+    }
+
+    /** @return a method call on a string, or null if the method is not supported */
+    static Expression method(String name, final Expression target, final Expression... args) {
+        if (args.length == 0) {
+            if ("length".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).length();
+                    }
+                };
+            } else if ("toLowerCase".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).toLowerCase();
+                    }
+                };
+            } else if ("toUpperCase".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).toUpperCase();
+                    }
+                };
+            } else if ("trim".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).trim();
+                    }
+                };
+            }
+        } else if (args.length == 1) {
+            final Expression arg = args[0];
+            if ("equals".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        Object t = target.evaluate(tuple), a = arg.evaluate(tuple);
+                        return t == null ? a == null : t.equals(a);
+                    }
+                };
+            } else if ("contains".equals(name) || "includes".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).contains(toStr(arg.evaluate(tuple)));
+                    }
+                };
+            } else if ("startsWith".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).startsWith(toStr(arg.evaluate(tuple)));
+                    }
+                };
+            } else if ("endsWith".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).endsWith(toStr(arg.evaluate(tuple)));
+                    }
+                };
+            } else if ("indexOf".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).indexOf(toStr(arg.evaluate(tuple)));
+                    }
+                };
+            } else if ("lastIndexOf".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        return toStr(target.evaluate(tuple)).lastIndexOf(toStr(arg.evaluate(tuple)));
+                    }
+                };
+            } else if ("charAt".equals(name)) {
+                return new Expression() {
+                    public Object evaluate(Object[] tuple) throws Exception {
+                        String s = toStr(target.evaluate(tuple));
+                        int i = (int) toNumber(arg.evaluate(tuple));
+                        return i < 0 || i >= s.length() ? "" : String.valueOf(s.charAt(i));
+                    }
+                };
+            } else if ("substring".equals(name)) {
+                return substring(target, arg, null);
+            }
+        } else if (args.length == 2 && "substring".equals(name)) {
+            return substring(target, args[0], args[1]);
+        }
+        return null;
+    }
+
+    private static Expression substring(final Expression target, final Expression from, final Expression to) {
+        return new Expression() {
+            public Object evaluate(Object[] tuple) throws Exception {
+                String s = toStr(target.evaluate(tuple));
+                int start = clamp(toNumber(from.evaluate(tuple)), s.length());
+                int end = to == null ? s.length() : clamp(toNumber(to.evaluate(tuple)), s.length());
+                return start <= end ? s.substring(start, end) : s.substring(end, start);
+            }
+        };
+    }
+
+    private static int clamp(double index, int length) {
+        if (Double.isNaN(index) || index < 0) {
+            return 0;
+        }
+        return (int) Math.min(index, length);
+    }
+
+    /** @return a call to a Math function, or null if the function is not supported */
+    static Expression math(String name, final Expression... args) {
+        if (args.length == 1) {
+            final Expression arg = args[0];
+            final int f;
+            if ("abs".equals(name)) {
+                f = 0;
+            } else if ("floor".equals(name)) {
+                f = 1;
+            } else if ("ceil".equals(name)) {
+                f = 2;
+            } else if ("round".equals(name)) {
+                f = 3;
+            } else if ("sqrt".equals(name)) {
+                f = 4;
+            } else if ("log".equals(name)) {
+                f = 5;
+            } else if ("exp".equals(name)) {
+                f = 6;
+            } else {
+                return null;
+            }
+            return new Expression() {
+                public Object evaluate(Object[] tuple) throws Exception {
+                    Object o = arg.evaluate(tuple);
+                    double x = toNumber(o);
+                    switch (f) {
+                    case 0: return isInt(o) ? intResult(Math.abs(x)) : Math.abs(x);
+                    case 1: return isInt(o) ? intResult(Math.floor(x)) : Math.floor(x);
+                    case 2: return isInt(o) ? intResult(Math.ceil(x)) : Math.ceil(x);
+                    case 3: return Math.floor(x + 0.5);
+                    case 4: return Math.sqrt(x);
+                    case 5: return Math.log(x);
+                    default: return Math.exp(x);
+                    }
+                }
+            };
+        } else if (args.length == 2) {
+            final Expression a = args[0], b = args[1];
+            final int f;
+            if ("min".equals(name)) {
+                f = 0;
+            } else if ("max".equals(name)) {
+                f = 1;
+            } else if ("pow".equals(name)) {
+                f = 2;
+            } else {
+                return null;
+            }
+            return new Expression() {
+                public Object evaluate(Object[] tuple) throws Exception {
+                    Object p = a.evaluate(tuple), q = b.evaluate(tuple);
+                    double x = toNumber(p), y = toNumber(q);
+                    boolean ints = isInt(p) && isInt(q);
+                    switch (f) {
+                    case 0: return ints ? intResult(Math.min(x, y)) : Math.min(x, y);
+                    case 1: return ints ? intResult(Math.max(x, y)) : Math.max(x, y);
+                    default: return Math.pow(x, y);
+                    }
+                }
+            };
+        }
+        return null;
+    }
+
+}
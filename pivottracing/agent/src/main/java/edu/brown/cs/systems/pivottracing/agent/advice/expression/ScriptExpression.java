@@ -0,0 +1,32 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.expression;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+/** Evaluates an expression by substituting variable values into the expression text and evaluating it as
+ * JavaScript. This is slow, and is only used for expressions that {@link ExpressionCompiler} cannot compile. */
+public class ScriptExpression implements Expression {
+
+    // Script engines are not thread safe, so evaluation is synchronized on the engine
+    private static final ScriptEngine engine = new ScriptEngineManager().getEngineByName("JavaScript");
+
+    private final String expression;
+    private final int[] replacementVariableIndices;
+
+    public ScriptExpression(String expression, int[] replacementVariableIndices) {
+        this.expression = expression;
+        this.replacementVariableIndices = replacementVariableIndices;
+    }
+
+    @Override
+    public Object evaluate(Object[] tuple) throws Exception {
+        String toEval = expression;
+        for (int i : replacementVariableIndices) {
+            toEval = toEval.replaceFirst("\\{\\}", tuple[i].toString().replace("\"", "\\\\\""));
+        }
+        synchronized (engine) {
+            return engine.eval(toEval);
+        }
+    }
+
+}
@@ -4,13 +4,20 @@ import java.util.List;
 
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.Sampler;
 
 public interface EmitAPI {
     
     public interface Emit {
         public void emit(List<Object[]> tuples);
+        
+        /** Emit a single tuple.  The caller reuses the tuple array once this method returns, so implementations
+         * must copy anything they retain */
+        public void emit(Object[] tuple);
     }
     
-    public Emit create(EmitSpec spec) throws InvalidAdviceException;
+    /** Create an emit for advice.  If the advice is sampled, the sampler is used to scale aggregations; otherwise it
+     * is null */
+    public Emit create(EmitSpec spec, Sampler sampler) throws InvalidAdviceException;
     public void destroy(Emit emit);
 }
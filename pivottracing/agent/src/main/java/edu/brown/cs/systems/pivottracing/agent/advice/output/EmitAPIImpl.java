@@ -1,5 +1,7 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.output;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -17,6 +19,7 @@ import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.agent.PTAgent;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.Sampler;
 import edu.brown.cs.systems.pubsub.PubSub;
 
 public class EmitAPIImpl implements EmitAPI, Runnable {
@@ -31,22 +34,33 @@ public class EmitAPIImpl implements EmitAPI, Runnable {
     public final long reportInterval;
     public final String reportsTopic;
     public final boolean emitIfNoResults;
+    public final int tupleChunkBytes; // EMIT tuples are published in chunks of approximately this size
+    public final long tupleBufferBytes; // Maximum unpublished EMIT tuple output per query
+    public final int tupleSampleSize; // If positive, sample this many EMIT tuples per report interval
 
     public EmitAPIImpl(long reportInterval, String reportsTopic, boolean emitIfNoResults) {
+        this(reportInterval, reportsTopic, emitIfNoResults, Integer.MAX_VALUE, Long.MAX_VALUE, 0);
+    }
+
+    public EmitAPIImpl(long reportInterval, String reportsTopic, boolean emitIfNoResults, int tupleChunkBytes,
+            long tupleBufferBytes, int tupleSampleSize) {
         this.reportInterval = reportInterval;
         this.reportsTopic = reportsTopic;
         this.emitIfNoResults = emitIfNoResults;
+        this.tupleChunkBytes = tupleChunkBytes;
+        this.tupleBufferBytes = tupleBufferBytes;
+        this.tupleSampleSize = tupleSampleSize;
         exec.scheduleAtFixedRate(this, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
         Runtime.getRuntime().addShutdownHook(new Thread(this)); // Also publish once on shutdown
     }
 
     @Override
-    public Emit create(EmitSpec spec) throws InvalidAdviceException {
+    public Emit create(EmitSpec spec, Sampler sampler) throws InvalidAdviceException {
         EmitImpl impl;
         if (spec.hasTupleSpec()) {
-            impl = new EmitTuples(spec, spec.getTupleSpec());
+            impl = new EmitTuples(spec, spec.getTupleSpec(), tupleChunkBytes, tupleBufferBytes, tupleSampleSize, this);
         } else if (spec.hasGroupBySpec()) {
-            impl = new EmitGrouped(spec, spec.getGroupBySpec());
+            impl = new EmitGrouped(spec, spec.getGroupBySpec(), sampler);
         } else {
             throw new InvalidAdviceException(spec, "EmitSpec lacks tuple or groupby spec");
         }
@@ -56,7 +70,24 @@ public class EmitAPIImpl implements EmitAPI, Runnable {
 
     @Override
     public void destroy(Emit emit) {
-        emits.remove(emit);
+        if (emits.remove(emit)) {
+            ((EmitImpl) emit).destroy();
+        }
+    }
+
+    /** Publish the full chunks of an EmitTuples without waiting for the report interval */
+    void publishChunks(final EmitTuples emit) {
+        exec.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (QueryResults results : emit.getFullChunks(PTAgent.getAgentInfo(), System.currentTimeMillis())) {
+                        PubSub.publish(reportsTopic, results);
+                    }
+                } catch (Throwable t) {
+                    log.warn("Unable to publish query results", t);
+                }
+            }
+        });
     }
 
     @Override
@@ -65,9 +96,12 @@ public class EmitAPIImpl implements EmitAPI, Runnable {
         long timestamp = System.currentTimeMillis();
         for (EmitImpl emit : emits) {
             try {
-                QueryResults results = emit.getResults(agentInfo, timestamp);
-                if (emitIfNoResults || results.getTupleCount() > 0 || results.getGroupCount() > 0) {
-                    PubSub.publish(reportsTopic, results);
+                for (QueryResults results : emit.getResultChunks(agentInfo, timestamp)) {
+                    // Chunks of a report that was partly published already must be published to complete it
+                    if (emitIfNoResults || results.getTupleCount() > 0 || results.getGroupCount() > 0
+                            || results.getChunk() > 0 || results.getDropped() > 0) {
+                        PubSub.publish(reportsTopic, results);
+                    }
                 }
             } catch (Throwable t) {
                 log.warn("Unable to publish query results", t);
@@ -78,6 +112,15 @@ public class EmitAPIImpl implements EmitAPI, Runnable {
     /** Base class for Emits */
     static abstract class EmitImpl implements Emit {
         public abstract QueryResults getResults(AgentInfo agentInfo, long timestamp);
+        
+        /** Release anything held for the emit once its advice is uninstalled; by default, nothing */
+        void destroy() {
+        }
+        
+        /** Get results as one or more messages; by default, just one */
+        public List<QueryResults> getResultChunks(AgentInfo agentInfo, long timestamp) {
+            return Collections.singletonList(getResults(agentInfo, timestamp));
+        }
     }
 
 }
@@ -1,14 +1,12 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.output;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.BlockingQueue;
 
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
 import com.google.common.primitives.Longs;
 
 import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
@@ -16,23 +14,40 @@ import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
+import edu.brown.cs.systems.pivottracing.agent.advice.Sampler;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPIImpl.EmitImpl;
 
 public class EmitGrouped extends EmitImpl {
     public final EmitSpec emitSpec;
     public final GroupBySpec spec;
-    public final BlockingQueue<List<Object[]>> pending = Queues.newLinkedBlockingQueue();
+    private final Sampler sampler; // If the advice is sampled, used to scale COUNT and SUM aggregations; otherwise null
     
-    private int tupleSize, groupKeyCount, aggregationCount;
-    private Agg[] aggs;
+    private final int groupKeyCount;
+    private final Agg[] aggs;
+    
+    // Tuples are aggregated as they are emitted, into a partial aggregation owned by the emitting thread. Partials do
+    // not reference the emit, so threads do not keep it reachable once it is destroyed
+    private final List<Partial> partials = Lists.newCopyOnWriteArrayList();
+    private final ThreadLocal<Partial> partial = new ThreadLocal<Partial>() {
+        @Override
+        protected Partial initialValue() {
+            Partial p = new Partial(groupKeyCount, aggs);
+            partials.add(p);
+            return p;
+        }
+    };
+    private volatile boolean destroyed = false;
     
     public EmitGrouped(EmitSpec emitSpec, GroupBySpec spec) {
+        this(emitSpec, spec, null);
+    }
+    
+    public EmitGrouped(EmitSpec emitSpec, GroupBySpec spec, Sampler sampler) {
         this.emitSpec = emitSpec;
         this.spec = spec;
+        this.sampler = sampler;
         
         this.groupKeyCount = spec.getGroupByCount();
-        this.aggregationCount = spec.getAggregateCount();
-        this.tupleSize = groupKeyCount + aggregationCount;
         
         this.aggs = new Agg[spec.getAggregateCount()];
         for (int i = 0; i < spec.getAggregateCount(); i++) {
@@ -41,78 +56,181 @@ public class EmitGrouped extends EmitImpl {
     }
     
     public void emit(List<Object[]> tuples) {
-        pending.add(tuples);
+        if (destroyed) {
+            return;
+        }
+        Partial p = partial.get();
+        synchronized (p) {
+            for (int i = 0; i < tuples.size(); i++) {
+                p.add(tuples.get(i));
+            }
+        }
     }
     
-    /** Interpret an Object as a Long, returning null if it cannot do it.  Checks if it's a Number or a String */
-    private Long interpretLong(Object v) {
-        if (v == null) {
-            return null;
-        } else if (v instanceof Number) {
-            return ((Number) v).longValue();
+    public void emit(Object[] tuple) {
+        if (destroyed) {
+            return;
+        }
+        Partial p = partial.get();
+        synchronized (p) {
+            p.add(tuple);
+        }
+    }
+    
+    /** Interpret an Object as a long, writing it to values[i].  Returns false if it cannot do it.  Checks if it's a
+     * Number or a String */
+    private static boolean interpretLong(Object v, long[] values, int i) {
+        if (v instanceof Number) {
+            values[i] = ((Number) v).longValue();
+            return true;
         } else if (v instanceof String) {
-            return Longs.tryParse((String) v);
-        } else {
-            return null;
+            Long parsed = Longs.tryParse((String) v);
+            if (parsed != null) {
+                values[i] = parsed;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Discard the partial aggregations of every thread, including groups that were never collected */
+    @Override
+    void destroy() {
+        destroyed = true;
+        for (Partial p : partials) {
+            p.drain();
+        }
+        partials.clear();
+        partial.remove();
+    }
+    
+    /** Merge aggregation values into existing aggregation values */
+    private static void merge(Agg[] aggs, long[] existing, long[] values) {
+        for (int i = 0; i < aggs.length; i++) {
+            switch (aggs[i]) {
+            case COUNT: existing[i] += values[i]; break;
+            case SUM: existing[i] += values[i]; break;
+            case MAX: existing[i] = Math.max(existing[i], values[i]); break;
+            case MIN: existing[i] = Math.min(existing[i], values[i]); break;
+            }
+        }
+    }
+    
+    /** A group key; the group by values converted to strings */
+    private static final class GroupKey {
+        private final String[] values;
+        private int hash;
+        
+        private GroupKey(String[] values) {
+            this.values = values;
+        }
+        
+        private void rehash() {
+            hash = Arrays.hashCode(values);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof GroupKey && Arrays.equals(values, ((GroupKey) o).values);
         }
     }
     
-    public Map<List<String>, List<Long>> process(Iterable<? extends Object[]> tuples) {
-        // Turn into groups
-        Map<List<String>, List<Long>> results = Maps.newHashMap();
-        tupleloop:
-        for (Object[] tuple : tuples) {
+    /** Groups aggregated by one thread since the last call to getResults.  Guarded by its own lock, which is only
+     * contended when results are collected */
+    private static final class Partial {
+        private final Thread owner = Thread.currentThread();
+        private final int groupKeyCount, aggregationCount, tupleSize;
+        private final Agg[] aggs;
+        private final GroupKey probe; // Reused to look up groups
+        private final long[] values;
+        private Map<GroupKey, long[]> groups = Maps.newHashMap();
+        
+        private Partial(int groupKeyCount, Agg[] aggs) {
+            this.groupKeyCount = groupKeyCount;
+            this.aggregationCount = aggs.length;
+            this.tupleSize = groupKeyCount + aggs.length;
+            this.aggs = aggs;
+            this.probe = new GroupKey(new String[groupKeyCount]);
+            this.values = new long[aggs.length];
+        }
+        
+        private void add(Object[] tuple) {
             // Ignore tuples of the wrong length
             if (tuple.length != tupleSize) {
-                continue;
-            }
-            
-            // Pull out tuple keys
-            List<String> keys = Lists.newArrayListWithExpectedSize(groupKeyCount);
-            for (int i = 0; i < groupKeyCount; i++) {
-                keys.add(String.valueOf(tuple[i]));
+                return;
             }
             
             // Pull out tuple values
-            List<Long> values = Lists.newArrayListWithExpectedSize(aggregationCount);
             for (int i = 0; i < aggregationCount; i++) {
                 if (aggs[i] == Agg.COUNT) {
-                    values.add(1L); // Don't need to parse for count
-                } else {
-                    Long longValue = interpretLong(tuple[groupKeyCount + i]);
-                    if (longValue == null) {
-                        continue tupleloop;
-                    } else {
-                        values.add(longValue);
-                    }
+                    values[i] = 1L; // Don't need to parse for count
+                } else if (!interpretLong(tuple[groupKeyCount + i], values, i)) {
+                    return;
                 }
             }
             
+            // Pull out tuple keys
+            for (int i = 0; i < groupKeyCount; i++) {
+                probe.values[i] = String.valueOf(tuple[i]);
+            }
+            probe.rehash();
+            
             // Either add the new group or merge with existing group
-            List<Long> existing = results.get(keys);
+            long[] existing = groups.get(probe);
             if (existing == null) {
-                results.put(keys, values);
+                GroupKey key = new GroupKey(probe.values.clone());
+                key.rehash();
+                groups.put(key, values.clone());
             } else {
-                for (int i = 0; i < aggs.length; i++) {
-                    switch (aggs[i]) {
-                    case COUNT: existing.set(i, existing.get(i) + values.get(i)); break;
-                    case SUM: existing.set(i, existing.get(i) + values.get(i)); break;
-                    case MAX: existing.set(i, Math.max(existing.get(i), values.get(i))); break;
-                    case MIN: existing.set(i, Math.min(existing.get(i), values.get(i))); break;
-                    }
-                }
+                merge(aggs, existing, values);
             }
         }
-        return results;
+        
+        /** Take the groups aggregated so far, replacing them with an empty map */
+        private synchronized Map<GroupKey, long[]> drain() {
+            Map<GroupKey, long[]> drained = groups;
+            groups = Maps.newHashMap();
+            return drained;
+        }
     }
     
     public QueryResults getResults(AgentInfo agentInfo, long timestamp) {
-        // Drain all pending results
-        List<List<Object[]>> pendingResults = Lists.newArrayList();
-        pending.drainTo(pendingResults);
+        // Merge the partial aggregations of each thread
+        Map<GroupKey, long[]> results = Maps.newHashMap();
+        for (Partial p : partials) {
+            // Check whether the thread has exited before draining, so that nothing it added before exiting is lost
+            boolean exited = !p.owner.isAlive();
+            for (Entry<GroupKey, long[]> group : p.drain().entrySet()) {
+                long[] existing = results.get(group.getKey());
+                if (existing == null) {
+                    results.put(group.getKey(), group.getValue());
+                } else {
+                    merge(aggs, existing, group.getValue());
+                }
+            }
+            
+            // Threads that had exited before the drain won't emit any more
+            if (exited) {
+                partials.remove(p);
+            }
+        }
         
-        // Process results
-        Map<List<String>, List<Long>> results = process(Iterables.concat(pendingResults));
+        // Scale aggregations to account for invocations of the advice that were not sampled
+        if (sampler != null) {
+            double scale = sampler.scale();
+            for (long[] values : results.values()) {
+                for (int i = 0; i < aggs.length; i++) {
+                    if (aggs[i] == Agg.COUNT || aggs[i] == Agg.SUM) {
+                        values[i] = Math.round(values[i] * scale);
+                    }
+                }
+            }
+        }
         
         // Construct the output message
         QueryResults.Builder b = QueryResults.newBuilder();
@@ -121,8 +239,8 @@ public class EmitGrouped extends EmitImpl {
         b.setTimestamp(timestamp);
         
         // Add the groups
-        for (Entry<List<String>, List<Long>> result : results.entrySet()) {
-            b.addGroupBuilder().addAllGroupBy(result.getKey()).addAllAggregation(result.getValue());
+        for (Entry<GroupKey, long[]> result : results.entrySet()) {
+            b.addGroupBuilder().addAllGroupBy(Arrays.asList(result.getKey().values)).addAllAggregation(Longs.asList(result.getValue()));
         }
         return b.build();
     }
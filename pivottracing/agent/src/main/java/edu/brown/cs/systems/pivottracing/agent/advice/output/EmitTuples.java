@@ -1,11 +1,13 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.output;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Queues;
+import com.google.protobuf.CodedOutputStream;
 
 import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
 import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
@@ -14,45 +16,221 @@ import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.TupleSpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPIImpl.EmitImpl;
 
+/** Emits raw tuples.  Tuples are buffered in chunks of approximately chunkBytes; full chunks are published as soon as
+ * they fill, rather than waiting for the report interval.  At most maxBufferedBytes of unpublished tuples are buffered,
+ * and tuples beyond that are dropped.  If sampleSize is positive, tuples are not streamed; instead a uniform sample of
+ * sampleSize tuples is kept for each report interval.  Dropped tuples are counted in each report */
 public class EmitTuples extends EmitImpl {
-    
+
+    private static final int TUPLE_TAG_SIZE = CodedOutputStream.computeTagSize(QueryResults.TUPLE_FIELD_NUMBER);
+
     public final EmitSpec emitSpec;
     public final TupleSpec spec;
     public final int tupleSize;
-    public final BlockingQueue<List<Object[]>> pending = Queues.newLinkedBlockingQueue();
 
+    public final int chunkBytes;
+    public final long maxBufferedBytes;
+    public final int sampleSize;
+    private final EmitAPIImpl api; // Notified when chunks are ready to publish; may be null
+    private final AtomicBoolean publishPending = new AtomicBoolean(false);
+
+    // Guarded by this
+    private final Deque<List<ResultsTuple>> sealed = new ArrayDeque<List<ResultsTuple>>(); // Full chunks
+    private List<ResultsTuple> current = Lists.newArrayList(); // Current chunk, or reservoir if sampling
+    private int currentBytes = 0;
+    private long bufferedBytes = 0;
+    private long seen = 0; // Tuples seen this report interval, when sampling
+    private long dropped = 0;
+    private long report = 0; // Report sequence number
+    private int chunk = 0; // Next chunk index within the current report
+
+    /** An EmitTuples that buffers all tuples until results are requested */
     public EmitTuples(EmitSpec emitSpec, TupleSpec spec) {
+        this(emitSpec, spec, Integer.MAX_VALUE, Long.MAX_VALUE, 0, null);
+    }
+
+    public EmitTuples(EmitSpec emitSpec, TupleSpec spec, int chunkBytes, long maxBufferedBytes, int sampleSize, EmitAPIImpl api) {
         this.emitSpec = emitSpec;
         this.spec = spec;
         this.tupleSize = spec.getVarCount();
+        this.chunkBytes = chunkBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.sampleSize = sampleSize;
+        this.api = api;
     }
 
     public void emit(List<Object[]> tuples) {
-        pending.add(tuples);
+        for (int i = 0; i < tuples.size(); i++) {
+            emit(tuples.get(i));
+        }
     }
 
-    @Override
-    public QueryResults getResults(AgentInfo agentInfo, long timestamp) {
-        // Drain all pending results
-        List<List<Object[]>> pendingResults = Lists.newArrayList();
-        pending.drainTo(pendingResults);
+    public void emit(Object[] tuple) {
+        // Ignore tuples of the wrong length
+        if (tuple.length != tupleSize) {
+            return;
+        }
+
+        // Convert to output format outside the lock
+        ResultsTuple.Builder b = ResultsTuple.newBuilder();
+        for (Object o : tuple) {
+            b.addValue(String.valueOf(o));
+        }
+        ResultsTuple output = b.build();
+        int size = sizeOf(output);
+
+        boolean chunkReady;
+        synchronized (this) {
+            if (sampleSize > 0) {
+                sample(output, size);
+                return;
+            }
+            if (bufferedBytes + size > maxBufferedBytes) {
+                dropped++;
+                return;
+            }
+            current.add(output);
+            currentBytes += size;
+            bufferedBytes += size;
+            chunkReady = currentBytes >= chunkBytes;
+            if (chunkReady) {
+                seal();
+            }
+        }
+
+        // Have the emit API publish the full chunk, unless it is already going to
+        if (chunkReady && api != null && publishPending.compareAndSet(false, true)) {
+            api.publishChunks(this);
+        }
+    }
+
+    /** The size of a tuple within a results message */
+    private static int sizeOf(ResultsTuple tuple) {
+        int size = tuple.getSerializedSize();
+        return TUPLE_TAG_SIZE + CodedOutputStream.computeRawVarint32Size(size) + size;
+    }
+
+    /** Reservoir sample the tuple.  Caller must hold the lock */
+    private void sample(ResultsTuple output, int size) {
+        seen++;
+        if (current.size() < sampleSize) {
+            if (bufferedBytes + size > maxBufferedBytes) {
+                dropped++;
+            } else {
+                current.add(output);
+                bufferedBytes += size;
+            }
+            return;
+        }
+
+        // Either this tuple or the one it replaces is dropped
+        dropped++;
+        long j = ThreadLocalRandom.current().nextLong(seen);
+        if (j < sampleSize) {
+            int replacedSize = sizeOf(current.get((int) j));
+            if (bufferedBytes - replacedSize + size <= maxBufferedBytes) {
+                current.set((int) j, output);
+                bufferedBytes += size - replacedSize;
+            }
+        }
+    }
 
-        // Construct the output message
+    /** Move the current chunk to the sealed chunks.  Caller must hold the lock */
+    private void seal() {
+        if (!current.isEmpty()) {
+            sealed.add(current);
+            current = Lists.newArrayList();
+            currentBytes = 0;
+        }
+    }
+
+    /** Split the current reservoir into chunks.  Caller must hold the lock */
+    private void sealSample() {
+        List<ResultsTuple> sample = current;
+        current = Lists.newArrayList();
+        for (ResultsTuple tuple : sample) {
+            current.add(tuple);
+            currentBytes += sizeOf(tuple);
+            if (currentBytes >= chunkBytes) {
+                seal();
+            }
+        }
+        seal();
+    }
+
+    /** Construct a results message for a chunk.  Caller must hold the lock */
+    private QueryResults makeChunk(AgentInfo agentInfo, long timestamp, List<ResultsTuple> tuples, boolean more) {
         QueryResults.Builder b = QueryResults.newBuilder();
         b.setEmit(emitSpec);
         b.setAgent(agentInfo);
         b.setTimestamp(timestamp);
+        b.addAllTuple(tuples);
+        b.setReport(report);
+        b.setChunk(chunk++);
+        b.setMore(more);
+        return b.build();
+    }
 
-        // Add the tuples
-        for (Object[] tuple : Iterables.concat(pendingResults)) {
-            if (tuple.length == tupleSize) {
-                ResultsTuple.Builder tupleBuilder = b.addTupleBuilder();
-                for (Object o : tuple) {
-                    tupleBuilder.addValue(String.valueOf(o));
+    /** Take the full chunks buffered so far, as results messages that are part of the current report.
+     * Used to publish chunks before the report interval elapses */
+    public List<QueryResults> getFullChunks(AgentInfo agentInfo, long timestamp) {
+        publishPending.set(false);
+        List<QueryResults> chunks = Lists.newArrayList();
+        synchronized (this) {
+            List<ResultsTuple> tuples;
+            while ((tuples = sealed.poll()) != null) {
+                chunks.add(makeChunk(agentInfo, timestamp, tuples, true));
+                for (ResultsTuple tuple : tuples) {
+                    bufferedBytes -= sizeOf(tuple);
                 }
             }
         }
+        return chunks;
+    }
+
+    @Override
+    public List<QueryResults> getResultChunks(AgentInfo agentInfo, long timestamp) {
+        List<QueryResults> chunks = Lists.newArrayList();
+        synchronized (this) {
+            if (sampleSize > 0) {
+                sealSample();
+            } else {
+                seal();
+            }
+
+            // Publish all chunks; the final chunk of the report carries the dropped count
+            List<ResultsTuple> tuples;
+            while ((tuples = sealed.poll()) != null) {
+                chunks.add(makeChunk(agentInfo, timestamp, tuples, true));
+            }
+            QueryResults.Builder last = chunks.isEmpty() ? makeChunk(agentInfo, timestamp, current, false).toBuilder()
+                                                         : chunks.remove(chunks.size() - 1).toBuilder();
+            chunks.add(last.setMore(false).setDropped(dropped).build());
+
+            // Begin the next report
+            current = Lists.newArrayList();
+            currentBytes = 0;
+            bufferedBytes = 0;
+            seen = 0;
+            dropped = 0;
+            report++;
+            chunk = 0;
+        }
+        return chunks;
+    }
 
-        return b.build();
+    @Override
+    public QueryResults getResults(AgentInfo agentInfo, long timestamp) {
+        // Combine all chunks into one message
+        QueryResults.Builder b = null;
+        for (QueryResults chunk : getResultChunks(agentInfo, timestamp)) {
+            if (b == null) {
+                b = chunk.toBuilder();
+            } else {
+                b.addAllTuple(chunk.getTupleList());
+                b.setDropped(chunk.getDropped());
+            }
+        }
+        return b.clearReport().clearChunk().clearMore().build();
     }
-}
\ No newline at end of file
+}
@@ -25,6 +25,8 @@ public class MethodRewriteModification implements DynamicModification {
     
     private static final Logger log = LoggerFactory.getLogger(MethodRewriteModification.class);
 
+    private static final int MAX_FIXED_ARITY = 4; // Largest number of advice args passed without an array
+
     public final MethodTracepointSpec methodSpec;
     public final int adviceLookupId;
     
@@ -77,23 +79,20 @@ public class MethodRewriteModification implements DynamicModification {
             }
         }
         
-        // Args passed to advice
-        String adviceArgString;
-        if (methodSpec.getAdviceArgCount() == 0) {
-            adviceArgString = "new Object[0]";
+        // Invocation of advice.  Fixed-arity entry points avoid allocating an array.  Primitives must be boxed
+        String proxyClass = PrivilegedProxy.class.getName();
+        List<String> boxedArgs = Lists.newArrayList();
+        for (String adviceArg : adviceArgs) {
+            boxedArgs.add(String.format("%s.box(%s)", proxyClass, adviceArg));
+        }
+        String invocation;
+        if (boxedArgs.size() <= MAX_FIXED_ARITY) {
+            boxedArgs.add(0, String.valueOf(adviceLookupId));
+            invocation = String.format("%s.Advise%d(%s);", proxyClass, adviceArgs.size(), StringUtils.join(boxedArgs, ", "));
         } else {
-            // Must box primitives
-            List<String> boxedArgs = Lists.newArrayList();
-            for (String adviceArg : adviceArgs) {
-                boxedArgs.add(String.format("%s.box(%s)", PrivilegedProxy.class.getName(), adviceArg));
-            }
-            adviceArgString = String.format("new Object[] { %s }", StringUtils.join(boxedArgs, ", "));
+            invocation = String.format("%s.Advise(%d, new Object[] { %s });", proxyClass, adviceLookupId, StringUtils.join(boxedArgs, ", "));
         }
         
-        // Invocation of advice
-        String proxyClass = PrivilegedProxy.class.getName();
-        String invocation = String.format("%s.Advise(%d, %s);", proxyClass, adviceLookupId, adviceArgString);
-        
         // Wrap in loops for multi variables
         for (int i = 0; i < multiLiterals.size(); i++) {
             MultiExportedVariable x = multiLiterals.get(i);
@@ -127,11 +126,13 @@ public class MethodRewriteModification implements DynamicModification {
             );
         }
         
-        // Wrapped in exception
+        // Wrapped in exception, and only evaluated if the advice is active
         invocation = StringUtils.join(new String[] {
+                String.format("if (%s.IsActive(%d)) {", proxyClass, adviceLookupId),
                 "try {",
                     invocation,
                 "} catch (java.lang.Throwable t) {",
+                "}",
                 "}"
         }, "\n");
         return invocation;
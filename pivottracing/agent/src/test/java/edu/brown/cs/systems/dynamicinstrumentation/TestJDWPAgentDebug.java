@@ -147,6 +147,18 @@ public class TestJDWPAgentDebug extends TestCase {
         public void Advise(int i, Object[] args) {
             TestJVMAgentPrivileged.DoSomething(i, args);
         }
+        public void Advise1(int i, Object a) {
+            Advise(i, new Object[] { a });
+        }
+        public void Advise2(int i, Object a, Object b) {
+            Advise(i, new Object[] { a, b });
+        }
+        public void Advise3(int i, Object a, Object b, Object c) {
+            Advise(i, new Object[] { a, b, c });
+        }
+        public void Advise4(int i, Object a, Object b, Object c, Object d) {
+            Advise(i, new Object[] { a, b, c, d });
+        }
     }
     
 
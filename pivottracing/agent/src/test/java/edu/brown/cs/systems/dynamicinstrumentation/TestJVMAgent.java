@@ -80,6 +80,72 @@ public class TestJVMAgent extends TestCase {
     
 
     
+    class OtherClassToModify {
+        public int value;
+        public void setValue(int x) {
+            this.value = x;
+        }
+    }
+    
+    class AddModification implements DynamicModification {
+        
+        public final String affects;
+        public final int add;
+        
+        public AddModification(Class<?> cls, int add) {
+            this.affects = cls.getName();
+            this.add = add;
+        }
+        
+        @Override
+        public Collection<String> affects() {
+            return Lists.newArrayList(affects);
+        }
+        
+        @Override
+        public void apply(ClassPool pool) throws NotFoundException, CannotCompileException {
+            CtMethod m = pool.getCtClass(affects).getDeclaredMethod("setValue");
+            m.insertAfter(String.format("this.value += %d;", add));
+        }
+        
+    }
+    
+    /**
+     * Classes are reloaded in one batch, and can be repeatedly remodified from their original definition
+     */
+    @Test
+    public void testRepeatedBatchModification() throws Exception {
+        ClassToModify a = new ClassToModify();
+        OtherClassToModify b = new OtherClassToModify();
+        
+        DynamicManager dynamic = new DynamicManager(JVMAgent.get());
+        DynamicModification m1 = new AddModification(ClassToModify.class, 5);
+        DynamicModification m2 = new AddModification(OtherClassToModify.class, 7);
+        dynamic.add(m1).add(m2).install();
+        assertEquals(2, dynamic.lastInstall.classes);
+        
+        a.setValue(1);
+        b.setValue(1);
+        assertEquals(6, a.value);
+        assertEquals(8, b.value);
+        
+        // Only the class whose modifications changed is reinstalled
+        DynamicModification m3 = new AddModification(ClassToModify.class, 10);
+        dynamic.remove(m1).add(m3).install();
+        assertEquals(1, dynamic.lastInstall.classes);
+        
+        a.setValue(1);
+        b.setValue(1);
+        assertEquals(11, a.value);
+        assertEquals(8, b.value);
+        
+        dynamic.clear().install();
+        a.setValue(1);
+        b.setValue(1);
+        assertEquals(1, a.value);
+        assertEquals(1, b.value);
+    }
+
     class TestPrivilegedModification implements DynamicModification {
 
         public final String affects = Integer.class.getName();
@@ -146,6 +212,18 @@ public class TestJVMAgent extends TestCase {
         public void Advise(int i, Object[] args) {
             TestJVMAgentPrivileged.DoSomething(i, args);
         }
+        public void Advise1(int i, Object a) {
+            Advise(i, new Object[] { a });
+        }
+        public void Advise2(int i, Object a, Object b) {
+            Advise(i, new Object[] { a, b });
+        }
+        public void Advise3(int i, Object a, Object b, Object c) {
+            Advise(i, new Object[] { a, b, c });
+        }
+        public void Advise4(int i, Object a, Object b, Object c, Object d) {
+            Advise(i, new Object[] { a, b, c, d });
+        }
     }
     
 
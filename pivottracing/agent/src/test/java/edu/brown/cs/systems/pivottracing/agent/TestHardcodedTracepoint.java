@@ -44,6 +44,18 @@ public class TestHardcodedTracepoint extends TestCase {
                 count.getAndIncrement();
                 allValues.add(values);
             }
+            public void advise(Object a) {
+                advise(new Object[] { a });
+            }
+            public void advise(Object a, Object b) {
+                advise(new Object[] { a, b });
+            }
+            public void advise(Object a, Object b, Object c) {
+                advise(new Object[] { a, b, c });
+            }
+            public void advise(Object a, Object b, Object c, Object d) {
+                advise(new Object[] { a, b, c, d });
+            }
         };
         
         int weaveid = t.weave(advice, Lists.newArrayList("b"));
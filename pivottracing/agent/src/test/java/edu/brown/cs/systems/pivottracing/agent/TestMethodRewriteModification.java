@@ -47,6 +47,26 @@ public class TestMethodRewriteModification extends TestCase {
             advised.add(Lists.newArrayList(values));
         }
 
+        @Override
+        public void advise(Object a) {
+            advise(new Object[] { a });
+        }
+
+        @Override
+        public void advise(Object a, Object b) {
+            advise(new Object[] { a, b });
+        }
+
+        @Override
+        public void advise(Object a, Object b, Object c) {
+            advise(new Object[] { a, b, c });
+        }
+
+        @Override
+        public void advise(Object a, Object b, Object c, Object d) {
+            advise(new Object[] { a, b, c, d });
+        }
+
         public void expectSize(int expectedSize) {
             TestCase.assertEquals(expectedSize, advised.size());
         }
@@ -81,6 +101,8 @@ public class TestMethodRewriteModification extends TestCase {
 
     public void primitive(int a) {}
 
+    public void manyArgs(String a, int b, long c, double d, boolean e) {}
+
     /** Simple method rewrite */
     @Test
     public void testMethodRewriteModification()
@@ -146,6 +168,47 @@ public class TestMethodRewriteModification extends TestCase {
         }
     }
 
+    /** Methods with more advice args than the fixed-arity entry points pass an array */
+    @Test
+    public void testManyArgsRewriteModification()
+            throws ClassNotFoundException, UnmodifiableClassException, CannotCompileException {
+        PTAgentForTest test = new PTAgentForTest();
+        AdviceImplForTest advice = new AdviceImplForTest();
+        int lookupId = test.agent.adviceManager.register(advice);
+
+        MethodTracepointSpec t1 = TracepointsTestUtils.getMethodSpec(getClass(), "manyArgs");
+        MethodRewriteModification mod = new MethodRewriteModification(t1, lookupId);
+        assertTrue(mod.invocation().contains("new Object[]"));
+        test.agent.dynamic.clear().add(mod).install();
+
+        manyArgs("a", 1, 2L, 3.5, true);
+        advice.expectSize(1);
+        advice.expect(0, "a", 1, 2L, 3.5, true);
+    }
+
+    /** Advice that is no longer active is not invoked, even while the method remains rewritten */
+    @Test
+    public void testInactiveAdvice()
+            throws ClassNotFoundException, UnmodifiableClassException, CannotCompileException {
+        PTAgentForTest test = new PTAgentForTest();
+        AdviceImplForTest advice = new AdviceImplForTest();
+        int lookupId = test.agent.adviceManager.register(advice);
+        assertTrue(PrivilegedProxy.IsActive(lookupId));
+
+        MethodTracepointSpec t1 = TracepointsTestUtils.getMethodSpec(getClass(), "primitive");
+        MethodRewriteModification mod = new MethodRewriteModification(t1, lookupId);
+        assertTrue(mod.invocation().contains("Advise1("));
+        test.agent.dynamic.clear().add(mod).install();
+
+        primitive(5);
+        advice.expectSize(1);
+
+        test.agent.adviceManager.remove(lookupId);
+        assertFalse(PrivilegedProxy.IsActive(lookupId));
+        primitive(6);
+        advice.expectSize(1);
+    }
+
     /** Rewrite a method with array args, configure advice invocation as array */
     @Test
     public void testArrayRewriteModification()
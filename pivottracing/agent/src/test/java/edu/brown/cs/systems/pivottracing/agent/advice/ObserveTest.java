@@ -1,8 +1,11 @@
 package edu.brown.cs.systems.pivottracing.agent.advice;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Test;
@@ -211,4 +214,44 @@ public class ObserveTest extends TestCase {
             fail();
         }
     }
+    
+    /** Threads that ran an advice do not keep it reachable once it is uninstalled */
+    @Test
+    public void testUninstalledAdviceNotRetainedByThreads() throws InvalidAdviceException, InterruptedException {
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        EmitAPIForTest results = new EmitAPIForTest();
+        final AdviceImpl[] advice = { new AdviceImpl(AdviceTestUtils.newAdvice().observe("a").emit("test1", "a").spec(), baggage, results) };
+        WeakReference<AdviceImpl> ref = new WeakReference<AdviceImpl>(advice[0]);
+        
+        // A thread that runs the advice, then stays alive
+        final CountDownLatch advised = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                advice[0].advise("hello");
+                advised.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.start();
+        try {
+            assertTrue(advised.await(5, TimeUnit.SECONDS));
+            advice[0].advise("hello");
+            advice[0].destroy();
+            advice[0] = null;
+            
+            for (int i = 0; i < 50 && ref.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull(ref.get());
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+    }
+    
 }
@@ -0,0 +1,160 @@
+package edu.brown.cs.systems.pivottracing.agent.advice;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.ResultsGroup;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.AdviceSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.SamplingSpec;
+import edu.brown.cs.systems.pivottracing.agent.Advice;
+import edu.brown.cs.systems.pivottracing.agent.PTAgent;
+import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitGrouped;
+import edu.brown.cs.systems.pivottracing.agent.advice.utils.AdviceTestUtils;
+import edu.brown.cs.systems.pivottracing.agent.advice.utils.BaggageAPIForTest;
+import edu.brown.cs.systems.pivottracing.agent.advice.utils.EmitAPIForTest;
+import junit.framework.TestCase;
+
+public class SamplingTest extends TestCase {
+    
+    /** Test that each invocation is executed with the sampling probability */
+    @Test
+    public void testProbability() throws InvalidAdviceException {
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        EmitAPIForTest results = new EmitAPIForTest();
+        Advice advice = AdviceTestUtils.newAdvice().observe("x").emit("q1", "x")
+                .sampling(SamplingSpec.newBuilder().setProbability(0.25)).build(baggage, results);
+        
+        for (int i = 0; i < 10000; i++) {
+            advice.advise(i);
+        }
+        assertTrue(results.emitted.size() > 2000);
+        assertTrue(results.emitted.size() < 3000);
+    }
+    
+    /** Test that requests are either sampled or not, based on their request key */
+    @Test
+    public void testRequestProbability() throws InvalidAdviceException {
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        EmitAPIForTest results = new EmitAPIForTest();
+        Advice advice = AdviceTestUtils.newAdvice().observe("x").emit("q1", "x")
+                .sampling(SamplingSpec.newBuilder().setRequestProbability(0.25)).build(baggage, results);
+        
+        baggage.requestKey = Long.MIN_VALUE / 2 + 1;
+        for (int i = 0; i < 100; i++) {
+            advice.advise(i);
+        }
+        assertEquals(0, results.emitted.size());
+        
+        baggage.requestKey = Long.MIN_VALUE / 2 - 1;
+        for (int i = 0; i < 100; i++) {
+            advice.advise(i);
+        }
+        assertEquals(100, results.emitted.size());
+    }
+    
+    /** Test that the fraction of requests sampled matches the request probability, including probabilities of a half
+     * or more */
+    @Test
+    public void testRequestProbabilityThreshold() throws InvalidAdviceException {
+        assertEquals(0.25, sampledRequests(0.25), 0.02);
+        assertEquals(0.5, sampledRequests(0.5), 0.02);
+        assertEquals(0.9, sampledRequests(0.9), 0.02);
+        assertEquals(0.99, sampledRequests(0.99), 0.01);
+        assertEquals(1.0, sampledRequests(1.0), 0);
+
+        // Keys at the ends of the range
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        Sampler sampler = Sampler.create(SamplingSpec.newBuilder().setRequestProbability(0.9).build(), baggage);
+        baggage.requestKey = Long.MIN_VALUE;
+        assertTrue(sampler.sample());
+        baggage.requestKey = Long.MAX_VALUE;
+        assertFalse(sampler.sample());
+    }
+
+    /** Fraction of random request keys sampled with the request probability */
+    private static double sampledRequests(double requestProbability) throws InvalidAdviceException {
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        SamplingSpec.Builder spec = SamplingSpec.newBuilder().setRequestProbability(requestProbability);
+        if (requestProbability == 1) {
+            spec.setMaxPerSecond(1e9); // Otherwise no sampler is needed
+        }
+        Sampler sampler = Sampler.create(spec.build(), baggage);
+        Random random = new Random(0);
+        int sampled = 0, count = 20000;
+        for (int i = 0; i < count; i++) {
+            baggage.requestKey = i == 0 ? Long.MAX_VALUE : random.nextLong();
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+        return (double) sampled / count;
+    }
+    
+    /** Test that no more than one second's worth of invocations are executed in a burst */
+    @Test
+    public void testMaxPerSecond() throws InvalidAdviceException {
+        BaggageAPIForTest baggage = new BaggageAPIForTest();
+        EmitAPIForTest results = new EmitAPIForTest();
+        Advice advice = AdviceTestUtils.newAdvice().observe("x").emit("q1", "x")
+                .sampling(SamplingSpec.newBuilder().setMaxPerSecond(10)).build(baggage, results);
+        
+        for (int i = 0; i < 10000; i++) {
+            advice.advise(i);
+        }
+        assertTrue(results.emitted.size() >= 10);
+        assertTrue(results.emitted.size() <= 12);
+    }
+    
+    /** Test that COUNT and SUM aggregations are scaled to account for sampling, but MIN and MAX are not */
+    @Test
+    public void testScaledAggregation() throws InvalidAdviceException {
+        AdviceSpec spec = AdviceTestUtils.newAdvice().observe("g", "a", "b", "c")
+                .emit("q1", new String[] { "g" }, new String[] { "a", "b", "c" }, new Agg[] { Agg.COUNT, Agg.SUM, Agg.MAX })
+                .sampling(SamplingSpec.newBuilder().setProbability(0.5).setMaxPerSecond(10)).spec();
+        Sampler sampler = Sampler.create(spec.getSampling(), new BaggageAPIForTest());
+        EmitGrouped emit = new EmitGrouped(spec.getEmit(), spec.getEmit().getGroupBySpec(), sampler);
+        
+        // Of the invocations that pass the probabilistic sampling, only some are within the budget
+        int admitted = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (sampler.sample()) {
+                emit.emit(new Object[] { "g", 1L, 3L, 7L });
+                admitted++;
+            }
+        }
+        assertTrue(admitted >= 10);
+        assertTrue(admitted <= 12);
+        
+        QueryResults results = emit.getResults(PTAgent.getAgentInfo(), 0);
+        ResultsGroup group = results.getGroup(0);
+        assertTrue(group.getAggregation(0) > 8000);
+        assertTrue(group.getAggregation(0) < 12000);
+        assertEquals(3 * group.getAggregation(0), group.getAggregation(1), 3);
+        assertEquals(7, group.getAggregation(2));
+    }
+    
+    /** Test that sampling without any limits doesn't create a sampler */
+    @Test
+    public void testUnlimited() throws InvalidAdviceException {
+        assertNull(Sampler.create(SamplingSpec.newBuilder().setProbability(1).build(), new BaggageAPIForTest()));
+    }
+    
+    /** Test that invalid probabilities are rejected */
+    @Test
+    public void testInvalidProbability() {
+        try {
+            Sampler.create(SamplingSpec.newBuilder().setProbability(1.5).build(), new BaggageAPIForTest());
+            fail();
+        } catch (InvalidAdviceException e) {
+        }
+        try {
+            Sampler.create(SamplingSpec.newBuilder().setRequestProbability(0).build(), new BaggageAPIForTest());
+            fail();
+        } catch (InvalidAdviceException e) {
+        }
+    }
+
+}
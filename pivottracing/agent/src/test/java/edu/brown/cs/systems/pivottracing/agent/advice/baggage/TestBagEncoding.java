@@ -0,0 +1,82 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Contents;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BagEncoding.Kind;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.Bag;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.SimpleTuple;
+import edu.brown.cs.systems.pivottracing.baggage.BaggageProtos.TupleBag;
+import junit.framework.TestCase;
+
+public class TestBagEncoding extends TestCase {
+
+    private static List<Object> roundTrip(Object... values) {
+        List<Object[]> tuples = Lists.<Object[]> newArrayList(values);
+        ByteString serialized = BagEncoding.encode(new Contents(Kind.TUPLES, 7, values.length, 0, tuples));
+
+        // Parse a copy, so that the decode doesn't hit the cache
+        Contents decoded = BagEncoding.decode(ByteString.copyFrom(serialized.toByteArray()));
+        assertEquals(Kind.TUPLES, decoded.kind);
+        assertEquals(7, decoded.versionId);
+        assertEquals(1, decoded.tuples.size());
+        return Lists.newArrayList(decoded.tuples.get(0));
+    }
+
+    @Test
+    public void testTypedValues() {
+        assertEquals(Lists.<Object> newArrayList(5L, -5L, 0L), roundTrip(5, -5L, (short) 0));
+        assertEquals(Lists.<Object> newArrayList(Long.MAX_VALUE, Long.MIN_VALUE, 1L << 61),
+                roundTrip(Long.MAX_VALUE, Long.MIN_VALUE, 1L << 61));
+        assertEquals(Lists.<Object> newArrayList(1.5, -0.25, 2.0), roundTrip(1.5, -0.25f, 2.0));
+        assertEquals(Lists.<Object> newArrayList(null, true, false), roundTrip(null, true, false));
+        assertEquals(Lists.<Object> newArrayList("hello", "", "x"), roundTrip("hello", "", 'x'));
+    }
+
+    @Test
+    public void testStringsStoredOnce() throws Exception {
+        List<Object[]> tuples = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            tuples.add(new Object[] { "a repeated string value", i });
+        }
+        ByteString serialized = BagEncoding.encode(new Contents(Kind.TUPLES, 1, 2, 0, tuples));
+        Bag bag = Bag.parseFrom(serialized);
+        assertEquals(1, bag.getTupleBag().getTyped().getStringCount());
+
+        // Much smaller than encoding every value as a string
+        TupleBag.Builder legacy = TupleBag.newBuilder();
+        for (Object[] tuple : tuples) {
+            legacy.addTupleBuilder().addValue((String) tuple[0]).addValue(String.valueOf(tuple[1]));
+        }
+        assertTrue(serialized.size() * 5 < legacy.build().getSerializedSize());
+    }
+
+    @Test
+    public void testLegacyBag() {
+        Bag.Builder bag = Bag.newBuilder().setVersionId(3);
+        bag.getTupleBagBuilder().addTuple(SimpleTuple.newBuilder().addValue("a").addValue("1"));
+        Contents decoded = BagEncoding.decode(bag.build().toByteString());
+        assertEquals(Kind.TUPLES, decoded.kind);
+        assertEquals(2, decoded.width);
+        assertEquals(Lists.<Object> newArrayList("a", "1"), Lists.newArrayList(decoded.tuples.get(0)));
+    }
+
+    @Test
+    public void testDecodeCached() {
+        List<Object[]> tuples = Lists.<Object[]> newArrayList(new Object[] { "a", 1L });
+        Contents contents = new Contents(Kind.GROUPS, 1, 1, 1, tuples);
+        ByteString serialized = BagEncoding.encode(contents);
+        assertSame(contents, BagEncoding.decode(serialized));
+    }
+
+    @Test
+    public void testInvalidBag() {
+        assertNull(BagEncoding.decode(ByteString.copyFromUtf8("not a bag")));
+    }
+
+}
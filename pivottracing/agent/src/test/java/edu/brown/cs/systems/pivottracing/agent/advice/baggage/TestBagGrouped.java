@@ -9,6 +9,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
 
+import edu.brown.cs.systems.baggage.Baggage;
+import edu.brown.cs.systems.baggage.DetachedBaggage;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.PackSpec;
@@ -453,4 +455,37 @@ public class TestBagGrouped extends TestCase {
         assertEquals(2, baggage.ARCHIVE.map.size());
     }
 
+    @Test
+    public void testJoinedBranchesMergeGroups() throws InvalidAdviceException {
+        BaggageAPIImpl baggage = new BaggageAPIImpl();
+
+        GroupBySpec groupSpec = groupby("g1").aggregate(
+                Agg.COUNT, "a1",
+                Agg.SUM, "a2"
+        );
+        Pack pack = baggage.create(bag("test1").pack(groupSpec));
+        Unpack unpack = baggage.create(bag("test1").unpack(groupSpec));
+
+        List<Object[]> expect = Lists.<Object[]>newArrayList(
+                new Object[] { "hello", 3L, 7L },
+                new Object[] { "friend", 1L, 8L }
+        );
+
+        Baggage.start();
+        try {
+            // Both branches update the same group, then join
+            DetachedBaggage branch = Baggage.fork();
+            pack.pack(Lists.<Object[]>newArrayList(new Object[] { "hello", 1L, 1L }, new Object[] { "hello", 1L, 2L }));
+            DetachedBaggage main = Baggage.swap(branch);
+            pack.pack(Lists.<Object[]>newArrayList(new Object[] { "hello", 1L, 4L }, new Object[] { "friend", 1L, 8L }));
+            Baggage.join(main);
+
+            assertEquals(1, baggage.ACTIVE.get(ByteString.copyFromUtf8("test1")).size());
+            assertEquals(0, baggage.ARCHIVE.get(ByteString.copyFromUtf8("test1")).size());
+            assertEquals(toSet(expect), toSet(unpack.unpack()));
+        } finally {
+            Baggage.discard();
+        }
+    }
+
 }
@@ -2,6 +2,7 @@ package edu.brown.cs.systems.pivottracing.agent.advice.baggage;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.PackSpec;
@@ -31,4 +32,16 @@ public class TestBaggageAPIImpl extends TestCase {
         }
     }
 
+    @Test
+    public void testRequestKey() {
+        BaggageAPIImplForTest baggage = new BaggageAPIImplForTest();
+        long key = baggage.requestKey();
+        assertEquals(key, baggage.requestKey());
+        assertEquals(1, baggage.ARCHIVE.get(BaggageAPIImpl.REQUEST_KEY).size());
+
+        // Keys chosen by concurrent branches of a request are resolved to the smallest
+        baggage.ARCHIVE.add(BaggageAPIImpl.REQUEST_KEY, ByteString.copyFrom(Longs.toByteArray(Long.MIN_VALUE)));
+        assertEquals(Long.MIN_VALUE, baggage.requestKey());
+    }
+
 }
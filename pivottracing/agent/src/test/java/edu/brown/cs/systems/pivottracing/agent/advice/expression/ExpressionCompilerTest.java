@@ -0,0 +1,130 @@
+package edu.brown.cs.systems.pivottracing.agent.advice.expression;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.pivottracing.agent.advice.expression.ExpressionCompiler.ParseException;
+import junit.framework.TestCase;
+
+public class ExpressionCompilerTest extends TestCase {
+
+    private static Object eval(String expression, Object... tuple) throws Exception {
+        int[] indices = new int[tuple.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        return ExpressionCompiler.compile(expression, indices).evaluate(tuple);
+    }
+
+    /** Compiled expressions should give the same results as the equivalent JavaScript, and print the same way, since
+     * emitted tuples and group keys are the values' strings */
+    private static void assertSameAsScript(String expression, Object... tuple) throws Exception {
+        int[] indices = new int[tuple.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Object expected = new ScriptExpression(expression, indices).evaluate(tuple);
+        Object actual = ExpressionCompiler.compile(expression, indices).evaluate(tuple);
+        assertEquals(expression, String.valueOf(expected), String.valueOf(actual));
+    }
+
+    @Test
+    public void testArithmetic() throws Exception {
+        assertEquals(7, eval("1+2*3"));
+        assertEquals(9, eval("(1+2)*3"));
+        assertEquals(-1.0, eval("{}-{}", 3.0, 4.0));
+        assertEquals(2.5, eval("{}/{}", 5, 2));
+        assertEquals(1, eval("{}%{}", 7, 3));
+        assertEquals(-5, eval("-{}", 5));
+        assertEquals(8.0, eval("Math.pow({}, 3)", 2));
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        assertEquals("hello jon", eval("\"hello {}\"", "jon"));
+        assertEquals("a1", eval("'a'+1"));
+        assertEquals(3, eval("\"{}\".length", "jon"));
+        assertEquals(true, eval("\"{}\".startsWith(\"j\")", "jon"));
+        assertEquals("JON", eval("\"{}\".toUpperCase()", "jon"));
+        assertEquals("on", eval("\"{}\".substring(1)", "jon"));
+        assertEquals("say \"hi\"", eval("\"{}\"", "say \"hi\""));
+    }
+
+    @Test
+    public void testBoolean() throws Exception {
+        assertEquals(true, eval("{} > {} && {} != 0", 5, 3, 1));
+        assertEquals(false, eval("!{}", true));
+        assertEquals(true, eval("\"{}\" == \"jon\"", "jon"));
+        assertEquals(true, eval("{} == \"5\"", 5));
+        assertEquals(false, eval("{} === \"5\"", 5));
+        assertEquals("b", eval("{} ? \"a\" : \"b\"", false));
+    }
+
+    @Test
+    public void testMatchesScript() throws Exception {
+        assertSameAsScript("{}+{}", 3.0, 4.0);
+        assertSameAsScript("{}*{}-{}", 3.0, 4.0, 5.0);
+        assertSameAsScript("\"{}\"+{}", "x", 4.0);
+        assertSameAsScript("{} >= {} || {} < 2", 1.0, 4.0, 1.0);
+        assertSameAsScript("\"{}\".indexOf(\"b\")", "abc");
+        assertSameAsScript("Math.max({}, {})", 3.0, 7.0);
+    }
+
+    @Test
+    public void testIntegralResultsPrintLikeScript() throws Exception {
+        String[] expressions = { "5+1", "'jon'.length", "\"jon\".length", "3*1000", "7/2", "6/2", "10%3", "5-5", "0/5",
+                "-5", "-0", "0*-1", "1/0", "2147483647+1", "5.0", "5.5+0.5", "3.0*2", "1.5*2", "'abc'.indexOf('c')",
+                "'abc'.lastIndexOf('z')", "true+1", "null+1", "+true", "+'7'", "(1+2)/3", "Math.abs(-3)",
+                "Math.abs(-3.0)", "Math.ceil(2)", "Math.floor(3.7)", "Math.min(1,2)", "Math.max(1,2.5)", "Math.pow(2,3)",
+                "3000000000", "'x'+1", "'x'+1.5", "1+2+'x'", "true?3:4" };
+        for (String expression : expressions) {
+            assertSameAsScript(expression);
+        }
+    }
+
+    @Test
+    public void testIntegralVariablesPrintLikeScript() throws Exception {
+        Object[] values = { 5, 5L, 3000000000L, (short) 5, 5.0, 5.5, -3, "5", "5.0", "-2", true };
+        for (Object value : values) {
+            assertSameAsScript("{}+1", value);
+            assertSameAsScript("{}*2", value);
+            assertSameAsScript("{}/2", value);
+            assertSameAsScript("-({})", value);
+            assertSameAsScript("\"{}\".length", value);
+        }
+
+        // Bare numeric variables are passed through unchanged, so large longs are not printed as doubles
+        for (Object value : new Object[] { 5, 5L, 5.0, 5.5, "5", "5.0", "-2", true }) {
+            assertSameAsScript("{}", value);
+        }
+    }
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        Expression e = ExpressionCompiler.compile("1+2*3", new int[0]);
+        assertTrue(e instanceof Ops.Constant);
+    }
+
+    @Test
+    public void testUnsupportedSyntax() {
+        String[] invalid = { "{}+", "function() {}", "{} = 3", "new Date()", "\"{}\".foo()" };
+        for (String expression : invalid) {
+            try {
+                ExpressionCompiler.compile(expression, new int[] { 0 });
+                fail("Expected ParseException for " + expression);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testNonLiteralVariable() throws Exception {
+        try {
+            eval("!{}", "jon");
+            fail("Expected bare non-literal string variable to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
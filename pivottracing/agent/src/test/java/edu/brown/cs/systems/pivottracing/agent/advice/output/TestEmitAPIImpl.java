@@ -20,7 +20,7 @@ public class TestEmitAPIImpl extends TestCase {
 
         EmitAPIImpl impl = new EmitAPIImpl(1000, "topic", true);
         try {
-            Emit created = impl.create(emitspec1);
+            Emit created = impl.create(emitspec1, null);
             fail();
         } catch (InvalidAdviceException e) {
 
@@ -36,7 +36,7 @@ public class TestEmitAPIImpl extends TestCase {
         EmitAPIImpl impl = new EmitAPIImpl(1000, "topic", true);
         
         assertEquals(0, impl.emits.size());
-        Emit created = impl.create(emitspec1);
+        Emit created = impl.create(emitspec1, null);
         assertEquals(1, impl.emits.size());
         assertTrue(impl.emits.contains(created));
         
@@ -1,7 +1,10 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.output;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -16,6 +19,8 @@ import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
 import edu.brown.cs.systems.pivottracing.agent.PTAgent;
+import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPI.Emit;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitGrouped;
 import junit.framework.TestCase;
 
@@ -374,4 +379,141 @@ public class TestEmitGrouped extends TestCase {
         assertEquals(0, results2.getGroupCount());      
     }
 
+    @Test
+    public void testEmitGroupedConcurrent() throws InterruptedException {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        GroupBySpec.Builder gspec1 = GroupBySpec.newBuilder().addGroupBy("g1");
+        gspec1.addAggregateBuilder().setName("a1").setHow(Agg.SUM);
+        gspec1.addAggregateBuilder().setName("a2").setHow(Agg.COUNT);
+        gspec1.addAggregateBuilder().setName("a3").setHow(Agg.MIN);
+        gspec1.addAggregateBuilder().setName("a4").setHow(Agg.MAX);
+        
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setGroupBySpec(gspec1).build();
+        
+        final EmitGrouped emit1 = new EmitGrouped(emitspec1, gspec1.build());
+        
+        // Each thread reuses a single tuple buffer, as advice does
+        final int numThreads = 4, perThread = 1000;
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < numThreads; t++) {
+            final int threadId = t;
+            threads.add(new Thread() {
+                public void run() {
+                    Object[] tuple = new Object[5];
+                    for (int i = 0; i < perThread; i++) {
+                        tuple[0] = i % 2 == 0 ? "even" : "odd";
+                        tuple[1] = 1L;
+                        tuple[2] = "ignored";
+                        tuple[3] = threadId;
+                        tuple[4] = threadId;
+                        emit1.emit(tuple);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        QueryResults results = emit1.getResults(PTAgent.getAgentInfo(), 100);
+        
+        Set<ResultsGroup> actual = Sets.newHashSet(results.getGroupList());
+        Set<ResultsGroup> expect = Sets.newHashSet(
+                groupby("even").aggregate(numThreads * perThread / 2, numThreads * perThread / 2, 0, numThreads - 1),
+                groupby("odd").aggregate(numThreads * perThread / 2, numThreads * perThread / 2, 0, numThreads - 1)
+        );
+        assertEquals(expect, actual);
+        assertEquals(0, emit1.getResults(PTAgent.getAgentInfo(), 100).getGroupCount());
+    }
+
+    @Test
+    public void testEmitGroupedThreadExitsDuringGetResults() throws InterruptedException {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        GroupBySpec.Builder gspec1 = GroupBySpec.newBuilder().addGroupBy("g1");
+        gspec1.addAggregateBuilder().setName("a1").setHow(Agg.COUNT);
+        
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setGroupBySpec(gspec1).build();
+        
+        final EmitGrouped emit1 = new EmitGrouped(emitspec1, gspec1.build());
+        
+        // Collect results while short-lived threads emit and exit; nothing emitted before a thread exits may be lost.
+        // Distinct groups make merging each drained partial slow, so threads often exit in the meantime
+        final int numThreads = 200, perThread = 2000;
+        long total = 0;
+        for (int t = 0; t < numThreads; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        emit1.emit(new Object[] { i, 1L });
+                    }
+                }
+            };
+            thread.start();
+            while (thread.isAlive()) {
+                total += count(emit1.getResults(PTAgent.getAgentInfo(), 100));
+            }
+            total += count(emit1.getResults(PTAgent.getAgentInfo(), 100));
+        }
+        total += count(emit1.getResults(PTAgent.getAgentInfo(), 100));
+        
+        assertEquals(numThreads * perThread, total);
+    }
+
+    @Test
+    public void testDestroyedEmitNotRetainedByThreads() throws InterruptedException, InvalidAdviceException {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        GroupBySpec.Builder gspec1 = GroupBySpec.newBuilder().addGroupBy("g1");
+        gspec1.addAggregateBuilder().setName("a1").setHow(Agg.COUNT);
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setGroupBySpec(gspec1).build();
+        
+        EmitAPIImpl api = new EmitAPIImpl(1000000, "topic", false);
+        final Emit[] emit1 = { api.create(emitspec1, null) };
+        WeakReference<Emit> ref = new WeakReference<Emit>(emit1[0]);
+        
+        // A thread that emits groups which are never collected, then stays alive
+        final CountDownLatch emitted = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                emit1[0].emit(new Object[] { "hello", 1L });
+                emitted.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.start();
+        try {
+            assertTrue(emitted.await(5, TimeUnit.SECONDS));
+            emit1[0].emit(new Object[] { "goodbye", 1L });
+            
+            // Once destroyed, uncollected groups are discarded and nothing more is aggregated
+            api.destroy(emit1[0]);
+            emit1[0].emit(new Object[] { "again", 1L });
+            assertEquals(0, ((EmitGrouped) emit1[0]).getResults(PTAgent.getAgentInfo(), 100).getGroupCount());
+            emit1[0] = null;
+            
+            for (int i = 0; i < 50 && ref.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull(ref.get());
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+    }
+
+    private static long count(QueryResults results) {
+        long count = 0;
+        for (ResultsGroup group : results.getGroupList()) {
+            count += group.getAggregation(0);
+        }
+        return count;
+    }
+
 }
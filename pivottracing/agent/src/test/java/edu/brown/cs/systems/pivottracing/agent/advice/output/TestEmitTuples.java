@@ -1,11 +1,13 @@
 package edu.brown.cs.systems.pivottracing.agent.advice.output;
 
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
 
 import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
@@ -48,6 +50,25 @@ public class TestEmitTuples extends TestCase {
         assertEquals(0, results2.getGroupCount());
     }
     
+    @Test
+    public void testEmitReusedTuple() {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        TupleSpec tspec1 = TupleSpec.newBuilder().addVar("a").addVar("b").build();
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setTupleSpec(tspec1).build();
+
+        EmitTuples emit1 = new EmitTuples(emitspec1, tspec1);
+        Object[] buffer = new Object[] { "hello", "goodbye" };
+        emit1.emit(buffer);
+        buffer[0] = "reused";
+        buffer[1] = "buffer";
+        emit1.emit(buffer);
+        
+        QueryResults results = emit1.getResults(PTAgent.getAgentInfo(), 100);
+        assertEquals(2, results.getTupleCount());
+        assertEquals(ResultsTuple.newBuilder().addValue("hello").addValue("goodbye").build(), results.getTuple(0));
+        assertEquals(ResultsTuple.newBuilder().addValue("reused").addValue("buffer").build(), results.getTuple(1));
+    }
+    
     @Test
     public void testEmitTuplesWrongLength() {
         ByteString out1 = ByteString.copyFromUtf8("output query 1");
@@ -198,4 +219,91 @@ public class TestEmitTuples extends TestCase {
         assertEquals(0, results2.getGroupCount());             
     }
 
+    @Test
+    public void testEmitTuplesChunked() {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        TupleSpec tspec1 = TupleSpec.newBuilder().addVar("a").addVar("b").build();
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setTupleSpec(tspec1).build();
+
+        // Small chunks, so that every few tuples fill a chunk
+        EmitTuples emit1 = new EmitTuples(emitspec1, tspec1, 40, Long.MAX_VALUE, 0, null);
+        for (int i = 0; i < 100; i++) {
+            emit1.emit(new Object[] { "hello", i });
+        }
+        
+        AgentInfo myInfo = PTAgent.getAgentInfo();
+        List<QueryResults> full = emit1.getFullChunks(myInfo, 100);
+        assertTrue(full.size() > 1);
+        for (QueryResults chunk : full) {
+            assertEquals(0, chunk.getReport());
+            assertTrue(chunk.getMore());
+        }
+        
+        emit1.emit(new Object[] { "hello", "last" });
+        List<QueryResults> rest = emit1.getResultChunks(myInfo, 200);
+        assertEquals(0, rest.get(0).getReport());
+        assertFalse(rest.get(rest.size() - 1).getMore());
+        
+        // Chunks are numbered in order and contain every tuple
+        List<QueryResults> all = Lists.newArrayList(Iterables.concat(full, rest));
+        int count = 0;
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i).getChunk());
+            count += all.get(i).getTupleCount();
+        }
+        assertEquals(101, count);
+        
+        // Next report
+        QueryResults next = emit1.getResultChunks(myInfo, 300).get(0);
+        assertEquals(1, next.getReport());
+        assertEquals(0, next.getChunk());
+        assertEquals(0, next.getTupleCount());
+    }
+    
+    @Test
+    public void testEmitTuplesBufferLimit() {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        TupleSpec tspec1 = TupleSpec.newBuilder().addVar("a").build();
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setTupleSpec(tspec1).build();
+
+        // Each tuple is 9 bytes, so 10 fit in the buffer
+        EmitTuples emit1 = new EmitTuples(emitspec1, tspec1, 1000, 90, 0, null);
+        for (int i = 0; i < 25; i++) {
+            emit1.emit(new Object[] { "hello" });
+        }
+        
+        QueryResults results = emit1.getResults(PTAgent.getAgentInfo(), 100);
+        assertEquals(10, results.getTupleCount());
+        assertEquals(15, results.getDropped());
+        
+        // Limit applies per report
+        emit1.emit(new Object[] { "hello" });
+        results = emit1.getResults(PTAgent.getAgentInfo(), 100);
+        assertEquals(1, results.getTupleCount());
+        assertEquals(0, results.getDropped());
+    }
+    
+    @Test
+    public void testEmitTuplesSampled() {
+        ByteString out1 = ByteString.copyFromUtf8("output query 1");
+        TupleSpec tspec1 = TupleSpec.newBuilder().addVar("a").build();
+        EmitSpec emitspec1 = EmitSpec.newBuilder().setOutputId(out1).setTupleSpec(tspec1).build();
+
+        EmitTuples emit1 = new EmitTuples(emitspec1, tspec1, 1000, Long.MAX_VALUE, 20, null);
+        for (int i = 0; i < 1000; i++) {
+            emit1.emit(new Object[] { i });
+        }
+        
+        QueryResults results = emit1.getResults(PTAgent.getAgentInfo(), 100);
+        assertEquals(20, results.getTupleCount());
+        assertEquals(980, results.getDropped());
+        
+        // Sample should be distinct tuples from across the input
+        Set<String> sampled = Sets.newHashSet();
+        for (ResultsTuple tuple : results.getTupleList()) {
+            sampled.add(tuple.getValue(0));
+        }
+        assertEquals(20, sampled.size());
+    }
+
 }
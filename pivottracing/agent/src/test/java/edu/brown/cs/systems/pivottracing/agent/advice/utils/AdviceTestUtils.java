@@ -12,6 +12,7 @@ import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Filter;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.PackSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.SamplingSpec;
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.UnpackSpec;
 import edu.brown.cs.systems.pivottracing.agent.Advice;
 import edu.brown.cs.systems.pivottracing.agent.WeaveProtos.MethodTracepointSpec;
@@ -105,6 +106,10 @@ public class AdviceTestUtils {
             }
             return this;
         }
+        public AdviceSpecBuilder sampling(SamplingSpec.Builder sampling) {
+            b.setSampling(sampling);
+            return this;
+        }
         public AdviceSpec spec() {
             return b.build();
         }
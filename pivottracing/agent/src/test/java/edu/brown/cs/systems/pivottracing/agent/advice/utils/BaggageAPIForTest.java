@@ -19,6 +19,7 @@ public class BaggageAPIForTest implements BaggageAPI {
     
     public final List<Object[]> packed = Lists.newArrayList();
     public final List<Object[]> expected = Lists.newArrayList();
+    public long requestKey = 0;
     
     public BaggageAPIForTest put(String bag, Object[][] tuples) {
         bags.put(ByteString.copyFromUtf8(bag), tuples);
@@ -42,7 +43,11 @@ public class BaggageAPIForTest implements BaggageAPI {
             }
         };
     }
-    
+
+    @Override
+    public long requestKey() {
+        return requestKey;
+    }
     
     public void expect(List<? extends Object> tuple) {
         expected.add(tuple.toArray());
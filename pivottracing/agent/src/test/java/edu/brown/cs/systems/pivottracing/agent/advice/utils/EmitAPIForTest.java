@@ -6,6 +6,7 @@ import com.google.common.collect.Lists;
 
 import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
 import edu.brown.cs.systems.pivottracing.agent.advice.InvalidAdviceException;
+import edu.brown.cs.systems.pivottracing.agent.advice.Sampler;
 import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPI;
 import junit.framework.TestCase;
 
@@ -17,11 +18,14 @@ public class EmitAPIForTest implements EmitAPI {
     public final List<Emit> destroyed = Lists.newArrayList();
 
     @Override
-    public Emit create(EmitSpec spec) throws InvalidAdviceException {
+    public Emit create(EmitSpec spec, Sampler sampler) throws InvalidAdviceException {
         Emit emit = new Emit() {
             public void emit(List<Object[]> tuples) {
                 emitted.addAll(tuples);
             }
+            public void emit(Object[] tuple) {
+                emitted.add(tuple.clone());
+            }
         };
         created.add(emit);
         return emit;
@@ -182,6 +182,7 @@ public class PivotTracingClient {
     private class ResultsSubscriber extends Subscriber<ResultsProtos.QueryResults> {
         
         private Multimap<ByteString, QueryResultsCallback> subscribers = HashMultimap.create();
+        private final ResultsAssembler assembler = new ResultsAssembler();
         
         public ResultsSubscriber() {
             PubSub.subscribe(PivotTracingConfig.RESULTS_TOPIC, this);
@@ -193,14 +194,21 @@ public class PivotTracingClient {
         
         public void unsubscribeAll(ByteString queryId) {
             subscribers.removeAll(queryId);
+            assembler.discard(queryId);
         }
         
         public void unsubscribeAll() {
             subscribers.clear();
+            assembler.discardAll();
         }
 
         @Override
-        protected void OnMessage(ResultsProtos.QueryResults resultsMessage) {
+        protected void OnMessage(ResultsProtos.QueryResults chunk) {
+            // Results may arrive in chunks; wait for the whole report
+            ResultsProtos.QueryResults resultsMessage = assembler.add(chunk);
+            if (resultsMessage == null) {
+                return;
+            }
             log.debug("Query results\n{}", resultsMessage);
             for (QueryResultsCallback callback : subscribers.get(resultsMessage.getEmit().getOutputId())) {
                 try {
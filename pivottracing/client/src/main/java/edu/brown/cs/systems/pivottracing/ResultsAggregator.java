@@ -0,0 +1,211 @@
+package edu.brown.cs.systems.pivottracing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.ResultsGroup;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
+import edu.brown.cs.systems.pubsub.PubSub;
+import edu.brown.cs.systems.pubsub.PubSubClient.Subscriber;
+import edu.brown.cs.systems.tracing.Utils;
+
+/** Combines the grouped results reported by many agents, so that clients receive one message per query output per
+ * window rather than one per agent.  Runs as a standalone process that subscribes to the results published by agents,
+ * or by other aggregators so that aggregators can be chained.
+ *
+ * Results are combined over windows of time, determined by the timestamp of each report.  Groups are merged with the
+ * same aggregations as agents use.  The combined results of a window are published once the window has ended and the
+ * configured lateness has also passed.  Results that arrive after their window was published are combined into the
+ * earliest window that has not yet been published.  Tuple results cannot be combined, so are republished as is */
+public class ResultsAggregator extends Subscriber<QueryResults> implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultsAggregator.class);
+
+    private static final long FLUSH_INTERVAL_MS = 100; // How often to check for windows that can be published
+
+    public final String outputTopic;
+    public final long windowMs;
+    public final long latenessMs;
+    private final AgentInfo agentInfo = AgentInfo.newBuilder().setProcName(Utils.getProcessName())
+            .setProcId(Utils.getProcessID()).setHost(Utils.getHost()).build();
+
+    private final Map<ByteString, Output> outputs = Maps.newHashMap(); // Unpublished windows of each query output
+
+    public ResultsAggregator(String outputTopic, long windowMs, long latenessMs) {
+        this.outputTopic = outputTopic;
+        this.windowMs = windowMs;
+        this.latenessMs = latenessMs;
+    }
+
+    @Override
+    protected void OnMessage(QueryResults results) {
+        if (!add(results)) {
+            PubSub.publish(outputTopic, results);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (QueryResults results : flush(System.currentTimeMillis())) {
+                PubSub.publish(outputTopic, results);
+            }
+        } catch (Throwable t) {
+            log.warn("Unable to publish combined query results", t);
+        }
+    }
+
+    /** Add results to the window for their timestamp.  Returns false if the results cannot be combined, in which case
+     * they should be republished as is */
+    public synchronized boolean add(QueryResults results) {
+        if (!results.getEmit().hasGroupBySpec()) {
+            return false;
+        }
+        ByteString outputId = results.getEmit().getOutputId();
+        Output output = outputs.get(outputId);
+        if (output == null) {
+            outputs.put(outputId, output = new Output(results.getEmit()));
+        }
+        output.add(results);
+        return true;
+    }
+
+    /** Remove the combined results of windows that ended at least the lateness before now */
+    public synchronized List<QueryResults> flush(long now) {
+        List<QueryResults> flushed = Lists.newArrayList();
+        for (Iterator<Output> it = outputs.values().iterator(); it.hasNext();) {
+            Output output = it.next();
+            output.flush(now, flushed);
+
+            // Forget outputs once they are idle; their queries might have been uninstalled
+            if (output.windows.isEmpty() && output.published + windowMs + latenessMs <= now) {
+                it.remove();
+            }
+        }
+        return flushed;
+    }
+
+    /** Unpublished windows of a query output */
+    private class Output {
+        private final EmitSpec emit;
+        private final Agg[] aggs;
+        private final TreeMap<Long, Window> windows = Maps.newTreeMap(); // Keyed by window start
+        private long published = Long.MIN_VALUE; // End of the most recently published window
+
+        private Output(EmitSpec emit) {
+            GroupBySpec spec = emit.getGroupBySpec();
+            this.emit = emit;
+            this.aggs = new Agg[spec.getAggregateCount()];
+            for (int i = 0; i < aggs.length; i++) {
+                aggs[i] = spec.getAggregate(i).getHow();
+            }
+        }
+
+        private void add(QueryResults results) {
+            long timestamp = results.getTimestamp();
+            long start = Math.max(timestamp - timestamp % windowMs, published);
+            Window window = windows.get(start);
+            if (window == null) {
+                windows.put(start, window = new Window());
+            }
+            window.add(results);
+        }
+
+        private void flush(long now, List<QueryResults> flushed) {
+            while (!windows.isEmpty() && windows.firstKey() + windowMs + latenessMs <= now) {
+                Entry<Long, Window> first = windows.pollFirstEntry();
+                flushed.add(first.getValue().build());
+                published = first.getKey() + windowMs;
+            }
+        }
+
+        /** Groups combined from the reports in a window */
+        private class Window {
+            private final Map<List<String>, long[]> groups = Maps.newHashMap();
+            private long timestamp = 0;
+            private long dropped = 0;
+            private int agents = 0;
+
+            private void add(QueryResults results) {
+                timestamp = Math.max(timestamp, results.getTimestamp());
+                dropped += results.getDropped();
+                agents += results.hasAgents() ? results.getAgents() : 1;
+                for (ResultsGroup group : results.getGroupList()) {
+                    if (group.getAggregationCount() != aggs.length) {
+                        continue; // Ignore groups that don't match the query
+                    }
+                    long[] values = Longs.toArray(group.getAggregationList());
+                    long[] existing = groups.get(group.getGroupByList());
+                    if (existing == null) {
+                        groups.put(group.getGroupByList(), values);
+                    } else {
+                        merge(existing, values);
+                    }
+                }
+            }
+
+            private void merge(long[] existing, long[] values) {
+                for (int i = 0; i < aggs.length; i++) {
+                    switch (aggs[i]) {
+                    case COUNT: existing[i] += values[i]; break;
+                    case SUM: existing[i] += values[i]; break;
+                    case MAX: existing[i] = Math.max(existing[i], values[i]); break;
+                    case MIN: existing[i] = Math.min(existing[i], values[i]); break;
+                    }
+                }
+            }
+
+            private QueryResults build() {
+                QueryResults.Builder b = QueryResults.newBuilder();
+                b.setEmit(emit).setAgent(agentInfo).setTimestamp(timestamp).setAgents(agents);
+                if (dropped > 0) {
+                    b.setDropped(dropped);
+                }
+                for (Entry<List<String>, long[]> group : groups.entrySet()) {
+                    b.addGroupBuilder().addAllGroupBy(group.getKey()).addAllAggregation(Longs.asList(group.getValue()));
+                }
+                return b.build();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Config config = ConfigFactory.load();
+        String inputTopic = config.getString("pivot-tracing.aggregator.input_topic");
+        String outputTopic = config.getString("pivot-tracing.aggregator.output_topic");
+        long windowMs = config.getLong("pivot-tracing.aggregator.window_ms");
+        long latenessMs = config.getLong("pivot-tracing.aggregator.lateness_ms");
+        if (inputTopic.equals(outputTopic)) {
+            System.err.println("The aggregator input and output topics must be different");
+            return;
+        }
+
+        ResultsAggregator aggregator = new ResultsAggregator(outputTopic, windowMs, latenessMs);
+        ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
+        exec.scheduleAtFixedRate(aggregator, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        PubSub.subscribe(inputTopic, aggregator);
+        System.out.printf("Combining results from %s every %d ms, publishing to %s\n", inputTopic, windowMs, outputTopic);
+        PubSub.join();
+    }
+
+}
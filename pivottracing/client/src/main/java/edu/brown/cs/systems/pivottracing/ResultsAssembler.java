@@ -0,0 +1,110 @@
+package edu.brown.cs.systems.pivottracing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
+
+/** Agents publish EMIT tuple results in chunks; this reassembles the chunks of each report into a single
+ * QueryResults message.  Chunks can be lost, eg. if the pubsub client drops messages under backpressure, so reports
+ * with missing chunks are discarded rather than returned incomplete */
+public class ResultsAssembler {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultsAssembler.class);
+
+    private final Map<List<Object>, Report> partial = Maps.newHashMap(); // Incomplete reports
+
+    /** The chunks of a report received so far */
+    private static final class Report {
+        private final long report;
+        private QueryResults.Builder results = null; // Null if no chunks have been added, or if a chunk was missed
+        private int nextChunk = 0; // Index of the next expected chunk
+        private boolean missedChunk = false;
+
+        private Report(long report) {
+            this.report = report;
+        }
+    }
+
+    /** Add a results message.  Returns the complete report if this message completed one, or null if the report
+     * has further chunks to come or was missing chunks */
+    public synchronized QueryResults add(QueryResults results) {
+        if (!results.hasReport()) {
+            return results;
+        }
+
+        // One report at a time is assembled for each agent and query output
+        List<Object> key = Lists.<Object> newArrayList(results.getAgent(), results.getEmit().getOutputId());
+        Report report = partial.get(key);
+        if (report != null && report.report != results.getReport()) {
+            if (!report.missedChunk) {
+                log.warn("Discarding incomplete report {} from {} for {}", report.report,
+                        describe(results.getAgent()), results.getEmit().getOutputId().toStringUtf8());
+            }
+            partial.remove(key);
+            report = null;
+        }
+
+        if (report == null) {
+            if (results.getChunk() == 0 && !results.getMore()) {
+                return results; // Report in a single chunk
+            }
+            report = new Report(results.getReport());
+            partial.put(key, report);
+        }
+
+        // Discard the report if a chunk is missing
+        if (!report.missedChunk && results.getChunk() != report.nextChunk) {
+            log.warn("Discarding report {} from {} for {}: expected chunk {} but received chunk {}", report.report,
+                    describe(results.getAgent()), results.getEmit().getOutputId().toStringUtf8(), report.nextChunk,
+                    results.getChunk());
+            report.missedChunk = true;
+            report.results = null;
+        }
+
+        if (!report.missedChunk) {
+            if (report.results == null) {
+                report.results = results.toBuilder();
+            } else {
+                report.results.addAllTuple(results.getTupleList());
+                report.results.setDropped(report.results.getDropped() + results.getDropped());
+                report.results.setTimestamp(results.getTimestamp());
+                report.results.setChunk(results.getChunk());
+            }
+            report.nextChunk++;
+        }
+        if (results.getMore()) {
+            return null;
+        }
+        partial.remove(key);
+        return report.missedChunk ? null : report.results.setMore(false).build();
+    }
+
+    /** Discard any incomplete reports for a query output */
+    public synchronized void discard(ByteString outputId) {
+        for (Iterator<List<Object>> it = partial.keySet().iterator(); it.hasNext();) {
+            if (outputId.equals(it.next().get(1))) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Discard all incomplete reports */
+    public synchronized void discardAll() {
+        partial.clear();
+    }
+
+    private static String describe(AgentInfo agent) {
+        return String.format("%s:%s(%d)", agent.getHost(), agent.getProcName(), agent.getProcId());
+    }
+
+}
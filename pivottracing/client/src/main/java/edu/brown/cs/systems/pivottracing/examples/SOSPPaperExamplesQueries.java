@@ -15,6 +15,7 @@ import edu.brown.cs.systems.pivottracing.query.PTQuery;
 import edu.brown.cs.systems.pivottracing.query.Parser.PTQueryParserException;
 import edu.brown.cs.systems.pubsub.PubSub;
 import edu.brown.cs.systems.pivottracing.query.QueryAdvice;
+import edu.brown.cs.systems.pivottracing.query.QueryCost;
 
 public class SOSPPaperExamplesQueries {
     
@@ -110,6 +111,7 @@ public class SOSPPaperExamplesQueries {
             System.out.println("\n------- " + queryName + " optimized: ----------\n");
             q = q.Optimize();
             System.out.println(q);
+            System.out.println(String.format("\nEstimated baggage bytes per request: %d", QueryCost.baggageBytes(q)));
             System.out.println("\n------- " + queryName + " advice: -------------\n");
             System.out.println(QueryAdvice.generate(q));
 //            List<AdviceAtTracepoint> advice = PTQueryAdvice.adviceFor(q);
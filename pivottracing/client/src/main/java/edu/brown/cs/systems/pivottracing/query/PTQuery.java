@@ -2,11 +2,13 @@ package edu.brown.cs.systems.pivottracing.query;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -99,21 +101,74 @@ public abstract class PTQuery {
         return AddHappenedBefore(From(x, tracepoint), q, this);
     }
     
-    /** Return an optimized version of this query.
-     * The current implementation, unfortunately, modifies existing queries that this one references.
-     * TODO: don't modify existing queries */
+    /** Return an optimized version of this query.  The query and the queries it references are copied, including their
+     * variables, so optimization does not modify existing queries */
     public PTQuery Optimize() {
-        return copy().doOptimize();
+        PTQuery optimized = deepCopy(Maps.<Var, Var> newHashMap()).doOptimize();
+        optimized.pushDownProjections(false);
+        return optimized;
+    }
+    
+    /** Copy this query and all queries it references.  Variables are replaced by copies, recorded in the provided map */
+    PTQuery deepCopy(Map<Var, Var> copies) {
+        PTQuery copy = copy();
+        copy.replaceVars(copies);
+        return copy;
+    }
+    
+    /** Replace the happened-before queries of this query with deep copies, and its variables with their copies */
+    protected void replaceVars(Map<Var, Var> copies) {
+        for (Map.Entry<String, PTQuery> hb : happenedBefore.entrySet()) {
+            hb.setValue(hb.getValue().deepCopy(copies));
+        }
+        for (Map.Entry<String, LetVar> let : constructed.entrySet()) {
+            let.setValue((LetVar) copyOf(let.getValue(), copies));
+        }
+        Set<WhereCondition> copiedConditions = Sets.newHashSet();
+        for (WhereCondition where : conditions) {
+            copiedConditions.add(new WhereCondition(where.replacementExpression, copyOf(where.replacementVariables, copies).toArray(new Var[0])));
+        }
+        conditions.clear();
+        conditions.addAll(copiedConditions);
+        Set<Var> copiedOutputs = Sets.newHashSet(copyOf(outputs, copies));
+        outputs.clear();
+        outputs.addAll(copiedOutputs);
+    }
+    
+    /** Get the copy of a variable, creating it if necessary.  Observed vars are immutable so are not copied */
+    protected static Var copyOf(Var v, Map<Var, Var> copies) {
+        if (v == null || v instanceof ObservedVar) {
+            return v;
+        }
+        Var copy = copies.get(v);
+        if (copy == null) {
+            if (v instanceof LetVar) {
+                LetVar let = (LetVar) v;
+                copy = new LetVar(let.varName, let.replacementExpression, copyOf(let.replacementVariables, copies));
+            } else if (v instanceof AggVar) {
+                AggVar agg = (AggVar) v;
+                copy = new AggVar(copyOf(agg.aggregatedVar, copies), agg.aggregationType);
+            } else {
+                copy = v;
+            }
+            copies.put(v, copy);
+        }
+        return copy;
+    }
+    
+    protected static <T extends Var> List<T> copyOf(Collection<T> vars, Map<Var, Var> copies) {
+        List<T> copied = Lists.newArrayListWithExpectedSize(vars.size());
+        for (T v : vars) {
+            copied.add((T) copyOf(v, copies));
+        }
+        return copied;
     }
     
     protected PTQuery doOptimize() {
-        // First, copy and optimize all hb queries
-        Map<String, PTQuery> optimizedHappenedBefore = Maps.newHashMap();
-        for (String hbVar : happenedBefore.keySet()) {
-            optimizedHappenedBefore.put(hbVar, happenedBefore.get(hbVar).Optimize());
+        // First, optimize all hb queries; these are already copies
+        for (PTQuery hb : happenedBefore.values()) {
+            hb.doOptimize();
         }
-        happenedBefore.clear();
-        happenedBefore.putAll(optimizedHappenedBefore);
         
         // Determine the let conditions that can be pushed upwards
         boolean optimized = true;
@@ -127,10 +182,7 @@ public abstract class PTQuery {
                     if (hb.optimizable(letVar)) {
                         hb.constructed.put(letVarName, letVar); // TODO: this will have a bug where duplicate names can occur
                         constructed.remove(letVarName);
-                        // TODO: might now have unnecessary outputs from hb
-                        if (outputs.contains(letVar)) {     
-                            hb.outputs.add(letVar);
-                        }
+                        hb.outputs.add(letVar); // Removed by projection pushdown if unused
                         optimized = true;
                         break optimizationloop;
                     }
@@ -149,7 +201,6 @@ public abstract class PTQuery {
                     if (hb.optimizable(where)) {
                         hb.conditions.add(where);
                         conditions.remove(where);
-                        // TODO: might now have unnecessary outputs from hb 
                         optimized = true;
                         break optimizationloop;
                     }
@@ -160,6 +211,34 @@ public abstract class PTQuery {
         return this;
     }
     
+    /** Projection pushdown: remove outputs of hb queries, and constructed variables, that this query does not use, so
+     * that hb queries only pack the variables needed downstream */
+    protected void pushDownProjections(boolean pack) {
+        Set<Var> used = Sets.newHashSet(inputs(pack));
+        for (WhereCondition where : conditions) {
+            used.addAll(where.replacementVariables);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (LetVar let : constructed.values()) {
+                if (used.contains(let) && used.addAll(let.replacementVariables)) {
+                    changed = true;
+                }
+            }
+        }
+        constructed.values().retainAll(used);
+        for (PTQuery hb : happenedBefore.values()) {
+            hb.outputs.retainAll(used);
+            hb.pushDownProjections(true);
+        }
+    }
+    
+    /** Variables needed to produce the outputs of this query */
+    Collection<Var> inputs(boolean pack) {
+        return outputs(pack);
+    }
+    
     protected abstract boolean optimizable(WhereCondition condition);
     
     protected abstract boolean optimizable(LetVar let);
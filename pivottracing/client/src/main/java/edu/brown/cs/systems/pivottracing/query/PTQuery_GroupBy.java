@@ -74,6 +74,17 @@ public class PTQuery_GroupBy extends PTQuery {
     public PTQuery copy() {
         return new PTQuery_GroupBy(this);
     }
+    
+    @Override
+    protected void replaceVars(Map<Var, Var> copies) {
+        super.replaceVars(copies);
+        List<Var> copiedGroupBy = copyOf(groupby, copies);
+        List<AggVar> copiedAggregate = copyOf(aggregate, copies);
+        groupby.clear();
+        groupby.addAll(copiedGroupBy);
+        aggregate.clear();
+        aggregate.addAll(copiedAggregate);
+    }
 
     @Override
     protected Var requireOutput(String varName) throws PTQueryException {
@@ -119,6 +130,17 @@ public class PTQuery_GroupBy extends PTQuery {
         }
     }
 
+    /** Variables needed to produce the outputs of this query */
+    Collection<Var> inputs(boolean pack) {
+        Set<Var> inputs = Sets.newHashSet(outputs(pack));
+        for (AggVar av : aggregates(pack)) {
+            if (av.aggregatedVar != null) {
+                inputs.add(av.aggregatedVar);
+            }
+        }
+        return inputs;
+    }
+
     @Override
     protected boolean optimizable(WhereCondition condition) {
         return groupby.containsAll(condition.replacementVariables);
@@ -135,6 +157,11 @@ public class PTQuery_GroupBy extends PTQuery {
         
         // Optimize queries one at a time
         Map<String, PTQuery_GroupBy> optimized = Maps.newHashMap();
+        Map<String, AggVar> optimizedCounts = Maps.newHashMap();
+        boolean count = false;
+        for (AggVar av : aggregate) {
+            count |= av.aggregatedVar == null && av.aggregationType == Agg.COUNT;
+        }
         
         hbloop:
         for (String hbVar : happenedBefore.keySet()) {
@@ -168,16 +195,31 @@ public class PTQuery_GroupBy extends PTQuery {
             
             // Construct the new query
             PTQuery_GroupBy newHb = new PTQuery_GroupBy(hb, groupbys);
+            Map<AggVar, AggVar> pushed = Maps.newHashMap();
             for (AggVar av : aggregates) {
-                // Twiddle the agg var so that ours is now a combiner
-                AggVar pushed = new AggVar(av.aggregatedVar, av.aggregationType);
-                av.aggregatedVar = pushed;
+                AggVar hbav = new AggVar(av.aggregatedVar, av.aggregationType);
+                newHb.aggregate.add(hbav);
+                newHb.outputs.add(hbav);
+                newHb.outputs.remove(av.aggregatedVar);
+                pushed.put(av, hbav);
+            }
+            if (count) {
+                AggVar hbav = new AggVar(null, Agg.COUNT);
+                newHb.aggregate.add(hbav);
+                newHb.outputs.add(hbav);
+                optimizedCounts.put(hbVar, hbav);
+            }
+            
+            // Only pack the partial aggregation if it is expected to be smaller than the tuples
+            if (QueryCost.bagBytes(newHb) > QueryCost.bagBytes(hb)) {
+                optimizedCounts.remove(hbVar);
+                continue hbloop;
+            }
+            
+            // Twiddle the agg vars so that ours are now combiners
+            for (AggVar av : pushed.keySet()) {
+                av.aggregatedVar = pushed.get(av);
                 av.aggregationType = QueryUtils.combinerFor(av.aggregationType);
-                
-                // Push the agg up
-                newHb.aggregate.add(pushed);
-                newHb.outputs.add(pushed);
-                newHb.outputs.remove(pushed.aggregatedVar);
             }
             
             optimized.put(hbVar, newHb);
@@ -186,13 +228,7 @@ public class PTQuery_GroupBy extends PTQuery {
         // Second pass: optimize counts
         for (AggVar av : aggregate) {
             if (av.aggregatedVar == null && av.aggregationType == Agg.COUNT) {
-                List<Var> counts = Lists.newArrayList();
-                for (PTQuery_GroupBy newHb : optimized.values()) {
-                    AggVar hbav = new AggVar(null, Agg.COUNT);
-                    newHb.aggregate.add(hbav);
-                    newHb.outputs.add(hbav);
-                    counts.add(hbav);
-                }
+                List<Var> counts = Lists.<Var> newArrayList(optimizedCounts.values());
                 
                 // Create the count sum variable
                 String countSumName = "counts";
@@ -2,6 +2,7 @@ package edu.brown.cs.systems.pivottracing.query;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.Lists;
 
@@ -29,6 +30,14 @@ public class PTQuery_Select extends PTQuery {
     public PTQuery copy() {
         return new PTQuery_Select(this);
     }
+    
+    @Override
+    protected void replaceVars(Map<Var, Var> copies) {
+        super.replaceVars(copies);
+        List<Var> copiedSelected = copyOf(selected, copies);
+        selected.clear();
+        selected.addAll(copiedSelected);
+    }
 
     @Override
     protected Var requireOutput(String varName) throws PTQueryException {
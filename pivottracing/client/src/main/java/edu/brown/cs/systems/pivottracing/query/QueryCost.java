@@ -0,0 +1,59 @@
+package edu.brown.cs.systems.pivottracing.query;
+
+/** Estimates the number of bytes that a query adds to the baggage of each request.
+ * Nothing is known about the workload when a query is optimized, so the estimate uses fixed assumptions: each
+ * tracepoint is invoked a fixed number of times per request; each WHERE condition passes a fixed fraction of tuples;
+ * each group-by variable takes a small number of distinct values per request; and each value in a bag is a fixed size.
+ * Estimates are only meaningful relative to one another, for choosing between alternative ways of packing a bag */
+public class QueryCost {
+
+    public static final double EVENTS_PER_REQUEST = 10; // Assumed invocations of each tracepoint per request
+    public static final double WHERE_SELECTIVITY = 0.5; // Assumed fraction of tuples that satisfy a WHERE condition
+    public static final double GROUP_VALUES = 2; // Assumed distinct values of each group-by variable per request
+    public static final int VALUE_BYTES = 8; // Assumed size of a value in a bag
+    public static final int AGGREGATION_BYTES = 4; // Assumed size of an aggregation in a bag
+    public static final int BAG_BYTES = 16; // Size of the bag ID, version and headers
+
+    private QueryCost() {
+    }
+
+    /** Estimated number of tuples in the bag packed by the query for each request */
+    public static double tuples(PTQuery query) {
+        double tuples = EVENTS_PER_REQUEST;
+        for (PTQuery hb : query.happenedBefore.values()) {
+            tuples *= tuples(hb);
+        }
+        tuples *= Math.pow(WHERE_SELECTIVITY, query.conditions.size());
+        if (query instanceof PTQuery_Filter) {
+            // FIRST and MOSTRECENT both keep a single tuple
+            return Math.min(tuples, 1);
+        } else if (query instanceof PTQuery_GroupBy) {
+            return Math.min(tuples, Math.pow(GROUP_VALUES, query.outputs(true).size()));
+        }
+        return tuples;
+    }
+
+    /** Estimated size of one tuple in the bag packed by the query */
+    public static int tupleBytes(PTQuery query) {
+        int bytes = VALUE_BYTES * query.outputs(true).size();
+        if (query instanceof PTQuery_GroupBy) {
+            bytes += AGGREGATION_BYTES * ((PTQuery_GroupBy) query).aggregates(true).size();
+        }
+        return bytes;
+    }
+
+    /** Estimated size of the bag packed by the query for each request */
+    public static long bagBytes(PTQuery query) {
+        return BAG_BYTES + Math.round(tuples(query) * tupleBytes(query));
+    }
+
+    /** Estimated size of all bags packed for the query and the queries it joins with, for each request */
+    public static long baggageBytes(PTQuery query) {
+        long bytes = 0;
+        for (PTQuery hb : query.happenedBefore.values()) {
+            bytes += bagBytes(hb) + baggageBytes(hb);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,111 @@
+package edu.brown.cs.systems.pivottracing;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.ResultsGroup;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.AggVar;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.GroupBySpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.TupleSpec;
+import junit.framework.TestCase;
+
+public class TestResultsAggregator extends TestCase {
+
+    private static final EmitSpec grouped = EmitSpec.newBuilder().setOutputId(ByteString.copyFromUtf8("q1"))
+            .setGroupBySpec(GroupBySpec.newBuilder().addGroupBy("host").addAggregate(agg("a", Agg.SUM))
+                    .addAggregate(agg("", Agg.COUNT)).addAggregate(agg("b", Agg.MIN)).addAggregate(agg("c", Agg.MAX)))
+            .build();
+    private static final EmitSpec tuples = EmitSpec.newBuilder().setOutputId(ByteString.copyFromUtf8("q2"))
+            .setTupleSpec(TupleSpec.newBuilder().addVar("a")).build();
+    private static final AgentInfo agent = AgentInfo.newBuilder().setProcName("p").setProcId(1).setHost("h").build();
+
+    private static AggVar agg(String name, Agg how) {
+        return AggVar.newBuilder().setName(name).setHow(how).build();
+    }
+
+    private static QueryResults report(long timestamp, String host, long... aggregations) {
+        QueryResults.Builder b = QueryResults.newBuilder().setEmit(grouped).setAgent(agent).setTimestamp(timestamp);
+        ResultsGroup.Builder group = b.addGroupBuilder().addGroupBy(host);
+        for (long aggregation : aggregations) {
+            group.addAggregation(aggregation);
+        }
+        return b.build();
+    }
+
+    @Test
+    public void testCombineWindow() {
+        ResultsAggregator aggregator = new ResultsAggregator("out", 1000, 500);
+        assertTrue(aggregator.add(report(1100, "x", 5, 1, 3, 3)));
+        assertTrue(aggregator.add(report(1900, "x", 7, 2, 1, 9)));
+        assertTrue(aggregator.add(report(1500, "y", 1, 1, 1, 1)));
+        assertTrue(aggregator.add(report(2100, "x", 1, 1, 1, 1)));
+
+        // Nothing is published until the window has ended and the lateness has passed
+        assertTrue(aggregator.flush(2499).isEmpty());
+        List<QueryResults> flushed = aggregator.flush(2500);
+        assertEquals(1, flushed.size());
+
+        QueryResults results = flushed.get(0);
+        assertEquals(3, results.getAgents());
+        assertEquals(1900, results.getTimestamp());
+        assertEquals(2, results.getGroupCount());
+        for (ResultsGroup group : results.getGroupList()) {
+            if (group.getGroupBy(0).equals("x")) {
+                assertEquals(ResultsGroup.newBuilder().addGroupBy("x").addAggregation(12).addAggregation(3)
+                        .addAggregation(1).addAggregation(9).build(), group);
+            }
+        }
+
+        // The second window follows
+        flushed = aggregator.flush(3500);
+        assertEquals(1, flushed.size());
+        assertEquals(1, flushed.get(0).getAgents());
+    }
+
+    @Test
+    public void testLateResults() {
+        ResultsAggregator aggregator = new ResultsAggregator("out", 1000, 0);
+        aggregator.add(report(1100, "x", 1, 1, 1, 1));
+        assertEquals(1, aggregator.flush(2000).size());
+
+        // Late results are combined into the next window
+        aggregator.add(report(1200, "x", 1, 1, 1, 1));
+        aggregator.add(report(2200, "x", 1, 1, 1, 1));
+        assertTrue(aggregator.flush(2999).isEmpty());
+        List<QueryResults> flushed = aggregator.flush(3000);
+        assertEquals(1, flushed.size());
+        assertEquals(2, flushed.get(0).getAgents());
+        assertEquals(2, flushed.get(0).getGroup(0).getAggregation(1));
+    }
+
+    @Test
+    public void testChained() {
+        ResultsAggregator first = new ResultsAggregator("mid", 1000, 0);
+        ResultsAggregator second = new ResultsAggregator("out", 1000, 0);
+        first.add(report(1100, "x", 1, 1, 1, 1));
+        first.add(report(1200, "x", 1, 1, 1, 1));
+        for (QueryResults results : first.flush(2000)) {
+            second.add(results);
+        }
+        second.add(report(1300, "x", 1, 1, 1, 1));
+        List<QueryResults> flushed = second.flush(2000);
+        assertEquals(3, flushed.get(0).getAgents());
+        assertEquals(3, flushed.get(0).getGroup(0).getAggregation(1));
+    }
+
+    @Test
+    public void testTuplesNotCombined() {
+        ResultsAggregator aggregator = new ResultsAggregator("out", 1000, 0);
+        QueryResults results = QueryResults.newBuilder().setEmit(tuples).setAgent(agent).setTimestamp(5).build();
+        assertFalse(aggregator.add(results));
+        assertTrue(aggregator.flush(Long.MAX_VALUE / 2).isEmpty());
+    }
+
+}
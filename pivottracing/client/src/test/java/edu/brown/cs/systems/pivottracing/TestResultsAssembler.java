@@ -0,0 +1,96 @@
+package edu.brown.cs.systems.pivottracing;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.pivottracing.PTAgentProtos.AgentInfo;
+import edu.brown.cs.systems.pivottracing.ResultsProtos.QueryResults;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.TupleSpec;
+import junit.framework.TestCase;
+
+public class TestResultsAssembler extends TestCase {
+
+    private static final EmitSpec emit = EmitSpec.newBuilder().setOutputId(ByteString.copyFromUtf8("q1"))
+            .setTupleSpec(TupleSpec.newBuilder().addVar("a")).build();
+    private static final AgentInfo agent1 = AgentInfo.newBuilder().setProcName("p").setProcId(1).setHost("h").build();
+    private static final AgentInfo agent2 = AgentInfo.newBuilder().setProcName("p").setProcId(2).setHost("h").build();
+
+    private static QueryResults chunk(AgentInfo agent, long report, int chunk, boolean more, String... values) {
+        QueryResults.Builder b = QueryResults.newBuilder().setEmit(emit).setAgent(agent).setTimestamp(chunk);
+        b.setReport(report).setChunk(chunk).setMore(more).setDropped(1);
+        for (String value : values) {
+            b.addTupleBuilder().addValue(value);
+        }
+        return b.build();
+    }
+
+    @Test
+    public void testUnchunked() {
+        ResultsAssembler assembler = new ResultsAssembler();
+        QueryResults results = QueryResults.newBuilder().setEmit(emit).setAgent(agent1).setTimestamp(5).build();
+        assertSame(results, assembler.add(results));
+
+        QueryResults single = chunk(agent1, 0, 0, false, "a");
+        assertSame(single, assembler.add(single));
+    }
+
+    @Test
+    public void testReassemble() {
+        ResultsAssembler assembler = new ResultsAssembler();
+        assertNull(assembler.add(chunk(agent1, 3, 0, true, "a", "b")));
+        assertNull(assembler.add(chunk(agent2, 7, 0, true, "x")));
+        assertNull(assembler.add(chunk(agent1, 3, 1, true, "c")));
+
+        QueryResults results = assembler.add(chunk(agent1, 3, 2, false));
+        assertNotNull(results);
+        assertEquals(agent1, results.getAgent());
+        assertEquals(3, results.getTupleCount());
+        assertEquals("c", results.getTuple(2).getValue(0));
+        assertEquals(3, results.getDropped());
+        assertEquals(2, results.getTimestamp());
+        assertFalse(results.getMore());
+
+        results = assembler.add(chunk(agent2, 7, 1, false, "y"));
+        assertEquals(2, results.getTupleCount());
+    }
+
+    @Test
+    public void testIncompleteReportDiscarded() {
+        ResultsAssembler assembler = new ResultsAssembler();
+        assertNull(assembler.add(chunk(agent1, 0, 0, true, "a")));
+        assertNull(assembler.add(chunk(agent1, 1, 0, true, "b")));
+
+        QueryResults results = assembler.add(chunk(agent1, 1, 1, false, "c"));
+        assertEquals(2, results.getTupleCount());
+        assertEquals("b", results.getTuple(0).getValue(0));
+    }
+
+    @Test
+    public void testMissingChunkDiscardsReport() {
+        ResultsAssembler assembler = new ResultsAssembler();
+        assertNull(assembler.add(chunk(agent1, 0, 0, true, "a")));
+        assertNull(assembler.add(chunk(agent1, 0, 2, true, "c"))); // Chunk 1 was lost
+        assertNull(assembler.add(chunk(agent1, 0, 3, false, "d")));
+
+        // The next report is unaffected
+        assertNull(assembler.add(chunk(agent1, 1, 0, true, "e")));
+        QueryResults results = assembler.add(chunk(agent1, 1, 1, false, "f"));
+        assertEquals(2, results.getTupleCount());
+        assertEquals("e", results.getTuple(0).getValue(0));
+    }
+
+    @Test
+    public void testMissingFirstChunkDiscardsReport() {
+        ResultsAssembler assembler = new ResultsAssembler();
+        assertNull(assembler.add(chunk(agent1, 0, 1, false, "b"))); // Chunk 0 was lost
+
+        assertNull(assembler.add(chunk(agent1, 1, 1, true, "c"))); // Chunk 0 was lost
+        assertNull(assembler.add(chunk(agent1, 1, 2, false, "d")));
+
+        QueryResults single = chunk(agent1, 2, 0, false, "e");
+        assertSame(single, assembler.add(single));
+    }
+
+}
@@ -0,0 +1,84 @@
+package edu.brown.cs.systems.pivottracing.query;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import edu.brown.cs.systems.pivottracing.PivotTracingClient;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.AdviceSpec;
+import edu.brown.cs.systems.pivottracing.examples.Examples;
+import edu.brown.cs.systems.pivottracing.query.QueryAdvice.AdviceAtTracepoint;
+import junit.framework.TestCase;
+
+public class TestQueryOptimizer extends TestCase {
+
+    private static PTQuery parse(PivotTracingClient pt, String name, String... query) throws Exception {
+        return pt.parse(name, StringUtils.join(query, "\n"));
+    }
+
+    @Test
+    public void testOptimizeDoesNotModifyQuery() throws Exception {
+        PivotTracingClient pt = Examples.client();
+        parse(pt, "q0", "from x in t0", "select x.timestamp, x.host");
+        PTQuery q1 = parse(pt, "q1", "from z in t1", "join y in q0 on y -> z", "where {}<5 y.x.timestamp",
+                "groupby z.host", "select z.host, SUM(y.x.timestamp), COUNT");
+        String before = q1.toString();
+
+        PTQuery optimized = q1.Optimize();
+        assertFalse(before.equals(optimized.toString()));
+        assertEquals(before, q1.toString());
+
+        // Optimizing again gives an equivalent result; vars are unordered, so the printed queries may differ in order
+        PTQuery reoptimized = q1.Optimize();
+        assertEquals(optimized.toString().length(), reoptimized.toString().length());
+        assertEquals(QueryCost.baggageBytes(optimized), QueryCost.baggageBytes(reoptimized));
+    }
+
+    @Test
+    public void testProjectionPushdown() throws Exception {
+        PivotTracingClient pt = Examples.client();
+        parse(pt, "q0", "from x in t0", "select x.timestamp, x.host");
+        PTQuery q1 = parse(pt, "q1", "from z in t1", "join y in q0 on y -> z", "where {}<5 y.x.timestamp",
+                "select z.host, y.x.host");
+
+        // Before optimization, q0 packs both host and timestamp
+        assertEquals(2, q1.happenedBefore.get("y").outputs.size());
+
+        // The WHERE is pushed to q0, so only host needs to be packed
+        PTQuery optimized = q1.Optimize();
+        PTQuery hb = optimized.happenedBefore.get("y");
+        assertEquals(1, hb.conditions.size());
+        assertEquals(1, hb.outputs.size());
+        assertEquals("host", hb.outputs.iterator().next().toString());
+        assertTrue(QueryCost.baggageBytes(optimized) < QueryCost.baggageBytes(q1));
+
+        for (AdviceAtTracepoint advice : QueryAdvice.generate(optimized).instanceList) {
+            AdviceSpec spec = advice.adviceSpec;
+            if (spec.hasPack()) {
+                assertEquals(1, spec.getPack().getTupleSpec().getVarCount());
+            }
+        }
+    }
+
+    @Test
+    public void testGroupByPushdown() throws Exception {
+        PivotTracingClient pt = Examples.client();
+        PTQuery q = parse(pt, "q0", "from x in t0", "join y in t1 on y -> x", "groupby y.host",
+                "select y.host, SUM(x.timestamp), COUNT");
+
+        PTQuery optimized = q.Optimize();
+        PTQuery hb = optimized.happenedBefore.get("y");
+        assertTrue(hb instanceof PTQuery_GroupBy);
+        assertTrue(QueryCost.bagBytes(hb) < QueryCost.bagBytes(q.happenedBefore.get("y")));
+    }
+
+    @Test
+    public void testFilterCost() throws Exception {
+        PivotTracingClient pt = Examples.client();
+        PTQuery q = parse(pt, "q0", "from x in t0", "join y in first(t1) on y -> x", "select x.host, y.host");
+
+        PTQuery hb = q.Optimize().happenedBefore.get("y");
+        assertEquals(1.0, QueryCost.tuples(hb));
+        assertEquals(QueryCost.BAG_BYTES + QueryCost.VALUE_BYTES, QueryCost.bagBytes(hb));
+    }
+
+}
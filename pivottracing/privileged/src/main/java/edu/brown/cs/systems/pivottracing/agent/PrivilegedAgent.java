@@ -4,5 +4,14 @@ package edu.brown.cs.systems.pivottracing.agent;
 public interface PrivilegedAgent {
     
     public void Advise(int adviceId, Object[] observed);
+    
+    /** Fixed-arity versions of Advise, so that call sites observing few variables do not allocate an array */
+    public void Advise1(int adviceId, Object a);
+    
+    public void Advise2(int adviceId, Object a, Object b);
+    
+    public void Advise3(int adviceId, Object a, Object b, Object c);
+    
+    public void Advise4(int adviceId, Object a, Object b, Object c, Object d);
 
 }
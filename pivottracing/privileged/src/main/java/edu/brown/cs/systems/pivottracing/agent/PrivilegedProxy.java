@@ -5,12 +5,35 @@ package edu.brown.cs.systems.pivottracing.agent;
 public class PrivilegedProxy {
     
     private static PrivilegedAgent agent = null;
+    private static final Object[] NO_VALUES = new Object[0];
+    private static volatile boolean[] active = new boolean[0]; // Indexed by advice ID; copy on write
     
     /** Register the pivot tracing agent */
     public static void Register(PrivilegedAgent agent) {
         PrivilegedProxy.agent = agent;
     }
     
+    /** Mark advice as active or inactive.  Woven call sites check whether their advice is active before evaluating
+     * observed variables, so that advice that has been uninstalled costs very little until it is unwoven */
+    public static synchronized void SetActive(int adviceId, boolean isActive) {
+        if (adviceId < 0) {
+            return;
+        }
+        boolean[] current = active;
+        boolean[] next = new boolean[Math.max(current.length, isActive ? adviceId + 1 : 0)];
+        System.arraycopy(current, 0, next, 0, Math.min(current.length, next.length));
+        if (adviceId < next.length) {
+            next[adviceId] = isActive;
+        }
+        active = next;
+    }
+    
+    /** Is the advice active?  Called by woven call sites before invoking advice */
+    public static boolean IsActive(int adviceId) {
+        boolean[] current = active;
+        return adviceId >= 0 && adviceId < current.length && current[adviceId];
+    }
+    
     /** Proxied call to Advise in the Pivot Tracing agent */
     public static void Advise(int adviceId, Object[] observed) {
         if (agent != null) {
@@ -18,40 +41,70 @@ public class PrivilegedProxy {
         }
     }
     
+    public static void Advise0(int adviceId) {
+        if (agent != null) {
+            agent.Advise(adviceId, NO_VALUES);
+        }
+    }
+    
+    public static void Advise1(int adviceId, Object a) {
+        if (agent != null) {
+            agent.Advise1(adviceId, a);
+        }
+    }
+    
+    public static void Advise2(int adviceId, Object a, Object b) {
+        if (agent != null) {
+            agent.Advise2(adviceId, a, b);
+        }
+    }
+    
+    public static void Advise3(int adviceId, Object a, Object b, Object c) {
+        if (agent != null) {
+            agent.Advise3(adviceId, a, b, c);
+        }
+    }
+    
+    public static void Advise4(int adviceId, Object a, Object b, Object c, Object d) {
+        if (agent != null) {
+            agent.Advise4(adviceId, a, b, c, d);
+        }
+    }
+    
     public static Object box(Object o) {
         return o;
     }
     
     public static Object box(boolean b) {
-        return new Boolean(b);
+        return Boolean.valueOf(b);
     }
     
     public static Object box(byte b) {
-        return new Byte(b);
+        return Byte.valueOf(b);
     }
     
     public static Object box(char c) {
-        return new Character(c);
+        return Character.valueOf(c);
     }
     
     public static Object box(short s) {
-        return new Short(s);
+        return Short.valueOf(s);
     }
     
     public static Object box(int i) {
-        return new Integer(i);
+        return Integer.valueOf(i);
     }
     
     public static Object box(long l) {
-        return new Long(l);
+        return Long.valueOf(l);
     }
     
     public static Object box(float f) {
-        return new Float(f);
+        return Float.valueOf(f);
     }
     
     public static Object box(double d) {
-        return new Double(d);
+        return Double.valueOf(d);
     }
 
 }
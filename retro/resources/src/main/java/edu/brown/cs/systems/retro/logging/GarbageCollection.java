@@ -73,17 +73,17 @@ public class GarbageCollection implements NotificationListener {
 
         XTraceReport report = XTraceReport.create();
         report.addStandardFields();
-        report.builder.setTaskId(taskid);
+        report.builder().setTaskId(taskid);
         report.applyDecorators();
         report.setMessage("Garbage Collection Event");
-        report.builder.addKey("Operation").addValue("GC");
-        report.builder.addKey("GcStart").addValue(startTime);
-        report.builder.addKey("GcDuration").addValue(duration);
-        report.builder.addKey("GcAction").addValue(action);
-        report.builder.addKey("GcCause").addValue(cause);
-        report.builder.addKey("GcName").addValue(name);
-        report.builder.addTags("GarbageCollection");
-        report.builder.addTags(Utils.getProcessName());
+        report.builder().addKey("Operation").addValue("GC");
+        report.builder().addKey("GcStart").addValue(startTime);
+        report.builder().addKey("GcDuration").addValue(duration);
+        report.builder().addKey("GcAction").addValue(action);
+        report.builder().addKey("GcCause").addValue(cause);
+        report.builder().addKey("GcName").addValue(name);
+        report.builder().addTags("GarbageCollection");
+        report.builder().addTags(Utils.getProcessName());
         XTrace.getDefaultReporter().send(report);
     }
 
@@ -0,0 +1,29 @@
+package edu.brown.cs.systems.retro.throttling;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestThrottlingBackpressure extends TestCase {
+
+    @Test
+    public void testUpdatesWaitIndefinitely() {
+        Config config = ConfigFactory.load();
+        Config topics = config.getConfig("pubsub.client.backpressure.topics");
+
+        // Publishing throttling and scheduler updates waits for space in the queue rather than dropping them
+        Config throttling = topics.getConfig("retro-throttling");
+        assertEquals(config.getString("retro.throttling.topic"), throttling.getString("topic"));
+        assertEquals("block", throttling.getString("policy"));
+        assertEquals(0, throttling.getLong("timeoutMs"));
+
+        Config scheduler = topics.getConfig("retro-scheduler");
+        assertEquals(config.getString("retro.throttling.schedulertopic"), scheduler.getString("topic"));
+        assertEquals("block", scheduler.getString("policy"));
+        assertEquals(0, scheduler.getLong("timeoutMs"));
+    }
+
+}
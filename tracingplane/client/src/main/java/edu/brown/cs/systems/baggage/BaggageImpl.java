@@ -1,46 +1,78 @@
 package edu.brown.cs.systems.baggage;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.ArrayUtils;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.SetMultimap;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.typesafe.config.ConfigFactory;
 
 import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
 import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.BagData;
 import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.NamespaceData;
 
-/** Simple implementation of Baggage using protocol buffers, hash multimap, and byte strings */
+/** Simple implementation of Baggage using protocol buffers and byte strings. The contents are held by a
+ * {@link BaggageStorage}, whose type is selected by the <code>baggage.storage</code> config value */
 public class BaggageImpl {
 
+    /** If true, deserialization only decodes namespaces when they are first accessed */
+    static final boolean LAZY = ConfigFactory.load().getBoolean("baggage.lazy");
+
     /** Contents of the baggage */
-    final Map<ByteString, SetMultimap<ByteString, ByteString>> contents;
+    final BaggageStorage contents;
+
+    /** Namespaces of lazily deserialized baggage that have not been accessed yet, mapped to their serialized
+     * NamespaceData. These are decoded into contents on first access, or written back unmodified when serialized. Null
+     * if there are none. */
+    Map<ByteString, ByteString> undecoded;
+
+    /** The serialized form of this baggage, cached until the contents are next modified. Null if the baggage has been
+     * modified since it was last serialized or deserialized */
+    ByteString serialized;
 
     BaggageImpl() {
-        this.contents = Maps.newHashMap();
+        this.contents = BaggageStorage.create();
     }
     
-    BaggageImpl(Map<ByteString, SetMultimap<ByteString, ByteString>> contents) {
+    BaggageImpl(BaggageStorage contents) {
+        this.contents = contents;
+    }
+
+    BaggageImpl(BaggageStorage contents, Map<ByteString, ByteString> undecoded) {
         this.contents = contents;
+        this.undecoded = undecoded;
     }
 
     /** Construct a BaggageMessage protobuf message and serialize it to a byte array. If this baggage is empty, an empty
      * byte array will be returned */
     public byte[] toByteArray() {
-        BaggageMessage message = buildMessage();
-        return message == null ? ArrayUtils.EMPTY_BYTE_ARRAY : message.toByteArray();
+        ByteString bytes = toByteString();
+        return bytes.isEmpty() ? ArrayUtils.EMPTY_BYTE_ARRAY : bytes.toByteArray();
     }
 
-    /** Construct a BaggageMessage protobuf message and serialize it to a byte array. If this baggage is empty, an empty
-     * byte array will be returned */
+    /** Construct a BaggageMessage protobuf message and serialize it to a byte string. If this baggage is empty, an
+     * empty byte string will be returned. If the baggage has not been modified since it was last serialized, the
+     * previous serialized bytes are reused; baggage handlers are still invoked every time */
     public ByteString toByteString() {
-        BaggageMessage message = buildMessage();
-        return message == null ? ByteString.EMPTY : message.toByteString();
+        // Call baggage handlers; if they modify the baggage, the cached bytes are discarded
+        Handlers.preSerialize(this);
+
+        if (serialized == null) {
+            BaggageMessage message = buildMessage();
+            if (undecoded != null) {
+                serialized = appendUndecoded(message);
+            } else {
+                serialized = message == null ? ByteString.EMPTY : message.toByteString();
+            }
+        }
+        return serialized;
     }
 
     /** Deserialize a baggage instance from a serialized representation. If the provided bytes are invalid, null, or
@@ -49,6 +81,9 @@ public class BaggageImpl {
      * @param byteRepr Serialized bytes, possibly null
      * @return A baggage instance if the provided bytes were valid, null otherwise */
     public static BaggageImpl deserialize(byte[] byteRepr) {
+        if (LAZY) {
+            return byteRepr == null ? null : createLazy(ByteString.copyFrom(byteRepr));
+        }
         return create(ProtobufUtils.parse(byteRepr));
     }
 
@@ -58,7 +93,10 @@ public class BaggageImpl {
      * @param byteRepr Serialized bytes, possibly null
      * @return A baggage instance if the provided bytes were valid, null otherwise */
     public static BaggageImpl deserialize(ByteString byteRepr) {
-        return create(ProtobufUtils.parse(byteRepr));
+        if (LAZY) {
+            return createLazy(byteRepr);
+        }
+        return create(ProtobufUtils.parse(byteRepr), byteRepr);
     }
 
     /** Construct a baggage instance from the provided BaggageMessage. If the provided message is invalid, null, or
@@ -67,22 +105,19 @@ public class BaggageImpl {
      * @param message A baggagemessage protobuf
      * @return A baggage instance if the provided message is valid and has contents, null otherwise */
     static BaggageImpl create(BaggageMessage message) {
+        return create(message, null);
+    }
+
+    /* Construct a baggage instance from the provided BaggageMessage, using the bytes it was parsed from, if any, as the
+     * cached serialized form */
+    private static BaggageImpl create(BaggageMessage message, ByteString serialized) {
         // Check the message is not null and has some namespaces
         if (message == null || message.getNamespaceCount() == 0) {
             return null;
         }
 
         // Construct the baggage from the received message
-        Map<ByteString, SetMultimap<ByteString, ByteString>> data = Maps.newHashMapWithExpectedSize(message.getNamespaceCount());
-        for (NamespaceData namespaceData : message.getNamespaceList()) {
-            SetMultimap<ByteString, ByteString> namespace = HashMultimap.create(namespaceData.getBagCount(), 1);
-            for (BagData bag : namespaceData.getBagList()) {
-                namespace.putAll(bag.getKey(), bag.getValueList());
-            }
-            if (!namespace.isEmpty()) {
-                data.put(namespaceData.getKey(), namespace);
-            }
-        }
+        BaggageStorage data = BaggageStorage.create(message);
 
         // If there was no data after all, return null
         if (data.isEmpty()) {
@@ -90,32 +125,79 @@ public class BaggageImpl {
         }
 
         BaggageImpl impl = new BaggageImpl(data);
+        impl.serialized = serialized;
         Handlers.postDeserialize(impl);
         return impl;
     }
 
-    /** Constructs a {@link BaggageMessage} protobuf message with the contents of this baggage. If this baggage is
-     * empty, returns null */
-    BaggageMessage buildMessage() {
-        // Call baggage handlers
-        Handlers.preSerialize(this);
-        
-        // Construct message
-        BaggageMessage.Builder b = BaggageMessage.newBuilder();
-        for (ByteString namespace : contents.keySet()) {
-            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+    /** Construct a baggage instance from serialized bytes without decoding the contents of any namespace. Each
+     * namespace is decoded the first time it is accessed. If the provided bytes are invalid, null, or empty, this
+     * method will return null
+     * 
+     * @param byteRepr Serialized bytes, possibly null
+     * @return A baggage instance if the provided bytes were valid and had namespaces, null otherwise */
+    static BaggageImpl createLazy(ByteString byteRepr) {
+        Map<ByteString, ByteString> namespaces = ProtobufUtils.parseNamespaces(byteRepr);
+        if (namespaces == null) {
+            return null;
+        }
 
-            // Namespace should not exist if it has no data
-            if (namespaceData.isEmpty()) {
-                continue;
+        BaggageImpl impl = new BaggageImpl(BaggageStorage.create(), namespaces);
+        impl.serialized = byteRepr;
+        Handlers.postDeserialize(impl);
+        return impl;
+    }
+
+    /* Decode a lazily deserialized namespace, if it has not been decoded yet */
+    private void decode(ByteString namespace) {
+        if (undecoded != null) {
+            ByteString namespaceData = undecoded.remove(namespace);
+            if (undecoded.isEmpty()) {
+                undecoded = null;
             }
+            if (namespaceData != null) {
+                try {
+                    for (BagData bag : NamespaceData.parseFrom(namespaceData).getBagList()) {
+                        contents.addAll(namespace, bag.getKey(), bag.getValueList());
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    // Discard the invalid namespace
+                }
+            }
+        }
+    }
 
-            // Construct the namespace data message
-            NamespaceData.Builder nb = b.addNamespaceBuilder().setKey(namespace);
-            for (ByteString key : namespaceData.keySet()) {
-                nb.addBagBuilder().setKey(key).addAllValue(namespaceData.get(key));
+    /* Decode all lazily deserialized namespaces that have not been decoded yet */
+    private void decodeAll() {
+        while (undecoded != null) {
+            decode(undecoded.keySet().iterator().next());
+        }
+    }
+
+    /* Serialize the message, followed by the undecoded namespaces unmodified */
+    private ByteString appendUndecoded(BaggageMessage message) {
+        ByteString.Output bytes = ByteString.newOutput();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            if (message != null) {
+                message.writeTo(out);
             }
+            for (ByteString namespaceData : undecoded.values()) {
+                ProtobufUtils.writeNamespace(out, namespaceData);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Writing to a ByteString.Output does not throw
         }
+        return bytes.toByteString();
+    }
+
+    /** Constructs a {@link BaggageMessage} protobuf message with the contents of this baggage. If this baggage is
+     * empty, returns null. Baggage handlers are not invoked; callers should invoke them first */
+    BaggageMessage buildMessage() {
+        // Construct message
+        BaggageMessage.Builder b = BaggageMessage.newBuilder();
+        contents.writeTo(b);
 
         // Return null if the baggage message is empty
         return b.getNamespaceCount() == 0 ? null : b.build();
@@ -128,8 +210,8 @@ public class BaggageImpl {
      * @return true if the baggage has one or more value for this namespace and key */
     public boolean contains(ByteString namespace, ByteString key) {
         if (namespace != null && key != null) {
-            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-            return namespaceData != null && namespaceData.containsKey(key);
+            decode(namespace);
+            return contents.contains(namespace, key);
         }
         return false;
     }
@@ -139,7 +221,8 @@ public class BaggageImpl {
      * @param namespace The namespace to look up
      * @return true if the baggage has one or more values in this namespace, false otherwise */
     public boolean hasNamespace(ByteString namespace) {
-        return namespace != null && contents.containsKey(namespace);
+        return namespace != null
+                && (contents.hasNamespace(namespace) || (undecoded != null && undecoded.containsKey(namespace)));
     }
 
     /** Get all values from the baggage for a given namespace and key
@@ -148,11 +231,9 @@ public class BaggageImpl {
      * @param key The key to look up within the provided namespace
      * @return The set of all values mapped to that key */
     public Set<ByteString> get(ByteString namespace, ByteString key) {
-        if (namespace != null || key != null) {
-            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-            if (namespaceData != null) {
-                return namespaceData.get(key);
-            }
+        if (namespace != null && key != null) {
+            decode(namespace);
+            return contents.get(namespace, key);
         }
         return Collections.<ByteString> emptySet(); 
     }
@@ -163,13 +244,9 @@ public class BaggageImpl {
      * @param key The key to remove */
     public void remove(ByteString namespace, ByteString key) {
         if (namespace != null && key != null) {
-            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-            if (namespaceData != null) {
-                namespaceData.removeAll(key);
-                if (namespaceData.isEmpty()) {
-                    contents.remove(namespace);
-                }
-            }
+            decode(namespace);
+            serialized = null;
+            contents.remove(namespace, key);
         }
     }
 
@@ -178,7 +255,11 @@ public class BaggageImpl {
      * @param namespace the namespace to remove from the baggage */
     public void removeAll(ByteString namespace) {
         if (namespace != null) {
-            contents.remove(namespace);
+            if (undecoded != null && undecoded.remove(namespace) != null && undecoded.isEmpty()) {
+                undecoded = null;
+            }
+            serialized = null;
+            contents.removeAll(namespace);
         }
     }
 
@@ -193,7 +274,9 @@ public class BaggageImpl {
             if (value == null) {
                 remove(namespace, key);
             } else {
-                modifyKey(namespace, key).put(key, value);
+                decode(namespace);
+                serialized = null;
+                contents.replace(namespace, key, value);
             }
         }
     }
@@ -209,12 +292,9 @@ public class BaggageImpl {
             if (values == null) {
                 remove(namespace, key);
             } else {
-                SetMultimap<ByteString, ByteString> namespaceData = modifyKey(namespace, key);
-                namespaceData.putAll(key, values);
-                namespaceData.remove(key, null);
-                if (namespaceData.isEmpty()) {
-                    contents.remove(namespace);
-                }
+                decode(namespace);
+                serialized = null;
+                contents.replace(namespace, key, values);
             }
         }
     }
@@ -226,13 +306,16 @@ public class BaggageImpl {
      * @param value The value to add */
     public void add(ByteString namespace, ByteString key, ByteString value) {
         if (namespace != null && key != null && value != null) {
-            modifyNamespace(namespace).put(key, value);
+            decode(namespace);
+            serialized = null;
+            contents.add(namespace, key, value);
         }
     }
 
     /** Returns a set view of the non-empty namespaces in this baggage */
     public Set<ByteString> namespaces() {
-        return contents.keySet();
+        decodeAll();
+        return contents.namespaces();
     }
 
     /** Returns a set view of the keys in the specified namespace that have 1 or more values assigned
@@ -241,10 +324,8 @@ public class BaggageImpl {
      * @return all the distinct keys under the given namespace with values assigned */
     public Set<ByteString> keys(ByteString namespace) {
         if (namespace != null) {
-            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-            if (namespaceData != null) {
-                return namespaceData.keySet();
-            }
+            decode(namespace);
+            return contents.keys(namespace);
         }
         return Collections.emptySet();
     }
@@ -255,13 +336,11 @@ public class BaggageImpl {
      * @param toNamespace The namespace to move values to 
      */
     public void moveEntries(ByteString fromNamespace, ByteString toNamespace) {
-        if (fromNamespace == null || toNamespace == null || !contents.containsKey(fromNamespace)) {
-            return; // Do nothing because fromNamespace is empty
-        }
-        if (!contents.containsKey(toNamespace)) {
-            contents.put(toNamespace, contents.remove(fromNamespace));
-        } else {
-            contents.get(toNamespace).putAll(contents.remove(fromNamespace));
+        if (fromNamespace != null && toNamespace != null) {
+            decode(fromNamespace);
+            decode(toNamespace);
+            serialized = null;
+            contents.moveEntries(fromNamespace, toNamespace);
         }
     }
 
@@ -271,57 +350,52 @@ public class BaggageImpl {
     public void merge(BaggageImpl other) {
         if (other != null) {
             Handlers.preMerge(this, other);
-            for (ByteString namespace : other.contents.keySet()) {
-                SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-                if (namespaceData == null) {
-                    contents.put(namespace, other.contents.get(namespace));
-                } else {
-                    namespaceData.putAll(other.contents.get(namespace));
-                }
-            }
+            serialized = null;
+            mergeUndecoded(other);
+            contents.merge(other.contents);
             Handlers.postMerge(this);
         }
     }
     
     
     public boolean isEmpty() {
-        return contents.isEmpty();
+        return undecoded == null && contents.isEmpty();
     }
 
-    /** Split this baggage into two by copying the contents over to a new instance
+    /* Namespaces that are undecoded in both baggages stay undecoded; otherwise they are decoded before merging */
+    private void mergeUndecoded(BaggageImpl other) {
+        if (other.undecoded != null) {
+            for (ByteString namespace : Lists.newArrayList(other.undecoded.keySet())) {
+                if (contents.hasNamespace(namespace)) {
+                    other.decode(namespace);
+                } else {
+                    if (undecoded == null) {
+                        undecoded = Maps.newLinkedHashMap();
+                    }
+                    ByteString existing = undecoded.get(namespace);
+                    ByteString namespaceData = other.undecoded.get(namespace);
+                    undecoded.put(namespace, existing == null ? namespaceData : existing.concat(namespaceData));
+                }
+            }
+        }
+        if (undecoded != null) {
+            for (ByteString namespace : other.contents.namespaces()) {
+                decode(namespace);
+            }
+        }
+    }
+
+    /** Split this baggage into two by copying the contents over to a new instance. The new instance shares the cached
+     * serialized form, if any
      * 
      * @return Another baggage impl with the same contents, copied */
     public BaggageImpl split() {
         Handlers.preSplit(this);
-        Map<ByteString, SetMultimap<ByteString, ByteString>> copiedData = Maps.newHashMapWithExpectedSize(contents.size());
-        for (ByteString namespace : contents.keySet()) {
-            copiedData.put(namespace, HashMultimap.create(contents.get(namespace)));
-        }
-        BaggageImpl newImpl = new BaggageImpl(copiedData);
+        BaggageImpl newImpl = new BaggageImpl(contents.split(),
+                undecoded == null ? null : Maps.newLinkedHashMap(undecoded));
+        newImpl.serialized = serialized;
         Handlers.postSplit(this, newImpl);
         return newImpl;
     }
 
-    /* Get the namespace or create one if it does not exist */
-    private SetMultimap<ByteString, ByteString> modifyNamespace(ByteString namespace) {
-        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-        if (namespaceData == null) {
-            namespaceData = HashMultimap.<ByteString, ByteString> create();
-            contents.put(namespace, namespaceData);
-        }
-        return namespaceData;
-    }
-    
-    /* Get the namespace or create one if it does not exist.  Removes existing values for a key */
-    private SetMultimap<ByteString, ByteString> modifyKey(ByteString namespace, ByteString key) {
-        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
-        if (namespaceData == null) {
-            namespaceData = HashMultimap.<ByteString, ByteString> create();
-            contents.put(namespace, namespaceData);
-        } else {
-            namespaceData.removeAll(key);
-        }
-        return namespaceData;
-    }
-
 }
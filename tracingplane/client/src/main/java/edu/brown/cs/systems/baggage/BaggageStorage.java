@@ -0,0 +1,118 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.Set;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.ConfigFactory;
+
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.BagData;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.NamespaceData;
+
+/** Backing storage for the contents of a {@link BaggageImpl}. {@link BaggageImpl} performs null checks and invokes
+ * baggage handlers; storage implementations can assume that all namespaces, keys, and values passed to them are
+ * non-null.
+ *
+ * The storage used by new baggage instances is chosen by the <code>baggage.storage</code> config value. */
+abstract class BaggageStorage {
+
+    /** Storage backed by a hash map of {@link com.google.common.collect.HashMultimap}s */
+    static final String MULTIMAP = "multimap";
+
+    /** Storage backed by a flat, sorted, copy-on-write byte array */
+    static final String COMPACT = "compact";
+
+    /** The configured storage type */
+    static final String STORAGE_TYPE = ConfigFactory.load().getString("baggage.storage");
+
+    /** Create a new, empty storage instance of the configured type */
+    static BaggageStorage create() {
+        if (COMPACT.equals(STORAGE_TYPE)) {
+            return new CompactStorage();
+        } else {
+            return new MultimapStorage();
+        }
+    }
+
+    /** Create a new storage instance of the configured type, populated with the contents of the provided message */
+    static BaggageStorage create(BaggageMessage message) {
+        BaggageStorage storage = create();
+        for (NamespaceData namespaceData : message.getNamespaceList()) {
+            for (BagData bag : namespaceData.getBagList()) {
+                storage.addAll(namespaceData.getKey(), bag.getKey(), bag.getValueList());
+            }
+        }
+        return storage;
+    }
+
+    /** @return true if one or more values exist for the key */
+    abstract boolean contains(ByteString namespace, ByteString key);
+
+    /** @return true if one or more values exist in the namespace */
+    abstract boolean hasNamespace(ByteString namespace);
+
+    /** @return the values of the key, possibly empty */
+    abstract Set<ByteString> get(ByteString namespace, ByteString key);
+
+    /** Remove all values of a key */
+    abstract void remove(ByteString namespace, ByteString key);
+
+    /** Remove all keys and values of a namespace */
+    abstract void removeAll(ByteString namespace);
+
+    /** Replace the values of a key with the single value provided */
+    abstract void replace(ByteString namespace, ByteString key, ByteString value);
+
+    /** Replace the values of a key with the provided values, ignoring null values */
+    abstract void replace(ByteString namespace, ByteString key, Iterable<? extends ByteString> values);
+
+    /** Add a value to a key */
+    abstract void add(ByteString namespace, ByteString key, ByteString value);
+
+    /** Add several values to a key */
+    void addAll(ByteString namespace, ByteString key, Iterable<? extends ByteString> values) {
+        for (ByteString value : values) {
+            if (value != null) {
+                add(namespace, key, value);
+            }
+        }
+    }
+
+    /** @return the non-empty namespaces */
+    abstract Set<ByteString> namespaces();
+
+    /** @return the keys of the namespace that have one or more values */
+    abstract Set<ByteString> keys(ByteString namespace);
+
+    /** Move the contents of one namespace into another */
+    abstract void moveEntries(ByteString fromNamespace, ByteString toNamespace);
+
+    /** Merge the contents of another storage into this one. The other storage should not be used afterwards. */
+    abstract void merge(BaggageStorage other);
+
+    /** @return true if there are no values stored */
+    abstract boolean isEmpty();
+
+    /** @return a new storage instance with the same contents as this one */
+    abstract BaggageStorage split();
+
+    /** Merge the contents of the other storage one value at a time; used when storage types differ */
+    void mergeValues(BaggageStorage other) {
+        for (ByteString namespace : other.namespaces()) {
+            for (ByteString key : other.keys(namespace)) {
+                addAll(namespace, key, other.get(namespace, key));
+            }
+        }
+    }
+
+    /** Write the contents of this storage to the provided message builder */
+    void writeTo(BaggageMessage.Builder builder) {
+        for (ByteString namespace : namespaces()) {
+            NamespaceData.Builder nb = builder.addNamespaceBuilder().setKey(namespace);
+            for (ByteString key : keys(namespace)) {
+                nb.addBagBuilder().setKey(key).addAllValue(get(namespace, key));
+            }
+        }
+    }
+
+}
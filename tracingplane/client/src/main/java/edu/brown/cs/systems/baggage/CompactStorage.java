@@ -0,0 +1,419 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.SortedSet;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.BagData;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.NamespaceData;
+
+/** Baggage storage that keeps all of its contents in a single flat byte array. Namespaces, the keys within a
+ * namespace, and the values of a key are each kept sorted in unsigned lexicographic order, using the layout:
+ *
+ * <pre>
+ * contents  := namespace*
+ * namespace := varint(length) name varint(bodylength) key*
+ * key       := varint(length) key varint(valuecount) value*
+ * value     := varint(length) value
+ * </pre>
+ *
+ * The array is never modified in place; every write creates a new array. Copies made by {@link #split()} share the
+ * same array, so splitting is constant time and copying only happens when one of the copies is written to.
+ *
+ * This layout is intended for baggage with a few small namespaces of mostly single-valued keys, such as a task ID, a
+ * parent ID and a tenant ID. Lookups scan the array and writes copy it, so baggage with many values should use
+ * {@link MultimapStorage} instead. */
+class CompactStorage extends BaggageStorage {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Unsigned lexicographic ordering of byte strings */
+    static final Comparator<ByteString> ORDER = new Comparator<ByteString>() {
+        public int compare(ByteString a, ByteString b) {
+            int size = Math.min(a.size(), b.size());
+            for (int i = 0; i < size; i++) {
+                int cmp = (a.byteAt(i) & 0xff) - (b.byteAt(i) & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return a.size() - b.size();
+        }
+    };
+
+    /** Contents of the baggage; never modified in place */
+    byte[] data;
+
+    CompactStorage() {
+        this(EMPTY);
+    }
+
+    CompactStorage(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    boolean contains(ByteString namespace, ByteString key) {
+        int ns = findNamespace(data, namespace);
+        return ns >= 0 && findKey(data, key, bodyStart(data, ns), fieldEnd(data, fieldEnd(data, ns))) >= 0;
+    }
+
+    @Override
+    boolean hasNamespace(ByteString namespace) {
+        return findNamespace(data, namespace) >= 0;
+    }
+
+    @Override
+    Set<ByteString> get(ByteString namespace, ByteString key) {
+        byte[] bytes = data;
+        int ns = findNamespace(bytes, namespace);
+        if (ns >= 0) {
+            int pos = findKey(bytes, key, bodyStart(bytes, ns), fieldEnd(bytes, fieldEnd(bytes, ns)));
+            if (pos >= 0) {
+                pos = fieldEnd(bytes, pos);
+                int count = readVarint(bytes, pos);
+                pos += varintSize(count);
+                if (count == 1) {
+                    return ImmutableSet.of(field(bytes, pos));
+                }
+                ImmutableSet.Builder<ByteString> values = ImmutableSet.builder();
+                for (int i = 0; i < count; i++) {
+                    values.add(field(bytes, pos));
+                    pos = fieldEnd(bytes, pos);
+                }
+                return values.build();
+            }
+        }
+        return Collections.<ByteString> emptySet();
+    }
+
+    @Override
+    void remove(ByteString namespace, ByteString key) {
+        writeKey(namespace, key, Collections.<ByteString> emptySet());
+    }
+
+    @Override
+    void removeAll(ByteString namespace) {
+        int ns = findNamespace(data, namespace);
+        if (ns >= 0) {
+            int end = fieldEnd(data, fieldEnd(data, ns));
+            byte[] updated = new byte[data.length - (end - ns)];
+            System.arraycopy(data, 0, updated, 0, ns);
+            System.arraycopy(data, end, updated, ns, data.length - end);
+            data = updated;
+        }
+    }
+
+    @Override
+    void replace(ByteString namespace, ByteString key, ByteString value) {
+        writeKey(namespace, key, Collections.singleton(value));
+    }
+
+    @Override
+    void replace(ByteString namespace, ByteString key, Iterable<? extends ByteString> values) {
+        SortedSet<ByteString> sorted = Sets.newTreeSet(ORDER);
+        for (ByteString value : values) {
+            if (value != null) {
+                sorted.add(value);
+            }
+        }
+        writeKey(namespace, key, sorted);
+    }
+
+    @Override
+    void add(ByteString namespace, ByteString key, ByteString value) {
+        addAll(namespace, key, Collections.singleton(value));
+    }
+
+    @Override
+    void addAll(ByteString namespace, ByteString key, Iterable<? extends ByteString> values) {
+        SortedSet<ByteString> sorted = Sets.newTreeSet(ORDER);
+        sorted.addAll(get(namespace, key));
+        int existing = sorted.size();
+        for (ByteString value : values) {
+            if (value != null) {
+                sorted.add(value);
+            }
+        }
+        if (sorted.size() != existing) {
+            writeKey(namespace, key, sorted);
+        }
+    }
+
+    @Override
+    Set<ByteString> namespaces() {
+        byte[] bytes = data;
+        ImmutableSet.Builder<ByteString> namespaces = ImmutableSet.builder();
+        for (int pos = 0; pos < bytes.length; pos = fieldEnd(bytes, fieldEnd(bytes, pos))) {
+            namespaces.add(field(bytes, pos));
+        }
+        return namespaces.build();
+    }
+
+    @Override
+    Set<ByteString> keys(ByteString namespace) {
+        byte[] bytes = data;
+        int ns = findNamespace(bytes, namespace);
+        if (ns < 0) {
+            return Collections.emptySet();
+        }
+        ImmutableSet.Builder<ByteString> keys = ImmutableSet.builder();
+        int end = fieldEnd(bytes, fieldEnd(bytes, ns));
+        for (int pos = bodyStart(bytes, ns); pos < end; pos = keyEnd(bytes, pos)) {
+            keys.add(field(bytes, pos));
+        }
+        return keys.build();
+    }
+
+    @Override
+    void moveEntries(ByteString fromNamespace, ByteString toNamespace) {
+        if (fromNamespace.equals(toNamespace) || !hasNamespace(fromNamespace)) {
+            return;
+        }
+        if (!hasNamespace(toNamespace)) {
+            // Rename in place by re-inserting the namespace body under the new name
+            byte[] bytes = data;
+            int ns = findNamespace(bytes, fromNamespace);
+            int start = bodyStart(bytes, ns), end = fieldEnd(bytes, fieldEnd(bytes, ns));
+            removeAll(fromNamespace);
+            writeNamespace(toNamespace, bytes, start, end);
+        } else {
+            for (ByteString key : keys(fromNamespace)) {
+                addAll(toNamespace, key, get(fromNamespace, key));
+            }
+            removeAll(fromNamespace);
+        }
+    }
+
+    @Override
+    void merge(BaggageStorage other) {
+        if (other instanceof CompactStorage && data.length == 0) {
+            data = ((CompactStorage) other).data;
+        } else if (!other.isEmpty()) {
+            mergeValues(other);
+        }
+    }
+
+    @Override
+    boolean isEmpty() {
+        return data.length == 0;
+    }
+
+    @Override
+    BaggageStorage split() {
+        return new CompactStorage(data);
+    }
+
+    @Override
+    void writeTo(BaggageMessage.Builder builder) {
+        byte[] bytes = data;
+        for (int ns = 0; ns < bytes.length; ns = fieldEnd(bytes, fieldEnd(bytes, ns))) {
+            NamespaceData.Builder nb = builder.addNamespaceBuilder().setKey(field(bytes, ns));
+            int end = fieldEnd(bytes, fieldEnd(bytes, ns));
+            for (int key = bodyStart(bytes, ns); key < end; key = keyEnd(bytes, key)) {
+                BagData.Builder bb = nb.addBagBuilder().setKey(field(bytes, key));
+                int pos = fieldEnd(bytes, key);
+                int count = readVarint(bytes, pos);
+                pos += varintSize(count);
+                for (int i = 0; i < count; i++) {
+                    bb.addValue(field(bytes, pos));
+                    pos = fieldEnd(bytes, pos);
+                }
+            }
+        }
+    }
+
+    /** Set the values of a key, which must be sorted and distinct. If there are no values, the key is removed. */
+    private void writeKey(ByteString namespace, ByteString key, Collection<ByteString> values) {
+        byte[] bytes = data;
+        int ns = findNamespace(bytes, namespace);
+        if (ns < 0 && values.isEmpty()) {
+            return;
+        }
+
+        // Find the existing key, or where the key would be inserted
+        int bodyStart, bodyEnd, keyStart, keyEnd;
+        if (ns >= 0) {
+            bodyStart = bodyStart(bytes, ns);
+            bodyEnd = fieldEnd(bytes, fieldEnd(bytes, ns));
+            keyStart = findKey(bytes, key, bodyStart, bodyEnd);
+            if (keyStart >= 0) {
+                keyEnd = keyEnd(bytes, keyStart);
+            } else if (values.isEmpty()) {
+                return;
+            } else {
+                keyStart = keyEnd = -(keyStart + 1);
+            }
+        } else {
+            ns = -(ns + 1);
+            bodyStart = bodyEnd = keyStart = keyEnd = ns;
+        }
+
+        // Construct the new namespace body, replacing the old key
+        int keySize = 0;
+        if (!values.isEmpty()) {
+            keySize = fieldSize(key) + varintSize(values.size());
+            for (ByteString value : values) {
+                keySize += fieldSize(value);
+            }
+        }
+        int bodySize = (keyStart - bodyStart) + keySize + (bodyEnd - keyEnd);
+        byte[] body = new byte[bodySize];
+        System.arraycopy(bytes, bodyStart, body, 0, keyStart - bodyStart);
+        int pos = keyStart - bodyStart;
+        if (keySize > 0) {
+            pos = writeField(body, pos, key);
+            pos = writeVarint(body, pos, values.size());
+            for (ByteString value : values) {
+                pos = writeField(body, pos, value);
+            }
+        }
+        System.arraycopy(bytes, keyEnd, body, pos, bodyEnd - keyEnd);
+
+        writeNamespace(namespace, ns, bodyEnd, body, 0, bodySize);
+    }
+
+    /** Insert a namespace with the provided body; the namespace must not already exist */
+    private void writeNamespace(ByteString namespace, byte[] body, int bodyStart, int bodyEnd) {
+        int ns = -(findNamespace(data, namespace) + 1);
+        writeNamespace(namespace, ns, ns, body, bodyStart, bodyEnd - bodyStart);
+    }
+
+    /** Replace the bytes between start and end with a namespace that has the provided body. If the body is empty, the
+     * bytes are removed and no namespace is written */
+    private void writeNamespace(ByteString namespace, int start, int end, byte[] body, int bodyOffset, int bodySize) {
+        byte[] bytes = data;
+        int namespaceSize = bodySize == 0 ? 0 : fieldSize(namespace) + varintSize(bodySize) + bodySize;
+        byte[] updated = new byte[bytes.length - (end - start) + namespaceSize];
+        System.arraycopy(bytes, 0, updated, 0, start);
+        int pos = start;
+        if (bodySize > 0) {
+            pos = writeField(updated, pos, namespace);
+            pos = writeVarint(updated, pos, bodySize);
+            System.arraycopy(body, bodyOffset, updated, pos, bodySize);
+            pos += bodySize;
+        }
+        System.arraycopy(bytes, end, updated, pos, bytes.length - end);
+        data = updated;
+    }
+
+    /** Find a namespace, returning its offset if it exists, or (-(insertion point) - 1) if it does not */
+    private static int findNamespace(byte[] bytes, ByteString namespace) {
+        int pos = 0;
+        while (pos < bytes.length) {
+            int cmp = compareField(namespace, bytes, pos);
+            if (cmp == 0) {
+                return pos;
+            } else if (cmp < 0) {
+                break;
+            }
+            pos = fieldEnd(bytes, fieldEnd(bytes, pos));
+        }
+        return -(pos + 1);
+    }
+
+    /** Find a key within a namespace body, returning its offset if it exists, or (-(insertion point) - 1) if not */
+    private static int findKey(byte[] bytes, ByteString key, int start, int end) {
+        int pos = start;
+        while (pos < end) {
+            int cmp = compareField(key, bytes, pos);
+            if (cmp == 0) {
+                return pos;
+            } else if (cmp < 0) {
+                break;
+            }
+            pos = keyEnd(bytes, pos);
+        }
+        return -(pos + 1);
+    }
+
+    /** Offset of the first key of the namespace at the provided offset */
+    private static int bodyStart(byte[] bytes, int ns) {
+        int pos = fieldEnd(bytes, ns);
+        return pos + varintSize(readVarint(bytes, pos));
+    }
+
+    /** Offset just past the key at the provided offset and all of its values */
+    private static int keyEnd(byte[] bytes, int key) {
+        int pos = fieldEnd(bytes, key);
+        int count = readVarint(bytes, pos);
+        pos += varintSize(count);
+        for (int i = 0; i < count; i++) {
+            pos = fieldEnd(bytes, pos);
+        }
+        return pos;
+    }
+
+    /** Offset just past the length-prefixed field at the provided offset */
+    private static int fieldEnd(byte[] bytes, int pos) {
+        int length = readVarint(bytes, pos);
+        return pos + varintSize(length) + length;
+    }
+
+    /** Copy out the length-prefixed field at the provided offset */
+    private static ByteString field(byte[] bytes, int pos) {
+        int length = readVarint(bytes, pos);
+        return ByteString.copyFrom(bytes, pos + varintSize(length), length);
+    }
+
+    /** Compare a byte string to the length-prefixed field at the provided offset */
+    private static int compareField(ByteString a, byte[] bytes, int pos) {
+        int length = readVarint(bytes, pos);
+        int offset = pos + varintSize(length);
+        int size = Math.min(a.size(), length);
+        for (int i = 0; i < size; i++) {
+            int cmp = (a.byteAt(i) & 0xff) - (bytes[offset + i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.size() - length;
+    }
+
+    private static int fieldSize(ByteString field) {
+        return varintSize(field.size()) + field.size();
+    }
+
+    private static int writeField(byte[] bytes, int pos, ByteString field) {
+        pos = writeVarint(bytes, pos, field.size());
+        field.copyTo(bytes, pos);
+        return pos + field.size();
+    }
+
+    static int readVarint(byte[] bytes, int pos) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[pos++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    static int writeVarint(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,230 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.NamespaceData;
+
+/** Baggage storage using a hash map of namespaces to hash multimaps.
+ * 
+ * Splitting is constant time: the two storages share the map and all of the multimaps, and each copies them on
+ * write. The map is copied on the first change to the set of namespaces, and a namespace's multimap is copied the
+ * first time that namespace is written to. */
+class MultimapStorage extends BaggageStorage {
+
+    /** Contents of the baggage. May be shared with other storages if sharedContents is true */
+    Map<ByteString, SetMultimap<ByteString, ByteString>> contents;
+
+    /** True if the contents map might be shared with another storage */
+    boolean sharedContents;
+
+    /** Namespace multimaps that are owned by this storage and can be modified in place; all others are shared. Null
+     * if this storage owns none */
+    Set<SetMultimap<ByteString, ByteString>> owned;
+
+    MultimapStorage() {
+        this.contents = Maps.newHashMap();
+    }
+
+    MultimapStorage(Map<ByteString, SetMultimap<ByteString, ByteString>> contents, boolean shared) {
+        this.contents = contents;
+        this.sharedContents = shared;
+    }
+
+    @Override
+    boolean contains(ByteString namespace, ByteString key) {
+        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+        return namespaceData != null && namespaceData.containsKey(key);
+    }
+
+    @Override
+    boolean hasNamespace(ByteString namespace) {
+        return contents.containsKey(namespace);
+    }
+
+    @Override
+    Set<ByteString> get(ByteString namespace, ByteString key) {
+        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+        if (namespaceData != null) {
+            return Collections.unmodifiableSet(namespaceData.get(key));
+        }
+        return Collections.<ByteString> emptySet();
+    }
+
+    @Override
+    void remove(ByteString namespace, ByteString key) {
+        if (contains(namespace, key)) {
+            SetMultimap<ByteString, ByteString> namespaceData = modifyNamespace(namespace);
+            namespaceData.removeAll(key);
+            if (namespaceData.isEmpty()) {
+                modifyContents().remove(namespace);
+            }
+        }
+    }
+
+    @Override
+    void removeAll(ByteString namespace) {
+        if (contents.containsKey(namespace)) {
+            modifyContents().remove(namespace);
+        }
+    }
+
+    @Override
+    void replace(ByteString namespace, ByteString key, ByteString value) {
+        modifyKey(namespace, key).put(key, value);
+    }
+
+    @Override
+    void replace(ByteString namespace, ByteString key, Iterable<? extends ByteString> values) {
+        SetMultimap<ByteString, ByteString> namespaceData = modifyKey(namespace, key);
+        namespaceData.putAll(key, values);
+        namespaceData.remove(key, null);
+        if (namespaceData.isEmpty()) {
+            modifyContents().remove(namespace);
+        }
+    }
+
+    @Override
+    void add(ByteString namespace, ByteString key, ByteString value) {
+        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+        if (namespaceData == null || !namespaceData.containsEntry(key, value)) {
+            modifyNamespace(namespace).put(key, value);
+        }
+    }
+
+    @Override
+    Set<ByteString> namespaces() {
+        return Collections.unmodifiableSet(contents.keySet());
+    }
+
+    @Override
+    Set<ByteString> keys(ByteString namespace) {
+        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+        if (namespaceData != null) {
+            return Collections.unmodifiableSet(namespaceData.keySet());
+        }
+        return Collections.emptySet();
+    }
+
+    @Override
+    void moveEntries(ByteString fromNamespace, ByteString toNamespace) {
+        if (fromNamespace.equals(toNamespace) || !contents.containsKey(fromNamespace)) {
+            return; // Do nothing because fromNamespace is empty
+        }
+        if (!contents.containsKey(toNamespace)) {
+            Map<ByteString, SetMultimap<ByteString, ByteString>> modifiable = modifyContents();
+            modifiable.put(toNamespace, modifiable.remove(fromNamespace));
+        } else {
+            modifyNamespace(toNamespace).putAll(modifyContents().remove(fromNamespace));
+        }
+    }
+
+    @Override
+    void merge(BaggageStorage other) {
+        if (!(other instanceof MultimapStorage)) {
+            mergeValues(other);
+            return;
+        }
+        Map<ByteString, SetMultimap<ByteString, ByteString>> otherContents = ((MultimapStorage) other).contents;
+        if (contents.isEmpty()) {
+            // Share the other storage's contents; its multimaps remain shared
+            contents = otherContents;
+            sharedContents = true;
+            owned = null;
+            return;
+        }
+        for (ByteString namespace : otherContents.keySet()) {
+            // Multimaps taken from the other storage are not owned, so will be copied on write
+            if (contents.containsKey(namespace)) {
+                modifyNamespace(namespace).putAll(otherContents.get(namespace));
+            } else {
+                modifyContents().put(namespace, otherContents.get(namespace));
+            }
+        }
+    }
+
+    @Override
+    boolean isEmpty() {
+        return contents.isEmpty();
+    }
+
+    @Override
+    BaggageStorage split() {
+        // After splitting, neither storage owns the contents
+        sharedContents = true;
+        owned = null;
+        return new MultimapStorage(contents, true);
+    }
+
+    @Override
+    void writeTo(BaggageMessage.Builder builder) {
+        for (ByteString namespace : contents.keySet()) {
+            SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+
+            // Namespace should not exist if it has no data
+            if (namespaceData.isEmpty()) {
+                continue;
+            }
+
+            // Construct the namespace data message
+            NamespaceData.Builder nb = builder.addNamespaceBuilder().setKey(namespace);
+            for (ByteString key : namespaceData.keySet()) {
+                nb.addBagBuilder().setKey(key).addAllValue(namespaceData.get(key));
+            }
+        }
+    }
+
+    @Override
+    void addAll(ByteString namespace, ByteString key, Iterable<? extends ByteString> values) {
+        SetMultimap<ByteString, ByteString> namespaceData = modifyNamespace(namespace);
+        namespaceData.putAll(key, values);
+        namespaceData.remove(key, null);
+        if (namespaceData.isEmpty()) {
+            modifyContents().remove(namespace);
+        }
+    }
+
+    /* Get the contents map, copying it first if it is shared */
+    private Map<ByteString, SetMultimap<ByteString, ByteString>> modifyContents() {
+        if (sharedContents) {
+            contents = Maps.newHashMap(contents);
+            sharedContents = false;
+        }
+        return contents;
+    }
+
+    /* Get the namespace, copying it first if it is shared, or create one if it does not exist */
+    private SetMultimap<ByteString, ByteString> modifyNamespace(ByteString namespace) {
+        SetMultimap<ByteString, ByteString> namespaceData = contents.get(namespace);
+        if (namespaceData != null && owned != null && owned.contains(namespaceData)) {
+            return namespaceData;
+        }
+        if (namespaceData == null) {
+            namespaceData = HashMultimap.<ByteString, ByteString> create();
+        } else {
+            namespaceData = HashMultimap.create(namespaceData);
+        }
+        modifyContents().put(namespace, namespaceData);
+        if (owned == null) {
+            owned = Sets.newIdentityHashSet();
+        }
+        owned.add(namespaceData);
+        return namespaceData;
+    }
+
+    /* Get the namespace or create one if it does not exist.  Removes existing values for a key */
+    private SetMultimap<ByteString, ByteString> modifyKey(ByteString namespace, ByteString key) {
+        SetMultimap<ByteString, ByteString> namespaceData = modifyNamespace(namespace);
+        namespaceData.removeAll(key);
+        return namespaceData;
+    }
+
+}
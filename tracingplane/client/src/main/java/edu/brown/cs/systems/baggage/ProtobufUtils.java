@@ -1,11 +1,19 @@
 package edu.brown.cs.systems.baggage;
 
+import java.io.IOException;
+import java.util.Map;
+
 import org.apache.commons.lang3.ArrayUtils;
 
+import com.google.common.collect.Maps;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
 import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage.NamespaceData;
 
 public class ProtobufUtils {
 
@@ -51,4 +59,66 @@ public class ProtobufUtils {
         return ArrayUtils.EMPTY_BYTE_ARRAY;
     }
 
+    private static final int NAMESPACE_TAG = BaggageMessage.NAMESPACE_FIELD_NUMBER << 3
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int NAMESPACE_KEY_TAG = NamespaceData.KEY_FIELD_NUMBER << 3
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    /** Split serialized BaggageMessage bytes into the serialized NamespaceData of each namespace, keyed by namespace,
+     * without parsing the namespace contents. Returns null if the bytes are invalid or contain no namespaces. The
+     * returned values share the provided bytes rather than copying them. */
+    public static Map<ByteString, ByteString> parseNamespaces(ByteString bytes) {
+        if (bytes == null || bytes.isEmpty()) {
+            return null;
+        }
+        Map<ByteString, ByteString> namespaces = Maps.newLinkedHashMap();
+        try {
+            CodedInputStream in = bytes.newCodedInput();
+            for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                if (tag != NAMESPACE_TAG) {
+                    if (!in.skipField(tag)) {
+                        break;
+                    }
+                    continue;
+                }
+                int length = in.readRawVarint32();
+                int start = in.getTotalBytesRead();
+                if (length < 0 || start + length > bytes.size()) {
+                    return null;
+                }
+                ByteString namespaceData = bytes.substring(start, start + length);
+                in.skipRawBytes(length);
+                ByteString namespace = parseNamespaceKey(namespaceData);
+                if (namespace == null) {
+                    return null;
+                }
+                // Concatenated NamespaceData messages with the same key parse as one message with both bags
+                ByteString existing = namespaces.get(namespace);
+                namespaces.put(namespace, existing == null ? namespaceData : existing.concat(namespaceData));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return namespaces.isEmpty() ? null : namespaces;
+    }
+
+    /** Read only the key of a serialized NamespaceData message, returning null if it has none */
+    static ByteString parseNamespaceKey(ByteString namespaceData) throws IOException {
+        CodedInputStream in = namespaceData.newCodedInput();
+        ByteString key = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag == NAMESPACE_KEY_TAG) {
+                key = in.readBytes();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        return key;
+    }
+
+    /** Append serialized NamespaceData bytes to a BaggageMessage being written to the provided stream, unmodified */
+    static void writeNamespace(CodedOutputStream out, ByteString namespaceData) throws IOException {
+        out.writeBytes(BaggageMessage.NAMESPACE_FIELD_NUMBER, namespaceData);
+    }
+
 }
@@ -335,4 +335,181 @@ public class BaggageImplTest extends TestCase {
         assertFalse(b.hasNamespace(myname));
         assertTrue(b.hasNamespace(myname2));
     }
+
+    @Test
+    public void testLazyDeserialization() {
+        BaggageImpl b = new BaggageImpl();
+        ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        ByteString myname2 = ByteString.copyFrom("namespace2".getBytes());
+        ByteString v1 = ByteString.copyFrom("k1".getBytes());
+        ByteString v2 = ByteString.copyFrom("k2".getBytes());
+        b.add(myname, v1, v2);
+        b.add(myname, v1, v1);
+        b.add(myname2, v2, v1);
+        BaggageImpl b2 = BaggageImpl.createLazy(b.toByteString());
+        // nothing is decoded until accessed
+        assertEquals(2, b2.undecoded.size());
+        assertTrue(b2.hasNamespace(myname));
+        assertEquals(2, b2.undecoded.size());
+        assertEquals(2, b2.get(myname, v1).size());
+        assertEquals(1, b2.undecoded.size());
+        assertTrue(b2.contains(myname2, v2));
+        assertNull(b2.undecoded);
+        // edge cases
+        assertNull(BaggageImpl.createLazy(null));
+        assertNull(BaggageImpl.createLazy(ByteString.EMPTY));
+        assertNull(BaggageImpl.createLazy(ByteString.copyFrom(new byte[1])));
+        assertNull(BaggageImpl.createLazy(ByteString.copyFrom("not valid".getBytes())));
+    }
+
+    @Test
+    public void testLazyPassthrough() {
+        ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        ByteString myname2 = ByteString.copyFrom("namespace2".getBytes());
+        ByteString v1 = ByteString.copyFrom("k1".getBytes());
+        ByteString v2 = ByteString.copyFrom("k2".getBytes());
+        BaggageMessage.Builder builder = BaggageMessage.newBuilder();
+        builder.addNamespaceBuilder().setKey(myname).addBagBuilder().setKey(v1).addValue(v1).addValue(v2);
+        builder.addNamespaceBuilder().setKey(myname2).addBagBuilder().setKey(v2).addValue(v1);
+        ByteString serialized = builder.build().toByteString();
+        // untouched baggage is forwarded unchanged
+        assertEquals(serialized, BaggageImpl.createLazy(serialized).toByteString());
+        // untouched namespaces are forwarded unchanged
+        BaggageImpl b = BaggageImpl.createLazy(serialized);
+        b.replace(myname, v1, v2);
+        ByteString untouched = builder.getNamespace(1).toByteString();
+        ByteString reserialized = b.toByteString();
+        assertEquals(untouched, reserialized.substring(reserialized.size() - untouched.size()));
+        BaggageImpl b2 = BaggageImpl.deserialize(reserialized.toByteArray());
+        assertEquals(1, b2.get(myname, v1).size());
+        assertTrue(b2.get(myname, v1).contains(v2));
+        assertTrue(b2.get(myname2, v2).contains(v1));
+    }
+
+    @Test
+    public void testLazySplitJoin() {
+        ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        ByteString myname2 = ByteString.copyFrom("namespace2".getBytes());
+        ByteString v1 = ByteString.copyFrom("k1".getBytes());
+        ByteString v2 = ByteString.copyFrom("k2".getBytes());
+        BaggageImpl b = new BaggageImpl();
+        b.add(myname, v1, v1);
+        b.add(myname2, v1, v1);
+        BaggageImpl lazy = BaggageImpl.createLazy(b.toByteString());
+        BaggageImpl copy = lazy.split();
+        copy.add(myname, v1, v2);
+        assertEquals(1, lazy.get(myname, v1).size());
+        assertEquals(2, copy.get(myname, v1).size());
+        // join two lazy baggages, one partially decoded
+        BaggageImpl other = BaggageImpl.createLazy(copy.toByteString());
+        lazy.merge(other);
+        assertEquals(2, lazy.get(myname, v1).size());
+        assertEquals(1, lazy.get(myname2, v1).size());
+        assertEquals(2, lazy.namespaces().size());
+        lazy.removeAll(myname);
+        lazy.removeAll(myname2);
+        assertTrue(lazy.isEmpty());
+    }
+
+    @Test
+    public void testSplitCopyOnWrite() {
+        ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        ByteString myname2 = ByteString.copyFrom("namespace2".getBytes());
+        ByteString myname3 = ByteString.copyFrom("namespace3".getBytes());
+        ByteString v1 = ByteString.copyFrom("k1".getBytes());
+        ByteString v2 = ByteString.copyFrom("k2".getBytes());
+        BaggageImpl a = new BaggageImpl();
+        a.add(myname, v1, v1);
+        a.add(myname2, v1, v1);
+        BaggageImpl b = a.split();
+        BaggageImpl c = b.split();
+        // writes to each copy are not visible to the others
+        a.add(myname, v1, v2);
+        b.replace(myname, v1, v2);
+        c.remove(myname, v1);
+        assertEquals(2, a.get(myname, v1).size());
+        assertEquals(1, b.get(myname, v1).size());
+        assertTrue(b.get(myname, v1).contains(v2));
+        assertFalse(c.hasNamespace(myname));
+        // untouched namespaces are unaffected
+        b.removeAll(myname2);
+        c.moveEntries(myname2, myname3);
+        assertTrue(a.contains(myname2, v1));
+        assertFalse(b.hasNamespace(myname2));
+        assertFalse(c.hasNamespace(myname2));
+        assertTrue(c.contains(myname3, v1));
+        assertFalse(a.hasNamespace(myname3));
+        // merged namespaces are not shared with the baggage they came from
+        BaggageImpl d = c.split();
+        a.merge(d);
+        a.add(myname3, v1, v2);
+        assertEquals(2, a.get(myname3, v1).size());
+        assertEquals(1, c.get(myname3, v1).size());
+        // merging into empty baggage shares the contents
+        BaggageImpl e = new BaggageImpl();
+        e.merge(c.split());
+        e.add(myname3, v2, v2);
+        assertTrue(e.contains(myname3, v1));
+        assertFalse(c.contains(myname3, v2));
+    }
+
+    @Test
+    public void testSerializationCache() {
+        ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        ByteString myname2 = ByteString.copyFrom("namespace2".getBytes());
+        ByteString v1 = ByteString.copyFrom("k1".getBytes());
+        ByteString v2 = ByteString.copyFrom("k2".getBytes());
+        BaggageImpl b = new BaggageImpl();
+        assertEquals(ByteString.EMPTY, b.toByteString());
+        b.add(myname, v1, v1);
+        ByteString first = b.toByteString();
+        assertSame(first, b.toByteString());
+        // modifications discard the cached bytes
+        b.add(myname, v1, v2);
+        ByteString second = b.toByteString();
+        assertNotSame(first, second);
+        assertEquals(2, BaggageImpl.deserialize(second).get(myname, v1).size());
+        b.moveEntries(myname, myname2);
+        assertFalse(BaggageImpl.deserialize(b.toByteString()).hasNamespace(myname));
+        // split baggage shares the cached bytes until modified
+        ByteString third = b.toByteString();
+        BaggageImpl copy = b.split();
+        assertSame(third, copy.toByteString());
+        copy.remove(myname2, v1);
+        assertEquals(ByteString.EMPTY, copy.toByteString());
+        assertSame(third, b.toByteString());
+        b.merge(BaggageImpl.deserialize(first));
+        assertTrue(BaggageImpl.deserialize(b.toByteString()).hasNamespace(myname));
+        // deserialized baggage reuses the received bytes
+        assertSame(second, BaggageImpl.deserialize(second).toByteString());
+    }
+
+    @Test
+    public void testSerializationCacheHandlers() {
+        final ByteString myname = ByteString.copyFrom("namespace".getBytes());
+        final ByteString counter = ByteString.copyFrom("counter".getBytes());
+        final int[] serializations = new int[1];
+        Handlers.BaggageHandler handler = new Handlers.BaggageHandler() {
+            public void preSplit(BaggageImpl current) {}
+            public void postSplit(BaggageImpl left, BaggageImpl right) {}
+            public void preJoin(BaggageImpl left, BaggageImpl right) {}
+            public void postJoin(BaggageImpl current) {}
+            public void postDeserialize(BaggageImpl baggage) {}
+            public void preSerialize(BaggageImpl baggage) {
+                baggage.replace(myname, counter, ByteString.copyFrom(new byte[] { (byte) ++serializations[0] }));
+            }
+        };
+        Handlers.registerBaggageHandler(handler);
+        try {
+            BaggageImpl b = new BaggageImpl();
+            BaggageImpl b1 = BaggageImpl.deserialize(b.toByteString());
+            BaggageImpl b2 = BaggageImpl.deserialize(b.toByteString());
+            // handlers run on every serialization and their modifications are serialized
+            assertEquals(2, serializations[0]);
+            assertEquals(1, b1.get(myname, counter).iterator().next().byteAt(0));
+            assertEquals(2, b2.get(myname, counter).iterator().next().byteAt(0));
+        } finally {
+            Handlers.unregisterBaggageHandler(handler);
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.baggage.BaggageMessages.BaggageMessage;
+
+public class CompactStorageTest extends TestCase {
+
+    private static ByteString bs(String s) {
+        return ByteString.copyFromUtf8(s);
+    }
+
+    @Test
+    public void testAddGetRemove() {
+        CompactStorage s = new CompactStorage();
+        assertTrue(s.isEmpty());
+        s.add(bs("ns"), bs("k1"), bs("v1"));
+        s.add(bs("ns"), bs("k1"), bs("v1"));
+        s.add(bs("ns"), bs("k1"), bs("v2"));
+        s.add(bs("ns"), bs("k2"), bs("v3"));
+        assertTrue(s.contains(bs("ns"), bs("k1")));
+        assertFalse(s.contains(bs("ns"), bs("k3")));
+        assertFalse(s.contains(bs("ns2"), bs("k1")));
+        assertEquals(2, s.get(bs("ns"), bs("k1")).size());
+        assertTrue(s.get(bs("ns"), bs("k1")).contains(bs("v2")));
+        assertEquals(1, s.get(bs("ns"), bs("k2")).size());
+        s.remove(bs("ns"), bs("k1"));
+        assertFalse(s.contains(bs("ns"), bs("k1")));
+        assertTrue(s.hasNamespace(bs("ns")));
+        s.remove(bs("ns"), bs("k2"));
+        assertFalse(s.hasNamespace(bs("ns")));
+        assertTrue(s.isEmpty());
+    }
+
+    @Test
+    public void testOrdering() {
+        CompactStorage s = new CompactStorage();
+        s.add(bs("b"), bs("k"), bs("v"));
+        s.add(bs("a"), bs("k"), bs("v"));
+        s.add(ByteString.copyFrom(new byte[] { (byte) 0xff }), bs("k"), bs("v"));
+        s.add(bs("a"), bs("z"), bs("v"));
+        s.add(bs("a"), bs("c"), bs("v"));
+        assertEquals(Lists.newArrayList(bs("a"), bs("b"), ByteString.copyFrom(new byte[] { (byte) 0xff })),
+                Lists.newArrayList(s.namespaces()));
+        assertEquals(Lists.newArrayList(bs("c"), bs("k"), bs("z")), Lists.newArrayList(s.keys(bs("a"))));
+    }
+
+    @Test
+    public void testLongValues() {
+        CompactStorage s = new CompactStorage();
+        ByteString big = ByteString.copyFrom(new byte[1000]);
+        s.add(bs("ns"), bs("k"), big);
+        s.add(bs("ns2"), bs("k"), bs("v"));
+        assertEquals(big, s.get(bs("ns"), bs("k")).iterator().next());
+        assertTrue(s.contains(bs("ns2"), bs("k")));
+    }
+
+    @Test
+    public void testSplitCopyOnWrite() {
+        CompactStorage a = new CompactStorage();
+        a.add(bs("ns"), bs("k"), bs("v"));
+        CompactStorage b = (CompactStorage) a.split();
+        assertSame(a.data, b.data);
+        b.replace(bs("ns"), bs("k"), bs("v2"));
+        assertEquals(bs("v"), a.get(bs("ns"), bs("k")).iterator().next());
+        assertEquals(bs("v2"), b.get(bs("ns"), bs("k")).iterator().next());
+    }
+
+    @Test
+    public void testMoveEntries() {
+        CompactStorage s = new CompactStorage();
+        s.add(bs("from"), bs("k1"), bs("v1"));
+        s.add(bs("from"), bs("k2"), bs("v2"));
+        s.moveEntries(bs("from"), bs("to"));
+        assertFalse(s.hasNamespace(bs("from")));
+        assertTrue(s.get(bs("to"), bs("k1")).contains(bs("v1")));
+        s.add(bs("from"), bs("k1"), bs("v3"));
+        s.moveEntries(bs("from"), bs("to"));
+        assertEquals(2, s.get(bs("to"), bs("k1")).size());
+        assertEquals(1, s.get(bs("to"), bs("k2")).size());
+    }
+
+    /** Applies the same random operations to compact and multimap storage and checks they end up equivalent */
+    @Test
+    public void testEquivalentToMultimap() {
+        Random r = new Random(0);
+        for (int trial = 0; trial < 100; trial++) {
+            BaggageStorage compact = new CompactStorage();
+            BaggageStorage multimap = new MultimapStorage();
+            for (int i = 0; i < 50; i++) {
+                ByteString ns = bs("ns" + r.nextInt(3)), key = bs("k" + r.nextInt(4)), value = bs("v" + r.nextInt(5));
+                switch (r.nextInt(6)) {
+                case 0:
+                case 1:
+                    compact.add(ns, key, value);
+                    multimap.add(ns, key, value);
+                    break;
+                case 2:
+                    compact.replace(ns, key, value);
+                    multimap.replace(ns, key, value);
+                    break;
+                case 3:
+                    compact.remove(ns, key);
+                    multimap.remove(ns, key);
+                    break;
+                case 4:
+                    ByteString to = bs("ns" + r.nextInt(3));
+                    compact.moveEntries(ns, to);
+                    multimap.moveEntries(ns, to);
+                    break;
+                case 5:
+                    compact = compact.split();
+                    multimap = multimap.split();
+                    break;
+                }
+            }
+            assertEquivalent(multimap, compact);
+
+            BaggageMessage.Builder builder = BaggageMessage.newBuilder();
+            compact.writeTo(builder);
+            BaggageStorage deserialized = new CompactStorage();
+            for (BaggageMessage.NamespaceData nd : builder.build().getNamespaceList()) {
+                for (BaggageMessage.BagData bag : nd.getBagList()) {
+                    deserialized.addAll(nd.getKey(), bag.getKey(), bag.getValueList());
+                }
+            }
+            assertEquivalent(multimap, deserialized);
+        }
+    }
+
+    private static void assertEquivalent(BaggageStorage expected, BaggageStorage actual) {
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(expected.namespaces(), actual.namespaces());
+        for (ByteString ns : expected.namespaces()) {
+            Set<ByteString> keys = expected.keys(ns);
+            assertEquals(keys, actual.keys(ns));
+            for (ByteString key : keys) {
+                assertEquals(expected.get(ns, key), actual.get(ns, key));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package edu.brown.cs.systems.tracing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates random 64-bit IDs, such as task, event and bag IDs, without
+ * contention between threads.
+ *
+ * Each ID is a counter value mixed with a per-process seed, using the SplitMix64
+ * finalizer. The mixing is a bijection, so a process never generates the same ID
+ * twice. The seed is derived from the host, process ID and start time, so
+ * different processes generate unrelated sequences of IDs. To avoid threads
+ * contending on the shared counter, each thread reserves a block of counter
+ * values at a time.
+ */
+public class RandomIds {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final int BLOCK_SIZE = 1024; // Counter values reserved by a thread at a time
+
+    private static final long seed = mix64(31 * (17L * Utils.getHost().hashCode() + Utils.getProcessID())
+            + mix64(System.currentTimeMillis()) + System.nanoTime());
+    private static final AtomicLong nextBlock = new AtomicLong();
+
+    /** The next counter value of the thread, and the end of its reserved block */
+    private static final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private RandomIds() {
+    }
+
+    /** Returns a new random, non-zero ID */
+    public static long next() {
+        long[] counter = block.get();
+        long id;
+        do {
+            if (counter[0] == counter[1]) {
+                counter[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+                counter[1] = counter[0] + BLOCK_SIZE;
+            }
+            id = mix64(seed + GOLDEN_GAMMA * counter[0]++);
+        } while (id == 0); // Zero means no ID
+        return id;
+    }
+
+    /** The SplitMix64 finalizer, a bijection that thoroughly mixes bits */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
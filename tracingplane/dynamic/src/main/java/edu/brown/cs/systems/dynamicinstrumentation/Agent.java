@@ -1,11 +1,13 @@
 package edu.brown.cs.systems.dynamicinstrumentation;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.UnmodifiableClassException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ClassUtils;
@@ -17,9 +19,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.typesafe.config.ConfigFactory;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
+import javassist.CtClass;
 import javassist.NotFoundException;
 
 /** Does class reloading, modification, and hotswapping using Javassist to rewrite classes. The actual hotswapping
@@ -28,6 +32,8 @@ public abstract class Agent {
 
     private static final Logger log = LoggerFactory.getLogger(Agent.class);
 
+    private final ClassPools pools = new ClassPools(ConfigFactory.load().getInt("dynamic-instrumentation.class_pool_cache_size"));
+
     /** Reload original class definition */
     public void reset(String... classNames) throws UnmodifiableClassException, CannotCompileException {
         reset(Lists.newArrayList(classNames));
@@ -72,14 +78,36 @@ public abstract class Agent {
     }
 
     /** Install the provided modifications.  If a class is unknown, its modification is ignored, but if the provided modifications
-     * cannot compile then exceptions will be thrown */
-    public void install(Map<String, Collection<DynamicModification>> modifications, Collection<Throwable> problems) throws CannotCompileException, UnmodifiableClassException {
+     * cannot compile then exceptions will be thrown.  All modified classes are reloaded together in a single batch.
+     * @return timings of the installation */
+    public InstallTimings install(Map<String, Collection<DynamicModification>> modifications, Collection<Throwable> problems) throws CannotCompileException, UnmodifiableClassException {
+        long begin = System.nanoTime();
         Installation i = new Installation();
         i.modifyAll(modifications, problems);
+        long modified = System.nanoTime();
         if (!i.reloadMap.isEmpty()) {
-            log.info("Reloading {} classes: {}", modifications.size(), modifications.keySet());
+            log.info("Reloading {} classes: {}", i.reloadMap.size(), i.reloadMap.keySet());
             reload(i.reloadMap);
         }
+        InstallTimings timings = new InstallTimings(i.reloadMap.size(), modified - begin, System.nanoTime() - modified);
+        log.info("Installed modifications to {} classes in {} ms (modify {} ms, reload {} ms)", timings.classes,
+                TimeUnit.NANOSECONDS.toMillis(timings.modifyNanos + timings.reloadNanos),
+                TimeUnit.NANOSECONDS.toMillis(timings.modifyNanos), TimeUnit.NANOSECONDS.toMillis(timings.reloadNanos));
+        return timings;
+    }
+
+    /** Time taken to install modifications */
+    public static class InstallTimings {
+        public final long timestamp = System.currentTimeMillis();
+        public final int classes; // Number of classes reloaded
+        public final long modifyNanos; // Time spent rewriting and compiling classes
+        public final long reloadNanos; // Time spent redefining classes in the JVM
+
+        public InstallTimings(int classes, long modifyNanos, long reloadNanos) {
+            this.classes = classes;
+            this.modifyNanos = modifyNanos;
+            this.reloadNanos = reloadNanos;
+        }
     }
 
     /** Install the provided modifications asynchronously, swallowing exceptions */
@@ -106,28 +134,31 @@ public abstract class Agent {
         /** Apply modifications to a class */
         public void modify(String className, Collection<DynamicModification> modifications)
                 throws ClassNotFoundException, IOException, CannotCompileException, NotFoundException {
-            // Load the original definition if necessary
-            if (modifications.isEmpty()) {
-                reloadMap.put(className, getClassBytes(className));
-                return;
-            }
-
             // If there are no modifications, then just reload the original definition
+            byte[] original = getClassBytes(className);
             if (modifications.isEmpty()) {
+                reloadMap.put(className, original);
                 return;
             }
 
-            // Pool containing modified classes. Apparently uses a lot of memory - must destroy afterwards
-            ClassPool pool = new ClassPool(true);
+            // Pools only cache unmodified classes, so modify a fresh copy of the original definition and detach it
+            // from the pool afterwards.  Pools are not thread safe
             ClassPool.doPruning = true;
-
-            // Apply the modifications, saving the reason for any exceptions
-            for (DynamicModification m : modifications) {
-                m.apply(pool);
+            ClassPool pool = pools.get(ClassUtils.getClass(className).getClassLoader());
+            synchronized (pool) {
+                CtClass modified = pool.makeClass(new ByteArrayInputStream(original));
+                try {
+                    // Apply the modifications, saving the reason for any exceptions
+                    for (DynamicModification m : modifications) {
+                        m.apply(pool);
+                    }
+
+                    // Extract the modified class bytes for reloading
+                    reloadMap.put(className, modified.toBytecode());
+                } finally {
+                    modified.detach();
+                }
             }
-
-            // Extract the modified class bytes for reloading
-            reloadMap.put(className, pool.get(className).toBytecode());
         }
 
         /** Apply several modifications to multiple classes. If the specified class cannot be found or loaded for some
@@ -0,0 +1,39 @@
+package edu.brown.cs.systems.dynamicinstrumentation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+
+/** A bounded cache of Javassist class pools, one per class loader.  Creating a pool and loading the classes that
+ * modified classes reference is expensive, so pools are reused across installations rather than created for each
+ * modified class.  Class loaders are weakly referenced so that cached pools do not prevent them being unloaded */
+class ClassPools {
+
+    private final Cache<ClassLoader, ClassPool> pools;
+
+    ClassPools(int maxSize) {
+        pools = CacheBuilder.newBuilder().weakKeys().maximumSize(maxSize).build();
+    }
+
+    /** Get the class pool for classes loaded by the provided loader, or the system loader if null */
+    ClassPool get(ClassLoader loader) {
+        final ClassLoader poolLoader = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+        try {
+            return pools.get(poolLoader, new Callable<ClassPool>() {
+                public ClassPool call() {
+                    ClassPool pool = new ClassPool(true);
+                    pool.insertClassPath(new LoaderClassPath(poolLoader));
+                    return pool;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package edu.brown.cs.systems.dynamicinstrumentation;
 
 import java.lang.instrument.UnmodifiableClassException;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,6 +21,7 @@ public class DynamicManager {
     public final Collection<Throwable> problems = Lists.newArrayList();
     public final ChangeSet pending = new ChangeSet();
     public final Multimap<String, DynamicModification> installed = HashMultimap.create();
+    public volatile Agent.InstallTimings lastInstall = null; // Timings of the most recent install that reloaded classes
     
     public DynamicManager(Agent agent) {
         this.agent = agent;
@@ -67,14 +69,16 @@ public class DynamicManager {
     public DynamicManager clear() {
         pending.cancel();
         pending.toRemove.addAll(installed.values());
-        installed.clear();
         return this;
     }
     
     public void install() throws CannotCompileException, UnmodifiableClassException {
         if (agent != null) {
             problems.clear();
-            agent.install(pending.changes(), problems);
+            Map<String, Collection<DynamicModification>> changes = pending.changes();
+            if (!changes.isEmpty()) {
+                lastInstall = agent.install(changes, problems);
+            }
             pending.persist();
         }
     }
@@ -133,6 +137,14 @@ public class DynamicManager {
                 }
             }
             
+            // Only reinstall classes whose modifications have changed, unless explicitly refreshed
+            for (Iterator<String> it = toInstall.keySet().iterator(); it.hasNext();) {
+                String className = it.next();
+                if (!toRefresh.contains(className) && installed.get(className).equals(toInstall.get(className))) {
+                    it.remove();
+                }
+            }
+            
             return toInstall;
         }
         
@@ -1,6 +1,7 @@
 package edu.brown.cs.systems.dynamicinstrumentation;
 
 import java.io.IOException;
+import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
@@ -8,6 +9,7 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.lang.management.ManagementFactory;
 import java.net.URLDecoder;
 import java.security.ProtectionDomain;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -16,6 +18,7 @@ import org.apache.commons.lang3.ClassUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.sun.tools.attach.AgentInitializationException;
 import com.sun.tools.attach.AgentLoadException;
@@ -88,9 +91,28 @@ public class JVMAgent extends Agent {
         }
     }
 
+    /** Redefine all of the modified classes in a single batch */
     @Override
     public void reload(Map<String, byte[]> modifiedClassFiles) throws UnmodifiableClassException {
-        new Transformer(modifiedClassFiles).transform();
+        if (!instrumentation.isRedefineClassesSupported()) {
+            new Transformer(modifiedClassFiles).transform();
+            return;
+        }
+        
+        List<ClassDefinition> definitions = Lists.newArrayListWithExpectedSize(modifiedClassFiles.size());
+        for (String className : modifiedClassFiles.keySet()) {
+            try {
+                definitions.add(new ClassDefinition(ClassUtils.getClass(className), modifiedClassFiles.get(className)));
+            } catch (ClassNotFoundException e) {
+                // If the class can't be found, just ignore it
+                log.warn("Unable to reload class " + className, e);
+            }
+        }
+        try {
+            instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+        } catch (ClassNotFoundException e) {
+            log.warn("Unable to reload classes", e);
+        }
     }
     
     /** Transforms class files as they are reloaded */
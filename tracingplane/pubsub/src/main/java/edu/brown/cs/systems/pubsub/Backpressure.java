@@ -0,0 +1,227 @@
+package edu.brown.cs.systems.pubsub;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
+
+import edu.brown.cs.systems.pubsub.io.Frame;
+
+/**
+ * Decides what happens when a message is published to a topic while the
+ * client's queue of pending messages is full. Each topic has its own policy
+ * instance, which counts the topic's published and dropped messages.
+ *
+ * Policies are configured by pubsub.client.backpressure, with per-topic
+ * overrides in pubsub.client.backpressure.topics. Each override applies to the
+ * topic named by its topic setting, or to the topic with the same name as the
+ * override if it has no topic setting. This lets modules refer to their
+ * configured topic names, eg. mytopics { topic = ${my.topic}, policy = block }.
+ * The available policies are:
+ * <ul>
+ * <li>drop-oldest: drop the oldest queued message that may be dropped</li>
+ * <li>drop-newest: drop the message being published</li>
+ * <li>block: wait up to timeoutMs for space in the queue, or indefinitely if
+ * timeoutMs is 0, then drop the message being published</li>
+ * <li>sample: keep a fraction rate of the messages published while the queue
+ * is full, dropping the oldest queued message to make room for each</li>
+ * </ul>
+ * Queued messages of topics with the block policy are never dropped to make
+ * room for other messages, nor when unsent messages are requeued after the
+ * client reconnects.
+ */
+public abstract class Backpressure {
+
+    public static final String DROP_OLDEST = "drop-oldest";
+    public static final String DROP_NEWEST = "drop-newest";
+    public static final String BLOCK = "block";
+    public static final String SAMPLE = "sample";
+
+    final byte[] topic;
+    final AtomicLong published = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong blocked = new AtomicLong();
+
+    private Backpressure(String topic) {
+        this.topic = topic.getBytes();
+    }
+
+    /** Create the configured policy for a topic */
+    static Backpressure create(String topic, Config config) {
+        Config override = override(topic, config);
+        if (override != null) {
+            config = override.withFallback(config);
+        }
+        String policy = config.getString("policy");
+        if (DROP_OLDEST.equals(policy)) {
+            return new DropOldest(topic);
+        } else if (DROP_NEWEST.equals(policy)) {
+            return new DropNewest(topic);
+        } else if (BLOCK.equals(policy)) {
+            return new Block(topic, config.getLong("timeoutMs"));
+        } else if (SAMPLE.equals(policy)) {
+            return new Sample(topic, config.getDouble("rate"));
+        } else {
+            throw new IllegalArgumentException("Unknown backpressure policy " + policy + " for topic " + topic);
+        }
+    }
+
+    /** Find the per-topic override that applies to a topic, or return null if there is none */
+    private static Config override(String topic, Config config) {
+        if (!config.hasPath("topics")) {
+            return null;
+        }
+        Config topics = config.getConfig("topics");
+        for (String name : topics.root().keySet()) {
+            Config override = topics.getConfig(ConfigUtil.joinPath(name));
+            if (topic.equals(override.hasPath("topic") ? override.getString("topic") : name)) {
+                return override;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of messages published to this topic, including dropped messages */
+    public long published() {
+        return published.get();
+    }
+
+    /** @return the number of messages on this topic that were dropped */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /** @return the number of publish calls that had to wait for space in the queue */
+    public long blocked() {
+        return blocked.get();
+    }
+
+    /** @return the name of this policy */
+    public abstract String name();
+
+    /** True if queued messages of this topic may be dropped to make room for other messages */
+    boolean lossy() {
+        return true;
+    }
+
+    /** Called when a queued message of this topic is dropped to make room for another message */
+    void evicted() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Enqueue a message on the client's pending queue
+     *
+     * @return true if the message was queued, false if it was dropped
+     */
+    boolean enqueue(PubSubClient client, Frame frame) {
+        published.incrementAndGet();
+        if (client.pending.offer(frame) || overflow(client, frame)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /** Called when the queue is full. Returns true if the message was eventually queued */
+    abstract boolean overflow(PubSubClient client, Frame frame);
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s] published=%d dropped=%d blocked=%d", new String(topic), name(), published(),
+                dropped(), blocked());
+    }
+
+    static class DropOldest extends Backpressure {
+        DropOldest(String topic) {
+            super(topic);
+        }
+
+        public String name() {
+            return DROP_OLDEST;
+        }
+
+        boolean overflow(PubSubClient client, Frame frame) {
+            while (client.evictOldest()) {
+                if (client.pending.offer(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class DropNewest extends Backpressure {
+        DropNewest(String topic) {
+            super(topic);
+        }
+
+        public String name() {
+            return DROP_NEWEST;
+        }
+
+        boolean overflow(PubSubClient client, Frame frame) {
+            return false;
+        }
+    }
+
+    static class Block extends Backpressure {
+        final long timeoutMs;
+
+        Block(String topic, long timeoutMs) {
+            super(topic);
+            this.timeoutMs = timeoutMs;
+        }
+
+        public String name() {
+            return BLOCK;
+        }
+
+        boolean lossy() {
+            return false;
+        }
+
+        boolean overflow(PubSubClient client, Frame frame) {
+            blocked.incrementAndGet();
+            try {
+                if (timeoutMs <= 0) {
+                    client.pending.put(frame);
+                    return true;
+                } else {
+                    return client.pending.offer(frame, timeoutMs, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    static class Sample extends Backpressure {
+        private final double rate;
+
+        Sample(String topic, double rate) {
+            super(topic);
+            this.rate = rate;
+        }
+
+        public String name() {
+            return SAMPLE;
+        }
+
+        boolean overflow(PubSubClient client, Frame frame) {
+            if (ThreadLocalRandom.current().nextDouble() >= rate) {
+                return false;
+            }
+            while (client.evictOldest()) {
+                if (client.pending.offer(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
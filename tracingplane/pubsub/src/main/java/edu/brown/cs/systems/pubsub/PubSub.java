@@ -124,6 +124,14 @@ public class PubSub {
         client().publish(topic, StringMessage.newBuilder().setMessage(message).build());
     }
 
+    /** Publishes an already serialized message to the specified topic using the default publisher
+     * 
+     * @param topic the topic to publish on
+     * @param message the serialized message to publish */
+    public static void publish(String topic, byte[] message) {
+        client().publish(topic, message);
+    }
+
     /** Wait for all pending messages to be sent to the server  */
     public static boolean awaitFlush(long timeout) throws InterruptedException {
         return client().waitUntilEmpty(timeout);
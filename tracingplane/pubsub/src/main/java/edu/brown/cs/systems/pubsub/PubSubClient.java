@@ -3,12 +3,19 @@ package edu.brown.cs.systems.pubsub;
 import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,21 +24,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Queues;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import edu.brown.cs.systems.pubsub.PubSubProtos.ControlMessage;
 import edu.brown.cs.systems.pubsub.PubSubProtos.StringMessage;
+import edu.brown.cs.systems.pubsub.io.Frame;
+import edu.brown.cs.systems.pubsub.io.FrameWriter;
 import edu.brown.cs.systems.pubsub.io.TopicReader;
-import edu.brown.cs.systems.pubsub.io.TopicWriter;
-import edu.brown.cs.systems.pubsub.message.ProtobufMessage;
-import edu.brown.cs.systems.pubsub.message.TopicMessage;
 
+/**
+ * Client thread that publishes messages to and receives messages from a pubsub
+ * server.
+ *
+ * Published messages are serialized straight into frames and queued. The
+ * client thread coalesces queued frames into batches of up to
+ * pubsub.client.batchBytes, sent with gathering writes. If
+ * pubsub.client.lingerMs is set, the client waits up to that long for a batch
+ * to fill before sending it. Publishers only wake the client thread when it
+ * might be waiting for messages, rather than on every publish.
+ *
+ * If the queue is full when a message is published, the topic's
+ * {@link Backpressure} policy decides which message is dropped, if any.
+ */
 public class PubSubClient extends Thread {
 
     static final Logger log = LoggerFactory.getLogger(PubSubClient.class);
@@ -41,16 +63,31 @@ public class PubSubClient extends Thread {
 
     public final int maxPendingMessages;
 
+    // Max bytes of messages to send per batch, and max time to wait for a batch to fill
+    public final long batchBytes;
+    public final long lingerMs;
+
     // Server to connect to
     public final String hostname;
     public final int port;
 
     // Outgoing messages
-    private TopicMessage current = null;
-    final BlockingDeque<TopicMessage> pending;
+    final BlockingDeque<Frame> pending;
+    private final AtomicLong pendingBytes = new AtomicLong(); // Total length of pending and requeued frames
+    private final Deque<Frame> requeued = new ArrayDeque<Frame>(); // Unsent frames that may not be dropped, sent first
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(); // True if the client thread needs no wakeup
+    private FrameWriter writer = null; // Writer for the current connection, if any
+    private volatile long inFlightBytes = 0; // Bytes taken from the queue by the writer but not yet written
+    private Frame subscriptions = null; // Subscriptions sent when the current connection was established
+    private long lingerStart = 0; // Time that the client started waiting for the current batch to fill
     final Lock notifyLock = new ReentrantLock();
     final Condition notifyCondition = notifyLock.newCondition();
 
+    // Backpressure policies of each topic published to, by name and by topic bytes
+    private final Config backpressureConfig;
+    private final ConcurrentMap<String, Backpressure> backpressure = Maps.newConcurrentMap();
+    private final ConcurrentMap<ByteBuffer, Backpressure> backpressureByTopic = Maps.newConcurrentMap();
+
     // Selector
     private final Selector selector;
 
@@ -58,9 +95,17 @@ public class PubSubClient extends Thread {
     private final Multimap<ByteString, Subscriber<?>> subscribers = HashMultimap.create();
 
     PubSubClient(String hostname, int port, int maxPendingMessages) throws IOException {
+        this(hostname, port, maxPendingMessages, ConfigFactory.load().getConfig("pubsub.client.backpressure"));
+    }
+
+    PubSubClient(String hostname, int port, int maxPendingMessages, Config backpressureConfig) throws IOException {
         this.hostname = hostname;
         this.port = port;
         this.maxPendingMessages = maxPendingMessages;
+        Config config = ConfigFactory.load();
+        this.batchBytes = config.getBytes("pubsub.client.batchBytes");
+        this.lingerMs = config.getDuration("pubsub.client.lingerMs", TimeUnit.MILLISECONDS);
+        this.backpressureConfig = backpressureConfig;
         if (maxPendingMessages <= 0) {
             this.pending = Queues.newLinkedBlockingDeque();
         } else {
@@ -82,34 +127,98 @@ public class PubSubClient extends Thread {
         } catch (InterruptedException e) {}
     }
 
-    /** Wait until the client's pending queue is empty. May not work if there are people concurrently adding to the
-     * queue */
+    /** Wait until the client's pending queue is empty and every message taken from it has been written. May not work
+     * if there are people concurrently adding to the queue */
     public boolean waitUntilEmpty(long timeout) throws InterruptedException {
-        if (!notifyLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        if (!notifyLock.tryLock(remaining, TimeUnit.NANOSECONDS)) {
             return false;
         }
-        
+
         try {
-            // Only return true if the condition is explicitly triggered
-            return pending.isEmpty() || notifyCondition.await(timeout, TimeUnit.MILLISECONDS);            
+            while (!isFlushed()) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                notifyCondition.awaitNanos(remaining);
+            }
+            return true;
         } finally {
             notifyLock.unlock();
         }
     }
 
+    /** True if nothing is queued and nothing is waiting in the writer. A frame's bytes remain counted in pendingBytes
+     * until the writer has counted them in inFlightBytes */
+    private boolean isFlushed() {
+        return pending.isEmpty() && pendingBytes.get() == 0 && inFlightBytes == 0;
+    }
+
     /** Publish a message to the server */
     public void publish(String topic, Message message) {
         log.debug("Publishing topic {}, message {}", topic, message);
+        Backpressure policy = backpressure(topic);
+        publish(policy, Frame.wrap(policy.topic, message));
+    }
 
-        ProtobufMessage proto = new ProtobufMessage(topic, message);
+    /** Publish an already serialized message to the server */
+    public void publish(String topic, byte[] message) {
+        log.debug("Publishing topic {}, {} bytes", topic, message.length);
+        Backpressure policy = backpressure(topic);
+        publish(policy, Frame.wrap(policy.topic, message));
+    }
 
-        // Enqueue the message
-        while (!pending.offer(proto)) {
-            pending.pollFirst();
+    private void publish(Backpressure policy, Frame frame) {
+        // Enqueue the message, applying the topic's backpressure policy if the queue is full
+        if (!policy.enqueue(this, frame)) {
+            log.debug("Dropped message on topic {}", policy);
+            return;
         }
+        long queuedBytes = pendingBytes.addAndGet(frame.length());
+
+        // Wake up the selector if the client thread might be waiting for messages, or if a lingering batch just
+        // filled up
+        if (!wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        } else if (lingerMs > 0 && queuedBytes >= batchBytes && queuedBytes - frame.length() < batchBytes) {
+            selector.wakeup();
+        }
+    }
 
-        // Wake up the selector
-        selector.wakeup();
+    /** Get the backpressure policy of a topic, which also counts the topic's dropped messages */
+    public Backpressure backpressure(String topic) {
+        Backpressure policy = backpressure.get(topic);
+        if (policy == null) {
+            Backpressure created = Backpressure.create(topic, backpressureConfig);
+            policy = backpressure.putIfAbsent(topic, created);
+            if (policy == null) {
+                policy = created;
+                backpressureByTopic.put(ByteBuffer.wrap(created.topic), created);
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Drop the oldest queued message whose topic allows messages to be dropped
+     *
+     * @return true if a message was dropped, false if there are no queued
+     *         messages that can be dropped
+     */
+    boolean evictOldest() {
+        for (Frame frame : pending) {
+            Backpressure policy = backpressureByTopic.get(frame.topic());
+            if ((policy == null || policy.lossy()) && pending.removeFirstOccurrence(frame)) {
+                pendingBytes.addAndGet(-frame.length());
+                if (policy != null) {
+                    policy.evicted();
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
     public synchronized void subscribe(String topic, Subscriber<?> subscriber) {
@@ -154,35 +263,48 @@ public class PubSubClient extends Thread {
 
     }
 
-    /** Writes the current message to the channel */
-    private class ClientWriter extends TopicWriter {
-        private TopicMessage subscriptions = null;
-
-        public ClientWriter(SocketChannel channel, TopicMessage subscriptions) {
-            super(channel);
-            this.subscriptions = subscriptions;
-        }
-
-        public TopicMessage CurrentMessage() {
-            if (subscriptions != null) {
-                return subscriptions;
-            } else if (current != null) {
-                return current;
-            } else {
-                return current = pending.poll();
+    /**
+     * Moves pending messages to the writer until it holds batchBytes. If the
+     * writer is idle and fewer than batchBytes are pending, waits up to
+     * lingerMs for more messages first.
+     *
+     * @return the number of milliseconds to wait for the batch to fill, or 0
+     *         if there is no need to wait
+     */
+    private long fillBatch() {
+        if (lingerMs > 0 && !writer.canWrite() && !(pending.isEmpty() && requeued.isEmpty())
+                && pendingBytes.get() < batchBytes) {
+            long now = System.currentTimeMillis();
+            if (lingerStart == 0) {
+                lingerStart = now;
+            }
+            if (now - lingerStart < lingerMs) {
+                return lingerMs - (now - lingerStart);
             }
         }
+        lingerStart = 0;
 
-        public void MessageSendComplete() {
-            current = null;
-            subscriptions = null;
+        // Anything published after this point will wake the selector
+        wakeupPending.set(false);
+
+        Frame frame;
+        while (writer.pendingBytes() < batchBytes && ((frame = requeued.poll()) != null || (frame = pending.poll()) != null)) {
+            writer.enqueue(frame);
+            inFlightBytes = writer.pendingBytes();
+            pendingBytes.addAndGet(-frame.length());
         }
+        return 0;
     }
 
     /** The main client loop when we've connected to the server. Selects on the selector and does async read/write */
     private void ClientThreadMainLoop(SocketChannel channel) throws IOException {
-        // Create subscription message if we have some already
-        TopicMessage subscriptions = null;
+        // Create a message reader and writer
+        log.debug("Creating client reader and writer for channel {}", channel);
+        ClientReader reader = new ClientReader(channel);
+        writer = new FrameWriter(channel);
+        SelectionKey k = channel.register(selector, SelectionKey.OP_READ);
+
+        // Send subscriptions first if we have some already
         synchronized (this) {
             if (subscribers.size() > 0) {
                 log.debug("Sending existing subscriptions");
@@ -190,18 +312,16 @@ public class PubSubClient extends Thread {
                 for (ByteString topic : subscribers.keySet()) {
                     msg.addTopicSubscribe(topic);
                 }
-                subscriptions = new ProtobufMessage(CONTROL_TOPIC, msg.build());
+                subscriptions = Frame.wrap(CONTROL_TOPIC.getBytes(), msg.build());
+                writer.enqueue(subscriptions);
             }
         }
 
-        // Create a message reader and writer
-        log.debug("Creating client reader and writer for channel {}", channel);
-        ClientReader reader = new ClientReader(channel);
-        ClientWriter writer = new ClientWriter(channel, subscriptions);
-        SelectionKey k = channel.register(selector, SelectionKey.OP_READ);
-
         // Do main loop
         while (!Thread.currentThread().isInterrupted()) {
+            // Batch up pending messages
+            long linger = fillBatch();
+
             // Register for read and write as needed
             int ops = SelectionKey.OP_READ;
             if (writer.canWrite()) {
@@ -210,7 +330,7 @@ public class PubSubClient extends Thread {
             k.interestOps(ops);
 
             // Wait until we can do something
-            selector.select(1000);
+            selector.select(linger > 0 ? linger : 1000);
 
             // Deal with keys
             Iterator<SelectionKey> it = selector.selectedKeys().iterator();
@@ -233,10 +353,13 @@ public class PubSubClient extends Thread {
                 // Check to see whether we can read and write
                 if (k.isWritable()) {
                     log.debug("Writing");
-                    boolean hasRemaining = writer.write();
-                    
-                    // Signal anybody waiting
-                    if (!hasRemaining) {
+                    while (!writer.write() && fillBatch() == 0 && writer.canWrite()) {
+                        // Keep writing batches until the channel is full or nothing is left to send
+                    }
+                    inFlightBytes = writer.pendingBytes();
+
+                    // Signal anybody waiting, once the last batch has been written
+                    if (!writer.canWrite() && pending.isEmpty() && requeued.isEmpty()) {
                         notifyLock.lock();
                         try {
                             notifyCondition.signalAll();
@@ -274,10 +397,34 @@ public class PubSubClient extends Thread {
                 channel.close();
             }
 
-            // Any current message, try to reinsert in front of queue, dump if full
-            if (current != null) {
-                pending.offerFirst(current);
-                current = null;
+            // Reinsert unsent messages at the front of the queue, making room by dropping messages if it is full. Messages
+            // that may not be dropped are kept aside instead if there is no room, and sent before the queue
+            if (writer != null) {
+                List<Frame> unsent = writer.drain();
+                for (int i = unsent.size() - 1; i >= 0; i--) {
+                    Frame frame = unsent.get(i);
+                    if (frame == subscriptions) {
+                        continue;
+                    }
+                    Backpressure policy = backpressureByTopic.get(frame.topic());
+                    boolean lossy = policy == null || policy.lossy();
+                    boolean queued;
+                    if (lossy) {
+                        while (!(queued = pending.offerFirst(frame)) && evictOldest()) {
+                            // Keep evicting until there is room
+                        }
+                    } else {
+                        queued = (requeued.isEmpty() && pending.offerFirst(frame)) || requeued.offerFirst(frame);
+                    }
+                    if (queued) {
+                        pendingBytes.addAndGet(frame.length());
+                    } else if (policy != null) {
+                        policy.dropped.incrementAndGet();
+                    }
+                }
+                writer = null;
+                subscriptions = null;
+                inFlightBytes = 0;
             }
         }
     }
@@ -2,50 +2,83 @@ package edu.brown.cs.systems.pubsub;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Queues;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.collect.Table;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import edu.brown.cs.systems.pubsub.PubSubProtos.ControlMessage;
-import edu.brown.cs.systems.pubsub.io.TopicReader;
-import edu.brown.cs.systems.pubsub.io.TopicWriter;
-import edu.brown.cs.systems.pubsub.message.ByteMessage;
-import edu.brown.cs.systems.pubsub.message.TopicMessage;
-
+import edu.brown.cs.systems.pubsub.io.BufferPool;
+import edu.brown.cs.systems.pubsub.io.Frame;
+import edu.brown.cs.systems.pubsub.io.FrameReader;
+import edu.brown.cs.systems.pubsub.io.FrameWriter;
+
+/**
+ * The pubsub server. Clients are served by one or more event loops, each with
+ * its own selector. With no workers, the server thread accepts connections and
+ * serves all clients itself. With N workers, the server thread only accepts
+ * connections, and assigns them round-robin to N worker threads.
+ *
+ * Each client is only ever read from and written to by the thread of the event
+ * loop it is assigned to. Messages routed to a client on a different event loop
+ * are handed off to that loop through a lock-free queue.
+ *
+ * Messages are routed without copying. Incoming bytes are read into pooled
+ * direct buffers, and each received message is forwarded to every subscriber
+ * as a reference counted slice of the buffer it was read into. Topics are
+ * interned to integer IDs when first subscribed to.
+ */
 public class PubSubServer extends Thread {
 
     private static final Logger log = LoggerFactory.getLogger(PubSubServer.class);
 
     // Topic on which control messages are sent
-    private final byte[] CONTROL_TOPIC = ConfigFactory.load().getString("pubsub.topics.control").getBytes();
+    private final ByteBuffer CONTROL_TOPIC = ByteBuffer
+            .wrap(ConfigFactory.load().getString("pubsub.topics.control").getBytes()).asReadOnlyBuffer();
+
+    // Buffers that incoming messages are read into
+    private final BufferPool buffers;
+    private final int maxMessageBytes; // Clients that send larger messages are disconnected
 
     private final ServerSocketChannel serverSocketChannel;
-    private final Selector selector;
     private final SelectionKey serverKey;
 
-    private final Set<ConnectedClient> connected = Sets.newHashSet();
-    private final Table<ConnectedClient, ByteString, Boolean> subscriptions = HashBasedTable.create();
+    private final EventLoop acceptor; // Event loop of the server thread
+    private final List<EventLoop> workers = Lists.newArrayList(); // Worker event loops, if any
+    private final List<Thread> workerThreads = Lists.newArrayList();
+    private int nextWorker = 0; // Round-robin assignment of new clients
+
+    private final Set<ConnectedClient> connected = Sets.newConcurrentHashSet();
+
+    // Topics that have been subscribed to, looked up by topic bytes or by ID
+    private final ConcurrentMap<ByteBuffer, Topic> topics = Maps.newConcurrentMap();
+    private final List<Topic> topicsById = new CopyOnWriteArrayList<Topic>();
 
     /**
-     * Creates and immediately binds a pubsub server
-     * 
+     * Creates and immediately binds a pubsub server. The number of worker
+     * threads is taken from pubsub.server.workers
+     *
      * @param hostname
      *            the hostname to bind to
      * @param port
@@ -55,16 +88,45 @@ public class PubSubServer extends Thread {
      *             or register the selector
      */
     public PubSubServer(String hostname, int port) throws IOException {
+        this(hostname, port, ConfigFactory.load().getInt("pubsub.server.workers"));
+    }
+
+    /**
+     * Creates and immediately binds a pubsub server
+     *
+     * @param hostname
+     *            the hostname to bind to
+     * @param port
+     *            the port to bind to
+     * @param numWorkers
+     *            the number of worker threads that serve clients. If 0, the
+     *            server thread serves all clients
+     * @throws IOException
+     *             if we were unable to create/bind the server, open a selector,
+     *             or register the selector
+     */
+    public PubSubServer(String hostname, int port, int numWorkers) throws IOException {
         // Open the server socket, bind it, and make non-blocking
-        log.info("Creating server hostname {}, port {}", hostname, port);
+        log.info("Creating server hostname {}, port {}, {} workers", hostname, port, numWorkers);
+        Config config = ConfigFactory.load();
+        buffers = new BufferPool(config.getInt("pubsub.server.bufferSize"), config.getInt("pubsub.server.pooledBuffers"));
+        maxMessageBytes = config.getInt("pubsub.server.maxMessageBytes");
+
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.socket().bind(new InetSocketAddress(hostname, port));
         serverSocketChannel.configureBlocking(false);
 
-        // Create selector
+        // Create selectors
         log.debug("Creating and registering selector");
-        selector = Selector.open();
-        serverKey = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        acceptor = new EventLoop();
+        serverKey = serverSocketChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < numWorkers; i++) {
+            EventLoop worker = new EventLoop();
+            workers.add(worker);
+            Thread workerThread = new Thread(worker, "PubSubServer-worker-" + i);
+            workerThread.setDaemon(true);
+            workerThreads.add(workerThread);
+        }
     }
 
     /**
@@ -85,134 +147,88 @@ public class PubSubServer extends Thread {
      */
     @Override
     public void run() {
+        for (Thread workerThread : workerThreads) {
+            workerThread.start();
+        }
         try {
-            ServerThreadMain();
-        } catch (IOException e) {
-            e.printStackTrace();
+            acceptor.run();
         } finally {
             try {
                 log.debug("Closing server socket channel");
                 serverSocketChannel.close();
-                selector.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            log.debug("Stopping worker threads");
+            for (Thread workerThread : workerThreads) {
+                workerThread.interrupt();
+            }
+            for (Thread workerThread : workerThreads) {
+                try {
+                    workerThread.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
         }
     }
 
     /**
-     * Main server loop
-     * 
-     * @throws IOException
-     *             if we get an IO exception while selecting on the selector, or
-     *             if an IO exception occurs while attempting to accept a new
-     *             connection
+     * Accept a pending connection and assign it to an event loop
      */
-    private void ServerThreadMain() throws IOException {
-        log.debug("Running main thread");
-        while (!Thread.currentThread().isInterrupted()) {
-            // Wait for something
-            selector.select();
-
-            // See what changed
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                // Get and remove next key
-                SelectionKey k = it.next();
-                it.remove();
-
-                // See if the server key is acceptable
-                if (k == serverKey && k.isAcceptable()) {
-                    SocketChannel accepted = serverSocketChannel.accept();
-                    if (accepted != null) {
-                        log.info("Accepted incoming connection {}", accepted);
-                        try {
-                            connected.add(new ConnectedClient(accepted));
-                        } catch (ClosedChannelException e) {
-                            // Channel immediately was closed before creating a
-                            // client
-                        }
-                    }
-                    log.debug("Acceptable channel {} could not accept", k);
-                    continue;
-                }
-
-                // Get the client for this key
-                ConnectedClient client = null;
-                try {
-                    client = (ConnectedClient) k.attachment();
-                } catch (ClassCastException e) {
-                    log.debug("No connected client for key {}: {}", k, e);
-                    log.debug("Cancelling key {}", k);
-                    k.cancel();
-                    continue;
-                }
-
-                // Not sure when this could happen, but just in case...
-                if (client == null) {
-                    log.debug("No connected client for key {}", k);
-                    log.debug("Cancelling key {}", k);
-                    k.cancel();
-                    continue;
-                }
-
-                // If key is no longer valid, remove the client
-                if (!k.isValid()) {
-                    log.debug("Closing client with invalid key {}: {}", k, client);
-                    client.close();
-                    continue;
-                }
-
-                // To to read/write, and remove client on error
-                try {
-                    if (k.isReadable()) {
-                        log.debug("{} readable", client.channel);
-                        if (!client.reader.read()) {
-                            log.info("{} reached end of stream", client.channel);
-                            client.close();
-                            continue;
-                        }
-                    }
-                    if (k.isWritable()) {
-                        log.debug("{} writeable", client.channel);
-                        client.writer.write();
-                    }
-                    client.UpdateSelector();
-                } catch (IOException e) {
-                    log.info("IOException for client {}: {}", client, e);
-                    client.close();
-                    continue;
-                }
-            }
+    private void accept() throws IOException {
+        SocketChannel accepted = serverSocketChannel.accept();
+        if (accepted == null) {
+            log.debug("Acceptable channel could not accept");
+            return;
+        }
+        log.info("Accepted incoming connection {}", accepted);
+        if (workers.isEmpty()) {
+            acceptor.register(accepted);
+        } else {
+            EventLoop worker = workers.get(nextWorker);
+            nextWorker = (nextWorker + 1) % workers.size();
+            worker.accepted.offer(accepted);
+            worker.wakeup();
         }
     }
 
     /**
-     * Handle an incoming message from a client
+     * Handle an incoming message from a client. Called by the event loop of the
+     * sending client
      */
-    private void route(ConnectedClient from, TopicMessage message) {
+    private void route(ConnectedClient from, Frame frame) {
+        ByteBuffer topicBytes = frame.topic();
+
         // Additional handling for control messages
-        if (Arrays.equals(message.topic(), CONTROL_TOPIC)) {
-            handleControlMessage(from, message.message());
+        if (topicBytes.equals(CONTROL_TOPIC)) {
+            handleControlMessage(from, frame.message());
         }
 
         // Route the message
-        log.debug("Routing message on topic {}", message.topic());
-        log.debug("Subscriptions: {}", subscriptions);
-        for (ConnectedClient client : subscriptions.column(ByteString.copyFrom(message.topic())).keySet()) {
-            log.debug("Routing from {} to {} message {}", from, client, message);
-            client.outgoing.offer(message);
-            client.UpdateSelector();
+        Topic topic = topics.get(topicBytes);
+        log.debug("Routing message on topic {}", topic);
+        if (topic == null) {
+            return;
+        }
+        for (ConnectedClient client : topic.subscribers) {
+            log.debug("Routing from {} to {} message on topic {}", from, client, topic);
+            if (client.loop == from.loop) {
+                client.writer.enqueue(frame.share());
+                client.UpdateSelector();
+            } else {
+                client.loop.handoff(client, frame.share());
+            }
         }
     }
 
     /**
      * Handles a control message from a client (publish, subscribe, etc.)
      */
-    private void handleControlMessage(ConnectedClient client, byte[] bytes) {
+    private void handleControlMessage(ConnectedClient client, ByteBuffer bytes) {
         ControlMessage message;
         try {
-            message = ControlMessage.parseFrom(bytes);
+            message = ControlMessage.parseFrom(ByteString.copyFrom(bytes));
             log.debug("Control message from client {}: {}", client, message);
         } catch (InvalidProtocolBufferException e) {
             // Bad message, ignore
@@ -229,7 +245,7 @@ public class PubSubServer extends Thread {
                     log.info("{} unsubscribing from {}", client, unsubscribe);
                 }
             }
-            subscriptions.remove(client, unsubscribe);
+            unsubscribe(client, unsubscribe);
         }
 
         // Do subscribes
@@ -241,7 +257,239 @@ public class PubSubServer extends Thread {
                     log.info("{} subscribing to {}", client, subscribe);
                 }
             }
-            subscriptions.put(client, subscribe, true);
+            subscribe(client, subscribe);
+        }
+    }
+
+    private void subscribe(ConnectedClient client, ByteString name) {
+        Topic topic = intern(name);
+        topic.subscribers.add(client);
+        client.topicIds.set(topic.id);
+    }
+
+    private void unsubscribe(ConnectedClient client, ByteString name) {
+        Topic topic = topics.get(name.asReadOnlyByteBuffer());
+        if (topic != null) {
+            topic.subscribers.remove(client);
+            client.topicIds.clear(topic.id);
+        }
+    }
+
+    /**
+     * Get the topic with the provided name, assigning it an ID if it is new
+     */
+    private Topic intern(ByteString name) {
+        ByteBuffer key = name.asReadOnlyByteBuffer();
+        Topic topic = topics.get(key);
+        if (topic == null) {
+            synchronized (topicsById) {
+                topic = topics.get(key);
+                if (topic == null) {
+                    topic = new Topic(topicsById.size(), name);
+                    topicsById.add(topic);
+                    topics.put(key, topic);
+                }
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * A topic that has been subscribed to, and its current subscribers
+     */
+    private static class Topic {
+        final int id;
+        final ByteString name;
+        final Set<ConnectedClient> subscribers = Sets.newConcurrentHashSet();
+
+        Topic(int id, ByteString name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name.isValidUtf8() ? name.toStringUtf8() : name.toString();
+        }
+    }
+
+    /**
+     * A message routed to a client that is served by a different event loop
+     */
+    private static class Handoff {
+        final ConnectedClient to;
+        final Frame frame;
+
+        Handoff(ConnectedClient to, Frame frame) {
+            this.to = to;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Selects on, reads from, and writes to a set of clients. Other threads
+     * pass it new connections and routed messages through lock-free queues.
+     */
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Set<ConnectedClient> clients = Sets.newHashSet(); // Clients of this loop
+
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>(); // New clients
+        final Queue<Handoff> handoffs = new ConcurrentLinkedQueue<Handoff>(); // Messages routed from other loops
+        final AtomicBoolean wakeupPending = new AtomicBoolean(false); // Avoids redundant selector wakeups
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Wake up the selector, unless a wakeup is already pending
+         */
+        void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Pass a message to a client of this loop; called from other loops
+         */
+        void handoff(ConnectedClient to, Frame frame) {
+            handoffs.offer(new Handoff(to, frame));
+            wakeup();
+        }
+
+        /**
+         * Start serving a new client; must be called on this loop's thread
+         */
+        void register(SocketChannel channel) {
+            try {
+                ConnectedClient client = new ConnectedClient(channel, this);
+                clients.add(client);
+                connected.add(client);
+            } catch (IOException e) {
+                // Channel immediately was closed before creating a client
+                log.debug("Unable to register client {}: {}", channel, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                EventLoopMain();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (ConnectedClient client : Lists.newArrayList(clients)) {
+                    client.close();
+                }
+                Handoff handoff;
+                while ((handoff = handoffs.poll()) != null) {
+                    handoff.frame.release();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Main event loop
+         *
+         * @throws IOException
+         *             if we get an IO exception while selecting on the
+         *             selector, or if an IO exception occurs while attempting
+         *             to accept a new connection
+         */
+        private void EventLoopMain() throws IOException {
+            log.debug("Running event loop");
+            while (!Thread.currentThread().isInterrupted()) {
+                // Wait for something
+                selector.select();
+
+                // Anything queued after this point will trigger another wakeup
+                wakeupPending.set(false);
+
+                // Register new clients and queue messages handed off by other loops
+                SocketChannel channel;
+                while ((channel = accepted.poll()) != null) {
+                    register(channel);
+                }
+                Handoff handoff;
+                while ((handoff = handoffs.poll()) != null) {
+                    if (handoff.to.key.isValid()) {
+                        handoff.to.writer.enqueue(handoff.frame);
+                        handoff.to.UpdateSelector();
+                    } else {
+                        handoff.frame.release();
+                    }
+                }
+
+                // See what changed
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    // Get and remove next key
+                    SelectionKey k = it.next();
+                    it.remove();
+
+                    // See if the server key is acceptable
+                    if (k == serverKey) {
+                        if (k.isValid() && k.isAcceptable()) {
+                            accept();
+                        }
+                        continue;
+                    }
+
+                    // Get the client for this key
+                    ConnectedClient client = null;
+                    try {
+                        client = (ConnectedClient) k.attachment();
+                    } catch (ClassCastException e) {
+                        log.debug("No connected client for key {}: {}", k, e);
+                        log.debug("Cancelling key {}", k);
+                        k.cancel();
+                        continue;
+                    }
+
+                    // Not sure when this could happen, but just in case...
+                    if (client == null) {
+                        log.debug("No connected client for key {}", k);
+                        log.debug("Cancelling key {}", k);
+                        k.cancel();
+                        continue;
+                    }
+
+                    // If key is no longer valid, remove the client
+                    if (!k.isValid()) {
+                        log.debug("Closing client with invalid key {}: {}", k, client);
+                        client.close();
+                        continue;
+                    }
+
+                    // To to read/write, and remove client on error
+                    try {
+                        if (k.isReadable()) {
+                            log.debug("{} readable", client.channel);
+                            if (!client.reader.read()) {
+                                log.info("{} reached end of stream", client.channel);
+                                client.close();
+                                continue;
+                            }
+                        }
+                        if (k.isWritable()) {
+                            log.debug("{} writeable", client.channel);
+                            client.writer.write();
+                        }
+                        client.UpdateSelector();
+                    } catch (IOException e) {
+                        log.info("IOException for client {}: {}", client, e);
+                        client.close();
+                        continue;
+                    }
+                }
+            }
         }
     }
 
@@ -252,44 +500,36 @@ public class PubSubServer extends Thread {
      */
     private class ConnectedClient {
         private final SocketChannel channel; // Clients channel
+        private final EventLoop loop; // Event loop that serves this client
         private final SelectionKey key; // Clients selection key
 
-        final Queue<TopicMessage> outgoing = Queues.newArrayDeque(); // Queue of
-                                                                     // outgoing
-                                                                     // messages
-        final TopicReader reader; // Reads incoming messages
-        final TopicWriter writer; // Writes outgoing messages
+        final BitSet topicIds = new BitSet(); // IDs of subscribed topics
+        final FrameReader reader; // Reads incoming messages
+        final FrameWriter writer; // Writes outgoing messages
 
         /**
          * Client has connected on the provided channel
-         * 
+         *
          * @throws IOException
          */
-        public ConnectedClient(SocketChannel channel) throws IOException {
+        public ConnectedClient(SocketChannel channel, EventLoop loop) throws IOException {
             // Save the channel, configure non-blocking
             this.channel = channel;
+            this.loop = loop;
             this.channel.configureBlocking(false);
 
             // Create a channel reader that routes incoming messages
-            this.reader = new TopicReader(channel) {
-                public void OnMessage(byte[] topic, byte[] message) {
-                    route(ConnectedClient.this, new ByteMessage(topic, message));
+            this.reader = new FrameReader(channel, buffers, maxMessageBytes) {
+                public void OnFrame(Frame frame) {
+                    route(ConnectedClient.this, frame);
                 }
             };
 
             // Create a channel writer for outgoing messages
-            this.writer = new TopicWriter(channel) {
-                public TopicMessage CurrentMessage() {
-                    return outgoing.peek();
-                }
-
-                public void MessageSendComplete() {
-                    outgoing.poll();
-                }
-            };
+            this.writer = new FrameWriter(channel);
 
             // Nothing to write yet
-            key = channel.register(selector, SelectionKey.OP_READ, this);
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
         }
 
         public void UpdateSelector() {
@@ -303,13 +543,18 @@ public class PubSubServer extends Thread {
         public void close() {
             log.info("Closing client on channel {}", channel);
             try {
-                subscriptions.row(this).clear(); // Remove any subscriptions
-                outgoing.clear(); // Clear pending messages
+                for (int id = topicIds.nextSetBit(0); id >= 0; id = topicIds.nextSetBit(id + 1)) {
+                    topicsById.get(id).subscribers.remove(this); // Remove any subscriptions
+                }
+                topicIds.clear();
+                writer.clear(); // Release pending messages
+                reader.close(); // Release buffered bytes
                 key.cancel(); // Cancel selector key
                 channel.close(); // Close the channel
             } catch (IOException e) {
                 // Ignore, we're closing anyway
             } finally {
+                loop.clients.remove(this);
                 connected.remove(this); // Not connected any more
             }
         }
@@ -0,0 +1,62 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of fixed-size direct buffers. Buffers are handed out as
+ * reference counted {@link PooledBuffer}s and return to the pool when their
+ * last reference is released. At most maxPooled idle buffers are kept; beyond
+ * that, released buffers are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public final int bufferSize;
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /** Get a cleared buffer of bufferSize bytes, with a reference count of 1 */
+    public PooledBuffer acquire() {
+        ByteBuffer buffer = pooled.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            pooledCount.decrementAndGet();
+            buffer.clear();
+        }
+        return new PooledBuffer(buffer, this);
+    }
+
+    /** Get a buffer of at least the specified size. Buffers larger than bufferSize are not pooled */
+    public PooledBuffer acquire(int size) {
+        if (size <= bufferSize) {
+            return acquire();
+        } else {
+            return new PooledBuffer(ByteBuffer.allocate(size), null);
+        }
+    }
+
+    /** Return a buffer to the pool */
+    void recycle(ByteBuffer buffer) {
+        if (pooledCount.incrementAndGet() <= maxPooled) {
+            pooled.offer(buffer);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    /** @return the number of idle buffers in the pool */
+    public int pooled() {
+        return pooledCount.get();
+    }
+
+}
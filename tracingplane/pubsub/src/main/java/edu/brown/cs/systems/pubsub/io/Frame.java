@@ -0,0 +1,101 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+/**
+ * A topic message exactly as it is framed on the wire: the topic length, the
+ * topic, the message length, then the message. The bytes are a slice of a
+ * reference counted buffer. Each frame holds one reference, so a frame must be
+ * released once it is no longer needed.
+ *
+ * A frame received from one client can be sent to many others without copying
+ * by giving each a {@link #share()}d frame.
+ */
+public class Frame {
+
+    private final PooledBuffer owner;
+    private final int offset; // Offset of the frame in the owner's buffer
+    private final int length; // Length of the whole frame, including lengths
+    private final int topicLength;
+
+    /** View of the frame bytes, used to track progress while writing the frame */
+    final ByteBuffer bytes;
+
+    Frame(PooledBuffer owner, int offset, int length, int topicLength) {
+        this.owner = owner;
+        this.offset = offset;
+        this.length = length;
+        this.topicLength = topicLength;
+        this.bytes = owner.buffer.duplicate();
+        this.bytes.limit(offset + length).position(offset);
+    }
+
+    /** @return a read-only view of the topic bytes */
+    public ByteBuffer topic() {
+        ByteBuffer topic = owner.buffer.asReadOnlyBuffer();
+        topic.limit(offset + 4 + topicLength).position(offset + 4);
+        return topic;
+    }
+
+    /** @return a read-only view of the message bytes */
+    public ByteBuffer message() {
+        ByteBuffer message = owner.buffer.asReadOnlyBuffer();
+        message.limit(offset + length).position(offset + 8 + topicLength);
+        return message;
+    }
+
+    /** @return the length of the frame in bytes, including its length fields */
+    public int length() {
+        return length;
+    }
+
+    /** @return true if this frame has been completely written */
+    public boolean written() {
+        return !bytes.hasRemaining();
+    }
+
+    /** @return another frame for the same bytes, with its own reference and write position */
+    public Frame share() {
+        owner.retain();
+        return new Frame(owner, offset, length, topicLength);
+    }
+
+    /** Reset the write progress of this frame */
+    void rewind() {
+        bytes.position(offset);
+    }
+
+    /** Release this frame's reference to the underlying buffer */
+    public void release() {
+        owner.release();
+    }
+
+    /** Copy a topic and message into a new frame backed by an unpooled buffer */
+    public static Frame wrap(byte[] topic, byte[] message) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + topic.length + message.length);
+        buffer.putInt(topic.length).put(topic).putInt(message.length).put(message);
+        return new Frame(new PooledBuffer(buffer, null), 0, buffer.capacity(), topic.length);
+    }
+
+    /** Serialize a message directly into a new frame backed by an unpooled buffer */
+    public static Frame wrap(byte[] topic, Message message) {
+        int messageLength = message.getSerializedSize();
+        byte[] bytes = new byte[8 + topic.length + messageLength];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(topic.length).put(topic).putInt(messageLength);
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes, buffer.position(), messageLength);
+            message.writeTo(out);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new RuntimeException("Serializing to a byte array threw an IOException (should never happen)", e);
+        }
+        buffer.clear();
+        return new Frame(new PooledBuffer(buffer, null), 0, bytes.length, topic.length);
+    }
+
+}
@@ -0,0 +1,168 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads topic messages, as written by {@link TopicWriter}, into {@link Frame}s
+ * without copying. Bytes are read into a pooled buffer and each complete frame
+ * is a slice of that buffer. When the buffer fills up, any partially read frame
+ * is moved to a new buffer; frames that are still in use keep the old buffer
+ * alive until they are released.
+ */
+public abstract class FrameReader {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameReader.class);
+
+    /** Default max size of a frame; larger frames are treated as malformed */
+    public static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final BufferPool pool;
+    private final int maxFrameBytes;
+
+    private PooledBuffer current = null; // Buffer being read into; position is the end of the read bytes
+    private int frameStart = 0; // Start of the first incomplete frame in the buffer
+
+    public FrameReader(SocketChannel channel, BufferPool pool) {
+        this(channel, pool, DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Frames whose header declares a negative size, or a size larger than
+     * maxFrameBytes, cause {@link #read()} to throw an IOException, so that the
+     * caller closes the connection that sent them
+     */
+    public FrameReader(SocketChannel channel, BufferPool pool, int maxFrameBytes) {
+        this.channel = channel;
+        this.pool = pool;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Called for each complete frame. The frame is released once this method
+     * returns, so implementations must {@link Frame#share()} it to keep it
+     */
+    public abstract void OnFrame(Frame frame);
+
+    /**
+     * Reads from the channel, handling frames, until no more bytes can be read.
+     * Returns true if the connection is still open, or false otherwise
+     */
+    public boolean read() throws IOException {
+        log.debug("{} reading from channel {}", this, channel);
+        while (!Thread.currentThread().isInterrupted()) {
+            ByteBuffer buffer = prepareBuffer();
+            int numRead = channel.read(buffer);
+            if (numRead == -1) {
+                log.debug("{} has reached end of stream", channel);
+                return false;
+            }
+            log.debug("Read {} bytes", numRead);
+            handleFrames();
+
+            // If the buffer was not filled, there is nothing more to read for now
+            if (buffer.hasRemaining()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** Release the buffer held by this reader */
+    public void close() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    /* Calls OnFrame for each complete frame in the buffer */
+    private void handleFrames() throws IOException {
+        ByteBuffer buffer = current.buffer;
+        while (true) {
+            int available = buffer.position() - frameStart;
+            if (available < 8) {
+                return;
+            }
+            int topicLength = checkTopicLength(buffer.getInt(frameStart));
+            if (available < 8 + topicLength) {
+                return;
+            }
+            int length = 8 + topicLength + checkMessageLength(topicLength, buffer.getInt(frameStart + 4 + topicLength));
+            if (available < length) {
+                return;
+            }
+            current.retain();
+            Frame frame = new Frame(current, frameStart, length, topicLength);
+            frameStart += length;
+            try {
+                OnFrame(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /* Returns a buffer with space to read into, moving any partial frame to a new buffer if necessary */
+    private ByteBuffer prepareBuffer() throws IOException {
+        if (current == null) {
+            current = pool.acquire();
+            frameStart = 0;
+        }
+        ByteBuffer buffer = current.buffer;
+        if (buffer.hasRemaining()) {
+            return buffer;
+        }
+
+        // Work out how much space the partial frame needs, if its size is known yet
+        int partial = buffer.position() - frameStart;
+        int required = 8;
+        if (partial >= 4) {
+            int topicLength = checkTopicLength(buffer.getInt(frameStart));
+            required = 8 + topicLength;
+            if (partial >= 8 + topicLength) {
+                required += checkMessageLength(topicLength, buffer.getInt(frameStart + 4 + topicLength));
+            }
+        }
+
+        if (current.refCount() == 1 && required <= buffer.capacity()) {
+            // No frames reference this buffer, so the partial frame can be moved to the start
+            ByteBuffer partialBytes = buffer.duplicate();
+            partialBytes.limit(buffer.position()).position(frameStart);
+            buffer.clear();
+            buffer.put(partialBytes);
+        } else {
+            // Move the partial frame to a new buffer, large enough for the frame if its size is known
+            PooledBuffer next = pool.acquire(Math.max(required, pool.bufferSize));
+            ByteBuffer partialBytes = buffer.duplicate();
+            partialBytes.limit(buffer.position()).position(frameStart);
+            next.buffer.put(partialBytes);
+            current.release();
+            current = next;
+        }
+        frameStart = 0;
+        return current.buffer;
+    }
+
+    /* Checks a topic length read from a frame header; the frame must also fit the message length */
+    private int checkTopicLength(int topicLength) throws IOException {
+        if (topicLength < 0 || topicLength > maxFrameBytes - 8) {
+            throw new IOException("Malformed frame from " + channel + " with topic length " + topicLength);
+        }
+        return topicLength;
+    }
+
+    /* Checks a message length read from a frame header, given the frame's valid topic length */
+    private int checkMessageLength(int topicLength, int messageLength) throws IOException {
+        if (messageLength < 0 || messageLength > maxFrameBytes - 8 - topicLength) {
+            throw new IOException("Malformed frame from " + channel + " with message length " + messageLength);
+        }
+        return messageLength;
+    }
+
+}
@@ -0,0 +1,110 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+
+/**
+ * Writes queued {@link Frame}s to a channel, sending as many frames as
+ * possible with each gathering write. Frames are released once written.
+ */
+public class FrameWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameWriter.class);
+
+    /** Maximum number of frames to send with a single write */
+    public static final int MAX_FRAMES_PER_WRITE = 64;
+
+    private final SocketChannel channel;
+    private final Queue<Frame> pending = Queues.newArrayDeque();
+    private final ByteBuffer[] bufs = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+    private long pendingBytes = 0; // Total length of the pending frames
+
+    public FrameWriter(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Queue a frame to be written. The writer takes over the frame's reference */
+    public void enqueue(Frame frame) {
+        pending.add(frame);
+        pendingBytes += frame.length();
+    }
+
+    /** @return the total length of the frames waiting to be written, including any partially written frame */
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /** True if there is data to be written */
+    public boolean canWrite() {
+        return !pending.isEmpty();
+    }
+
+    /** Returns true if there is more data to be written, false otherwise */
+    public boolean write() throws IOException {
+        while (!pending.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            // Gather the bytes of as many frames as possible
+            int count = 0;
+            for (Frame frame : pending) {
+                if (count == bufs.length) {
+                    break;
+                }
+                bufs[count++] = frame.bytes;
+            }
+
+            long numWritten = channel.write(bufs, 0, count);
+            log.debug("Wrote {} bytes of {} frames to {}", numWritten, count, channel);
+
+            // Release completely written frames
+            int completed = 0;
+            while (completed < count && pending.peek().written()) {
+                Frame frame = pending.poll();
+                pendingBytes -= frame.length();
+                frame.release();
+                completed++;
+            }
+            for (int i = 0; i < count; i++) {
+                bufs[i] = null;
+            }
+
+            // If the channel could not take everything, wait until it can
+            if (completed < count) {
+                break;
+            }
+        }
+        return !pending.isEmpty();
+    }
+
+    /** Release all pending frames */
+    public void clear() {
+        Frame frame;
+        while ((frame = pending.poll()) != null) {
+            frame.release();
+        }
+        pendingBytes = 0;
+    }
+
+    /**
+     * Remove all pending frames without releasing them. Any partially written
+     * frame is rewound so that it can be written again in full, eg. to a new
+     * connection
+     */
+    public List<Frame> drain() {
+        List<Frame> frames = Lists.newArrayList(pending);
+        for (Frame frame : frames) {
+            frame.rewind();
+        }
+        pending.clear();
+        pendingBytes = 0;
+        return frames;
+    }
+
+}
@@ -0,0 +1,39 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer. The buffer returns to its pool when the last
+ * reference is released, so it must not be used after releasing.
+ */
+public class PooledBuffer {
+
+    public final ByteBuffer buffer;
+    private final BufferPool pool; // Null if not pooled
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /** Add a reference to this buffer */
+    public PooledBuffer retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /** Release a reference to this buffer, returning it to the pool if it was the last reference */
+    public void release() {
+        if (refs.decrementAndGet() == 0 && pool != null) {
+            pool.recycle(buffer);
+        }
+    }
+
+    /** @return the number of references to this buffer */
+    public int refCount() {
+        return refs.get();
+    }
+
+}
@@ -0,0 +1,160 @@
+package edu.brown.cs.systems.pubsub;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import edu.brown.cs.systems.pubsub.PubSubProtos.StringMessage;
+import edu.brown.cs.systems.pubsub.io.Frame;
+import junit.framework.TestCase;
+
+public class TestBackpressure extends TestCase {
+
+    private static final Config config = ConfigFactory.parseString(
+            "topics { newest { policy = drop-newest }, blocking { policy = block, timeoutMs = 50 }, "
+                    + "unbounded { policy = block, timeoutMs = 0 }, "
+                    + "sampled { policy = sample, rate = 0.5 }, renamed { topic = other, policy = drop-newest } }")
+            .withFallback(
+            ConfigFactory.load().getConfig("pubsub.client.backpressure"));
+
+    private static StringMessage msg(int i) {
+        return StringMessage.newBuilder().setMessage(String.valueOf(i)).build();
+    }
+
+    private static String topicOf(Frame frame) {
+        byte[] topic = new byte[frame.topic().remaining()];
+        frame.topic().get(topic);
+        return new String(topic);
+    }
+
+    private static int indexOf(Frame frame) throws IOException {
+        return Integer.parseInt(StringMessage.parseFrom(ByteString.copyFrom(frame.message())).getMessage());
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        for (int i = 0; i < 100; i++) {
+            c.publish("oldest", msg(i));
+        }
+        assertEquals(10, c.pending.size());
+        assertEquals(100, c.backpressure("oldest").published());
+        assertEquals(90, c.backpressure("oldest").dropped());
+    }
+
+    @Test
+    public void testDropNewest() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        for (int i = 0; i < 100; i++) {
+            c.publish("newest", msg(i));
+        }
+        assertEquals(10, c.pending.size());
+        assertEquals(Backpressure.DROP_NEWEST, c.backpressure("newest").name());
+        assertEquals(90, c.backpressure("newest").dropped());
+    }
+
+    @Test
+    public void testBlockingTopicIsNeverEvicted() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        for (int i = 0; i < 5; i++) {
+            c.publish("blocking", msg(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            c.publish("oldest", msg(i));
+        }
+        int blocking = 0;
+        for (Frame frame : c.pending) {
+            if ("blocking".equals(topicOf(frame))) {
+                blocking++;
+            }
+        }
+        assertEquals(5, blocking);
+        assertEquals(0, c.backpressure("blocking").dropped());
+        assertEquals(95, c.backpressure("oldest").dropped());
+    }
+
+    @Test
+    public void testBlockTimeout() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        for (int i = 0; i < 10; i++) {
+            c.publish("blocking", msg(i));
+        }
+        long start = System.currentTimeMillis();
+        c.publish("blocking", msg(10));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, c.backpressure("blocking").blocked());
+        assertEquals(1, c.backpressure("blocking").dropped());
+
+        // Publishing to a full queue of blocking messages drops other messages rather than blocking
+        c.publish("oldest", msg(0));
+        assertEquals(1, c.backpressure("oldest").dropped());
+        assertEquals(10, c.pending.size());
+    }
+
+    @Test
+    public void testBlockWithoutTimeoutWaits() throws IOException, InterruptedException {
+        final PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        for (int i = 0; i < 10; i++) {
+            c.publish("unbounded", msg(i));
+        }
+        Thread publisher = new Thread() {
+            public void run() {
+                c.publish("unbounded", msg(10));
+            }
+        };
+        publisher.start();
+
+        // The publisher waits for space in the full queue instead of dropping the message
+        publisher.join(500);
+        assertTrue(publisher.isAlive());
+        assertEquals(0, c.backpressure("unbounded").dropped());
+
+        assertEquals(0, indexOf(c.pending.poll()));
+        publisher.join(5000);
+        assertFalse(publisher.isAlive());
+        assertEquals(10, c.pending.size());
+        assertEquals(10, indexOf(c.pending.peekLast()));
+        assertEquals(1, c.backpressure("unbounded").blocked());
+        assertEquals(0, c.backpressure("unbounded").dropped());
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 100, config);
+        for (int i = 0; i < 10100; i++) {
+            c.publish("sampled", msg(i));
+        }
+        assertEquals(100, c.pending.size());
+        Backpressure sampled = c.backpressure("sampled");
+        assertEquals(Backpressure.SAMPLE, sampled.name());
+        assertEquals(10100, sampled.published());
+        assertEquals(10000, sampled.dropped());
+
+        // The queue holds the last 100 sampled messages, which span about 200 messages at a rate of 0.5. Dropping the
+        // oldest or newest messages would leave exactly the last or first 100
+        int first = indexOf(c.pending.peekFirst());
+        int last = indexOf(c.pending.peekLast());
+        assertTrue(last - first > 130 && last - first < 300);
+    }
+
+    @Test
+    public void testTopicSetting() throws IOException {
+        PubSubClient c = new PubSubClient("127.0.0.1", 5563, 10, config);
+        assertEquals(Backpressure.DROP_NEWEST, c.backpressure("other").name());
+        assertEquals(Backpressure.DROP_OLDEST, c.backpressure("renamed").name());
+    }
+
+    @Test
+    public void testDefaultBlockTimeoutIsBounded() {
+        Config block = ConfigFactory.parseString("policy = block").withFallback(
+                ConfigFactory.load().getConfig("pubsub.client.backpressure"));
+        Backpressure policy = Backpressure.create("blocking", block);
+        assertEquals(Backpressure.BLOCK, policy.name());
+        assertTrue(((Backpressure.Block) policy).timeoutMs > 0);
+    }
+
+}
@@ -1,11 +1,22 @@
 package edu.brown.cs.systems.pubsub;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
 import edu.brown.cs.systems.pubsub.PubSubClient.Subscriber;
 import edu.brown.cs.systems.pubsub.PubSubProtos.StringMessage;
 import junit.framework.TestCase;
@@ -93,6 +104,124 @@ public class TestPubSub extends TestCase {
         cb.awaitNoMessage("hello2");
     }
     
+    @Test
+    public void testWorkers() throws InterruptedException, IOException {
+        
+        String topic = "test";
+        int workersPort = port + 1;
+
+        // Start pubsub server with two workers
+        PubSubServer server = new PubSubServer(host, workersPort, 2);
+        server.start();
+        try {
+            // Clients are assigned round-robin, so subscribers are on both workers
+            PubSubClient publisher = new PubSubClient(host, workersPort, 0);
+            publisher.start();
+            PubSubClient subscriber = new PubSubClient(host, workersPort, 0);
+            subscriber.start();
+            PubSubClient subscriber2 = new PubSubClient(host, workersPort, 0);
+            subscriber2.start();
+
+            TestPubSubCallback cb = new TestPubSubCallback();
+            TestPubSubCallback cb2 = new TestPubSubCallback();
+            subscriber.subscribe(topic, cb);
+            subscriber2.subscribe(topic, cb2);
+            Thread.sleep(1000);
+
+            // Both subscribers receive the message, whichever worker they are on
+            publisher.publish(topic, PubSubProtos.StringMessage.newBuilder().setMessage("hello").build());
+            cb.awaitMessage("hello");
+            cb2.awaitMessage("hello");
+
+            // Subscribers only receive messages for their topics
+            publisher.publish("badtest", PubSubProtos.StringMessage.newBuilder().setMessage("hello").build());
+            cb.awaitNoMessage("hello");
+            cb2.awaitNoMessage("hello");
+
+            // Unsubscribe one subscriber
+            subscriber.unsubscribe(topic, cb);
+            Thread.sleep(1000);
+            publisher.publish(topic, PubSubProtos.StringMessage.newBuilder().setMessage("hello2").build());
+            cb2.awaitMessage("hello2");
+            cb.awaitNoMessage("hello2");
+        } finally {
+            server.shutdown();
+        }
+    }
+    
+    @Test
+    public void testMalformedClientDisconnected() throws InterruptedException, IOException {
+
+        String topic = "test";
+        int malformedPort = port + 3;
+
+        // A single worker, so the malformed client shares its event loop with the other clients
+        PubSubServer server = new PubSubServer(host, malformedPort, 1);
+        server.start();
+        try {
+            PubSubClient publisher = new PubSubClient(host, malformedPort, 0);
+            publisher.start();
+            PubSubClient subscriber = new PubSubClient(host, malformedPort, 0);
+            subscriber.start();
+            TestPubSubCallback cb = new TestPubSubCallback();
+            subscriber.subscribe(topic, cb);
+            Thread.sleep(1000);
+
+            // Send a frame header with a negative topic length; the server closes the connection
+            SocketChannel bad = SocketChannel.open(new InetSocketAddress(host, malformedPort));
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(-100).putInt(0).flip();
+            bad.write(header);
+            bad.socket().setSoTimeout(5000);
+            assertEquals(-1, bad.socket().getInputStream().read());
+            bad.close();
+
+            // Other clients on the same worker are unaffected
+            publisher.publish(topic, PubSubProtos.StringMessage.newBuilder().setMessage("hello").build());
+            cb.awaitMessage("hello");
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchedPublish() throws InterruptedException, IOException {
+
+        String topic = "batch";
+        int batchPort = port + 2;
+        final int count = 20000;
+
+        PubSubServer server = new PubSubServer(host, batchPort);
+        server.start();
+        try {
+            PubSubClient publisher = new PubSubClient(host, batchPort, 0);
+            publisher.start();
+            PubSubClient subscriber = new PubSubClient(host, batchPort, 0);
+            subscriber.start();
+
+            // Count received messages, checking they arrive in order
+            final Semaphore received = new Semaphore(0);
+            subscriber.subscribe(topic, new Subscriber<StringMessage>() {
+                int next = 0;
+
+                protected void OnMessage(StringMessage message) {
+                    assertEquals(String.valueOf(next++), message.getMessage());
+                    received.release();
+                }
+            });
+            Thread.sleep(1000);
+
+            // Publish many small messages without pausing, so that they are sent in batches
+            for (int i = 0; i < count; i++) {
+                publisher.publish(topic, StringMessage.newBuilder().setMessage(String.valueOf(i)).build());
+            }
+            assertTrue(publisher.waitUntilEmpty(10000));
+            assertTrue(received.tryAcquire(count, 10, TimeUnit.SECONDS));
+        } finally {
+            server.shutdown();
+        }
+    }
+
     @Test
     public void testWaitUntilEmpty() throws IOException, InterruptedException {
         PubSubClient client = new PubSubClient(host, port, 0);
@@ -139,4 +268,102 @@ public class TestPubSub extends TestCase {
         
     }
 
+    @Test
+    public void testWaitUntilEmptyCountsUnwrittenBatch() throws IOException, InterruptedException {
+        int stalledPort = port + 4;
+
+        // A server that accepts the connection but never reads from it
+        ServerSocketChannel stalled = ServerSocketChannel.open();
+        stalled.bind(new InetSocketAddress(host, stalledPort));
+        try {
+            PubSubClient client = new PubSubClient(host, stalledPort, 0);
+            client.start();
+            SocketChannel accepted = stalled.accept();
+            try {
+                // Publish a message larger than the socket buffers can hold, so that the writer takes it from the
+                // queue but cannot send all of it
+                client.publish("stalled", new byte[16 * 1024 * 1024]);
+                long deadline = System.currentTimeMillis() + 10000;
+                while (!client.pending.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, client.pending.size());
+
+                // The queue may have emptied, but the batch taken from it has not been written
+                assertEquals(false, client.waitUntilEmpty(200));
+
+                // Once the server reads everything, the batch is written
+                ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+                accepted.configureBlocking(false);
+                deadline = System.currentTimeMillis() + 10000;
+                boolean flushed = false;
+                while (!flushed && System.currentTimeMillis() < deadline) {
+                    while (accepted.read(buf) > 0) {
+                        buf.clear();
+                    }
+                    flushed = client.waitUntilEmpty(10);
+                }
+                assertTrue(flushed);
+            } finally {
+                client.close();
+                accepted.close();
+            }
+        } finally {
+            stalled.close();
+        }
+    }
+
+    @Test
+    public void testReconnectKeepsBlockingMessages() throws IOException, InterruptedException {
+        String topic = "blocking";
+        int reconnectPort = port + 5;
+        Config config = ConfigFactory.parseString("policy = block, timeoutMs = 0");
+
+        // A server that accepts the connection but never reads from it
+        ServerSocketChannel stalled = ServerSocketChannel.open();
+        stalled.bind(new InetSocketAddress(host, reconnectPort));
+        PubSubClient publisher = new PubSubClient(host, reconnectPort, 2, config);
+        publisher.start();
+        SocketChannel accepted = stalled.accept();
+
+        // The writer takes the first message but cannot send all of it, and the others fill the queue
+        String padding = new String(new char[8 * 1024 * 1024]);
+        publisher.publish(topic, StringMessage.newBuilder().setMessage("0" + padding).build());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!publisher.pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, publisher.pending.size());
+        publisher.publish(topic, StringMessage.newBuilder().setMessage("1" + padding).build());
+        publisher.publish(topic, StringMessage.newBuilder().setMessage("2" + padding).build());
+        assertEquals(2, publisher.pending.size());
+
+        // Drop the connection, and replace the stalled server with a real one
+        accepted.close();
+        stalled.close();
+        PubSubServer server = new PubSubServer(host, reconnectPort);
+        server.start();
+        try {
+            final List<Character> received = Collections.synchronizedList(new ArrayList<Character>());
+            final Semaphore semaphore = new Semaphore(0);
+            PubSubClient subscriber = new PubSubClient(host, reconnectPort, 0);
+            subscriber.start();
+            subscriber.subscribe(topic, new Subscriber<StringMessage>() {
+                protected void OnMessage(StringMessage message) {
+                    received.add(message.getMessage().charAt(0));
+                    semaphore.release();
+                }
+            });
+
+            // The unsent message could not be put back in the full queue, but is still sent once reconnected
+            assertTrue(semaphore.tryAcquire(3, 20, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList('0', '1', '2'), received);
+            assertEquals(0, publisher.backpressure(topic).dropped());
+            subscriber.close();
+        } finally {
+            publisher.close();
+            server.shutdown();
+        }
+    }
+
 }
@@ -0,0 +1,239 @@
+package edu.brown.cs.systems.pubsub.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestFrameIO extends TestCase {
+
+    private static final Random r = new Random(100);
+
+    private ServerSocketChannel server;
+    private SocketChannel in, out;
+
+    @Override
+    protected void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        out = SocketChannel.open(server.getLocalAddress());
+        in = server.accept();
+        in.configureBlocking(false);
+        out.configureBlocking(false);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        in.close();
+        out.close();
+        server.close();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        r.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /** Saves a copy of the topic and message of each received frame */
+    private static class TestFrameReader extends FrameReader {
+        final List<byte[]> topics = Lists.newArrayList();
+        final List<byte[]> messages = Lists.newArrayList();
+        final List<Frame> shared = Lists.newArrayList();
+        final boolean share;
+
+        TestFrameReader(SocketChannel channel, BufferPool pool, boolean share) {
+            super(channel, pool);
+            this.share = share;
+        }
+
+        @Override
+        public void OnFrame(Frame frame) {
+            topics.add(toArray(frame.topic()));
+            messages.add(toArray(frame.message()));
+            if (share) {
+                shared.add(frame.share());
+            }
+        }
+    }
+
+    /** Writes all frames then reads until the expected number of frames has been received */
+    private void transfer(FrameWriter writer, TestFrameReader reader, int expected) throws IOException,
+            InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (reader.messages.size() < expected && System.currentTimeMillis() < end) {
+            writer.write();
+            assertTrue(reader.read());
+            Thread.sleep(1);
+        }
+        assertEquals(expected, reader.messages.size());
+        assertFalse(writer.canWrite());
+    }
+
+    @Test
+    public void testFramesAcrossBuffers() throws Exception {
+        BufferPool pool = new BufferPool(100, 10);
+        FrameWriter writer = new FrameWriter(out);
+        TestFrameReader reader = new TestFrameReader(in, pool, false);
+
+        List<byte[]> topics = Lists.newArrayList(), messages = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            byte[] topic = randomBytes(r.nextInt(10)), message = randomBytes(r.nextInt(70));
+            topics.add(topic);
+            messages.add(message);
+            writer.enqueue(Frame.wrap(topic, message));
+        }
+        transfer(writer, reader, 500);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(Arrays.equals(topics.get(i), reader.topics.get(i)));
+            assertTrue(Arrays.equals(messages.get(i), reader.messages.get(i)));
+        }
+    }
+
+    @Test
+    public void testOversizedFrame() throws Exception {
+        BufferPool pool = new BufferPool(64, 10);
+        FrameWriter writer = new FrameWriter(out);
+        TestFrameReader reader = new TestFrameReader(in, pool, false);
+
+        byte[] small = randomBytes(10), big = randomBytes(100000);
+        writer.enqueue(Frame.wrap("a".getBytes(), small));
+        writer.enqueue(Frame.wrap("b".getBytes(), big));
+        writer.enqueue(Frame.wrap("c".getBytes(), small));
+        transfer(writer, reader, 3);
+        assertTrue(Arrays.equals(small, reader.messages.get(0)));
+        assertTrue(Arrays.equals(big, reader.messages.get(1)));
+        assertTrue(Arrays.equals(small, reader.messages.get(2)));
+    }
+
+    /** Writes raw header bytes, then reads until the reader rejects them */
+    private void assertMalformed(FrameReader reader, int topicLength, int messageLength) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(topicLength).putInt(messageLength).putInt(0).flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            try {
+                reader.read();
+            } catch (IOException e) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        fail("Malformed frame was not rejected");
+    }
+
+    @Test
+    public void testNegativeTopicLength() throws Exception {
+        assertMalformed(new TestFrameReader(in, new BufferPool(64, 10), false), -1, 0);
+    }
+
+    @Test
+    public void testNegativeMessageLength() throws Exception {
+        // Topic length 0, so the second int is the message length
+        assertMalformed(new TestFrameReader(in, new BufferPool(64, 10), false), 0, -5);
+    }
+
+    @Test
+    public void testFrameLargerThanMax() throws Exception {
+        assertMalformed(new TestFrameReader(in, new BufferPool(64, 10), false), 0, FrameReader.DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    @Test
+    public void testFrameWithinConfiguredMax() throws Exception {
+        BufferPool pool = new BufferPool(64, 10);
+        FrameWriter writer = new FrameWriter(out);
+        TestFrameReader reader = new TestFrameReader(in, pool, false);
+        writer.enqueue(Frame.wrap("a".getBytes(), randomBytes(1000)));
+        transfer(writer, reader, 1);
+
+        // The same frame is rejected by a reader with a smaller max
+        FrameReader strict = new FrameReader(in, pool, 500) {
+            public void OnFrame(Frame frame) {
+                fail("Frame larger than the max should not be handled");
+            }
+        };
+        writer.enqueue(Frame.wrap("a".getBytes(), randomBytes(1000)));
+        writer.write();
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            try {
+                strict.read();
+            } catch (IOException e) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        fail("Oversized frame was not rejected");
+    }
+
+    @Test
+    public void testSharedFramesReturnToPool() throws Exception {
+        BufferPool pool = new BufferPool(64, 10);
+        FrameWriter writer = new FrameWriter(out);
+        TestFrameReader reader = new TestFrameReader(in, pool, true);
+
+        for (int i = 0; i < 50; i++) {
+            writer.enqueue(Frame.wrap("topic".getBytes(), randomBytes(20)));
+        }
+        transfer(writer, reader, 50);
+
+        // Shared frames keep their buffers out of the pool, and still see the original bytes
+        int pooledBefore = pool.pooled();
+        for (int i = 0; i < 50; i++) {
+            Frame frame = reader.shared.get(i);
+            assertTrue(Arrays.equals(reader.messages.get(i), toArray(frame.message())));
+            assertEquals(8 + 5 + 20, frame.length());
+        }
+        for (Frame frame : reader.shared) {
+            frame.release();
+        }
+        reader.close();
+        assertTrue(pool.pooled() > pooledBefore);
+    }
+
+    @Test
+    public void testForwardSharedFrames() throws Exception {
+        BufferPool pool = new BufferPool(1024, 10);
+        TestFrameReader reader = new TestFrameReader(in, pool, true);
+
+        // Forward each received frame twice, back over the same connection
+        FrameWriter writer = new FrameWriter(out);
+        writer.enqueue(Frame.wrap("t".getBytes(), "hello".getBytes()));
+        transfer(writer, reader, 1);
+        Frame received = reader.shared.get(0);
+        FrameWriter forwarder = new FrameWriter(in);
+        forwarder.enqueue(received.share());
+        forwarder.enqueue(received);
+
+        TestFrameReader back = new TestFrameReader(out, pool, false);
+        long end = System.currentTimeMillis() + 5000;
+        while (back.messages.size() < 2 && System.currentTimeMillis() < end) {
+            forwarder.write();
+            assertTrue(back.read());
+            Thread.sleep(1);
+        }
+        assertEquals(2, back.messages.size());
+        assertEquals("hello", new String(back.messages.get(1)));
+        assertEquals("t", new String(back.topics.get(1)));
+    }
+
+}
@@ -0,0 +1,23 @@
+#!/bin/bash
+# Runs the JMH benchmarks and writes the results as JSON.
+#
+# Usage: run-benchmarks.sh [results file] [JMH options...]
+#   e.g. run-benchmarks.sh results-4.0.json BaggageBenchmark -t 4
+#
+# The benchmarks jar is built first if it does not exist.  Run
+# 'java -jar target/benchmarks.jar -h' for the available JMH options.
+
+BENCHMARKS_DIR=$(cd "$(dirname "$0")/.." && pwd)
+BENCHMARKS_JAR=$BENCHMARKS_DIR/target/benchmarks.jar
+
+RESULTS_FILE=jmh-results.json
+if [[ "$1" == *.json ]]; then
+  RESULTS_FILE=$1
+  shift
+fi
+
+if [[ ! -f "$BENCHMARKS_JAR" ]]; then
+  (cd "$BENCHMARKS_DIR" && mvn -q package -DskipTests) || exit 1
+fi
+
+java -jar "$BENCHMARKS_JAR" -rf json -rff "$RESULTS_FILE" "$@"
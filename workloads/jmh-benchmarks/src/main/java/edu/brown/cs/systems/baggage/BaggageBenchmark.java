@@ -0,0 +1,94 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/** Measures joining, serializing, and deserializing baggage as the baggage grows */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaggageBenchmark {
+
+    /** Number of keys in the baggage, each with one value, spread over three namespaces */
+    @Param({ "1", "10", "100" })
+    public int size;
+
+    /** Baggage storage type, either multimap or compact */
+    @Param({ BaggageStorage.MULTIMAP, BaggageStorage.COMPACT })
+    public String storage;
+
+    private BaggageImpl baggage, other;
+    private ByteString serialized;
+    private byte[] serializedBytes;
+    private ByteString namespace, key;
+    private int next;
+
+    @Setup
+    public void setup() {
+        baggage = create(0);
+        other = create(size / 2); // Half of the other baggage's values overlap with this one's
+        serialized = baggage.toByteString();
+        serializedBytes = serialized.toByteArray();
+        namespace = ByteString.copyFromUtf8("namespace0");
+        key = BaggageUtils.copyFrom(0);
+    }
+
+    private BaggageImpl create(int offset) {
+        BaggageImpl impl = new BaggageImpl(
+                BaggageStorage.COMPACT.equals(storage) ? new CompactStorage() : new MultimapStorage());
+        for (int i = offset; i < offset + size; i++) {
+            impl.add(ByteString.copyFromUtf8("namespace" + (i % 3)), BaggageUtils.copyFrom(i),
+                    BaggageUtils.copyFrom(i * 31));
+        }
+        return impl;
+    }
+
+    /** Fork both baggages then join them, as happens when a thread is spawned and later joined */
+    @Benchmark
+    public BaggageImpl join() {
+        BaggageImpl joined = baggage.split();
+        joined.merge(other.split());
+        return joined;
+    }
+
+    /** Serialize baggage that was modified since it was last serialized */
+    @Benchmark
+    public ByteString serialize() {
+        baggage.replace(namespace, key, BaggageUtils.copyFrom(next++));
+        return baggage.toByteString();
+    }
+
+    /** Serialize baggage that was not modified since it was last serialized */
+    @Benchmark
+    public ByteString serializeUnmodified() {
+        return baggage.toByteString();
+    }
+
+    @Benchmark
+    public BaggageImpl deserialize() {
+        return BaggageImpl.deserialize(serializedBytes);
+    }
+
+    /** Deserialize baggage then read one value from it */
+    @Benchmark
+    public Object deserializeAndGet() {
+        return BaggageImpl.deserialize(serialized).get(namespace, key);
+    }
+
+}
@@ -0,0 +1,76 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/** Measures the static {@link BaggageContents} API, which reads and writes the current thread's baggage */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaggageContentsBenchmark {
+
+    /** Number of values already stored under the key that is read and written */
+    @Param({ "1", "10", "100" })
+    public int values;
+
+    private ByteString namespace, key, otherKey, existing;
+    private ByteString[] toAdd;
+    private int next;
+
+    @Setup
+    public void setup() {
+        namespace = ByteString.copyFromUtf8("namespace");
+        key = ByteString.copyFromUtf8("key");
+        otherKey = ByteString.copyFromUtf8("otherKey");
+        for (int i = 0; i < values; i++) {
+            BaggageContents.add(namespace, key, BaggageUtils.copyFrom(i));
+        }
+        existing = BaggageUtils.copyFrom(0);
+        toAdd = new ByteString[1024];
+        for (int i = 0; i < toAdd.length; i++) {
+            toAdd[i] = BaggageUtils.copyFrom(values + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Baggage.discard();
+    }
+
+    @Benchmark
+    public Set<ByteString> get() {
+        return BaggageContents.get(namespace, key);
+    }
+
+    /** Add a value that is already present */
+    @Benchmark
+    public void addExisting() {
+        BaggageContents.add(namespace, key, existing);
+    }
+
+    /** Add a new value under a second key, then remove the key so that the baggage does not grow */
+    @Benchmark
+    public void addAndRemove() {
+        BaggageContents.add(namespace, otherKey, toAdd[next++ & (toAdd.length - 1)]);
+        BaggageContents.remove(namespace, otherKey);
+    }
+
+}
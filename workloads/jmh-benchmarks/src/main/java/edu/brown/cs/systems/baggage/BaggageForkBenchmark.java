@@ -0,0 +1,64 @@
+package edu.brown.cs.systems.baggage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/** Measures the cost of forking baggage ({@link BaggageImpl#split()}) as the baggage grows, and the cost of the first
+ * write to a forked baggage, which is where copy-on-write storage pays for the copy */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaggageForkBenchmark {
+
+    /** Number of keys in the baggage, each with one value, spread over three namespaces */
+    @Param({ "1", "10", "100", "1000" })
+    public int size;
+
+    /** Baggage storage type, either multimap or compact */
+    @Param({ BaggageStorage.MULTIMAP, BaggageStorage.COMPACT })
+    public String storage;
+
+    private BaggageImpl baggage;
+    private ByteString namespace, key, value;
+
+    @Setup
+    public void setup() {
+        baggage = new BaggageImpl(BaggageStorage.COMPACT.equals(storage) ? new CompactStorage() : new MultimapStorage());
+        for (int i = 0; i < size; i++) {
+            baggage.add(ByteString.copyFromUtf8("namespace" + (i % 3)), BaggageUtils.copyFrom(i),
+                    BaggageUtils.copyFrom(i * 31));
+        }
+        namespace = ByteString.copyFromUtf8("namespace0");
+        key = BaggageUtils.copyFrom(0);
+        value = BaggageUtils.copyFrom(-1);
+    }
+
+    @Benchmark
+    public BaggageImpl fork() {
+        return baggage.split();
+    }
+
+    @Benchmark
+    public BaggageImpl forkAndWrite() {
+        BaggageImpl forked = baggage.split();
+        forked.replace(namespace, key, value);
+        return forked;
+    }
+
+}
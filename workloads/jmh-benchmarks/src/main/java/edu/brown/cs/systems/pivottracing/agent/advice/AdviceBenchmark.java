@@ -0,0 +1,142 @@
+package edu.brown.cs.systems.pivottracing.agent.advice;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.baggage.Baggage;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.AdviceSpec;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.Agg;
+import edu.brown.cs.systems.pivottracing.advice.AdviceProtos.EmitSpec;
+import edu.brown.cs.systems.pivottracing.agent.advice.baggage.BaggageAPIImpl;
+import edu.brown.cs.systems.pivottracing.agent.advice.output.EmitAPI;
+
+/** Measures {@link AdviceImpl#advise(Object...)} for the common shapes of advice. Packed tuples are stored in the
+ * current thread's baggage; emitted tuples are counted and discarded */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdviceBenchmark {
+
+    /** Counts emitted tuples instead of reporting them */
+    static class CountingEmitAPI implements EmitAPI, EmitAPI.Emit {
+        long emitted;
+
+        public void emit(List<Object[]> tuples) {
+            emitted += tuples.size();
+        }
+
+        public void emit(Object[] tuple) {
+            emitted++;
+        }
+
+        public Emit create(EmitSpec spec, Sampler sampler) {
+            return this;
+        }
+
+        public void destroy(Emit emit) {
+        }
+    }
+
+    /** Number of tuples packed in the baggage for advice that unpacks */
+    @Param({ "1", "10" })
+    public int packed;
+
+    private CountingEmitAPI emitAPI;
+    private AdviceImpl emit, emitGrouped, unpackEmit, letWhere;
+    private Object[] observed;
+
+    @Setup
+    public void setup() throws InvalidAdviceException {
+        BaggageAPIImpl baggageAPI = new BaggageAPIImpl();
+        emitAPI = new CountingEmitAPI();
+
+        // OBSERVE x, y EMIT x, y
+        AdviceSpec.Builder b = AdviceSpec.newBuilder();
+        b.getObserveBuilder().addVar("x").addVar("y");
+        b.getEmitBuilder().setOutputId(ByteString.copyFromUtf8("emit")).getTupleSpecBuilder().addVar("x").addVar("y");
+        emit = new AdviceImpl(b.build(), baggageAPI, emitAPI);
+
+        // OBSERVE x, y EMIT x, COUNT
+        b = AdviceSpec.newBuilder();
+        b.getObserveBuilder().addVar("x").addVar("y");
+        b.getEmitBuilder().setOutputId(ByteString.copyFromUtf8("emitGrouped")).getGroupBySpecBuilder().addGroupBy("x")
+                .addAggregateBuilder().setName("y").setHow(Agg.COUNT);
+        emitGrouped = new AdviceImpl(b.build(), baggageAPI, emitAPI);
+
+        // OBSERVE x, y LET z = x + y WHERE z > 0 EMIT z
+        b = AdviceSpec.newBuilder();
+        b.getObserveBuilder().addVar("x").addVar("y");
+        b.addLetBuilder().setVar("z").setExpression("{}+{}").addReplacementVariables("x").addReplacementVariables("y");
+        b.addWhereBuilder().setPredicate("{}>0").addReplacementVariables("z");
+        b.getEmitBuilder().setOutputId(ByteString.copyFromUtf8("letWhere")).getTupleSpecBuilder().addVar("z");
+        letWhere = new AdviceImpl(b.build(), baggageAPI, emitAPI);
+
+        // OBSERVE x PACK bag x
+        b = AdviceSpec.newBuilder();
+        b.getObserveBuilder().addVar("x");
+        b.getPackBuilder().setBagId(ByteString.copyFromUtf8("bag")).getTupleSpecBuilder().addVar("x");
+        AdviceImpl pack = new AdviceImpl(b.build(), baggageAPI, emitAPI);
+
+        // OBSERVE y UNPACK bag x EMIT x, y
+        b = AdviceSpec.newBuilder();
+        b.getObserveBuilder().addVar("y");
+        b.addUnpackBuilder().setBagId(ByteString.copyFromUtf8("bag")).getTupleSpecBuilder().addVar("x");
+        b.getEmitBuilder().setOutputId(ByteString.copyFromUtf8("unpackEmit")).getTupleSpecBuilder().addVar("x")
+                .addVar("y");
+        unpackEmit = new AdviceImpl(b.build(), baggageAPI, emitAPI);
+
+        for (int i = 0; i < packed; i++) {
+            pack.advise("value" + i);
+        }
+        observed = new Object[] { "host", 100L };
+    }
+
+    @TearDown
+    public void tearDown() {
+        Baggage.discard();
+    }
+
+    @Benchmark
+    public long emit() {
+        emit.advise(observed);
+        return emitAPI.emitted;
+    }
+
+    @Benchmark
+    public long emitGrouped() {
+        emitGrouped.advise(observed);
+        return emitAPI.emitted;
+    }
+
+    @Benchmark
+    public long unpackEmit() {
+        unpackEmit.advise(100L);
+        return emitAPI.emitted;
+    }
+
+    /** LET and WHERE expressions are evaluated per tuple */
+    @Benchmark
+    public long letWhere() {
+        letWhere.advise(1L, 2L);
+        return emitAPI.emitted;
+    }
+
+}
@@ -0,0 +1,72 @@
+package edu.brown.cs.systems.retro.aggregation.aggregators;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.brown.cs.systems.retro.aggregation.Resource.Operation;
+import edu.brown.cs.systems.retro.aggregation.Resource.Type;
+
+/** Measures {@link ResourceAggregator#finished(Operation, int, long, long)}. The aggregator is shared by all benchmark
+ * threads; run with <code>-t</code> to measure it under contention */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceAggregatorBenchmark {
+
+    /** An aggregator that is always enabled, so that all of the aggregation code runs */
+    static class EnabledAggregator extends ResourceAggregator {
+        EnabledAggregator() {
+            super(Type.DISK);
+        }
+
+        @Override
+        public boolean enabled() {
+            return true;
+        }
+    }
+
+    /** Each benchmark thread cycles through its own sequence of tenants and operations */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    /** Number of distinct tenants that report usage */
+    @Param({ "1", "16" })
+    public int tenants;
+
+    private ResourceAggregator aggregator;
+    private final Operation[] ops = Operation.values();
+
+    @Setup
+    public void setup() {
+        aggregator = new EnabledAggregator();
+    }
+
+    @Benchmark
+    public void finished(ThreadState state) {
+        int i = state.next++;
+        aggregator.finished(ops[i % ops.length], i % tenants, 4096, 1000);
+    }
+
+    @Benchmark
+    public void startedAndFinished(ThreadState state) {
+        int i = state.next++;
+        aggregator.startedAndFinished(ops[i % ops.length], i % tenants, 4096, 1000);
+    }
+
+}
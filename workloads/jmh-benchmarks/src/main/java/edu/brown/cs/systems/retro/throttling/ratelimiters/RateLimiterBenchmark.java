@@ -0,0 +1,48 @@
+package edu.brown.cs.systems.retro.throttling.ratelimiters;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures acquiring permits from a {@link RateLimiter} whose rate is high enough that callers never wait. The rate
+ * limiter is shared by all benchmark threads; run with <code>-t</code> to measure it under contention */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    /** Permits per second; "max" uses {@link RateLimiter#MAX_RATE}, which bypasses rate limiting entirely */
+    @Param({ "max", "1e12" })
+    public String rate;
+
+    private RateLimiter limiter;
+
+    @Setup
+    public void setup() {
+        limiter = new RateLimiter("max".equals(rate) ? RateLimiter.MAX_RATE : Double.parseDouble(rate));
+    }
+
+    @Benchmark
+    public double acquire() throws InterruptedException {
+        return limiter.acquire();
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        return limiter.tryAcquire();
+    }
+
+}
@@ -0,0 +1,43 @@
+package edu.brown.cs.systems.tracing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares {@link RandomIds#next()} with a single synchronized {@link Random}, which every thread that generates
+ * task, event or bag IDs previously shared. Runs on all available cores by default; run with <code>-t 1</code>,
+ * <code>-t 2</code>, etc. to see how each scales with the number of threads */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class RandomIdsBenchmark {
+
+    private final Random random = new Random();
+
+    @Benchmark
+    public long randomIds() {
+        return RandomIds.next();
+    }
+
+    @Benchmark
+    public long synchronizedRandom() {
+        synchronized (random) {
+            return random.nextLong();
+        }
+    }
+
+}
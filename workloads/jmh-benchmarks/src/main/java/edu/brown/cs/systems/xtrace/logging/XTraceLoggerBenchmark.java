@@ -0,0 +1,83 @@
+package edu.brown.cs.systems.xtrace.logging;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.brown.cs.systems.baggage.Baggage;
+import edu.brown.cs.systems.xtrace.XTraceBaggageInterface;
+import edu.brown.cs.systems.xtrace.reporting.XTraceReport;
+import edu.brown.cs.systems.xtrace.reporting.XTraceReporter;
+
+/** Measures the cost of {@link XTraceLoggerImpl#log(String, Object...)}, from checking the baggage through to handing
+ * the report to the reporter. Reports are not sent anywhere */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XTraceLoggerBenchmark {
+
+    /** Keeps the last report so that building it cannot be optimized away */
+    static class LastReportReporter implements XTraceReporter {
+        XTraceReport last;
+
+        public void send(XTraceReport report) {
+            last = report;
+        }
+    }
+
+    /** If false, there is no X-Trace task in the baggage, so messages are dropped */
+    @Param({ "true", "false" })
+    public boolean traced;
+
+    private LastReportReporter reporter;
+    private XTraceLoggerImpl logger;
+
+    @Setup
+    public void setup() {
+        reporter = new LastReportReporter();
+        logger = new XTraceLoggerImpl("XTraceLoggerBenchmark", reporter);
+        if (traced) {
+            XTraceBaggageInterface.setTaskID(7);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Baggage.discard();
+    }
+
+    @Benchmark
+    public XTraceReport log() {
+        logger.log("A log message");
+        return reporter.last;
+    }
+
+    /** Log a message with variables substituted into the message and extra key-value pairs */
+    @Benchmark
+    public XTraceReport logWithLabels() {
+        logger.log("Read {} bytes from {}", 4096, "/tmp/file", "Operation", "read");
+        return reporter.last;
+    }
+
+    /** Log a message and build the report, as the reporting thread does before publishing it */
+    @Benchmark
+    public Object logAndBuild() {
+        logger.log("Read {} bytes from {}", 4096, "/tmp/file", "Operation", "read");
+        return reporter.last == null ? null : reporter.last.build();
+    }
+
+}
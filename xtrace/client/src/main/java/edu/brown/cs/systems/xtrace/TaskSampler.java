@@ -0,0 +1,55 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a task started in this process is sampled. Tasks are sampled
+ * with the configured probability, or the probability configured for their
+ * tenant. If a maximum rate is configured, tasks that would exceed it are not
+ * sampled, which bounds the reports generated regardless of the rate tasks are
+ * started at. The rate is enforced with a token bucket that allows bursts of up
+ * to one second's worth of tasks.
+ */
+class TaskSampler {
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double rate;
+    private final Map<String, Double> tenantRates;
+    private final long nanosPerTask; // 0 if the number of sampled tasks is not limited
+    private final AtomicLong bucket = new AtomicLong(System.nanoTime()); // Time at which the bucket will next be full
+
+    TaskSampler(double rate, Map<String, Double> tenantRates, double maxPerSecond) {
+        this.rate = rate;
+        this.tenantRates = tenantRates;
+        this.nanosPerTask = maxPerSecond > 0 ? (long) Math.max(1, 1e9 / maxPerSecond) : 0;
+    }
+
+    /** Decide whether to sample a task started by the provided tenant, which may be null */
+    boolean sample(String tenant) {
+        Double tenantRate = tenant == null ? null : tenantRates.get(tenant);
+        double p = tenantRate == null ? rate : tenantRate;
+        if (p < 1 && (p <= 0 || ThreadLocalRandom.current().nextDouble() >= p)) {
+            return false;
+        }
+        return nanosPerTask == 0 || take(System.nanoTime());
+    }
+
+    /** Take a task from the token bucket, unless the bucket is already empty */
+    private boolean take(long now) {
+        while (true) {
+            long full = bucket.get();
+            long from = full - now < 0 ? now : full; // An idle bucket does not accumulate more than a burst
+            if (from - now > BURST_NANOS) {
+                return false;
+            }
+            if (bucket.compareAndSet(full, from + nanosPerTask)) {
+                return true;
+            }
+        }
+    }
+
+}
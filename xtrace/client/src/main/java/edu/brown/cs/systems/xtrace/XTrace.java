@@ -1,9 +1,8 @@
 package edu.brown.cs.systems.xtrace;
 
-import java.util.Random;
-
 import com.google.common.collect.Lists;
 
+import edu.brown.cs.systems.tracing.RandomIds;
 import edu.brown.cs.systems.tracing.Utils;
 import edu.brown.cs.systems.xtrace.logging.NullLogger;
 import edu.brown.cs.systems.xtrace.logging.XTraceLogger;
@@ -25,9 +24,8 @@ import edu.brown.cs.systems.xtrace.reporting.XTraceReporter;
 public class XTrace {
 
     /** For generating random task and event IDs */
-    private static final Random r = new Random(31 * (17 * Utils.getHost().hashCode() + Utils.getProcessID()) * System.currentTimeMillis());
-    public static synchronized long randomId() {
-        return r.nextLong();
+    public static long randomId() {
+        return RandomIds.next();
     }
     
     /** Deterministic task ID used in discovery mode */
@@ -156,8 +154,26 @@ public class XTrace {
      *            should we also track causality for this task?
      */
     public static void startTask(boolean trackCausality) {
-        XTraceBaggageInterface.setTaskID(randomId());
-        if (trackCausality) {
+        startTask(trackCausality, null);
+    }
+
+    /**
+     * Start propagating a new, randomly generated task ID in this thread. Whether
+     * the task is sampled is decided now, according to the sampling rate
+     * configured for the tenant, and recorded in the baggage. Unsampled tasks
+     * propagate their task ID, but log no events in any process unless they
+     * join with a sampled task.
+     * 
+     * @param trackCausality
+     *            should we also track causality for this task?
+     * @param tenant
+     *            the tenant that the task belongs to, or null for the default
+     *            sampling rate
+     */
+    public static void startTask(boolean trackCausality, String tenant) {
+        boolean sampled = XTraceSettings.sampler().sample(tenant);
+        XTraceBaggageInterface.setTaskID(randomId(), sampled);
+        if (trackCausality && sampled) {
             XTraceBaggageInterface.setParentEventId(0);
         }
     }
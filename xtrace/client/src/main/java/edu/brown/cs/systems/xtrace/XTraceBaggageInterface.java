@@ -36,6 +36,11 @@ public class XTraceBaggageInterface {
     /** Extra baggage field for logging level for wrapped commons / log4j loggers **/
     public static final ByteString LOGGING_LEVEL_BAGGAGE_FIELD = ByteString.copyFrom(new byte[] { 0x04 });
 
+    /** Extra baggage field that holds the task ID, instead of the task ID field, if the task was not sampled when it
+     * started. If an unsampled task joins with a sampled task, the task ID field is present again, so the joined
+     * execution is sampled **/
+    public static final ByteString UNSAMPLED_TASK_ID_BAGGAGE_FIELD = ByteString.copyFrom(new byte[] { 0x05 });
+
     /** Looks at this thread's current baggage to determine whether an X-Trace task ID is being propagated
      * 
      * @return true if an X-Trace task ID is being propagated by the current execution */
@@ -43,6 +48,30 @@ public class XTraceBaggageInterface {
         return BaggageContents.contains(XTRACE_BAGGAGE_NAMESPACE, TASK_ID_BAGGAGE_FIELD);
     }
 
+    /** Looks at this thread's current baggage to determine whether the task ID of an unsampled X-Trace task is being
+     * propagated
+     * 
+     * @return true if an unsampled task ID is being propagated by the current execution */
+    public static boolean hasUnsampledTaskID() {
+        return BaggageContents.contains(XTRACE_BAGGAGE_NAMESPACE, UNSAMPLED_TASK_ID_BAGGAGE_FIELD);
+    }
+
+    /** Looks at this thread's current baggage to determine whether it is part of an X-Trace task, sampled or not
+     * 
+     * @return true if the current execution belongs to an X-Trace task */
+    public static boolean hasTask() {
+        return hasTaskID() || hasUnsampledTaskID();
+    }
+
+    /** Looks at this thread's current baggage to determine whether the X-Trace task was not sampled when it started,
+     * and has not since joined with a sampled task. Unsampled tasks still propagate their task ID, but do not log any
+     * events
+     * 
+     * @return true if the current execution belongs to an unsampled task */
+    public static boolean isUnsampled() {
+        return !hasTaskID() && hasUnsampledTaskID();
+    }
+
     /** Looks at this thread's current baggage to determine whether any X-Trace parent event IDs are being propagated
      * 
      * @return true if X-Trace parent event IDs are being propagated */
@@ -55,13 +84,27 @@ public class XTraceBaggageInterface {
      * @return the X-Trace Task ID for the current execution, or 0 if none was found */
     public static long getTaskID(AtomicInteger counter) {
         // Get task ID from the baggage
-        Set<ByteString> taskIds = BaggageContents.get(XTRACE_BAGGAGE_NAMESPACE, TASK_ID_BAGGAGE_FIELD);
+        Set<ByteString> taskIds = getTaskIDs();
         
         // Set the count of task IDs
         if (counter != null) {
             counter.set(taskIds.size());
         }
+        return getTaskID(taskIds);
+    }
 
+    /** Looks at this thread's current baggage, and returns the serialized X-Trace task IDs it contains.  There should be
+     * at most one; more than one indicates a tracing context leak
+     * 
+     * @return the serialized X-Trace task IDs of the current execution, possibly empty */
+    public static Set<ByteString> getTaskIDs() {
+        return BaggageContents.get(XTRACE_BAGGAGE_NAMESPACE, TASK_ID_BAGGAGE_FIELD);
+    }
+
+    /** Returns the X-Trace task ID to use for the provided serialized task IDs, taken from the current baggage
+     * 
+     * @return the X-Trace Task ID for the current execution, or 0 if none was found */
+    public static long getTaskID(Set<ByteString> taskIds) {
         // If we have no IDs use discovery mode ID if we're in discovery mode
         if (taskIds.size() == 0 && XTraceSettings.discoveryMode()) {
             return getDiscoveryModeId();
@@ -140,6 +183,23 @@ public class XTraceBaggageInterface {
         BaggageContents.replace(XTRACE_BAGGAGE_NAMESPACE, TASK_ID_BAGGAGE_FIELD, ByteStrings.copyFrom(taskId));
     }
 
+    /** Set the task ID in the thread's current baggage to the specified task ID, recording whether the task was sampled
+     * when it started.  The ID of an unsampled task is propagated instead of a task ID, so sampling adds no bytes to
+     * the baggage of tasks that are traced
+     * 
+     * @param taskId The task ID to set for the current execution
+     * @param sampled Whether the task is sampled */
+    public static void setTaskID(long taskId, boolean sampled) {
+        if (sampled) {
+            setTaskID(taskId);
+            BaggageContents.remove(XTRACE_BAGGAGE_NAMESPACE, UNSAMPLED_TASK_ID_BAGGAGE_FIELD);
+        } else {
+            BaggageContents.replace(XTRACE_BAGGAGE_NAMESPACE, UNSAMPLED_TASK_ID_BAGGAGE_FIELD,
+                    ByteStrings.copyFrom(taskId));
+            BaggageContents.remove(XTRACE_BAGGAGE_NAMESPACE, TASK_ID_BAGGAGE_FIELD);
+        }
+    }
+
     /** Looks at this thread's current baggage, and returns the X-Trace parent event IDs if there are any
      * 
      * @return an array containing the X-Trace parent event IDs of the current execution, possibly empty */
@@ -1,10 +1,13 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
 
 import edu.brown.cs.systems.xtrace.logging.XTraceLoggingLevel;
 
@@ -27,6 +30,9 @@ public class XTraceSettings {
     public final XTraceLoggingLevel defaultLoggingLevel, mainMethodLoggingLevel;
     public final Set<String> classesEnabled, classesDisabled;
     public final int recycleThreshold;
+    public final double samplingRate, maxSampledPerSecond;
+    public final Map<String, Double> tenantSamplingRates;
+    private final TaskSampler sampler;
 
     public XTraceSettings() {
         Config config = ConfigFactory.load();
@@ -39,6 +45,14 @@ public class XTraceSettings {
         classesEnabled = Sets.newHashSet(config.getStringList("xtrace.client.reporting.enabled"));
         classesDisabled = Sets.newHashSet(config.getStringList("xtrace.client.reporting.disabled"));
         recycleThreshold = config.getInt("xtrace.client.recycle-threshold");
+        samplingRate = config.getDouble("xtrace.client.sampling.rate");
+        maxSampledPerSecond = config.getDouble("xtrace.client.sampling.max-per-second");
+        tenantSamplingRates = Maps.newHashMap();
+        Config tenantRates = config.getConfig("xtrace.client.sampling.tenant-rates");
+        for (String tenant : tenantRates.root().keySet()) {
+            tenantSamplingRates.put(tenant, tenantRates.getDouble(ConfigUtil.joinPath(tenant)));
+        }
+        sampler = new TaskSampler(samplingRate, tenantSamplingRates, maxSampledPerSecond);
     }
     
     public static XTraceLoggingLevel defaultLoggingLevel() {
@@ -53,6 +67,11 @@ public class XTraceSettings {
         return instance().recycleThreshold;
     }
 
+    /** Decides whether tasks started by this process are sampled */
+    static TaskSampler sampler() {
+        return instance().sampler;
+    }
+
     public static boolean traceMainMethods() {
         return instance().traceMain;
     }
@@ -28,17 +28,23 @@ public class XTraceLoggerImpl implements XTraceLogger {
 
     /**
      * XTrace logger is only valid if the current execution has an X-Trace Task
-     * ID
+     * ID, which unsampled tasks do not have, or is in discovery mode
      * 
      * @return true if the current execution is valid and can log, false
      *         otherwise
      */
     public boolean valid() {
-        return XTraceSettings.discoveryMode() || XTraceBaggageInterface.hasTaskID();
+        if (XTraceBaggageInterface.hasTaskID()) {
+            return true;
+        }
+        return XTraceSettings.discoveryMode() && !XTraceBaggageInterface.hasUnsampledTaskID();
     }
     
     public boolean valid(XTraceLoggingLevel level) {
-        return XTraceSettings.discoveryMode() || (level.valid() && XTraceBaggageInterface.hasTaskID());
+        if (XTraceBaggageInterface.hasTaskID()) {
+            return XTraceSettings.discoveryMode() || level.valid();
+        }
+        return XTraceSettings.discoveryMode() && !XTraceBaggageInterface.hasUnsampledTaskID();
     }
 
     public void log(String message, Object... labels) {
@@ -50,7 +56,7 @@ public class XTraceLoggerImpl implements XTraceLogger {
             return;
         }
         XTraceReport report = XTraceReport.create();
-        report.builder.setAgent(agent);
+        report.setAgent(agent);
         report.addStandardFields();
         report.makeXTraceEvent(joinPoint);
         report.setMessage(message, labels);
@@ -69,15 +75,11 @@ public class XTraceLoggerImpl implements XTraceLogger {
         }
         XTraceReport report = XTraceReport.create();
         report.addStandardFields();
-        report.builder.setAgent(agent);
-        report.builder.setLabel(message);
+        report.setAgent(agent);
+        report.setLabel(message);
         report.makeXTraceEvent(joinPoint);
         report.setJoinPoint(joinPoint);
-        for (String tag : tags) {
-            if (tag != null) {
-                report.builder.addTags(tag);
-            }
-        }
+        report.setTags(tags);
         report.applyDecorators();
         reporter.send(report);
     }
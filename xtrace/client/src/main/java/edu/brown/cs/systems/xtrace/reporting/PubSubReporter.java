@@ -1,29 +1,63 @@
 package edu.brown.cs.systems.xtrace.reporting;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import edu.brown.cs.systems.pubsub.PubSub;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
 
 /**
- * A thread that sends X-Trace reports to the X-Trace server via PubSub
+ * A thread that sends X-Trace reports to the X-Trace server via PubSub.
+ *
+ * Reports are buffered in a bounded ring buffer when they are sent, and are
+ * built and serialized by the reporting thread when it publishes them, so that
+ * sending a report is cheap for the logging thread. The buffer holds at most
+ * xtrace.client.reporting.pubsub.buffer-bytes of reports, by estimated size; reports sent while
+ * the buffer is full are dropped, and counted by {@link #dropped()}. The
+ * reporting thread publishes buffered reports in batches of up to
+ * xtrace.client.reporting.pubsub.batch-bytes, as {@link XTraceReportBatch}
+ * messages. When the buffer is empty, the reporting thread blocks until a
+ * report is sent.
  */
 public class PubSubReporter extends Thread implements XTraceReporter {
 
     protected static final Logger log = LoggerFactory.getLogger(PubSubReporter.class);
 
-    protected final BlockingQueue<XTraceReport> outgoing = new LinkedBlockingQueue<XTraceReport>();
+    private static final long DROP_LOG_INTERVAL_MS = 10000;
+    private static final int REPORT_TAG_SIZE = CodedOutputStream.computeTagSize(XTraceReportBatch.REPORT_FIELD_NUMBER);
+
+    private final String topic;
+    private final ReportBuffer buffer;
+    private final int batchBytes;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    // Used only by the reporting thread to serialize batches
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final CodedOutputStream batchOut = CodedOutputStream.newInstance(batch);
 
     /**
      * Creates a new PubSub reporter that publishes reports to the X-Trace
      * server via the default PubSub server
      */
     public PubSubReporter() {
+        Config config = ConfigFactory.load();
+        topic = config.getString("xtrace.pubsub.batchtopic");
+        buffer = new ReportBuffer(config.getInt("xtrace.client.reporting.pubsub.buffer-reports"),
+                config.getBytes("xtrace.client.reporting.pubsub.buffer-bytes"));
+        batchBytes = config.getBytes("xtrace.client.reporting.pubsub.batch-bytes").intValue();
+
         setDaemon(true);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -31,7 +65,7 @@ public class PubSubReporter extends Thread implements XTraceReporter {
             }
         });
     }
-    
+
     public void close() {
         try {
             this.interrupt();
@@ -42,37 +76,89 @@ public class PubSubReporter extends Thread implements XTraceReporter {
     }
 
     /**
-     * Enqueues the provided report to be sent by the reporting thread
-     * 
+     * Buffers the provided report to be built and sent by the reporting
+     * thread, or drops it if the buffer is full
+     *
      * @param report
      *            The report to send
      */
     public void send(XTraceReport report) {
-        outgoing.offer(report);
+        buffer.offer(report);
+    }
+
+    /** @return the number of reports dropped because the buffer was full */
+    public long dropped() {
+        return buffer.dropped();
+    }
+
+    /** @return the number of reports published */
+    public long sent() {
+        return sent.get();
+    }
+
+    /** @return the number of batches published */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Publish a batch of buffered reports
+     *
+     * @return true if any reports were published, false if the buffer was
+     *         empty
+     */
+    private boolean publishBatch() throws IOException {
+        int count = 0, size = 0;
+        XTraceReport next;
+        while (size < batchBytes && (next = buffer.poll()) != null) {
+            // Write each report directly as the batch's length-delimited report field
+            XTraceReportv4 report = next.build();
+            int length = report.getSerializedSize();
+            batchOut.writeTag(XTraceReportBatch.REPORT_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            batchOut.writeRawVarint32(length);
+            report.writeTo(batchOut);
+            size += REPORT_TAG_SIZE + CodedOutputStream.computeRawVarint32Size(length) + length;
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+        batchOut.flush();
+        PubSub.publish(topic, batch.toByteArray());
+        batch.reset();
+        sent.addAndGet(count);
+        batches.incrementAndGet();
+        return true;
     }
 
     @Override
     public void run() {
-        // Get the configured topic to publish reports to
-        String topic = ConfigFactory.load().getString("xtrace.pubsub.topic");
         log.info("Publishing X-Trace reports on topic {}", topic);
 
+        long lastDropped = 0, lastDropLog = 0;
         try {
             while (!Thread.currentThread().isInterrupted()) {
-                // Take the next xtrace report
-                XTraceReport report = outgoing.take();
+                // Publish a batch if there is one, otherwise wait for more reports
+                if (!publishBatch()) {
+                    buffer.await();
+                }
 
-                // Build and send
-                PubSub.publish(topic, report.builder.build());
+                // Periodically log the number of dropped reports
+                long dropped = buffer.dropped();
+                if (dropped != lastDropped && System.currentTimeMillis() - lastDropLog >= DROP_LOG_INTERVAL_MS) {
+                    log.warn("{} X-Trace reports dropped because the report buffer was full ({} total)",
+                            dropped - lastDropped, dropped);
+                    lastDropped = dropped;
+                    lastDropLog = System.currentTimeMillis();
+                }
             }
-        } catch (InterruptedException e) {
-            // Do nothing and return
-        }
-        
-        // Drain reports
-        XTraceReport report;
-        while ((report = outgoing.poll()) != null) {
-            PubSub.publish(topic, report.builder.build());
+
+            // Drain reports
+            while (publishBatch()) {
+            }
+        } catch (IOException e) {
+            // Serializing to a byte array should never throw an IOException
+            log.error("Unable to serialize X-Trace reports", e);
         }
 
         log.info("X-Trace PubSubReporter ending");
@@ -0,0 +1,130 @@
+package edu.brown.cs.systems.xtrace.reporting;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer of reports waiting to be serialized, with
+ * many producers and a single consumer. The buffer is bounded both by the
+ * number of reports and by the total estimated size of the reports in bytes.
+ * Reports that do not fit are dropped and counted. The consumer can block
+ * until reports arrive; producers only wake it if it is waiting.
+ */
+class ReportBuffer {
+
+    private final AtomicReferenceArray<XTraceReport> slots;
+    private final int mask;
+    private final long maxBytes;
+
+    private final AtomicLong producerIndex = new AtomicLong(); // Next slot to be claimed by a producer
+    private final AtomicLong consumerIndex = new AtomicLong(); // Next slot to be read by the consumer
+    private final AtomicLong bytes = new AtomicLong(); // Total estimated size of buffered reports
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Thread consumer; // The consumer thread, set when it waits for reports
+    private final AtomicBoolean waiting = new AtomicBoolean(); // True if the consumer might be parked
+
+    /**
+     * @param capacity
+     *            max number of reports, rounded up to a power of two
+     * @param maxBytes
+     *            max total estimated size of the buffered reports
+     */
+    ReportBuffer(int capacity, long maxBytes) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<XTraceReport>(size);
+        this.mask = size - 1;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a report to the buffer. Safe to call from any thread
+     *
+     * @return true if the report was added, false if it was dropped because
+     *         the buffer is full
+     */
+    boolean offer(XTraceReport report) {
+        // Reserve space for the report's bytes
+        int size = report.estimatedSize();
+        if (bytes.addAndGet(size) > maxBytes) {
+            bytes.addAndGet(-size);
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        // Claim a slot
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= slots.length()) {
+                bytes.addAndGet(-size);
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+
+        slots.lazySet((int) index & mask, report);
+
+        // Wake the consumer if it is waiting for reports
+        if (waiting.get() && waiting.compareAndSet(true, false)) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Block until the buffer is not empty or the thread is interrupted. Must
+     * only be called by the single consumer thread
+     */
+    void await() {
+        consumer = Thread.currentThread();
+        waiting.set(true);
+        while (isEmpty() && !consumer.isInterrupted()) {
+            LockSupport.park(this);
+        }
+        waiting.set(false);
+    }
+
+    /** @return true if no reports are buffered */
+    boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    /**
+     * Take the next report from the buffer. Must only be called by the single
+     * consumer thread
+     *
+     * @return the next report, or null if the buffer is empty
+     */
+    XTraceReport poll() {
+        long index = consumerIndex.get();
+        int offset = (int) index & mask;
+        XTraceReport report = slots.get(offset);
+        if (report == null) {
+            if (index == producerIndex.get()) {
+                return null;
+            }
+            // A producer has claimed the slot but not yet written to it
+            while ((report = slots.get(offset)) == null) {
+                Thread.yield();
+            }
+        }
+        slots.lazySet(offset, null);
+        consumerIndex.lazySet(index + 1);
+        bytes.addAndGet(-report.estimatedSize());
+        return report;
+    }
+
+    /** @return the total estimated size in bytes of the buffered reports */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /** @return the number of reports that have been dropped because the buffer was full */
+    long dropped() {
+        return dropped.get();
+    }
+
+}
@@ -2,13 +2,14 @@ package edu.brown.cs.systems.xtrace.reporting;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.JoinPoint.StaticPart;
 
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
 
 import edu.brown.cs.systems.tracing.Utils;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
@@ -16,32 +17,81 @@ import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4.Builder;
 import edu.brown.cs.systems.xtrace.XTrace;
 import edu.brown.cs.systems.xtrace.XTraceBaggageInterface;
 
+/**
+ * An X-Trace report.
+ *
+ * Creating a report is on the critical path of the logging thread, so the
+ * fields that X-Trace sets (standard fields, X-Trace IDs, message and source
+ * location) are only captured when they are set. They are formatted and encoded
+ * into the report's protobuf message by {@link #build()}, which reporters call
+ * on their own thread. Fields can also be added directly to the message with
+ * {@link #builder()}, which is only created if used; this replaces the public
+ * {@code builder} field of earlier versions. Since the message is formatted
+ * when the report is built, key-value pairs from {@link #setMessage} come after
+ * any added with {@link #put} or {@link #builder()}, regardless of call order.
+ *
+ * Message variables that are immutable, such as strings and boxed primitives,
+ * are captured by reference and converted to strings when the report is built;
+ * other variables are converted to strings when the message is set, since they
+ * might be modified or not be thread safe. The variables are copied out of the
+ * caller's array, which the caller might reuse.
+ */
 public class XTraceReport {
 
     private static final String host = Utils.getHost();
     private static final int procid = Utils.getProcessID();
 
-    /**
-     * The XTraceReportv4 message builder for this report
-     */
-    public final Builder builder = XTraceReportv4.newBuilder();
+    private Builder builder; // Created on first use
+    private XTraceReportv4 built; // Set once the report is built
+
+    // Captured by addStandardFields
+    private boolean hasStandardFields;
+    private long threadId;
+    private String threadName;
+    private long timestamp, hrt;
+
+    // Captured by makeXTraceEvent or setXTrace
+    private boolean hasXTrace, tracingError;
+    private long taskId, eventId;
+    private Collection<Long> parentEventIds;
+
+    // Captured by setAgent, setLabel, setMessage, setTags and setJoinPoint
+    private String agent, label, message;
+    private Object[] vars;
+    private String[] tags;
+    private JoinPoint.StaticPart source;
+
+    private int estimatedSize = -1; // Computed on first use
 
     private XTraceReport() {
     }
 
+    /**
+     * The XTraceReportv4 message builder for this report, for adding fields
+     * directly to the report. Fields set by other methods of this class are
+     * only added to the builder when the report is built, so fields read from
+     * the builder do not include them, and key-value pairs from setMessage are
+     * added after any already on the builder
+     */
+    public Builder builder() {
+        if (builder == null) {
+            builder = XTraceReportv4.newBuilder();
+        }
+        return builder;
+    }
+
     /**
      * Adds standard fields to this report, such as hostname, timestamp, etc.
      * 
      * @return This report, with additional fields added
      */
     public XTraceReport addStandardFields() {
-        builder.setHost(host);
-        builder.setProcessId(procid);
-        builder.setProcessName(Utils.getProcessName());
-        builder.setThreadId((int) Thread.currentThread().getId());
-        builder.setThreadName(Thread.currentThread().getName());
-        builder.setTimestamp(System.currentTimeMillis());
-        builder.setHrt(System.nanoTime());
+        Thread thread = Thread.currentThread();
+        hasStandardFields = true;
+        threadId = thread.getId();
+        threadName = thread.getName();
+        timestamp = System.currentTimeMillis();
+        hrt = System.nanoTime();
         return this;
     }
 
@@ -55,22 +105,37 @@ public class XTraceReport {
      * @return This report, with additional fields added
      */
     public XTraceReport makeXTraceEvent(StaticPart joinPoint) {
-        AtomicInteger counter = new AtomicInteger();
-        long taskId = XTraceBaggageInterface.getTaskID(counter);
-        if (counter.get() > 1) {
-            builder.addTags("TracingError");
-        }
+        Set<ByteString> taskIds = XTraceBaggageInterface.getTaskIDs();
+        tracingError = taskIds.size() > 1;
         long eventId = XTrace.randomId();
-        Collection<Long> parentIds = XTraceBaggageInterface.getParentEventIds();
-        setXTrace(taskId, eventId, parentIds);
+        setXTrace(XTraceBaggageInterface.getTaskID(taskIds), eventId, XTraceBaggageInterface.getParentEventIds());
         XTraceBaggageInterface.setParentEventId(eventId);
         return this;
     }
     
     public XTraceReport setXTrace(long taskId, long eventId, Collection<Long> parentEventIds) {
-        builder.setTaskId(taskId);
-        builder.setEventId(eventId);
-        builder.addAllParentEventId(parentEventIds);
+        this.hasXTrace = true;
+        this.taskId = taskId;
+        this.eventId = eventId;
+        this.parentEventIds = parentEventIds;
+        return this;
+    }
+
+    /** Set the name of the agent that logged this report */
+    public XTraceReport setAgent(String agent) {
+        this.agent = agent;
+        return this;
+    }
+
+    /** Set the label of this report, without variable substitution */
+    public XTraceReport setLabel(String label) {
+        this.label = label;
+        return this;
+    }
+
+    /** Add tags to this report; null tags are ignored */
+    public XTraceReport setTags(String... tags) {
+        this.tags = tags == null ? null : tags.clone(); // The caller might modify or reuse the array
         return this;
     }
     
@@ -93,11 +158,7 @@ public class XTraceReport {
     /** Add information to the report such as source line, etc. */
     public void setJoinPoint(JoinPoint.StaticPart joinPoint) {
         JoinPoint.StaticPart originalJoinPoint = originalJp.get();
-        if (originalJoinPoint != null) {
-            builder.setSource(originalJoinPoint.getSourceLocation().toString());
-        } else if (joinPoint != null) {
-            builder.setSource(joinPoint.getSourceLocation().toString());
-        }
+        source = originalJoinPoint != null ? originalJoinPoint : joinPoint;
     }
 
     /**
@@ -105,9 +166,29 @@ public class XTraceReport {
      * have variable-substitution characters {} for replacement with the
      * provided vars. Further variables can be specified as key-value pairs to
      * be added to the report. See the documentation of XTraceLogger for more
-     * details.
+     * details. The message is formatted when the report is built, so its
+     * key-value pairs come after any added with {@link #put}.
      */
     public XTraceReport setMessage(String message, Object... vars) {
+        this.message = message;
+        this.vars = vars.clone(); // The caller might modify or reuse the array
+        for (int i = 0; i < vars.length; i++) {
+            if (!isImmutable(vars[i])) {
+                this.vars[i] = vars[i].toString();
+            }
+        }
+        return this;
+    }
+
+    /** Whether a message variable can be converted to a string on another thread */
+    private static boolean isImmutable(Object var) {
+        return var == null || var instanceof String || var instanceof Long || var instanceof Integer
+                || var instanceof Short || var instanceof Byte || var instanceof Double || var instanceof Float
+                || var instanceof Boolean || var instanceof Character;
+    }
+
+    /** Substitute variables into the message, and add the remaining variables as key-value pairs */
+    private void formatMessage(Builder builder) {
         int varsIndex = 0;
         if (message != null) {
             // Split the string based on the replacement variable {}
@@ -135,10 +216,12 @@ public class XTraceReport {
 
         // Put remaining vars as kv pairs
         while (varsIndex + 1 < vars.length) {
-            put(vars[varsIndex++], vars[varsIndex++]);
+            Object key = vars[varsIndex++], value = vars[varsIndex++];
+            if (key != null) {
+                builder.addKey(key.toString());
+                builder.addValue(value == null ? "null" : value.toString());
+            }
         }
-
-        return this;
     }
 
     /**
@@ -154,8 +237,8 @@ public class XTraceReport {
      */
     public XTraceReport put(Object key, Object value) {
         if (key != null) {
-            builder.addKey(key.toString());
-            builder.addValue(value == null ? "null" : value.toString());
+            builder().addKey(key.toString());
+            builder().addValue(value == null ? "null" : value.toString());
         }
         return this;
     }
@@ -167,15 +250,114 @@ public class XTraceReport {
         return new XTraceReport();
     }
 
+    /**
+     * Formats and encodes the captured fields of this report into its protobuf
+     * message. Called by reporters, possibly on a different thread to the one
+     * that created the report. The report should not be modified once built
+     */
+    public synchronized XTraceReportv4 build() {
+        if (built != null) {
+            return built;
+        }
+        Builder builder = builder();
+        if (hasStandardFields) {
+            builder.setHost(host);
+            builder.setProcessId(procid);
+            builder.setProcessName(Utils.getProcessName());
+            builder.setThreadId((int) threadId);
+            builder.setThreadName(threadName);
+            builder.setTimestamp(timestamp);
+            builder.setHrt(hrt);
+        }
+        if (hasXTrace) {
+            builder.setTaskId(taskId);
+            builder.setEventId(eventId);
+            builder.addAllParentEventId(parentEventIds);
+        }
+        if (agent != null) {
+            builder.setAgent(agent);
+        }
+        if (label != null) {
+            builder.setLabel(label);
+        }
+        if (message != null || vars != null) {
+            formatMessage(builder);
+        }
+        if (source != null) {
+            builder.setSource(source.getSourceLocation().toString());
+        }
+        if (tracingError) {
+            builder.addTags("TracingError");
+        }
+        if (tags != null) {
+            for (String tag : tags) {
+                if (tag != null) {
+                    builder.addTags(tag);
+                }
+            }
+        }
+        built = builder.build();
+        return built;
+    }
+
+    /**
+     * Approximate serialized size of this report, before it is built. The size
+     * is computed when first called, so that it doesn't change between adding
+     * the report to a buffer and removing it
+     */
+    int estimatedSize() {
+        if (estimatedSize < 0) {
+            int size = 64;
+            if (threadName != null) {
+                size += threadName.length();
+            }
+            if (agent != null) {
+                size += agent.length();
+            }
+            if (label != null) {
+                size += label.length();
+            }
+            if (message != null) {
+                size += message.length();
+            }
+            if (vars != null) {
+                for (Object var : vars) {
+                    size += 2 + (var instanceof String ? ((String) var).length() : 20);
+                }
+            }
+            if (parentEventIds != null) {
+                size += 10 * parentEventIds.size();
+            }
+            if (tags != null) {
+                for (String tag : tags) {
+                    size += 2 + (tag == null ? 0 : tag.length());
+                }
+            }
+            if (builder != null) {
+                size += 64;
+                for (String key : builder.getKeyList()) {
+                    size += 2 + key.length();
+                }
+                for (String value : builder.getValueList()) {
+                    size += 2 + value.length();
+                }
+            }
+            estimatedSize = size;
+        }
+        return estimatedSize;
+    }
+
     @Override
     public String toString() {
-        return builder.build().toString();
+        return build().toString();
     }
 
     private static final List<Decorator> decorators = Lists.newArrayList();
 
     /**
-     * A decorator is something clients can add to add fields to XTrace reports
+     * A decorator is something clients can add to add fields to XTrace reports.
+     * Decorators run on the thread that creates the report, before the fields
+     * captured by the report are added to its builder
      */
     public static interface Decorator {
         public void decorate(XTraceReport report);
@@ -0,0 +1,117 @@
+package edu.brown.cs.systems.xtrace;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import edu.brown.cs.systems.baggage.Baggage;
+import edu.brown.cs.systems.baggage.DetachedBaggage;
+import edu.brown.cs.systems.xtrace.logging.XTraceLoggerImpl;
+import edu.brown.cs.systems.xtrace.logging.XTraceLoggingLevel;
+import junit.framework.TestCase;
+
+public class TestTaskSampling extends TestCase {
+
+    private static final Map<String, Double> noTenants = Collections.emptyMap();
+
+    private final XTraceLoggerImpl logger = new XTraceLoggerImpl("test", null);
+
+    @Override
+    protected void tearDown() {
+        Baggage.discard();
+    }
+
+    private static int sampled(TaskSampler sampler, String tenant, int count) {
+        int sampled = 0;
+        for (int i = 0; i < count; i++) {
+            if (sampler.sample(tenant)) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+    @Test
+    public void testRate() {
+        assertEquals(0, sampled(new TaskSampler(0, noTenants, 0), null, 1000));
+        assertEquals(1000, sampled(new TaskSampler(1, noTenants, 0), null, 1000));
+
+        int sampled = sampled(new TaskSampler(0.3, noTenants, 0), null, 10000);
+        assertTrue(sampled > 2700 && sampled < 3300);
+    }
+
+    @Test
+    public void testTenantRates() {
+        TaskSampler sampler = new TaskSampler(1, ImmutableMap.of("batch", 0.0, "interactive", 1.0), 0);
+        assertEquals(0, sampled(sampler, "batch", 1000));
+        assertEquals(1000, sampled(sampler, "interactive", 1000));
+        assertEquals(1000, sampled(sampler, "other", 1000));
+        assertEquals(1000, sampled(sampler, null, 1000));
+    }
+
+    @Test
+    public void testMaxPerSecond() {
+        // A burst of up to one second's worth of tasks is sampled
+        long start = System.nanoTime();
+        int sampled = sampled(new TaskSampler(1, noTenants, 100), null, 10000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue(sampled >= 100);
+        assertTrue(sampled <= 101 + 100 * seconds);
+    }
+
+    @Test
+    public void testUnsampledTaskLogsNothing() {
+        XTraceBaggageInterface.setTaskID(1, false);
+        assertFalse(XTraceBaggageInterface.hasTaskID());
+        assertTrue(XTraceBaggageInterface.hasTask());
+        assertTrue(XTraceBaggageInterface.isUnsampled());
+        assertFalse(logger.valid());
+        assertFalse(logger.valid(XTraceLoggingLevel.ERROR));
+
+        XTraceBaggageInterface.setTaskID(2, true);
+        assertTrue(XTraceBaggageInterface.hasTaskID());
+        assertFalse(XTraceBaggageInterface.hasUnsampledTaskID());
+        assertTrue(logger.valid());
+    }
+
+    @Test
+    public void testUnsampledPropagates() {
+        XTraceBaggageInterface.setTaskID(1, false);
+        byte[] serialized = Baggage.stop().toByteArray();
+        assertFalse(XTraceBaggageInterface.hasTask());
+
+        Baggage.start(serialized);
+        assertTrue(XTraceBaggageInterface.isUnsampled());
+        assertFalse(logger.valid());
+    }
+
+    @Test
+    public void testJoinWithSampledTask() {
+        XTraceBaggageInterface.setTaskID(1, false);
+        DetachedBaggage branch = Baggage.fork();
+
+        // Another branch of the execution is joined with a sampled task
+        DetachedBaggage unsampled = Baggage.swap(branch);
+        XTraceBaggageInterface.setTaskID(2, true);
+        assertTrue(logger.valid());
+        Baggage.join(unsampled);
+
+        assertFalse(XTraceBaggageInterface.isUnsampled());
+        assertTrue(logger.valid());
+        assertEquals(2, XTraceBaggageInterface.getTaskID(XTraceBaggageInterface.getTaskIDs()));
+    }
+
+    @Test
+    public void testJoinUnsampledBranches() {
+        XTraceBaggageInterface.setTaskID(1, false);
+        DetachedBaggage branch = Baggage.fork();
+        Baggage.join(branch);
+
+        assertTrue(XTraceBaggageInterface.isUnsampled());
+        assertFalse(logger.valid());
+    }
+
+}
@@ -0,0 +1,176 @@
+package edu.brown.cs.systems.xtrace.reporting;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestReportBuffer extends TestCase {
+
+    private static XTraceReport report(String message) {
+        return XTraceReport.create().setMessage(message);
+    }
+
+    @Test
+    public void testWraparound() {
+        ReportBuffer buffer = new ReportBuffer(4, Long.MAX_VALUE);
+        for (int round = 0; round < 10; round++) {
+            XTraceReport[] reports = new XTraceReport[4];
+            for (int i = 0; i < reports.length; i++) {
+                reports[i] = report("report " + i);
+                assertTrue(buffer.offer(reports[i]));
+            }
+            for (int i = 0; i < reports.length; i++) {
+                assertSame(reports[i], buffer.poll());
+            }
+            assertNull(buffer.poll());
+            assertTrue(buffer.isEmpty());
+            assertEquals(0, buffer.bytes());
+        }
+        assertEquals(0, buffer.dropped());
+    }
+
+    @Test
+    public void testCountBound() {
+        ReportBuffer buffer = new ReportBuffer(3, Long.MAX_VALUE); // Rounded up to 4
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(report("report")));
+        }
+        assertFalse(buffer.offer(report("report")));
+        assertEquals(1, buffer.dropped());
+
+        // Polling makes room for another report
+        assertNotNull(buffer.poll());
+        assertTrue(buffer.offer(report("report")));
+        assertEquals(1, buffer.dropped());
+    }
+
+    @Test
+    public void testByteBound() {
+        XTraceReport first = report("report"), second = report("report"), third = report("report");
+        int size = first.estimatedSize();
+        ReportBuffer buffer = new ReportBuffer(16, 2 * size);
+
+        assertTrue(buffer.offer(first));
+        assertTrue(buffer.offer(second));
+        assertEquals(2 * size, buffer.bytes());
+        assertFalse(buffer.offer(third));
+        assertEquals(1, buffer.dropped());
+        assertEquals(2 * size, buffer.bytes());
+
+        // Polling releases the report's bytes
+        assertSame(first, buffer.poll());
+        assertEquals(size, buffer.bytes());
+        assertTrue(buffer.offer(third));
+        assertSame(second, buffer.poll());
+        assertSame(third, buffer.poll());
+        assertEquals(0, buffer.bytes());
+
+        // A single report larger than the bound is dropped
+        ReportBuffer small = new ReportBuffer(16, size - 1);
+        assertFalse(small.offer(report("report")));
+        assertEquals(0, small.bytes());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4, perProducer = 20000;
+        final ReportBuffer buffer = new ReportBuffer(64, Long.MAX_VALUE);
+
+        // Remember which producer created each report, and in what order
+        final XTraceReport[][] reports = new XTraceReport[producers][perProducer];
+        final Map<XTraceReport, int[]> origin = new IdentityHashMap<XTraceReport, int[]>();
+        for (int p = 0; p < producers; p++) {
+            for (int i = 0; i < perProducer; i++) {
+                reports[p][i] = report("report");
+                origin.put(reports[p][i], new int[] { p, i });
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong offered = new AtomicLong();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        if (buffer.offer(reports[producer][i])) {
+                            offered.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        // Consume on this thread until every producer has finished and the buffer is empty
+        int[] next = new int[producers];
+        long received = 0;
+        start.countDown();
+        while (true) {
+            XTraceReport report = buffer.poll();
+            if (report == null) {
+                boolean done = true;
+                for (Thread thread : threads) {
+                    done &= !thread.isAlive();
+                }
+                if (done && buffer.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            int[] from = origin.get(report);
+            assertTrue(from[1] >= next[from[0]]); // Each producer's reports arrive in order, exactly once
+            next[from[0]] = from[1] + 1;
+            received++;
+        }
+
+        assertEquals(offered.get(), received);
+        assertEquals(producers * perProducer, received + buffer.dropped());
+        assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void testAwaitBlocksUntilOffer() throws InterruptedException {
+        final ReportBuffer buffer = new ReportBuffer(16, Long.MAX_VALUE);
+        final CountDownLatch woken = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            public void run() {
+                buffer.await();
+                woken.countDown();
+            }
+        };
+        consumer.start();
+
+        assertFalse(woken.await(200, TimeUnit.MILLISECONDS));
+        buffer.offer(report("report"));
+        assertTrue(woken.await(5, TimeUnit.SECONDS));
+        assertNotNull(buffer.poll());
+    }
+
+    @Test
+    public void testAwaitReturnsOnInterrupt() throws InterruptedException {
+        final ReportBuffer buffer = new ReportBuffer(16, Long.MAX_VALUE);
+        Thread consumer = new Thread() {
+            public void run() {
+                buffer.await();
+            }
+        };
+        consumer.start();
+        consumer.interrupt();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+    }
+
+}
@@ -0,0 +1,128 @@
+package edu.brown.cs.systems.xtrace.reporting;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
+import junit.framework.TestCase;
+
+public class TestXTraceReport extends TestCase {
+
+    @Test
+    public void testThreadNameCapturedWhenCreated() {
+        Thread thread = Thread.currentThread();
+        String original = thread.getName();
+        try {
+            thread.setName("before");
+            XTraceReport report = XTraceReport.create().addStandardFields();
+            thread.setName("after");
+
+            XTraceReportv4 built = report.build();
+            assertEquals("before", built.getThreadName());
+            assertEquals(thread.getId(), built.getThreadId());
+        } finally {
+            thread.setName(original);
+        }
+    }
+
+    @Test
+    public void testMutableVarsFormattedWhenSet() {
+        StringBuilder mutable = new StringBuilder("before");
+        XTraceReport report = XTraceReport.create().setMessage("value {}", mutable, "key", mutable);
+        mutable.setLength(0);
+        mutable.append("after");
+
+        XTraceReportv4 built = report.build();
+        assertEquals("value before", built.getLabel());
+        assertEquals("key", built.getKey(0));
+        assertEquals("before", built.getValue(0));
+    }
+
+    @Test
+    public void testCallerArrayCopied() {
+        Object[] vars = new Object[] { "before", 5 };
+        XTraceReport report = XTraceReport.create().setMessage("{} {}", vars);
+        vars[0] = "after";
+        vars[1] = 6;
+
+        assertEquals("before 5", report.build().getLabel());
+    }
+
+    @Test
+    public void testCallerTagsCopied() {
+        String[] tags = new String[] { "a", "b" };
+        XTraceReport report = XTraceReport.create().setTags(tags);
+        tags[0] = "c";
+        tags[1] = null;
+
+        XTraceReportv4 built = report.build();
+        assertEquals(2, built.getTagsCount());
+        assertEquals("a", built.getTags(0));
+        assertEquals("b", built.getTags(1));
+    }
+
+    @Test
+    public void testMessageKeyValuesAfterPut() {
+        XTraceReport report = XTraceReport.create().setMessage("hello", "k1", "v1").put("k2", "v2");
+
+        XTraceReportv4 built = report.build();
+        assertEquals("k2", built.getKey(0));
+        assertEquals("v2", built.getValue(0));
+        assertEquals("k1", built.getKey(1));
+        assertEquals("v1", built.getValue(1));
+    }
+
+    @Test
+    public void testImmutableVarsFormattedWhenBuilt() {
+        XTraceReport report = XTraceReport.create().setMessage("{} {} {} {}", "a", 1L, 2.5, null);
+        assertEquals("a 1 2.5 null", report.build().getLabel());
+    }
+
+    @Test
+    public void testBuildOnce() {
+        XTraceReport report = XTraceReport.create().addStandardFields().setMessage("hello {}", "world");
+        XTraceReportv4 built = report.build();
+        assertSame(built, report.build());
+        assertEquals("hello world", built.getLabel());
+    }
+
+    @Test
+    public void testBuildOnAnotherThread() throws InterruptedException {
+        final XTraceReport report = XTraceReport.create().addStandardFields().setAgent("agent")
+                .setMessage("hello {}", "world").setTags("a", null, "b");
+        final XTraceReportv4[] built = new XTraceReportv4[1];
+        Thread reporter = new Thread("reporter") {
+            public void run() {
+                built[0] = report.build();
+            }
+        };
+        reporter.start();
+        reporter.join();
+
+        assertEquals(Thread.currentThread().getName(), built[0].getThreadName());
+        assertEquals("agent", built[0].getAgent());
+        assertEquals("hello world", built[0].getLabel());
+        assertEquals(2, built[0].getTagsCount());
+    }
+
+    @Test
+    public void testEstimatedSizeIncludesValues() {
+        String large = Strings.repeat("x", 10000);
+        XTraceReport small = XTraceReport.create().setMessage("{}", "x");
+        XTraceReport withVar = XTraceReport.create().setMessage("{}", large);
+        XTraceReport withKeyValue = XTraceReport.create().setMessage("message", "key", large);
+        XTraceReport withPut = XTraceReport.create().put("key", large);
+
+        assertTrue(small.estimatedSize() < 1000);
+        assertTrue(withVar.estimatedSize() >= large.length());
+        assertTrue(withKeyValue.estimatedSize() >= large.length());
+        assertTrue(withPut.estimatedSize() >= large.length());
+
+        // The estimate is at least the serialized size, and doesn't change once computed
+        int estimate = withVar.estimatedSize();
+        assertTrue(estimate >= withVar.build().getSerializedSize());
+        assertEquals(estimate, withVar.estimatedSize());
+    }
+
+}
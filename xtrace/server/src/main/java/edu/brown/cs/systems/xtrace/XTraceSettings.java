@@ -11,11 +11,16 @@ public class XTraceSettings {
 
     public static final String PUBSUB_TOPIC = CONFIG.getString("xtrace.pubsub.topic");
 
+    public static final String PUBSUB_BATCH_TOPIC = CONFIG.getString("xtrace.pubsub.batchtopic");
+
     public static final int DATABASE_UPDATE_INTERVAL = CONFIG.getInt("xtrace.server.database-update-interval-ms");
 
     public static final String DATASTORE_DIRECTORY = CONFIG.getString("xtrace.server.datastore.dir");
+    public static final String DATASTORE_TYPE = CONFIG.getString("xtrace.server.datastore.type");
     public static final int DATASTORE_BUFFER_SIZE = CONFIG.getInt("xtrace.server.datastore.buffer-size");
     public static final int DATASTORE_CACHE_SIZE = CONFIG.getInt("xtrace.server.datastore.cache-size");
     public static final int DATASTORE_CACHE_TIMEOUT = CONFIG.getInt("xtrace.server.datastore.cache-timeout");
+    public static final long DATASTORE_SEGMENT_BYTES = CONFIG.getBytes("xtrace.server.datastore.segment-bytes");
+    public static final int DATASTORE_QUEUE_SIZE = CONFIG.getInt("xtrace.server.datastore.queue-size");
 
 }
@@ -1,5 +1,6 @@
 package edu.brown.cs.systems.xtrace.server;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
@@ -113,7 +114,7 @@ public class WebServer extends Server {
             String taskId = uri.length() > pathLen ? uri.substring(pathLen) : null;
             Writer out = response.getWriter();
             if (taskId != null) {
-                Iterator<Report> iter = data.getReports(taskId);
+                Iterator<Report> iter = data.getReports(taskId, getOffset(request), getReportsLength(request));
                 while (iter.hasNext()) {
                     out.write(iter.next().toString());
                     out.write("\n\n");
@@ -122,6 +123,13 @@ public class WebServer extends Server {
         }
     }
 
+    /**
+     * Writes the reports of one or more comma-separated tasks as JSON. The
+     * optional offset and length parameters select a range of each task's
+     * reports, so that large tasks can be loaded a page at a time; "more"
+     * indicates whether the task has reports beyond the range. Reports are
+     * written straight to the response as they are read
+     */
     private class GetJSONReportsServlet extends HttpServlet {
         private static final long serialVersionUID = -3918120497812383181L;
 
@@ -132,8 +140,10 @@ public class WebServer extends Server {
             int pathLen = request.getServletPath().length() + 1;
             String taskIdString = uri.length() > pathLen ? uri.substring(pathLen) : null;
             String[] taskIds = taskIdString.split(",");
+            int offset = getOffset(request);
+            int length = getReportsLength(request);
 
-            Writer out = response.getWriter();
+            Writer out = new BufferedWriter(response.getWriter(), 65536);
             out.write("[");
             boolean firstTaskDone = false;
             int count = 0;
@@ -146,21 +156,27 @@ public class WebServer extends Server {
 
                 out.append("{\"id\":\"");
                 out.append(taskId);
-                out.append("\",\"reports\":[");
-
-                boolean firstReportDone = false;
-                Iterator<Report> iter = data.getReports(taskId);
-                while (iter.hasNext()) {
-                    if (firstReportDone)
+                out.append("\",\"offset\":");
+                out.append(Integer.toString(offset));
+                out.append(",\"reports\":[");
+
+                // Read one extra report to find out whether there are more
+                int written = 0;
+                Iterator<Report> iter = data.getReports(taskId, offset, length == Integer.MAX_VALUE ? length : length + 1);
+                while (iter.hasNext() && written < length) {
+                    if (written > 0)
                         out.append(",\n");
-                    out.append(iter.next().jsonRepr().toJSONString());
-                    firstReportDone = true;
+                    iter.next().writeJSON(out);
+                    written++;
                 }
 
-                out.append("]}");
+                out.append("],\"more\":");
+                out.append(Boolean.toString(iter.hasNext()));
+                out.append("}");
                 Log.info("... done");
             }
             out.write("]");
+            out.flush();
         }
     }
 
@@ -361,6 +377,18 @@ public class WebServer extends Server {
         return Math.max(length, 0); // Don't allow negative
     }
 
+    /**
+     * Get the length GET parameter from a request for reports, or return
+     * Integer.MAX_VALUE to get all of the reports when it is not specified.
+     * 
+     * @param request
+     * @return
+     */
+    private static int getReportsLength(HttpServletRequest request) {
+        int length = getIntParam(request, "length", Integer.MAX_VALUE);
+        return Math.max(length, 0); // Don't allow negative
+    }
+
     /**
      * Get the offset HTTP parameter from a request, or return the default (of
      * 0) when it is not specified.
@@ -37,6 +37,7 @@ import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 import edu.brown.cs.systems.xtrace.server.impl.DerbyMetadataStore;
 import edu.brown.cs.systems.xtrace.server.impl.FileTreeDataStore;
 import edu.brown.cs.systems.xtrace.server.impl.PubSubSource;
+import edu.brown.cs.systems.xtrace.server.impl.SegmentedDataStore;
 
 /**
  * @author George Porter
@@ -62,7 +63,13 @@ public class XTraceServer {
     private XTraceServer() throws Exception {
         // Create the data stores
         metadata = DerbyMetadataStore.getInstance();
-        data = new FileTreeDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/reports/");
+        if ("filetree".equals(XTraceSettings.DATASTORE_TYPE)) {
+            data = new FileTreeDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/reports/");
+        } else if ("segmented".equals(XTraceSettings.DATASTORE_TYPE)) {
+            data = new SegmentedDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/segments/");
+        } else {
+            throw new IllegalArgumentException("Unknown data store type " + XTraceSettings.DATASTORE_TYPE);
+        }
 
         // Create the static servers
         webserver = new WebServer(XTraceSettings.WEBUI_PORT, data, metadata);
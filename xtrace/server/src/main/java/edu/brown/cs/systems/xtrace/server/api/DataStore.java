@@ -14,6 +14,17 @@ public interface DataStore {
 
     public Iterator<Report> getReports(String taskId);
 
+    /**
+     * Returns a range of a task's reports, in the order they were received, so
+     * that the reports of large tasks can be retrieved a page at a time
+     * 
+     * @param offset
+     *            the number of reports to skip
+     * @param length
+     *            the maximum number of reports to return
+     */
+    public Iterator<Report> getReports(String taskId, int offset, int length);
+
     public void shutdown();
 
 }
@@ -23,6 +23,9 @@ public interface Report {
 
     public JSONObject jsonRepr();
 
+    /** Write the same JSON as {@link #jsonRepr()}, directly to the output */
+    public void writeJSON(Appendable out) throws IOException;
+
     void writeDelimitedTo(OutputStream output) throws IOException;
 
 }
@@ -1,15 +1,13 @@
 package edu.brown.cs.systems.xtrace.server.impl;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -100,11 +98,16 @@ public class FileTreeDataStore implements DataStore {
 
     @Override
     public Iterator<Report> getReports(String taskId) {
+        return getReports(taskId, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<Report> getReports(String taskId, int offset, int length) {
         File l1 = new File(data, taskId.substring(0, 2));
         File l2 = new File(l1, taskId.substring(2, 4));
         File l3 = new File(l2, taskId.substring(4, 6));
         File taskfile = new File(l3, taskId + ".txt");
-        return new ReportIterator(taskfile);
+        return new ReportIterator(taskfile, offset, length);
     }
 
     /**
@@ -126,17 +129,29 @@ public class FileTreeDataStore implements DataStore {
         LOG.info("Data store flushed all data to disk");
     }
 
+    /** Reads reports from the memory-mapped task file; skipped reports are not parsed. The file is unmapped once the
+     * last report has been read */
     private class ReportIterator implements Iterator<Report> {
 
-        private InputStream in = null;
+        private ByteBuffer in = null;
+        private int remaining;
         private Report nextReport = null;
 
-        public ReportIterator(File taskfile) {
+        public ReportIterator(File taskfile, int offset, int length) {
+            this.remaining = length;
             if (taskfile.exists() && taskfile.canRead()) {
                 try {
-                    in = new BufferedInputStream(new FileInputStream(taskfile), 4096);
+                    in = MappedReports.map(taskfile);
+                    int skipped = 0;
+                    while (skipped < offset && MappedReports.skip(in)) {
+                        skipped++;
+                    }
                     nextReport = calcNext();
-                } catch (FileNotFoundException e) {
+                    if (nextReport == null) {
+                        MappedReports.unmap(in);
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Unable to read reports from " + taskfile, e);
                 }
             }
         }
@@ -146,8 +161,14 @@ public class FileTreeDataStore implements DataStore {
         }
 
         public Report next() {
+            if (nextReport == null) {
+                throw new NoSuchElementException();
+            }
             Report ret = nextReport;
             nextReport = calcNext();
+            if (nextReport == null) {
+                MappedReports.unmap(in);
+            }
             return ret;
         }
 
@@ -156,8 +177,14 @@ public class FileTreeDataStore implements DataStore {
         }
 
         private Report calcNext() {
+            if (remaining-- <= 0) {
+                return null;
+            }
             try {
-                XTraceReportv4 report = XTraceReportv4.parseDelimitedFrom(in);
+                XTraceReportv4 report = MappedReports.read(in);
+                if (report == null) {
+                    return null;
+                }
                 try {
                     return new ReportImpl(report);
                 } catch (NullPointerException e) {
@@ -0,0 +1,92 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
+
+/**
+ * Reads length-delimited reports from memory-mapped files, so that reading a
+ * report does not need a system call or a read of the surrounding data. Reports
+ * can also be skipped using only their length prefix, without parsing them.
+ * Mappings are otherwise only released when the buffer is garbage collected,
+ * so readers unmap buffers once they are done with them
+ */
+class MappedReports {
+
+    private MappedReports() {
+    }
+
+    /** Map the entire file read-only. The mapping remains valid after the file is closed */
+    static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Release the buffer's mapping immediately. The buffer, and any buffer sharing its mapping, must not be used
+     * afterwards. Does nothing if the JVM does not allow mappings to be released explicitly */
+    static void unmap(ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            return;
+        }
+        try {
+            Method getCleaner = buf.getClass().getMethod("cleaner");
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buf);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // The mapping is released when the buffer is garbage collected
+        }
+    }
+
+    /** Read the report at the buffer's position, or return null if there are no more complete reports */
+    static XTraceReportv4 read(ByteBuffer buf) throws IOException {
+        int length = readLength(buf);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return XTraceReportv4.parseFrom(bytes);
+    }
+
+    /** Skip over the report at the buffer's position; returns false if there are no more complete reports */
+    static boolean skip(ByteBuffer buf) {
+        int length = readLength(buf);
+        if (length < 0) {
+            return false;
+        }
+        buf.position(buf.position() + length);
+        return true;
+    }
+
+    /** Read the varint length prefix of the report at the buffer's position. Returns -1 if the buffer does not contain
+     * the complete report */
+    private static int readLength(ByteBuffer buf) {
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            byte b = buf.get();
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return length >= 0 && length <= buf.remaining() ? length : -1;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -6,6 +6,7 @@ import org.apache.log4j.Logger;
 
 import edu.brown.cs.systems.pubsub.PubSub;
 import edu.brown.cs.systems.pubsub.PubSubClient;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportBatch;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
 import edu.brown.cs.systems.xtrace.XTraceSettings;
 import edu.brown.cs.systems.xtrace.server.api.DataStore;
@@ -17,10 +18,12 @@ public class PubSubSource extends edu.brown.cs.systems.pubsub.PubSubClient.Subsc
     private final PubSubClient pubsub;
     private final MetadataStore metadata;
     private final DataStore data;
+    private final BatchSubscriber batches = new BatchSubscriber();
 
     public PubSubSource(DataStore data, MetadataStore metadata) throws IOException {
         pubsub = PubSub.client();
         pubsub.subscribe(XTraceSettings.PUBSUB_TOPIC, this);
+        pubsub.subscribe(XTraceSettings.PUBSUB_BATCH_TOPIC, batches);
         this.data = data;
         this.metadata = metadata;
     }
@@ -40,4 +43,14 @@ public class PubSubSource extends edu.brown.cs.systems.pubsub.PubSubClient.Subsc
             LOG.warn("PubSub exception receiving report\n" + msg, e);
         }
     }
+
+    /** Receives batches of reports, handling each report in turn */
+    private class BatchSubscriber extends edu.brown.cs.systems.pubsub.PubSubClient.Subscriber<XTraceReportBatch> {
+        @Override
+        protected void OnMessage(XTraceReportBatch batch) {
+            for (XTraceReportv4 msg : batch.getReportList()) {
+                PubSubSource.this.OnMessage(msg);
+            }
+        }
+    }
 }
@@ -6,6 +6,7 @@ import java.util.List;
 
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
 import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
 import edu.brown.cs.systems.xtrace.server.api.Report;
 
@@ -111,4 +112,98 @@ public class ReportImpl implements Report {
         return json;
     }
 
+    /**
+     * Writes the same fields as {@link #jsonRepr()}, but directly from the report
+     * rather than building a JSON object first. Custom fields are written after
+     * the standard fields they might override, and before the fields that
+     * override them, so that parsers that keep the last duplicate key see the
+     * same values as jsonRepr
+     */
+    @Override
+    public void writeJSON(Appendable out) throws IOException {
+        out.append('{');
+        boolean first = true;
+        if (event.hasTaskId())
+            first = writeString(out, first, "TaskID", this.taskID);
+        if (event.hasTimestamp())
+            first = writeNumber(out, first, "Timestamp", event.getTimestamp());
+        if (event.hasHrt())
+            first = writeNumber(out, first, "HRT", event.getHrt());
+        if (event.hasCycles())
+            first = writeNumber(out, first, "Cycles", event.getCycles());
+        if (event.hasHost())
+            first = writeString(out, first, "Host", event.getHost());
+        if (event.hasProcessId())
+            first = writeNumber(out, first, "ProcessID", event.getProcessId());
+        if (event.hasProcessName())
+            first = writeString(out, first, "ProcessName", event.getProcessName());
+        if (event.hasThreadId())
+            first = writeNumber(out, first, "ThreadID", event.getThreadId());
+        if (event.hasThreadName())
+            first = writeString(out, first, "ThreadName", event.getThreadName());
+        if (event.hasAgent())
+            first = writeString(out, first, "Agent", event.getAgent());
+        if (event.hasSource())
+            first = writeString(out, first, "Source", event.getSource());
+        if (event.hasLabel())
+            first = writeString(out, first, "Label", event.getLabel());
+        for (int i = 0; i < event.getKeyCount(); i++) {
+            first = writeString(out, first, event.getKey(i), event.getValue(i));
+        }
+        if (event.getTagsCount() > 0)
+            first = writeStrings(out, first, "Tag", event.getTagsList());
+        first = writeString(out, first, "Title", "X-Trace Task");
+        if (event.hasTenantClass())
+            first = writeNumber(out, first, "TenantClass", event.getTenantClass());
+        if (event.hasEventId())
+            first = writeString(out, first, "EventID", Long.toString(event.getEventId()));
+        if (event.getParentEventIdCount() > 0) {
+            writeKey(out, first, "ParentEventID");
+            out.append('[');
+            for (int i = 0; i < event.getParentEventIdCount(); i++) {
+                if (i > 0)
+                    out.append(',');
+                out.append('"').append(Long.toString(event.getParentEventId(i))).append('"');
+            }
+            out.append(']');
+        }
+        out.append('}');
+    }
+
+    private static void writeKey(Appendable out, boolean first, String key) throws IOException {
+        if (!first)
+            out.append(',');
+        out.append('"');
+        JSONValue.escape(key, out);
+        out.append("\":");
+    }
+
+    private static boolean writeString(Appendable out, boolean first, String key, String value) throws IOException {
+        writeKey(out, first, key);
+        out.append('"');
+        JSONValue.escape(value, out);
+        out.append('"');
+        return false;
+    }
+
+    private static boolean writeNumber(Appendable out, boolean first, String key, long value) throws IOException {
+        writeKey(out, first, key);
+        out.append(Long.toString(value));
+        return false;
+    }
+
+    private static boolean writeStrings(Appendable out, boolean first, String key, List<String> values) throws IOException {
+        writeKey(out, first, key);
+        out.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0)
+                out.append(',');
+            out.append('"');
+            JSONValue.escape(values.get(i), out);
+            out.append('"');
+        }
+        out.append(']');
+        return false;
+    }
+
 }
\ No newline at end of file
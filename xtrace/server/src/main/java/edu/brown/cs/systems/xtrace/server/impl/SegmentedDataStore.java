@@ -0,0 +1,565 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedLongs;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+
+/**
+ * Stores reports in large segment files that are only ever appended to, rather
+ * than in a file per task. A single writer thread appends reports in batches and
+ * flushes once per batch, so the number of files and writes does not grow with
+ * the number of tasks. Once a segment reaches the configured size it is sealed,
+ * and an index of its reports, sorted by task ID, is written alongside it. The
+ * reports of a task are found by binary searching the index of each sealed
+ * segment, plus the in-memory index of the segment being written.
+ *
+ * If the server stops without sealing the current segment, the segment is
+ * scanned and sealed when the server next starts; a report that was only
+ * partially written is discarded. A segment that cannot be sealed is scanned
+ * in the same way and reopened, so that the writer can keep appending to it.
+ */
+public class SegmentedDataStore implements DataStore, Runnable {
+
+    static private final Logger LOG = Logger.getLogger(SegmentedDataStore.class);
+
+    private static final long MAX_SEGMENT_BYTES = 1 << 30; // Segments are memory mapped, so must stay below 2GB
+    private static final int MAX_BATCH_REPORTS = 4096; // Max reports written before each flush
+    private static final String LOG_SUFFIX = ".log", INDEX_SUFFIX = ".idx";
+
+    private final File data;
+    private final long segmentBytes;
+    private final BlockingQueue<Report> queue = new ArrayBlockingQueue<Report>(XTraceSettings.DATASTORE_QUEUE_SIZE);
+    private final Thread writer = new Thread(this, "SegmentedDataStore writer");
+    private volatile boolean shutdown = false;
+
+    // Guarded by this; the writer replaces the active segment and appends to the sealed segments
+    private final List<SealedSegment> sealed = Lists.newArrayList();
+    private ActiveSegment active;
+
+    public SegmentedDataStore(String directory) throws IOException {
+        this(directory, XTraceSettings.DATASTORE_SEGMENT_BYTES);
+    }
+
+    SegmentedDataStore(String directory, long segmentBytes) throws IOException {
+        if (directory == null)
+            throw new IOException("SegmentedDataStore directory name is null");
+
+        data = new File(directory);
+        if (!data.isDirectory() && !data.mkdirs())
+            throw new IOException("SegmentedDataStore specified data store is not a directory " + directory);
+        if (!data.canWrite())
+            throw new IOException("SegmentedDataStore cannot write to specified datastore " + directory);
+        if (segmentBytes > MAX_SEGMENT_BYTES)
+            throw new IOException("SegmentedDataStore segment size cannot exceed " + MAX_SEGMENT_BYTES + " bytes");
+        this.segmentBytes = segmentBytes;
+
+        // Open existing segments, sealing any that were being written when the server last stopped
+        long next = 0;
+        for (long number : existingSegments()) {
+            if (!indexFile(number).exists()) {
+                recover(number);
+            }
+            sealed.add(new SealedSegment(number));
+            next = number + 1;
+        }
+        active = new ActiveSegment(next);
+
+        writer.setDaemon(true);
+        writer.start();
+        LOG.info("DataStore directory: " + data.getAbsolutePath() + ", " + sealed.size() + " existing segments");
+    }
+
+    @Override
+    public void reportReceived(Report r) {
+        if (shutdown) {
+            LOG.warn("Discarding a report received after shutdown");
+            return;
+        }
+        try {
+            queue.put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Discarding a report due to interrupt");
+        }
+    }
+
+    @Override
+    public Iterator<Report> getReports(String taskId) {
+        return getReports(taskId, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<Report> getReports(String taskId, int offset, int length) {
+        long id;
+        try {
+            id = UnsignedLongs.parseUnsignedLong(taskId, 16);
+        } catch (NumberFormatException e) {
+            return Collections.<Report> emptyList().iterator();
+        }
+
+        // Find the reports' offsets in each segment, oldest first
+        List<SealedSegment> segments;
+        ActiveSegment current;
+        synchronized (this) {
+            segments = Lists.newArrayList(sealed);
+            current = active;
+        }
+        List<File> files = Lists.newArrayList();
+        List<long[]> offsets = Lists.newArrayList();
+        for (SealedSegment segment : segments) {
+            files.add(segment.log);
+            offsets.add(segment.offsets(id));
+        }
+        files.add(current.log);
+        offsets.add(current.index.offsets(id));
+
+        // Only read the requested range of reports
+        long skip = offset, remaining = length;
+        for (int i = 0; i < offsets.size(); i++) {
+            long[] found = offsets.get(i);
+            int from = (int) Math.min(skip, found.length);
+            int to = (int) Math.min(found.length, from + remaining);
+            skip -= from;
+            remaining -= to - from;
+            offsets.set(i, Arrays.copyOfRange(found, from, to));
+        }
+        for (int i = offsets.size() - 1; i >= 0; i--) {
+            if (offsets.get(i).length == 0) {
+                files.remove(i);
+                offsets.remove(i);
+            }
+        }
+        return new ReportIterator(files, offsets);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted waiting for data store to write reports");
+            return;
+        }
+        LOG.info("Data store flushed all data to disk");
+    }
+
+    /** The writer thread: writes reports in batches, and seals the active segment on shutdown */
+    @Override
+    public void run() {
+        List<Report> batch = Lists.newArrayListWithCapacity(MAX_BATCH_REPORTS);
+        while (!shutdown || !queue.isEmpty()) {
+            try {
+                Report first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_REPORTS - 1);
+                if (active.closed) {
+                    reopen();
+                }
+                write(batch);
+                if (active.size() >= segmentBytes) {
+                    roll();
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Data store writer interrupted");
+                break;
+            } catch (IOException e) {
+                LOG.warn("Discarding " + batch.size() + " reports due to IOException", e);
+            }
+            batch.clear();
+        }
+        try {
+            active.seal();
+        } catch (IOException e) {
+            LOG.warn("Unable to seal segment " + active.log + ", it will be recovered on restart", e);
+        }
+    }
+
+    /** Append a batch of reports to the active segment, then make them visible to readers */
+    private void write(List<Report> batch) throws IOException {
+        long[] taskIds = new long[batch.size()];
+        long[] offsets = new long[batch.size()];
+        int count = 0;
+        for (Report report : batch) {
+            try {
+                taskIds[count] = UnsignedLongs.parseUnsignedLong(report.getTaskID(), 16);
+            } catch (NumberFormatException e) {
+                LOG.warn("Discarding a report with invalid task ID " + report.getTaskID());
+                continue;
+            }
+            offsets[count++] = active.size();
+            report.writeDelimitedTo(active.out);
+        }
+        active.out.flush();
+        active.index.add(taskIds, offsets, count);
+    }
+
+    /** Seal the active segment and start a new one. If the segment cannot be sealed, it is reopened instead, and
+     * sealing is tried again at the next roll */
+    private void roll() {
+        ActiveSegment previous = active;
+        try {
+            previous.seal();
+            SealedSegment segment = new SealedSegment(previous.number);
+            ActiveSegment next = new ActiveSegment(previous.number + 1);
+            synchronized (this) {
+                sealed.add(segment);
+                active = next;
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to seal segment " + previous.log + ", reopening it", e);
+            try {
+                reopen();
+            } catch (IOException e2) {
+                LOG.warn("Unable to reopen segment " + previous.log + ", will retry with the next batch", e2);
+            }
+        }
+    }
+
+    /** Continue appending to the active segment after it was closed by a failed seal. Any index that was written is
+     * removed, and the segment is scanned again, because its end may not have been written */
+    private void reopen() throws IOException {
+        long number = active.number;
+        File index = indexFile(number);
+        if (index.exists() && !index.delete()) {
+            throw new IOException("Unable to remove index " + index);
+        }
+        ActiveSegment reopened = new ActiveSegment(number, scan(number));
+        synchronized (this) {
+            active = reopened;
+        }
+        LOG.info("Reopened segment " + reopened.log + " with " + reopened.index.count + " reports");
+    }
+
+    /** Index a segment that was not sealed, discarding any partially written report at its end */
+    private void recover(long number) throws IOException {
+        SegmentIndex index = scan(number);
+        index.write(indexFile(number));
+        LOG.info("Recovered " + index.count + " reports from unsealed segment " + logFile(number));
+    }
+
+    /** Index the reports in a segment's log, truncating the log after the last complete report */
+    private SegmentIndex scan(long number) throws IOException {
+        File log = logFile(number);
+        SegmentIndex index = new SegmentIndex();
+        long valid = 0;
+        CountingInputStream in = new CountingInputStream(new BufferedInputStream(new FileInputStream(log), 65536));
+        try {
+            while (true) {
+                long offset = in.getCount();
+                XTraceReportv4 report = XTraceReportv4.parseDelimitedFrom(in);
+                if (report == null) {
+                    break;
+                }
+                index.add(report.getTaskId(), offset);
+                valid = in.getCount();
+            }
+        } catch (IOException e) {
+            // Partially written report
+        } finally {
+            in.close();
+        }
+        if (valid < log.length()) {
+            LOG.warn("Discarding " + (log.length() - valid) + " bytes of partially written reports from " + log);
+            RandomAccessFile file = new RandomAccessFile(log, "rw");
+            try {
+                file.setLength(valid);
+            } finally {
+                file.close();
+            }
+        }
+        return index;
+    }
+
+    /** Numbers of the segments in the data directory, in ascending order */
+    private long[] existingSegments() {
+        List<Long> numbers = Lists.newArrayList();
+        for (String name : data.list()) {
+            if (name.endsWith(LOG_SUFFIX)) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file in data store " + name);
+                }
+            }
+        }
+        long[] sorted = Longs.toArray(numbers);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private File logFile(long number) {
+        return new File(data, String.format("%016d", number) + LOG_SUFFIX);
+    }
+
+    private File indexFile(long number) {
+        return new File(data, String.format("%016d", number) + INDEX_SUFFIX);
+    }
+
+    /** The segment currently being appended to, indexed in memory */
+    private class ActiveSegment {
+        private final long number;
+        private final File log;
+        private final FileOutputStream file;
+        private final CountingOutputStream out;
+        private final long base; // Length of the log when it was opened
+        private final SegmentIndex index;
+        private boolean closed = false;
+
+        /** Start a new, empty segment */
+        private ActiveSegment(long number) throws IOException {
+            this(number, new SegmentIndex(), false);
+        }
+
+        /** Append to an existing segment whose reports are in the provided index */
+        private ActiveSegment(long number, SegmentIndex index) throws IOException {
+            this(number, index, true);
+        }
+
+        private ActiveSegment(long number, SegmentIndex index, boolean append) throws IOException {
+            this.number = number;
+            this.log = logFile(number);
+            this.base = append ? log.length() : 0;
+            this.index = index;
+            this.file = new FileOutputStream(log, append);
+            this.out = new CountingOutputStream(new BufferedOutputStream(file, XTraceSettings.DATASTORE_BUFFER_SIZE));
+        }
+
+        /** Number of bytes in the segment, including those not yet flushed */
+        private long size() {
+            return base + out.getCount();
+        }
+
+        /** Close the segment and write its index. The log is synced first, so that the index never refers to reports
+         * that are not on disk. The in-memory index remains readable */
+        private void seal() throws IOException {
+            closed = true;
+            try {
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            index.write(indexFile(number));
+        }
+    }
+
+    /** A segment that is no longer written to, whose index is memory mapped */
+    private class SealedSegment {
+        private final File log;
+        private final LongBuffer index; // Pairs of task ID and offset, sorted by task ID
+
+        private SealedSegment(long number) throws IOException {
+            this.log = logFile(number);
+            RandomAccessFile file = new RandomAccessFile(indexFile(number), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                this.index = channel.map(MapMode.READ_ONLY, 0, channel.size()).asLongBuffer();
+            } finally {
+                file.close();
+            }
+        }
+
+        /** Offsets of the task's reports in this segment, in ascending order */
+        private long[] offsets(long taskId) {
+            int lo = 0, hi = index.limit() / 2;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index.get(2 * mid) < taskId) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            int end = lo;
+            while (end < index.limit() / 2 && index.get(2 * end) == taskId) {
+                end++;
+            }
+            long[] offsets = new long[end - lo];
+            for (int i = lo; i < end; i++) {
+                offsets[i - lo] = index.get(2 * i + 1);
+            }
+            return offsets;
+        }
+    }
+
+    /** In-memory index of the reports in a segment, in the order they were written */
+    private static class SegmentIndex {
+        private long[] taskIds = new long[1024];
+        private long[] offsets = new long[1024];
+        private int count = 0;
+
+        private synchronized void add(long taskId, long offset) {
+            add(new long[] { taskId }, new long[] { offset }, 1);
+        }
+
+        private synchronized void add(long[] newTaskIds, long[] newOffsets, int n) {
+            if (count + n > taskIds.length) {
+                int capacity = Math.max(count + n, 2 * taskIds.length);
+                taskIds = Arrays.copyOf(taskIds, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            System.arraycopy(newTaskIds, 0, taskIds, count, n);
+            System.arraycopy(newOffsets, 0, offsets, count, n);
+            count += n;
+        }
+
+        private synchronized long[] offsets(long taskId) {
+            List<Long> found = Lists.newArrayList();
+            for (int i = 0; i < count; i++) {
+                if (taskIds[i] == taskId) {
+                    found.add(offsets[i]);
+                }
+            }
+            return Longs.toArray(found);
+        }
+
+        /** Write the index sorted by task ID. Written and synced to a temporary file first, so that an index that exists
+         * is always complete */
+        private synchronized void write(File file) throws IOException {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            // The sort is stable, so each task's offsets remain in ascending order
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Longs.compare(taskIds[a], taskIds[b]);
+                }
+            });
+
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+            try {
+                for (Integer i : order) {
+                    out.writeLong(taskIds[i]);
+                    out.writeLong(offsets[i]);
+                }
+                out.flush();
+                fileOut.getFD().sync(); // Must be on disk before the rename makes it visible
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /** Reads a task's reports one segment at a time, in the order they were written. Each report is decoded from the
+     * memory-mapped segment only when the iterator reaches it, and each segment is unmapped once its reports have been
+     * read */
+    private static class ReportIterator implements Iterator<Report> {
+
+        private final Iterator<File> files;
+        private final Iterator<long[]> offsets;
+        private File log = null;
+        private ByteBuffer buf = null;
+        private long[] current = new long[0];
+        private int position = 0;
+        private Report nextReport = null;
+
+        private ReportIterator(List<File> files, List<long[]> offsets) {
+            this.files = files.iterator();
+            this.offsets = offsets.iterator();
+        }
+
+        public boolean hasNext() {
+            while (nextReport == null && (position < current.length || files.hasNext())) {
+                if (position < current.length) {
+                    nextReport = read(current[position++]);
+                } else {
+                    open(files.next(), offsets.next());
+                }
+            }
+            if (nextReport == null) {
+                close();
+            }
+            return nextReport != null;
+        }
+
+        public Report next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Report ret = nextReport;
+            nextReport = null;
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void open(File next, long[] nextOffsets) {
+            close();
+            log = next;
+            current = nextOffsets;
+            position = 0;
+            try {
+                buf = MappedReports.map(log);
+            } catch (IOException e) {
+                LOG.warn("Unable to read reports from " + log, e);
+                current = new long[0];
+            }
+        }
+
+        private void close() {
+            if (buf != null) {
+                MappedReports.unmap(buf);
+                buf = null;
+            }
+        }
+
+        private Report read(long offset) {
+            if (offset >= buf.limit()) {
+                return null;
+            }
+            buf.position((int) offset);
+            try {
+                XTraceReportv4 report = MappedReports.read(buf);
+                return report == null ? null : new ReportImpl(report);
+            } catch (IOException e) {
+                LOG.warn("Unable to read report at offset " + offset + " of " + log, e);
+                return null;
+            }
+        }
+    }
+
+}
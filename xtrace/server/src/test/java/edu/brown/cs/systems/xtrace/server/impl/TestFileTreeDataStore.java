@@ -0,0 +1,67 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import static edu.brown.cs.systems.xtrace.server.impl.TestSegmentedDataStore.expected;
+import static edu.brown.cs.systems.xtrace.server.impl.TestSegmentedDataStore.labels;
+import static edu.brown.cs.systems.xtrace.server.impl.TestSegmentedDataStore.report;
+import static edu.brown.cs.systems.xtrace.server.impl.TestSegmentedDataStore.taskId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import junit.framework.TestCase;
+
+public class TestFileTreeDataStore extends TestCase {
+
+    private File dir;
+    private FileTreeDataStore store;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDir();
+        store = new FileTreeDataStore(dir.getPath());
+    }
+
+    @Override
+    protected void tearDown() {
+        store.shutdown();
+        TestSegmentedDataStore.delete(dir);
+    }
+
+    @Test
+    public void testPaging() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.reportReceived(new ReportImpl(report(1, i)));
+            store.reportReceived(new ReportImpl(report(2, i)));
+        }
+        assertEquals(expected(0, 100), labels(store.getReports(taskId(1))));
+        assertEquals(expected(0, 10), labels(store.getReports(taskId(1), 0, 10)));
+        assertEquals(expected(40, 60), labels(store.getReports(taskId(2), 40, 20)));
+        assertEquals(expected(90, 100), labels(store.getReports(taskId(2), 90, 20)));
+        assertEquals(expected(0, 0), labels(store.getReports(taskId(2), 100, 20)));
+        assertEquals(expected(0, 0), labels(store.getReports(taskId(2), 10, 0)));
+        assertEquals(expected(0, 0), labels(store.getReports(taskId(3))));
+    }
+
+    @Test
+    public void testIteratorExhausted() throws IOException {
+        store.reportReceived(new ReportImpl(report(1, 0)));
+        Iterator<Report> reports = store.getReports(taskId(1));
+        assertTrue(reports.hasNext());
+        assertTrue(reports.hasNext());
+        reports.next();
+        assertFalse(reports.hasNext());
+        try {
+            reports.next();
+            fail();
+        } catch (NoSuchElementException e) {
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
+import junit.framework.TestCase;
+
+public class TestMappedReports extends TestCase {
+
+    private static XTraceReportv4 report(int i) {
+        return XTraceReportv4.newBuilder().setTaskId(i).setLabel("report " + i).build();
+    }
+
+    private static byte[] reports(int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            report(i).writeDelimitedTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(reports(10));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(report(i), MappedReports.read(buf));
+        }
+        assertNull(MappedReports.read(buf));
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(reports(10));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(MappedReports.skip(buf));
+        }
+        assertEquals(report(5), MappedReports.read(buf));
+        for (int i = 6; i < 10; i++) {
+            assertTrue(MappedReports.skip(buf));
+        }
+        assertFalse(MappedReports.skip(buf));
+    }
+
+    @Test
+    public void testPartialReport() throws IOException {
+        byte[] complete = reports(2);
+        byte[] partial = reports(3);
+        for (int length = complete.length; length < partial.length; length++) {
+            ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(partial, length));
+            assertTrue(MappedReports.skip(buf));
+            assertEquals(report(1), MappedReports.read(buf));
+            int position = buf.position();
+            assertNull(MappedReports.read(buf));
+
+            buf.position(position);
+            assertFalse(MappedReports.skip(buf));
+        }
+    }
+
+    @Test
+    public void testLengthPrefixTooLarge() throws IOException {
+        byte[] tooLarge = new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x7f, 0, 0 };
+        assertNull(MappedReports.read(ByteBuffer.wrap(tooLarge)));
+        assertFalse(MappedReports.skip(ByteBuffer.wrap(tooLarge)));
+    }
+
+    @Test
+    public void testMapAndUnmap() throws IOException {
+        File file = File.createTempFile("mappedreports", ".log");
+        file.deleteOnExit();
+
+        Files.write(reports(10), file);
+        ByteBuffer buf = MappedReports.map(file);
+        assertTrue(file.delete()); // The mapping remains valid after the file is closed
+        for (int i = 0; i < 10; i++) {
+            assertEquals(report(i), MappedReports.read(buf));
+        }
+        assertNull(MappedReports.read(buf));
+        MappedReports.unmap(buf);
+
+        // Empty files and heap buffers
+        File empty = File.createTempFile("mappedreports", ".log");
+        empty.deleteOnExit();
+        ByteBuffer emptyBuf = MappedReports.map(empty);
+        assertNull(MappedReports.read(emptyBuf));
+        MappedReports.unmap(emptyBuf);
+        MappedReports.unmap(ByteBuffer.allocate(10));
+        assertTrue(empty.delete());
+    }
+
+}
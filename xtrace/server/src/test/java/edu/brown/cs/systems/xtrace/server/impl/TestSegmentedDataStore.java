@@ -0,0 +1,273 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReportv4;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import junit.framework.TestCase;
+
+public class TestSegmentedDataStore extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() {
+        delete(dir);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static XTraceReportv4 report(long taskId, int i) {
+        return XTraceReportv4.newBuilder().setTaskId(taskId).setLabel("report " + i).build();
+    }
+
+    static String taskId(long taskId) {
+        return new ReportImpl(report(taskId, 0)).getTaskID();
+    }
+
+    static List<String> labels(Iterator<Report> reports) throws IOException {
+        List<String> labels = Lists.newArrayList();
+        while (reports.hasNext()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            reports.next().writeDelimitedTo(out);
+            labels.add(XTraceReportv4.parseDelimitedFrom(new ByteArrayInputStream(out.toByteArray())).getLabel());
+        }
+        return labels;
+    }
+
+    static List<String> expected(int from, int to) {
+        List<String> labels = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            labels.add("report " + i);
+        }
+        return labels;
+    }
+
+    /** Wait for the writer thread to make the task's reports visible */
+    private static List<String> await(SegmentedDataStore store, long taskId, int count) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        List<String> labels = labels(store.getReports(taskId(taskId)));
+        while (labels.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            labels = labels(store.getReports(taskId(taskId)));
+        }
+        return labels;
+    }
+
+    private int countFiles(String suffix) {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testReportsReadableBeforeAndAfterSealing() throws IOException, InterruptedException {
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        for (int i = 0; i < 100; i++) {
+            for (long task = 1; task <= 3; task++) {
+                store.reportReceived(new ReportImpl(report(task, i)));
+            }
+        }
+
+        // Read from the in-memory index of the active segment
+        for (long task = 1; task <= 3; task++) {
+            assertEquals(expected(0, 100), await(store, task, 100));
+        }
+        store.shutdown();
+        assertEquals(1, countFiles(".log"));
+        assertEquals(1, countFiles(".idx"));
+
+        // Read from the sealed segment's index
+        store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        for (long task = 1; task <= 3; task++) {
+            assertEquals(expected(0, 100), labels(store.getReports(taskId(task))));
+        }
+        assertFalse(store.getReports(taskId(4)).hasNext());
+        assertFalse(store.getReports("not a task id").hasNext());
+        store.shutdown();
+    }
+
+    @Test
+    public void testTaskIdsAtEndsOfRange() throws IOException, InterruptedException {
+        long[] tasks = { 0, 1, Long.MAX_VALUE, Long.MIN_VALUE, -1 };
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        for (long task : tasks) {
+            store.reportReceived(new ReportImpl(report(task, 0)));
+        }
+        store.shutdown();
+
+        store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        for (long task : tasks) {
+            assertEquals(expected(0, 1), labels(store.getReports(taskId(task))));
+        }
+        store.shutdown();
+    }
+
+    @Test
+    public void testRollSegments() throws IOException, InterruptedException {
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 256);
+        for (int i = 0; i < 200; i++) {
+            store.reportReceived(new ReportImpl(report(7, i)));
+            if (i % 10 == 9) {
+                await(store, 7, i + 1); // Write in several batches
+            }
+        }
+        assertEquals(expected(0, 200), await(store, 7, 200));
+        store.shutdown();
+        assertTrue(countFiles(".log") > 1);
+        assertEquals(countFiles(".log"), countFiles(".idx"));
+
+        // Reports from every segment are returned, in the order they were received
+        store = new SegmentedDataStore(dir.getPath(), 256);
+        store.reportReceived(new ReportImpl(report(7, 200)));
+        assertEquals(expected(0, 201), await(store, 7, 201));
+        store.shutdown();
+    }
+
+    @Test
+    public void testRecoverUnsealedSegment() throws IOException {
+        File log = new File(dir, String.format("%016d", 0) + ".log");
+        FileOutputStream out = new FileOutputStream(log);
+        for (int i = 0; i < 10; i++) {
+            report(3, i).writeDelimitedTo(out);
+        }
+        long valid = log.length();
+        byte[] partial = report(3, 10).toByteArray();
+        out.write(partial.length);
+        out.write(partial, 0, partial.length / 2);
+        out.close();
+
+        // The partially written report is discarded, and the segment is sealed
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        assertEquals(valid, log.length());
+        assertTrue(new File(dir, String.format("%016d", 0) + ".idx").exists());
+        assertEquals(expected(0, 10), labels(store.getReports(taskId(3))));
+        store.shutdown();
+    }
+
+    @Test
+    public void testRecoverAfterUnsealedShutdown() throws IOException, InterruptedException {
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        for (int i = 0; i < 50; i++) {
+            store.reportReceived(new ReportImpl(report(5, i)));
+        }
+        store.shutdown();
+
+        // Remove the index and append garbage, as if the server had crashed while writing
+        File index = new File(dir, String.format("%016d", 0) + ".idx");
+        assertTrue(index.delete());
+        RandomAccessFile log = new RandomAccessFile(new File(dir, String.format("%016d", 0) + ".log"), "rw");
+        log.seek(log.length());
+        log.write(new byte[] { (byte) 0x80, (byte) 0x80 });
+        log.close();
+
+        store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        assertTrue(index.exists());
+        store.reportReceived(new ReportImpl(report(5, 50)));
+        assertEquals(expected(0, 51), await(store, 5, 51));
+        store.shutdown();
+    }
+
+    @Test
+    public void testSealFailureReopensSegment() throws IOException, InterruptedException {
+        // A directory in place of the index's temporary file makes sealing fail
+        File blocker = new File(dir, String.format("%016d", 0) + ".idx.tmp");
+        assertTrue(blocker.mkdir());
+
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1);
+        for (int i = 0; i < 20; i++) {
+            store.reportReceived(new ReportImpl(report(9, i)));
+            assertEquals(expected(0, i + 1), await(store, 9, i + 1));
+        }
+        assertEquals(1, countFiles(".log"));
+        assertEquals(0, countFiles(".idx"));
+
+        // Once sealing succeeds, the writer moves on to a new segment
+        assertTrue(blocker.delete());
+        store.reportReceived(new ReportImpl(report(9, 20)));
+        assertEquals(expected(0, 21), await(store, 9, 21));
+        store.shutdown();
+        assertTrue(countFiles(".log") > 1);
+        assertEquals(countFiles(".log"), countFiles(".idx"));
+
+        store = new SegmentedDataStore(dir.getPath(), 1);
+        assertEquals(expected(0, 21), labels(store.getReports(taskId(9))));
+        store.shutdown();
+    }
+
+    @Test
+    public void testPagingAcrossSegments() throws IOException, InterruptedException {
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 512);
+        for (int i = 0; i < 100; i++) {
+            store.reportReceived(new ReportImpl(report(1, i)));
+            store.reportReceived(new ReportImpl(report(2, i)));
+            if (i % 10 == 9) {
+                await(store, 1, i + 1); // Write in several batches
+            }
+        }
+        await(store, 2, 100);
+        assertTrue(countFiles(".idx") > 1);
+
+        // Pages span the sealed segments and the active segment
+        assertEquals(expected(0, 10), labels(store.getReports(taskId(1), 0, 10)));
+        assertEquals(expected(15, 85), labels(store.getReports(taskId(1), 15, 70)));
+        assertEquals(expected(90, 100), labels(store.getReports(taskId(2), 90, 20)));
+        assertEquals(expected(0, 0), labels(store.getReports(taskId(2), 100, 20)));
+        assertEquals(expected(0, 0), labels(store.getReports(taskId(2), 10, 0)));
+        store.shutdown();
+
+        store = new SegmentedDataStore(dir.getPath(), 512);
+        assertEquals(expected(33, 66), labels(store.getReports(taskId(2), 33, 33)));
+        store.shutdown();
+    }
+
+    @Test
+    public void testIteratorExhausted() throws IOException, InterruptedException {
+        SegmentedDataStore store = new SegmentedDataStore(dir.getPath(), 1 << 20);
+        store.reportReceived(new ReportImpl(report(1, 0)));
+        await(store, 1, 1);
+
+        Iterator<Report> reports = store.getReports(taskId(1));
+        assertTrue(reports.hasNext());
+        assertTrue(reports.hasNext());
+        reports.next();
+        assertFalse(reports.hasNext());
+        try {
+            reports.next();
+            fail();
+        } catch (NoSuchElementException e) {
+        }
+        store.shutdown();
+    }
+
+}